@@ -0,0 +1,167 @@
+/*
+* Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+*
+* This file is part of PowerFolder.
+*
+* PowerFolder is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* PowerFolder is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+*
+* $Id$
+*/
+package de.dal33t.powerfolder.bench;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import de.dal33t.powerfolder.disk.dao.FileInfoChanges;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAOHashMapImpl;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+
+/**
+ * Bench test of a consumer that keeps derived data (here: the total size of
+ * all files) up to date while the folder database gets modified.
+ *
+ * A database of 200,000 files gets modified in 500 rounds of 50 changes. After
+ * every round the consumer updates its derived data.
+ *
+ * The first run recalculates from all files of the domain each round, like
+ * FolderStatistic does.
+ *
+ * The second run only processes the changes since the generation it has seen
+ * last.
+ */
+@SuppressWarnings("deprecation")
+public class FileInfoDAOChangesBench extends Bench {
+
+    private static final int FILES = 200000;
+    private static final int ROUNDS = 500;
+    private static final int CHANGES_PER_ROUND = 50;
+
+    private static final FolderInfo FOLDER = new FolderInfo("Bench",
+        "BENCH-FOLDER-ID");
+    private static final MemberInfo MEMBER = new MemberInfo("Bench",
+        "BENCH-MEMBER-ID", null);
+
+    /**
+     * Main.
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        FileInfoDAOChangesBench bench = new FileInfoDAOChangesBench();
+        bench.run();
+    }
+
+    /**
+     * The run that takes the lowest time is the winner.
+     *
+     * @return
+     */
+    protected boolean winnerIsGreatest() {
+        return false;
+    }
+
+    /**
+     * Get results for both runs.
+     *
+     * @return
+     */
+    protected Map<String, Comparable> getResults() {
+        Map<String, Comparable> map = new LinkedHashMap<String, Comparable>();
+        map.put("Full recalculation", doFullRun());
+        map.put("Changes since generation", doChangesRun());
+        return map;
+    }
+
+    private static Comparable doFullRun() {
+        FileInfoDAO dao = createDAO();
+        Random random = new Random(4711);
+        long total = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < ROUNDS; i++) {
+            modify(dao, random);
+            total = 0;
+            for (FileInfo fInfo : dao.findAllFiles(null)) {
+                total += fInfo.getSize();
+            }
+        }
+        long took = System.currentTimeMillis() - start;
+        dao.stop();
+        System.out.println("Full recalculation total size: " + total);
+        return took;
+    }
+
+    private static Comparable doChangesRun() {
+        FileInfoDAO dao = createDAO();
+        Random random = new Random(4711);
+        long start = System.currentTimeMillis();
+
+        // Initial full calculation
+        Map<FileInfo, Long> sizes = new HashMap<FileInfo, Long>();
+        long total = 0;
+        long generation = dao.getGeneration(null);
+        for (FileInfo fInfo : dao.findAllFiles(null)) {
+            sizes.put(fInfo, fInfo.getSize());
+            total += fInfo.getSize();
+        }
+
+        for (int i = 0; i < ROUNDS; i++) {
+            modify(dao, random);
+            FileInfoChanges changes = dao.findChanges(null, generation);
+            for (FileInfo fInfo : changes.getRemoved()) {
+                Long oldSize = sizes.remove(fInfo);
+                total -= oldSize != null ? oldSize : 0;
+            }
+            for (FileInfo fInfo : changes.getStored()) {
+                Long oldSize = sizes.put(fInfo, fInfo.getSize());
+                total += fInfo.getSize() - (oldSize != null ? oldSize : 0);
+            }
+            generation = changes.getGeneration();
+        }
+        long took = System.currentTimeMillis() - start;
+        dao.stop();
+        System.out.println("Changes since generation total size: " + total);
+        return took;
+    }
+
+    private static FileInfoDAO createDAO() {
+        FileInfoDAO dao = new FileInfoDAOHashMapImpl("ME", null);
+        List<FileInfo> fInfos = new ArrayList<FileInfo>(FILES);
+        for (int i = 0; i < FILES; i++) {
+            fInfos.add(createFileInfo(i, i, 0));
+        }
+        dao.store(null, fInfos);
+        return dao;
+    }
+
+    private static void modify(FileInfoDAO dao, Random random) {
+        for (int i = 0; i < CHANGES_PER_ROUND; i++) {
+            int n = random.nextInt(FILES);
+            dao.store(null, createFileInfo(n, random.nextInt(100000),
+                random.nextInt(10) + 1));
+        }
+    }
+
+    private static FileInfo createFileInfo(int n, long size, int version) {
+        return FileInfoFactory.unmarshallExistingFile(FOLDER, "dir-" + (n % 100)
+            + "/file-" + n + ".txt", size, MEMBER, new Date(), version, false);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+* Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+*
+* This file is part of PowerFolder.
+*
+* PowerFolder is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* PowerFolder is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+*
+* $Id$
+*/
+package de.dal33t.powerfolder.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Adler32;
+
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+import de.dal33t.powerfolder.util.delta.FilePartsRecordBuilder;
+import de.dal33t.powerfolder.util.delta.ParallelFilePartsRecordBuilder;
+
+/**
+ * Bench test of the FilePartsRecord building throughput in MB/s.
+ *
+ * Builds the record of a file with random data with the sequential
+ * {@link FilePartsRecordBuilder} like AbstractFileRecordProvider did and with
+ * the {@link ParallelFilePartsRecordBuilder} on 1 up to the number of CPUs
+ * threads. The file is read once before, so it is served from the OS cache
+ * in all runs. Every record is checked to be identical to the sequential one.
+ *
+ * Usage: FilePartsRecordBench [size in MB] [part size]
+ */
+public class FilePartsRecordBench extends Bench {
+
+    private final Path file;
+    private final long length;
+    private final int partSize;
+    private FilePartsRecord expected;
+
+    private FilePartsRecordBench(int sizeMB, int partSize) throws IOException
+    {
+        this.partSize = partSize;
+        file = Files.createTempFile("FilePartsRecordBench", ".bin");
+        file.toFile().deleteOnExit();
+        Random random = new Random(1);
+        byte[] buf = new byte[1024 * 1024];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < sizeMB; i++) {
+                random.nextBytes(buf);
+                out.write(buf);
+            }
+        }
+        length = Files.size(file);
+    }
+
+    /**
+     * Main.
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int partSize = args.length > 1 ? Integer.parseInt(args[1]) : 65536;
+        FilePartsRecordBench bench = new FilePartsRecordBench(sizeMB,
+            partSize);
+        try {
+            bench.run();
+        } finally {
+            Files.delete(bench.file);
+        }
+    }
+
+    /**
+     * The run with the highest throughput is the winner.
+     *
+     * @return
+     */
+    protected boolean winnerIsGreatest() {
+        return true;
+    }
+
+    /**
+     * Get results for all runs.
+     *
+     * @return
+     */
+    protected Map<String, Comparable> getResults() {
+        Map<String, Comparable> map = new LinkedHashMap<String, Comparable>();
+        // Warm up OS cache and JIT
+        doSequentialRun();
+        map.put("Sequential builder MB/s", doSequentialRun());
+        int cpus = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cpus; threads *= 2) {
+            map.put("Parallel builder, " + threads + " threads MB/s",
+                doParallelRun(threads));
+        }
+        if (Integer.bitCount(cpus) != 1) {
+            map.put("Parallel builder, " + cpus + " threads MB/s",
+                doParallelRun(cpus));
+        }
+        return map;
+    }
+
+    private Comparable doSequentialRun() {
+        try (InputStream in = Files.newInputStream(file)) {
+            long start = System.nanoTime();
+            FilePartsRecordBuilder b = new FilePartsRecordBuilder(
+                new Adler32(), MessageDigest.getInstance("SHA-256"),
+                MessageDigest.getInstance("MD5"), partSize);
+            byte[] buf = new byte[8192];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                b.update(buf, 0, read);
+            }
+            expected = b.getRecord();
+            return throughput(start);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Comparable doParallelRun(int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (InputStream in = Files.newInputStream(file)) {
+            long start = System.nanoTime();
+            ParallelFilePartsRecordBuilder b;
+            b = new ParallelFilePartsRecordBuilder(executor, threads,
+                "SHA-256", "MD5", partSize);
+            FilePartsRecord record = b.build(in, length, null);
+            Comparable result = throughput(start);
+            if (!expected.equals(record)) {
+                throw new IllegalStateException("Records differ");
+            }
+            return result;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Comparable throughput(long start) {
+        double secs = (System.nanoTime() - start) / 1e9;
+        double mbs = length / 1024.0 / 1024.0 / secs;
+        return Math.round(mbs * 10) / 10.0;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+* Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+*
+* This file is part of PowerFolder.
+*
+* PowerFolder is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* PowerFolder is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+*
+* $Id$
+*/
+package de.dal33t.powerfolder.bench;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import de.dal33t.powerfolder.util.RingBuffer;
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+import de.dal33t.powerfolder.util.delta.FilePartsRecordBuilder;
+import de.dal33t.powerfolder.util.delta.MatchInfo;
+import de.dal33t.powerfolder.util.delta.PartInfo;
+import de.dal33t.powerfolder.util.delta.PartInfoMatcher;
+import de.dal33t.powerfolder.util.delta.RollingAdler32;
+import de.dal33t.powerfolder.util.delta.RollingChecksum;
+
+/**
+ * Bench test of the delta matching throughput in MB/s.
+ *
+ * The record gets built from random data. The matched file is a modified
+ * version: In every 256 KB a share of the data (default 50 percent) is
+ * rewritten and a few bytes inserted. The frame has to roll byte by byte over
+ * the rewritten data, the rest gets matched part by part. Like in {@link
+ * de.dal33t.powerfolder.util.delta.MatchResultWorker} the file is read
+ * through the unbuffered stream of Files.newInputStream.
+ *
+ * The first run uses the former matcher that rolls byte by byte through a
+ * RingBuffer and looks up boxed checksums in a HashMap. The second run uses
+ * the current {@link PartInfoMatcher}.
+ *
+ * Usage: PartInfoMatcherBench [size in MB] [part size] [rewritten percent]
+ */
+public class PartInfoMatcherBench extends Bench {
+
+    private final Path file;
+    private final long length;
+    private final FilePartsRecord record;
+
+    private PartInfoMatcherBench(int sizeMB, int partSize, int rewritten)
+        throws NoSuchAlgorithmException, IOException
+    {
+        Random random = new Random(1);
+        byte[] original = new byte[sizeMB * 1024 * 1024];
+        random.nextBytes(original);
+        FilePartsRecordBuilder builder = new FilePartsRecordBuilder(
+            new Adler32(), MessageDigest.getInstance("SHA-256"),
+            MessageDigest.getInstance("MD5"), partSize);
+        builder.update(original);
+        record = builder.getRecord();
+
+        int step = 256 * 1024;
+        int inserted = 7;
+        byte[] modified = new byte[original.length + original.length / step
+            * inserted];
+        int o = 0, m = 0;
+        while (o < original.length) {
+            int n = Math.min(step, original.length - o);
+            System.arraycopy(original, o, modified, m, n);
+            byte[] changed = new byte[Math.min(n, step * rewritten / 100)];
+            random.nextBytes(changed);
+            System.arraycopy(changed, 0, modified, m, changed.length);
+            o += n;
+            m += n;
+            for (int i = 0; i < inserted && m < modified.length; i++) {
+                modified[m++] = (byte) random.nextInt();
+            }
+        }
+        file = Files.createTempFile("PartInfoMatcherBench", ".bin");
+        file.toFile().deleteOnExit();
+        Files.write(file, modified);
+        length = modified.length;
+    }
+
+    /**
+     * Main.
+     *
+     * @param args
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    public static void main(String[] args) throws NoSuchAlgorithmException,
+        IOException
+    {
+        int sizeMB = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int partSize = args.length > 1 ? Integer.parseInt(args[1]) : 8192;
+        int rewritten = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        PartInfoMatcherBench bench = new PartInfoMatcherBench(sizeMB,
+            partSize, rewritten);
+        try {
+            bench.run();
+        } finally {
+            Files.delete(bench.file);
+        }
+    }
+
+    /**
+     * The run with the highest throughput is the winner.
+     *
+     * @return
+     */
+    protected boolean winnerIsGreatest() {
+        return true;
+    }
+
+    /**
+     * Get results for both runs.
+     *
+     * @return
+     */
+    protected Map<String, Comparable> getResults() {
+        Map<String, Comparable> map = new LinkedHashMap<String, Comparable>();
+        map.put("Byte-wise matcher MB/s", doLegacyRun());
+        map.put("Block-buffered matcher MB/s", doBlockRun());
+        return map;
+    }
+
+    private Comparable doLegacyRun() {
+        try (InputStream in = Files.newInputStream(file)) {
+            long start = System.nanoTime();
+            LegacyMatcher matcher = new LegacyMatcher(in, new RollingAdler32(
+                record.getPartLength()), MessageDigest.getInstance("SHA-256"),
+                record.getInfos());
+            int matches = 0;
+            while (matcher.nextMatch() != null) {
+                matches++;
+            }
+            return report("Byte-wise", matches, start);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Comparable doBlockRun() {
+        try (InputStream in = Files.newInputStream(file)) {
+            long start = System.nanoTime();
+            PartInfoMatcher matcher = new PartInfoMatcher(in,
+                new RollingAdler32(record.getPartLength()), MessageDigest
+                    .getInstance("SHA-256"), record.getInfos());
+            int matches = 0;
+            while (matcher.nextMatch() != null) {
+                matches++;
+            }
+            return report("Block-buffered", matches, start);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Comparable report(String name, int matches, long start) {
+        double secs = (System.nanoTime() - start) / 1e9;
+        double mbs = length / 1024.0 / 1024.0 / secs;
+        System.out.println(name + ": " + matches + " of "
+            + record.getInfos().length + " parts matched");
+        return Math.round(mbs * 10) / 10.0;
+    }
+
+    /**
+     * The matcher as it was before: Slides one byte at a time.
+     */
+    private static class LegacyMatcher extends FilterInputStream {
+        private static final int BUFFER_SIZE = 16384;
+        private final RollingChecksum chksum;
+        private final MessageDigest digester;
+        private final RingBuffer rbuf;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private final Map<Long, List<PartInfo>> partCache = new HashMap<Long, List<PartInfo>>();
+        private final byte[] dbuf;
+        private long pos;
+
+        private LegacyMatcher(InputStream in, RollingChecksum chksum,
+            MessageDigest digester, PartInfo[] partInfos)
+        {
+            super(in);
+            this.chksum = chksum;
+            this.digester = digester;
+            rbuf = new RingBuffer(chksum.getFrameSize());
+            dbuf = new byte[chksum.getFrameSize()];
+            for (PartInfo info : partInfos) {
+                List<PartInfo> pList = partCache.get(info.getChecksum());
+                if (pList == null) {
+                    partCache.put(info.getChecksum(),
+                        pList = new LinkedList<PartInfo>());
+                }
+                pList.add(info);
+            }
+        }
+
+        private MatchInfo nextMatch() throws IOException {
+            int rem = rbuf.remaining();
+            while (rem > 0) {
+                int amount = Math.min(rem, BUFFER_SIZE);
+                int read = read(buf, 0, amount);
+                if (read == -1) {
+                    break;
+                }
+                pos += read;
+                rem -= read;
+                chksum.update(buf, 0, read);
+                rbuf.write(buf, 0, read);
+            }
+            while (rbuf.remaining() == 0) {
+                List<PartInfo> lookup = partCache.get(chksum.getValue());
+                if (lookup != null) {
+                    rbuf.peek(dbuf, 0, chksum.getFrameSize());
+                    byte[] digest = digester.digest(dbuf);
+                    for (PartInfo info : lookup) {
+                        if (Arrays.equals(digest, info.getDigest())) {
+                            MatchInfo retval = new MatchInfo(info, pos
+                                - chksum.getFrameSize());
+                            rbuf.reset();
+                            return retval;
+                        }
+                    }
+                }
+                rbuf.skip(1);
+                int data = read();
+                if (data == -1) {
+                    break;
+                }
+                pos++;
+                rbuf.write(data);
+                chksum.update(data);
+            }
+            // Tail ignored, not relevant for the throughput.
+            return null;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+* Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+*
+* This file is part of PowerFolder.
+*
+* PowerFolder is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation.
+*
+* PowerFolder is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+*
+* $Id$
+*/
+package de.dal33t.powerfolder.bench;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+
+/**
+ * Bench test of the change detection of the folder scanner on a tree of
+ * 1,000,000 unchanged files (1,000 files per directory).
+ *
+ * The first run accesses the file system like the scanner did before: type
+ * check while crawling, existence check and attribute read for change
+ * detection.
+ *
+ * The second run reads one BasicFileAttributes snapshot per file while
+ * crawling and does the change detection on that snapshot.
+ *
+ * Both runs print the number of file system calls they made. To verify the
+ * real syscalls run the bench under
+ * <code>strace -c -f -e trace=stat,lstat,newfstatat,statx</code>.
+ *
+ * Usage: ScanAttributesBench [directory] [number of files]. The tree is
+ * created on the first run and reused afterwards. Run it twice and take the
+ * second result to compare with a warm file system cache.
+ */
+@SuppressWarnings("deprecation")
+public class ScanAttributesBench extends Bench {
+
+    private static final int FILES_PER_DIR = 1000;
+
+    private static final FolderInfo FOLDER = new FolderInfo("Bench",
+        "BENCH-FOLDER-ID");
+    private static final MemberInfo MEMBER = new MemberInfo("Bench",
+        "BENCH-MEMBER-ID", null);
+
+    private final Path base;
+    private final int files;
+    private Map<String, FileInfo> known;
+    private long calls;
+
+    private ScanAttributesBench(Path base, int files) {
+        this.base = base;
+        this.files = files;
+    }
+
+    /**
+     * Main.
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        Path base = Paths.get(args.length > 0 ? args[0] : System
+            .getProperty("java.io.tmpdir")).resolve("ScanAttributesBench");
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        ScanAttributesBench bench = new ScanAttributesBench(base, files);
+        bench.createTree();
+        bench.run();
+    }
+
+    /**
+     * The run that takes the lowest time is the winner.
+     *
+     * @return
+     */
+    protected boolean winnerIsGreatest() {
+        return false;
+    }
+
+    /**
+     * Get results for both runs.
+     *
+     * @return
+     */
+    protected Map<String, Comparable> getResults() {
+        Map<String, Comparable> map = new LinkedHashMap<String, Comparable>();
+        map.put("Per-call file system access", doPerCallRun());
+        map.put("Single attributes snapshot", doSnapshotRun());
+        return map;
+    }
+
+    private Comparable doPerCallRun() {
+        calls = 0;
+        int inSync = 0;
+        long start = System.currentTimeMillis();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(base)) {
+            for (Path dir : dirs) {
+                calls++;
+                if (!Files.isDirectory(dir)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> stream = Files
+                    .newDirectoryStream(dir))
+                {
+                    for (Path file : stream) {
+                        calls++;
+                        if (!Files.isRegularFile(file)) {
+                            continue;
+                        }
+                        FileInfo fInfo = known.get(relativeName(file));
+                        if (inSyncPerCall(fInfo, file)) {
+                            inSync++;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        long took = System.currentTimeMillis() - start;
+        System.out.println("Per-call: " + inSync + " files in sync, " + calls
+            + " file system calls");
+        return took;
+    }
+
+    private Comparable doSnapshotRun() {
+        calls = 0;
+        int inSync = 0;
+        long start = System.currentTimeMillis();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(base)) {
+            for (Path dir : dirs) {
+                calls++;
+                BasicFileAttributes dirAttrs = Files.readAttributes(dir,
+                    BasicFileAttributes.class);
+                if (!dirAttrs.isDirectory()) {
+                    continue;
+                }
+                try (DirectoryStream<Path> stream = Files
+                    .newDirectoryStream(dir))
+                {
+                    for (Path file : stream) {
+                        calls++;
+                        BasicFileAttributes attrs = FileInfo
+                            .readDiskAttributes(file);
+                        if (attrs == null || !attrs.isRegularFile()) {
+                            continue;
+                        }
+                        FileInfo fInfo = known.get(relativeName(file));
+                        if (fInfo.inSyncWithDisk(attrs)) {
+                            inSync++;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        long took = System.currentTimeMillis() - start;
+        System.out.println("Snapshot: " + inSync + " files in sync, " + calls
+            + " file system calls");
+        return took;
+    }
+
+    /**
+     * The file system calls of the former change detection:
+     * Files.notExists, Files.readAttributes and Files.exists for changed
+     * files.
+     */
+    private boolean inSyncPerCall(FileInfo fInfo, Path file)
+        throws IOException
+    {
+        calls++;
+        if (Files.notExists(file)) {
+            return false;
+        }
+        calls++;
+        Map<String, Object> attrs = Files.readAttributes(file,
+            "size,lastModifiedTime,isDirectory");
+        boolean inSync = ((Long) attrs.get("size")).longValue() == fInfo
+            .getSize()
+            && ((FileTime) attrs.get("lastModifiedTime")).toMillis() == fInfo
+                .getModifiedDate().getTime();
+        if (!inSync) {
+            calls++;
+            Files.exists(file);
+        }
+        return inSync;
+    }
+
+    private String relativeName(Path file) {
+        return file.getParent().getFileName() + "/" + file.getFileName();
+    }
+
+    private void createTree() throws IOException {
+        known = new HashMap<String, FileInfo>(files * 2);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < files; i++) {
+            Path dir = base.resolve("dir-" + (i / FILES_PER_DIR));
+            if (i % FILES_PER_DIR == 0) {
+                Files.createDirectories(dir);
+            }
+            Path file = dir.resolve("file-" + i + ".txt");
+            if (Files.notExists(file, LinkOption.NOFOLLOW_LINKS)) {
+                Files.write(file, new byte[i % 100]);
+            }
+            BasicFileAttributes attrs = Files.readAttributes(file,
+                BasicFileAttributes.class);
+            String name = relativeName(file);
+            known.put(name, FileInfoFactory.unmarshallExistingFile(FOLDER,
+                name, attrs.size(), MEMBER, new Date(attrs.lastModifiedTime()
+                    .toMillis()), 0, false));
+        }
+        System.out.println("Tree of " + files + " files ready in "
+            + (System.currentTimeMillis() - start) + "ms");
+    }
+}
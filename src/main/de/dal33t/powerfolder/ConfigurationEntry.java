@@ -33,6 +33,7 @@ import com.jgoodies.binding.value.ValueModel;
 import de.dal33t.powerfolder.disk.FolderSettings;
 import de.dal33t.powerfolder.disk.FolderStatistic;
 import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.light.HashedFileInfo;
 import de.dal33t.powerfolder.message.FileChunk;
 import de.dal33t.powerfolder.message.RequestNodeInformation;
 import de.dal33t.powerfolder.util.ProUtil;
@@ -547,6 +548,15 @@ public enum ConfigurationEntry {
      */
     TRANSFERS_MAX_REQUESTS_QUEUED("transfers.max.request.queued", 15),
 
+    /**
+     * The maximum number of requests for {@link FileChunk}s outstanding at
+     * one source. The actual number adapts to the throughput and latency of
+     * the source. Has to stay below 5 times the
+     * {@link #TRANSFERS_MAX_REQUESTS_QUEUED} of the remote side. 0 disables
+     * the adaptation.
+     */
+    TRANSFERS_MAX_REQUESTS_WINDOW("transfers.max.request.window", 60),
+
     /**
      * My dynamic dns hostname or fix ip.
      */
@@ -593,6 +603,32 @@ public enum ConfigurationEntry {
 
     USE_DELTA_ON_LAN("deltasync.lan.enabled", true),
 
+    /**
+     * Delta-sync: The maximum size in MB of the file parts records stored to
+     * answer requests of other nodes. 0 = compute them on every request.
+     */
+    DELTA_RECORD_CACHE_MB("deltasync.record.cache.mb", 512),
+
+    /**
+     * Delta-sync: The number of newest archived versions of a file to match
+     * against a download besides the local file. 0 = do not use the archive.
+     */
+    DELTA_ARCHIVE_VERSIONS("deltasync.archive.versions", 2),
+
+    /**
+     * Delta-sync: Use parts cut at content defined positions if both sides
+     * support it. Otherwise fixed size parts are used, which need to be
+     * searched at every position of the local file.
+     */
+    DELTA_CONTENT_DEFINED("deltasync.content.defined", true),
+
+    /**
+     * Delta-sync: The maximum number of blocks of local files per folder
+     * indexed to copy parts of downloads from other files. Needs
+     * {@link #FILE_HASHER_ENABLED} to index the files. 0 = no index.
+     */
+    DELTA_BLOCK_INDEX_MAX("deltasync.block.index.max", 250000),
+
     /**
      * Setting to enable/disable swarming.
      */
@@ -837,6 +873,68 @@ public enum ConfigurationEntry {
      */
     FOLDER_DB_PERSIST_TIME("filedb.persist.seconds", 60),
 
+    /**
+     * Append changes of the local folder database to a journal instead of
+     * rewriting the whole database file on every persist.
+     */
+    FOLDER_DB_JOURNAL_ENABLED("filedb.journal.enabled", true),
+
+    /**
+     * The size of the folder database journal in percent of the known items
+     * of the folder. If exceeded the journal gets compacted into a new full
+     * database file.
+     */
+    FOLDER_DB_JOURNAL_COMPACT_PERCENT("filedb.journal.compact.percent", 25),
+
+    /**
+     * The number of items in a folder database from which on the FileInfos are
+     * kept off the heap in memory-mapped files. 0 to disable.
+     */
+    FOLDER_DB_MAPPED_MIN_ITEMS("filedb.mapped.min.items", 500000),
+
+    /**
+     * The number of threads crawling the directories of the folders located on
+     * the same volume.
+     */
+    FOLDER_SCANNER_PARALLELISM("folder.scanner.parallelism", 3),
+
+    /**
+     * Overrides the number of scanner threads for single volumes. Format:
+     * "volume=threads;volume=threads", e.g. "/dev/sda1=1;/dev/sdb1=4". Use 1
+     * for spinning disks and more for SSDs or network storage.
+     */
+    FOLDER_SCANNER_PARALLELISM_VOLUMES("folder.scanner.parallelism.volumes"),
+
+    /**
+     * The number of seconds between checkpoints of a running full scan. An
+     * interrupted scan continues from its last checkpoint. 0 to disable.
+     */
+    FOLDER_SCANNER_CHECKPOINT_SECONDS("folder.scanner.checkpoint.seconds", 300),
+
+    /**
+     * The number of folders maintained at the same time. Their scans share the
+     * crawler threads of the volume, see {@link #FOLDER_SCANNER_PARALLELISM}.
+     * 1 to maintain one folder after the other.
+     */
+    FOLDER_MAINTENANCE_PARALLELISM("folder.maintenance.parallelism", 4),
+
+    /**
+     * Calculate content hashes of the local files in the background.
+     */
+    FILE_HASHER_ENABLED("file.hasher.enabled", true),
+
+    /**
+     * The MessageDigest algorithm of the content hashes, e.g. MD5 or SHA-1.
+     * Changing it invalidates all cached hashes.
+     */
+    FILE_HASHER_ALGORITHM("file.hasher.algorithm", HashedFileInfo.MD5),
+
+    /**
+     * The maximum number of KB per second read for hashing in the background.
+     * 0 for unlimited.
+     */
+    FILE_HASHER_RATE_KB("file.hasher.rate.kb", 20480),
+
     /**
      * #2637: Disabling can save OS resources.
      */
@@ -846,6 +944,28 @@ public enum ConfigurationEntry {
      */
     FOLDER_WATCHER_DELAY("folder.watcher.delay.seconds", 1),
 
+    /**
+     * The implementation of the FolderWatcher: "jnotify", "nio" (Java
+     * WatchService) or "auto". Auto uses jnotify if the native library is
+     * available, otherwise the WatchService except on Mac OS X. Takes effect
+     * when the folders get reconfigured.
+     */
+    FOLDER_WATCHER_BACKEND("folder.watcher.backend", "auto"),
+
+    /**
+     * The number of changed files in one directory after which the
+     * FolderWatcher stops tracking single files and scans the whole directory
+     * tree instead.
+     */
+    FOLDER_WATCHER_COLLAPSE_THRESHOLD("folder.watcher.collapse.threshold", 500),
+
+    /**
+     * The FolderWatcher waits for {@link #FOLDER_WATCHER_DELAY} seconds
+     * without changes before scanning, but not longer than this while changes
+     * keep coming.
+     */
+    FOLDER_WATCHER_MAX_DELAY("folder.watcher.max.delay.seconds", 30),
+
     /**
      * The number of seconds between db maintenance (1 hour).
      */
@@ -884,6 +1004,11 @@ public enum ConfigurationEntry {
      */
     UPLOAD_AUTO_CLEANUP_FREQUENCY("uploads.auto.cleanup.frequency", 2),
 
+    /**
+     * Number of threads sending the requested parts of all uploads.
+     */
+    UPLOAD_WORKERS("uploads.workers", 8),
+
     /**
      * Days until auto cleanup of downloads. Zero = cleanup on completion. NOTE
      * - true cleanup days dereferenced through Constants.CLEANUP_VALUES
@@ -119,7 +119,14 @@ public enum Feature {
     /**
      * PFS-981: Preserve NTFS file owner while updating file from remote
      */
-    NTFS_PRESERVE_FILE_OWNER(false);
+    NTFS_PRESERVE_FILE_OWNER(false),
+
+    /**
+     * Cross-checks the incrementally maintained statistics of the
+     * {@link de.dal33t.powerfolder.disk.dao.FileInfoDAO} against a full scan
+     * on every query. Expensive, for tests only.
+     */
+    VERIFY_FILEINFO_DAO_STATS(false);
 
     private static final Logger log = Logger.getLogger(Feature.class.getName());
 
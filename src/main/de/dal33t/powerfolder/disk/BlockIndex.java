@@ -0,0 +1,453 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.transfer.swarm.AbstractFileRecordProvider;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+import de.dal33t.powerfolder.util.delta.PartInfo;
+
+/**
+ * The blocks of the local files of a folder, found by the digest of their
+ * content. Lets a download copy the parts it needs from any local file, not
+ * only from the old version of the same file.
+ * <p>
+ * The blocks of a file are the parts of its content defined
+ * {@link FilePartsRecord}, cut with an average size of
+ * {@link AbstractFileRecordProvider#CONTENT_DEFINED_PART_SIZE}. Records of
+ * files up to two gigabytes use the same size, so their parts are found in
+ * local files of any size. Larger files are sent with larger parts and cannot
+ * be copied from the index. An entry is valid as long as size and
+ * modification date of the file did not change. Only the first 8 bytes of the
+ * part digests are kept, so the content of a block has to be verified against
+ * the full digest before it is used.
+ * <p>
+ * The number of blocks is limited, the files indexed first are removed first.
+ * <p>
+ * Thread-safe.
+ */
+public class BlockIndex {
+    static final String FILENAME = Constants.DB_FILENAME + ".blocks";
+
+    /** The digest algorithm of the parts */
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+    /** Smaller files are not indexed */
+    public static final long MIN_FILE_SIZE = 1024L * 1024;
+
+    private static final int MAGIC = 0x50464231;
+    private static final int MAX_UTF_LENGTH = 65535 / 3;
+
+    private final int maxBlocks;
+
+    /** Relative name -> Entry. In order of indexing */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    /** First 8 bytes of the digest -> Blocks with that digest prefix */
+    private final Map<Long, Block> blocks = new HashMap<Long, Block>();
+
+    private int blockCount;
+    private volatile boolean dirty;
+
+    /**
+     * @param maxBlocks
+     *            the maximum number of blocks to keep. 0 disables the index.
+     */
+    public BlockIndex(int maxBlocks) {
+        Reject.ifTrue(maxBlocks < 0, "Max blocks must not be negative");
+        this.maxBlocks = maxBlocks;
+    }
+
+    /**
+     * @param fileSize
+     * @return true if a file of that size is indexed.
+     */
+    public boolean isIndexed(long fileSize) {
+        return maxBlocks > 0 && fileSize >= MIN_FILE_SIZE;
+    }
+
+    /**
+     * @param relativeName
+     * @param attrs
+     *            the current attributes of the file on disk.
+     * @return true if the blocks of the file are known for its size and
+     *         modification date.
+     */
+    public synchronized boolean contains(String relativeName,
+        BasicFileAttributes attrs)
+    {
+        Entry entry = entries.get(relativeName);
+        return entry != null && entry.matches(attrs);
+    }
+
+    /**
+     * Stores the blocks of a file. Replaces the previous blocks of it.
+     *
+     * @param relativeName
+     * @param attrs
+     *            the attributes of the file read before the record was built.
+     * @param record
+     *            a content defined record of the file.
+     */
+    public void put(String relativeName, BasicFileAttributes attrs,
+        FilePartsRecord record)
+    {
+        Reject.ifFalse(record.isContentDefined(),
+            "Record is not content defined");
+        PartInfo[] parts = record.getInfos();
+        long[] offsets = new long[parts.length];
+        long[] keys = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            offsets[i] = record.getPartRange(i).getStart();
+            keys[i] = toKey(parts[i].getDigest());
+        }
+        put(new Entry(relativeName, attrs.size(), attrs.lastModifiedTime()
+            .toMillis(), offsets, keys));
+    }
+
+    /**
+     * @param relativeName
+     *            the name of the file that was deleted or changed.
+     */
+    public synchronized void remove(String relativeName) {
+        Entry entry = entries.remove(relativeName);
+        if (entry != null) {
+            unlink(entry);
+            dirty = true;
+        }
+    }
+
+    /**
+     * Takes over the blocks of a file to the name it was moved to.
+     *
+     * @param from
+     *            the old name of the file.
+     * @param to
+     *            the new name of the file.
+     */
+    public synchronized void move(String from, String to) {
+        Entry entry = entries.remove(from);
+        if (entry == null) {
+            return;
+        }
+        unlink(entry);
+        put(new Entry(to, entry.size, entry.modified, entry.offsets,
+            entry.keys));
+    }
+
+    /**
+     * Takes over the blocks of all files below a directory to the name the
+     * directory was moved to.
+     *
+     * @param from
+     *            the old name of the directory.
+     * @param to
+     *            the new name of the directory.
+     * @return the number of files taken over.
+     */
+    public synchronized int moveDirectory(String from, String to) {
+        String prefix = from + '/';
+        List<String> names = new ArrayList<String>();
+        for (String name : entries.keySet()) {
+            if (name.startsWith(prefix)) {
+                names.add(name);
+            }
+        }
+        for (String name : names) {
+            move(name, to + '/' + name.substring(prefix.length()));
+        }
+        return names.size();
+    }
+
+    /**
+     * @param digest
+     *            the digest of the part.
+     * @param length
+     *            the length of the part.
+     * @return the blocks which might have this content. Empty if none.
+     */
+    public synchronized List<Block> find(byte[] digest, long length) {
+        Block block = blocks.get(toKey(digest));
+        if (block == null) {
+            return Collections.emptyList();
+        }
+        List<Block> found = new ArrayList<Block>(1);
+        for (; block != null; block = block.next) {
+            if (block.getLength() == length) {
+                found.add(block);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the number of indexed blocks.
+     */
+    public synchronized int size() {
+        return blockCount;
+    }
+
+    /**
+     * @return the number of indexed files.
+     */
+    public synchronized int getFileCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return true if changed since loaded or stored.
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Writes the index. The previous file gets replaced atomically.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void store(Path file) throws IOException {
+        dirty = false;
+        Path tempFile = file.resolveSibling(file.getFileName() + ".writing");
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(tempFile))))
+        {
+            out.writeInt(MAGIC);
+            synchronized (this) {
+                for (Entry entry : entries.values()) {
+                    if (entry.relativeName.length() > MAX_UTF_LENGTH) {
+                        continue;
+                    }
+                    out.writeBoolean(true);
+                    out.writeUTF(entry.relativeName);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.modified);
+                    out.writeInt(entry.offsets.length);
+                    for (int i = 0; i < entry.offsets.length; i++) {
+                        out.writeLong(entry.offsets[i]);
+                        out.writeLong(entry.keys[i]);
+                    }
+                }
+            }
+            out.writeBoolean(false);
+        } catch (IOException e) {
+            dirty = true;
+            throw e;
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param file
+     * @param maxBlocks
+     *            the maximum number of blocks to keep.
+     * @return the loaded index. Empty if the file does not exist.
+     * @throws IOException
+     *             if the file could not be read.
+     */
+    public static BlockIndex load(Path file, int maxBlocks) throws IOException
+    {
+        BlockIndex index = new BlockIndex(maxBlocks);
+        if (maxBlocks == 0) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(file))))
+        {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Illegal block index file: " + file);
+            }
+            while (in.readBoolean()) {
+                String name = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                int n = in.readInt();
+                if (n < 0) {
+                    throw new IOException("Illegal block index file: " + file);
+                }
+                long[] offsets = new long[n];
+                long[] keys = new long[n];
+                for (int i = 0; i < n; i++) {
+                    offsets[i] = in.readLong();
+                    keys[i] = in.readLong();
+                }
+                index.put(new Entry(name, size, modified, offsets, keys));
+            }
+        } catch (NoSuchFileException e) {
+            // New folder
+        }
+        index.dirty = false;
+        return index;
+    }
+
+    // Internals **************************************************************
+
+    private synchronized void put(Entry entry) {
+        if (maxBlocks == 0 || entry.keys.length > maxBlocks) {
+            return;
+        }
+        Entry previous = entries.remove(entry.relativeName);
+        if (previous != null) {
+            unlink(previous);
+        }
+        entries.put(entry.relativeName, entry);
+        for (int i = 0; i < entry.keys.length; i++) {
+            Long key = entry.keys[i];
+            blocks.put(key, new Block(entry, i, blocks.get(key)));
+        }
+        blockCount += entry.keys.length;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext()
+            && blockCount > maxBlocks;)
+        {
+            Entry eldest = it.next();
+            it.remove();
+            unlink(eldest);
+        }
+        dirty = true;
+    }
+
+    private void unlink(Entry entry) {
+        for (int i = 0; i < entry.keys.length; i++) {
+            Long key = entry.keys[i];
+            Block first = blocks.get(key);
+            Block prev = null;
+            for (Block b = first; b != null; b = b.next) {
+                if (b.entry == entry && b.index == i) {
+                    if (prev == null) {
+                        if (b.next == null) {
+                            blocks.remove(key);
+                        } else {
+                            blocks.put(key, b.next);
+                        }
+                    } else {
+                        prev.next = b.next;
+                    }
+                    break;
+                }
+                prev = b;
+            }
+        }
+        blockCount -= entry.keys.length;
+    }
+
+    private static long toKey(byte[] digest) {
+        long key = 0;
+        for (int i = 0; i < 8 && i < digest.length; i++) {
+            key = key << 8 | digest[i] & 0xff;
+        }
+        return key;
+    }
+
+    private static class Entry {
+        private final String relativeName;
+        private final long size;
+        private final long modified;
+        private final long[] offsets;
+        private final long[] keys;
+
+        private Entry(String relativeName, long size, long modified,
+            long[] offsets, long[] keys)
+        {
+            this.relativeName = relativeName;
+            this.size = size;
+            this.modified = modified;
+            this.offsets = offsets;
+            this.keys = keys;
+        }
+
+        private boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size()
+                && modified == attrs.lastModifiedTime().toMillis();
+        }
+    }
+
+    /**
+     * A range of an indexed file.
+     */
+    public static class Block {
+        private final Entry entry;
+        private final int index;
+        private Block next;
+
+        private Block(Entry entry, int index, Block next) {
+            this.entry = entry;
+            this.index = index;
+            this.next = next;
+        }
+
+        /**
+         * @return the name of the file relative to the folder base.
+         */
+        public String getRelativeName() {
+            return entry.relativeName;
+        }
+
+        /**
+         * @return the position of the block in the file.
+         */
+        public long getOffset() {
+            return entry.offsets[index];
+        }
+
+        /**
+         * @return the length of the block.
+         */
+        public long getLength() {
+            long end = index + 1 < entry.offsets.length
+                ? entry.offsets[index + 1]
+                : entry.size;
+            return end - entry.offsets[index];
+        }
+
+        /**
+         * @param attrs
+         *            the current attributes of the file on disk.
+         * @return true if the file did not change since it was indexed.
+         */
+        public boolean matches(BasicFileAttributes attrs) {
+            return entry.matches(attrs);
+        }
+
+        @Override
+        public String toString() {
+            return entry.relativeName + "@" + getOffset() + "+" + getLength();
+        }
+    }
+}
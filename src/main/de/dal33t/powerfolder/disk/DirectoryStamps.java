@@ -0,0 +1,175 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The modification stamps of the directories of a folder, recorded by the
+ * last committed scan. Used for incremental scans: The entries of a directory
+ * whose stamp did not change since are known without listing the directory.
+ * <p>
+ * A directory stamp only changes if entries get added, removed or renamed.
+ * Modifications of the content of a file in that directory are NOT detected
+ * by an incremental scan. That's why a full scan is forced periodically, see
+ * {@link SyncProfile#getHoursBetweenFullScans()}.
+ * <p>
+ * Stamps are only committed after the scan result was stored in the folder
+ * database, so the database reflects the entries of all stamped directories.
+ * A commit replaces all stamps, directories not seen by the scan lose their
+ * stamp.
+ */
+class DirectoryStamps {
+    /**
+     * Directories modified less than this before the scan are not stamped.
+     * Covers the coarse modification date resolution of some file systems
+     * (FAT: 2 seconds) and changes in the same second after the listing.
+     */
+    static final long MIN_STAMP_AGE = 5000L;
+
+    private static final boolean LINK_COUNT_SUPPORTED = FileSystems
+        .getDefault().supportedFileAttributeViews().contains("unix");
+
+    /** Relative directory name -> Stamp. Empty string for the base dir */
+    private volatile Map<String, Stamp> stamps = Collections.emptyMap();
+    private volatile long lastFullScan;
+
+    /**
+     * @param hoursBetweenFullScans
+     * @return true if the next scan may skip unchanged directories. false if
+     *         a full scan is due.
+     */
+    boolean isIncrementalAllowed(int hoursBetweenFullScans) {
+        if (hoursBetweenFullScans <= 0 || lastFullScan <= 0
+            || stamps.isEmpty())
+        {
+            return false;
+        }
+        return System.currentTimeMillis() - lastFullScan < hoursBetweenFullScans * 3600000L;
+    }
+
+    /**
+     * @param dirName
+     *            the relative name of the directory
+     * @return the committed stamp of the directory or null if not stamped.
+     */
+    Stamp get(String dirName) {
+        return stamps.get(dirName);
+    }
+
+    /**
+     * Replaces all stamps by the ones recorded by a scan.
+     *
+     * @param recorded
+     *            the stamps recorded by the scan.
+     * @param fullScan
+     *            true if the scan did not skip any directory.
+     */
+    synchronized void commit(Map<String, Stamp> recorded, boolean fullScan) {
+        stamps = new HashMap<String, Stamp>(recorded);
+        if (fullScan) {
+            lastFullScan = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Forgets all stamps. The next scan is a full scan.
+     */
+    synchronized void clear() {
+        stamps = Collections.emptyMap();
+        lastFullScan = 0;
+    }
+
+    /**
+     * @return the number of stamped directories.
+     */
+    int size() {
+        return stamps.size();
+    }
+
+    /**
+     * @param dir
+     *            the directory
+     * @param attrs
+     *            the attributes of the directory, read before listing it.
+     * @return the current stamp of the directory.
+     */
+    static Stamp read(Path dir, BasicFileAttributes attrs) {
+        int links = -1;
+        if (LINK_COUNT_SUPPORTED) {
+            try {
+                links = ((Number) Files.getAttribute(dir, "unix:nlink"))
+                    .intValue();
+            } catch (IOException | RuntimeException e) {
+                // Not supported by this file store.
+            }
+        }
+        return new Stamp(attrs.lastModifiedTime().toMillis(), links);
+    }
+
+    /**
+     * The modification date and, where supported, the link count (number of
+     * subdirectories) of a directory.
+     */
+    static final class Stamp {
+        private final long modified;
+        private final int links;
+
+        Stamp(long modified, int links) {
+            this.modified = modified;
+            this.links = links;
+        }
+
+        /**
+         * @param scanStarted
+         * @return true if the directory was modified long enough before the
+         *         scan, so further modifications get a different stamp.
+         */
+        boolean isSettled(long scanStarted) {
+            return scanStarted - modified >= MIN_STAMP_AGE;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (modified ^ (modified >>> 32)) * 31 + links;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Stamp)) {
+                return false;
+            }
+            Stamp other = (Stamp) obj;
+            return modified == other.modified && links == other.links;
+        }
+
+        @Override
+        public String toString() {
+            return "Stamp [modified=" + modified + ", links=" + links + "]";
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.os.OSUtil;
+
+/**
+ * Pure Java file system watch based on {@link WatchService}. A WatchService
+ * only reports changes of the direct entries of a directory, so every
+ * directory of a watched tree gets registered. All folders share one
+ * WatchService and one thread.
+ * <p>
+ * Directories created later are NOT registered automatically. The
+ * {@link Listener} is informed about them and should call
+ * {@link #registerTree(Path, Listener, Filter, Collection)}. Directories
+ * deleted or moved away get unregistered.
+ */
+class DirectoryWatchService extends PFComponent {
+
+    private final Map<WatchKey, Registration> keys = Util
+        .createConcurrentHashMap();
+    private final ConcurrentMap<Path, WatchKey> byDir = Util
+        .createConcurrentHashMap();
+    private WatchService watchService;
+    private Thread thread;
+
+    /**
+     * Do not use this constructor, to get the watch service call:
+     * folderRepository.getDirectoryWatchService()
+     *
+     * @param controller
+     */
+    DirectoryWatchService(Controller controller) {
+        super(controller);
+    }
+
+    /**
+     * @return true if a WatchService based on native events is available. The
+     *         WatchService of the JDK on Mac OS X polls the directories.
+     */
+    static boolean isAvailable() {
+        return !OSUtil.isMacOS();
+    }
+
+    /**
+     * Registers the directory and all its subdirectories.
+     *
+     * @param dir
+     * @param listener
+     *            the listener to inform about changes in the directories.
+     * @param filter
+     *            the subdirectories to skip or null to register all.
+     * @param found
+     *            receives the files and subdirectories found in the tree or
+     *            null.
+     * @return the number of registered directories.
+     * @throws IOException
+     *             if the root directory could not be registered.
+     */
+    int registerTree(Path dir, final Listener listener, final Filter filter,
+        final Collection<Path> found) throws IOException
+    {
+        Reject.ifNull(dir, "Directory is null");
+        Reject.ifNull(listener, "Listener is null");
+        final WatchService ws = getWatchService();
+        final Path root = dir;
+        final int[] n = new int[1];
+        register(ws, root, listener);
+        n[0]++;
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subDir,
+                BasicFileAttributes attrs) throws IOException
+            {
+                if (subDir.equals(root)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (filter != null && !filter.accept(subDir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                try {
+                    register(ws, subDir, listener);
+                    n[0]++;
+                } catch (IOException e) {
+                    // E.g. limit of inotify watches reached. The following
+                    // directories would fail too.
+                    listener.unwatched(subDir, e);
+                    return FileVisitResult.TERMINATE;
+                }
+                if (found != null) {
+                    found.add(subDir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file,
+                BasicFileAttributes attrs)
+            {
+                if (found != null) {
+                    found.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc)
+            {
+                logFine("Unable to watch " + file + ". " + exc);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return n[0];
+    }
+
+    /**
+     * Cancels all registrations of the listener.
+     *
+     * @param listener
+     */
+    void cancel(Listener listener) {
+        for (Iterator<Entry<WatchKey, Registration>> it = keys.entrySet()
+            .iterator(); it.hasNext();)
+        {
+            Entry<WatchKey, Registration> entry = it.next();
+            if (entry.getValue().listener == listener) {
+                entry.getKey().cancel();
+                it.remove();
+                byDir.remove(entry.getValue().dir, entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * @param listener
+     * @return the number of directories watched for the listener.
+     */
+    int countRegistered(Listener listener) {
+        int n = 0;
+        for (Registration registration : keys.values()) {
+            if (registration.listener == listener) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Closes the WatchService and cancels all registrations.
+     */
+    synchronized void shutdown() {
+        Thread t = thread;
+        thread = null;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logFine("Unable to close watch service. " + e);
+            }
+            watchService = null;
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+        keys.clear();
+        byDir.clear();
+    }
+
+    // Internals **************************************************************
+
+    private synchronized WatchService getWatchService() throws IOException {
+        if (watchService == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            thread = new Thread(new Dispatcher(watchService),
+                "DirectoryWatchService");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return watchService;
+    }
+
+    private void register(WatchService ws, Path dir, Listener listener)
+        throws IOException
+    {
+        WatchKey key = dir.register(ws, ENTRY_CREATE, ENTRY_DELETE,
+            ENTRY_MODIFY);
+        keys.put(key, new Registration(dir, listener));
+        byDir.put(dir, key);
+    }
+
+    /**
+     * Cancels the registrations of the directory and its subdirectories. The
+     * registration of a moved directory would otherwise report changes with
+     * the old path.
+     */
+    private void unregisterTree(Path dir) {
+        if (!byDir.containsKey(dir)) {
+            return;
+        }
+        for (Iterator<Entry<WatchKey, Registration>> it = keys.entrySet()
+            .iterator(); it.hasNext();)
+        {
+            Entry<WatchKey, Registration> entry = it.next();
+            if (entry.getValue().dir.startsWith(dir)) {
+                entry.getKey().cancel();
+                it.remove();
+                byDir.remove(entry.getValue().dir, entry.getKey());
+            }
+        }
+    }
+
+    private void dispatch(WatchKey key) {
+        Registration registration = keys.get(key);
+        if (registration == null) {
+            // Canceled
+            key.cancel();
+            return;
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            try {
+                if (event.kind() == OVERFLOW) {
+                    registration.listener.overflow(registration.dir);
+                    continue;
+                }
+                Path child = registration.dir.resolve((Path) event.context());
+                if (event.kind() == ENTRY_DELETE) {
+                    unregisterTree(child);
+                }
+                boolean newDir = event.kind() == ENTRY_CREATE
+                    && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+                registration.listener.changed(child, newDir);
+            } catch (RuntimeException e) {
+                logSevere("Unable to process file system event " + event
+                    + " in " + registration.dir + ". " + e, e);
+            }
+        }
+        if (!key.reset()) {
+            // Directory deleted or moved away
+            keys.remove(key);
+            byDir.remove(registration.dir, key);
+        }
+    }
+
+    private class Dispatcher implements Runnable {
+        private final WatchService ws;
+
+        private Dispatcher(WatchService ws) {
+            this.ws = ws;
+        }
+
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key;
+                try {
+                    key = ws.take();
+                } catch (InterruptedException e) {
+                    break;
+                } catch (ClosedWatchServiceException e) {
+                    break;
+                }
+                dispatch(key);
+            }
+            logFine("Stopped");
+        }
+    }
+
+    private static class Registration {
+        private final Path dir;
+        private final Listener listener;
+
+        private Registration(Path dir, Listener listener) {
+            this.dir = dir;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Receives the changes in the watched directories. Called by the thread of
+     * the watch service.
+     */
+    interface Listener {
+        /**
+         * @param path
+         *            the created, modified or deleted file or directory.
+         * @param newDir
+         *            true if a directory was created. It is not watched yet.
+         */
+        void changed(Path path, boolean newDir);
+
+        /**
+         * Events of the directory have been lost.
+         *
+         * @param dir
+         */
+        void overflow(Path dir);
+
+        /**
+         * The directory could not be registered, e.g. because the limit of
+         * inotify watches was reached. Changes in it and in the directories
+         * not registered after it are not reported.
+         *
+         * @param dir
+         * @param e
+         *            the reason.
+         */
+        void unwatched(Path dir, IOException e);
+    }
+
+    /**
+     * Selects the directories to watch.
+     */
+    interface Filter {
+        boolean accept(Path dir);
+    }
+}
@@ -78,6 +78,11 @@ public class DiskItemFilter {
      */
     private boolean dirty;
 
+    /**
+     * Incremented on every change of the patterns.
+     */
+    private volatile int modCount;
+
     /**
      * Constructor
      */
@@ -150,11 +155,13 @@ public class DiskItemFilter {
                 log.fine("Received a pattern file different to own, so loading it.");
                 for (Pattern oldPattern : patterns) {
                     patterns.remove(oldPattern);
+                    modCount++;
                     listenerSupport.patternRemoved(new PatternChangedEvent(
                         this, oldPattern.getPatternText(), false));
                 }
                 for (Pattern newPattern : tempPatterns) {
                     patterns.add(newPattern);
+                    modCount++;
                     listenerSupport.patternAdded(new PatternChangedEvent(this,
                         newPattern.getPatternText(), true));
                 }
@@ -234,6 +241,7 @@ public class DiskItemFilter {
         }
         try {
             patterns.add(pattern);
+            modCount++;
             dirty = true;
             listenerSupport.patternAdded(new PatternChangedEvent(this, pattern
                 .getPatternText(), true));
@@ -246,6 +254,7 @@ public class DiskItemFilter {
     void removeAllPatterns() {
         for (Pattern pattern : patterns) {
             patterns.remove(pattern);
+            modCount++;
             dirty = true;
             listenerSupport.patternRemoved(new PatternChangedEvent(this,
                 pattern.getPatternText(), false));
@@ -262,6 +271,7 @@ public class DiskItemFilter {
         for (Pattern pattern : patterns) {
             if (pattern.equals(targetPattern)) {
                 patterns.remove(pattern);
+                modCount++;
                 dirty = true;
                 listenerSupport.patternRemoved(new PatternChangedEvent(this,
                     pattern.getPatternText(), false));
@@ -276,6 +286,13 @@ public class DiskItemFilter {
         return dirty;
     }
 
+    /**
+     * @return a counter that changes every time the patterns change.
+     */
+    public int getModCount() {
+        return modCount;
+    }
+
     /**
      * Pattern matches diskItem against patterns. Note that Directories have
      * "/*" appended for matching.
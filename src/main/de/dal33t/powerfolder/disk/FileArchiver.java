@@ -522,6 +522,25 @@ public class FileArchiver {
         return getArchiveTarget(fileInfo);
     }
 
+    /**
+     * @param fileInfo
+     * @param max
+     *            the maximum number of versions to return.
+     * @return the newest archived versions of the file, newest first.
+     */
+    public List<Path> getNewestArchivedFiles(FileInfo fileInfo, int max) {
+        Reject.ifNull(fileInfo, "FileInfo is null");
+        Path directory = getArchiveTarget(fileInfo).getParent();
+        if (max <= 0 || Files.notExists(directory)) {
+            return Collections.emptyList();
+        }
+        List<Path> archivedFiles = getArchivedFiles(directory,
+            FileInfoFactory.encodeIllegalChars(fileInfo.getFilenameOnly()));
+        Collections.sort(archivedFiles, Collections
+            .reverseOrder(VERSION_COMPARATOR));
+        return archivedFiles.subList(0, Math.min(max, archivedFiles.size()));
+    }
+
     /**
      * Comparator for comparing file versions.
      */
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.transfer.swarm.AbstractFileRecordProvider;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.delta.ContentDefinedRecordBuilder;
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+
+/**
+ * Calculates the content hashes of the local files in the background and
+ * stores them in the {@link HashCache} of the folder. The blocks of large files
+ * get added to the {@link BlockIndex} of the folder in the same pass.
+ * <p>
+ * A single low priority thread reads the files, throttled to
+ * {@link ConfigurationEntry#FILE_HASHER_RATE_KB}. Files get queued after a scan
+ * was committed. A file is only hashed if the folder has no valid hash for its
+ * current size, modification date and file key. Files modified while hashing
+ * are skipped, the next scan queues them again.
+ */
+public class FileHasher extends PFComponent {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<Job>();
+    private final Set<Job> queued = Collections
+        .newSetFromMap(new ConcurrentHashMap<Job, Boolean>());
+
+    private volatile Thread thread;
+    private volatile long bytesPerSecond;
+
+    private long windowStart;
+    private long windowBytes;
+
+    /**
+     * Do not use this constructor, to get the file hasher call:
+     * folderRepository.getFileHasher()
+     *
+     * @param controller
+     */
+    FileHasher(Controller controller) {
+        super(controller);
+    }
+
+    /**
+     * Starts the hashing thread if enabled.
+     */
+    public synchronized void start() {
+        if (thread != null
+            || !ConfigurationEntry.FILE_HASHER_ENABLED
+                .getValueBoolean(getController()))
+        {
+            return;
+        }
+        String algorithm = getAlgorithm();
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            logSevere("Not hashing files. Unsupported algorithm: " + algorithm);
+            return;
+        }
+        bytesPerSecond = 1024L * Math.max(0,
+            ConfigurationEntry.FILE_HASHER_RATE_KB
+                .getValueInt(getController()));
+        thread = new Thread(new Worker(), "FileHasher");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the hashing thread and discards the queued files.
+     */
+    public synchronized void shutdown() {
+        Thread t = thread;
+        thread = null;
+        if (t != null) {
+            t.interrupt();
+        }
+        queue.clear();
+        queued.clear();
+    }
+
+    /**
+     * @return true if the hashing thread is running.
+     */
+    public boolean isStarted() {
+        return thread != null;
+    }
+
+    /**
+     * @return the MessageDigest algorithm of the content hashes.
+     */
+    public String getAlgorithm() {
+        return ConfigurationEntry.FILE_HASHER_ALGORITHM
+            .getValue(getController());
+    }
+
+    /**
+     * Queues files for hashing.
+     *
+     * @param folder
+     * @param fInfos
+     */
+    public void enqueue(Folder folder, Collection<FileInfo> fInfos) {
+        Reject.ifNull(folder, "Folder is null");
+        if (!isStarted()) {
+            return;
+        }
+        for (FileInfo fInfo : fInfos) {
+            if (fInfo.isFile() && !fInfo.isDeleted()) {
+                enqueue(new Job(folder, fInfo.getRelativeName()));
+            }
+        }
+    }
+
+    /**
+     * Queues all known files of the folder for hashing. The files are read
+     * from the folder database when processed.
+     *
+     * @param folder
+     */
+    public void enqueueAll(Folder folder) {
+        Reject.ifNull(folder, "Folder is null");
+        if (isStarted()) {
+            enqueue(new Job(folder, null));
+        }
+    }
+
+    /**
+     * @return the number of queued hash jobs.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Calculates and caches the hash of a known file if required.
+     *
+     * @param folder
+     * @param relativeName
+     * @return the hash or null if the file is not available or changed while
+     *         hashing.
+     * @throws InterruptedException
+     */
+    byte[] hash(Folder folder, String relativeName)
+        throws InterruptedException
+    {
+        FileInfo fInfo = folder.getFile(FileInfoFactory.lookupInstance(
+            folder.getInfo(), relativeName));
+        if (fInfo == null || fInfo.isDeleted() || !fInfo.isFile()) {
+            return null;
+        }
+        HashCache cache = folder.getHashCache();
+        BlockIndex index = folder.getBlockIndex();
+        Path file = folder.getDiskFile(fInfo);
+        BasicFileAttributes before = readAttributes(file);
+        if (before == null || !before.isRegularFile()) {
+            return null;
+        }
+        boolean indexBlocks = index.isIndexed(before.size())
+            && !index.contains(relativeName, before);
+        byte[] digest = cache.get(relativeName, before);
+        if (digest != null && !indexBlocks) {
+            return digest;
+        }
+        FilePartsRecord blocks = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance(cache.getAlgorithm());
+            if (indexBlocks) {
+                ContentDefinedRecordBuilder builder = new ContentDefinedRecordBuilder(
+                    MessageDigest.getInstance(BlockIndex.DIGEST_ALGORITHM), md,
+                    AbstractFileRecordProvider.CONTENT_DEFINED_PART_SIZE);
+                read(file, null, builder);
+                blocks = builder.getRecord();
+                digest = blocks.getFileDigest();
+            } else {
+                read(file, md, null);
+                digest = md.digest();
+            }
+        } catch (NoSuchAlgorithmException e) {
+            logSevere("Unable to hash " + file + ". " + e);
+            return null;
+        } catch (IOException e) {
+            logFine("Unable to hash " + file + ". " + e);
+            return null;
+        }
+        BasicFileAttributes after = readAttributes(file);
+        if (after == null || after.size() != before.size()
+            || !after.lastModifiedTime().equals(before.lastModifiedTime()))
+        {
+            logFine("File changed while hashing: " + file);
+            return null;
+        }
+        cache.put(relativeName, before, digest);
+        if (blocks != null) {
+            index.put(relativeName, before, blocks);
+        }
+        if (isFiner()) {
+            logFiner("Hashed " + fInfo.toDetailString());
+        }
+        return digest;
+    }
+
+    // Internals **************************************************************
+
+    private void enqueue(Job job) {
+        if (queued.add(job)) {
+            queue.add(job);
+        }
+    }
+
+    private void process(Job job) throws InterruptedException {
+        Folder folder = job.folder;
+        if (getController().getFolderRepository().getFolder(folder.getInfo()) != folder)
+        {
+            // Folder removed
+            return;
+        }
+        if (job.relativeName != null) {
+            hash(folder, job.relativeName);
+            return;
+        }
+        int n = 0;
+        for (FileInfo fInfo : folder.getKnownFiles()) {
+            if (thread == null) {
+                return;
+            }
+            if (!fInfo.isDeleted()
+                && hash(folder, fInfo.getRelativeName()) != null)
+            {
+                n++;
+            }
+        }
+        if (isFine()) {
+            logFine("Content hashes of " + n + " files available in "
+                + folder);
+        }
+    }
+
+    /**
+     * Reads the file into the digest or, if given, into the builder.
+     */
+    private void read(Path file, MessageDigest digest,
+        ContentDefinedRecordBuilder builder) throws IOException,
+        InterruptedException
+    {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (builder != null) {
+                    builder.update(buf, 0, read);
+                } else {
+                    digest.update(buf, 0, read);
+                }
+                throttle(read);
+            }
+        }
+    }
+
+    /**
+     * Sleeps if more bytes than allowed have been read within the current
+     * second.
+     */
+    private void throttle(int read) throws InterruptedException {
+        long rate = bytesPerSecond;
+        if (rate <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - windowStart > 1000L) {
+            windowStart = now;
+            windowBytes = 0;
+        }
+        windowBytes += read;
+        long due = windowStart + windowBytes * 1000L / rate;
+        if (due > now) {
+            Thread.sleep(due - now);
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            while (thread == Thread.currentThread()) {
+                Job job;
+                try {
+                    job = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                queued.remove(job);
+                try {
+                    process(job);
+                } catch (InterruptedException e) {
+                    break;
+                } catch (RuntimeException e) {
+                    logSevere("Unable to hash " + job + ". " + e, e);
+                }
+            }
+            logFine("Stopped");
+        }
+    }
+
+    /**
+     * A file to hash or, if relativeName is null, all known files of the
+     * folder.
+     */
+    private static class Job {
+        private final Folder folder;
+        private final String relativeName;
+
+        private Job(Folder folder, String relativeName) {
+            this.folder = folder;
+            this.relativeName = relativeName;
+        }
+
+        @Override
+        public int hashCode() {
+            return folder.hashCode() * 31
+                + (relativeName != null ? relativeName.hashCode() : 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Job)) {
+                return false;
+            }
+            Job other = (Job) obj;
+            return folder == other.folder
+                && (relativeName == null ? other.relativeName == null
+                    : relativeName.equals(other.relativeName));
+        }
+
+        @Override
+        public String toString() {
+            return relativeName != null ? folder.getName() + '/'
+                + relativeName : "all files of " + folder.getName();
+        }
+    }
+}
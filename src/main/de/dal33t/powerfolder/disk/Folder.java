@@ -22,6 +22,7 @@ package de.dal33t.powerfolder.disk;
 import static de.dal33t.powerfolder.disk.FolderSettings.FOLDER_SETTINGS_PREFIX_V4;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.Externalizable;
 import java.io.IOException;
@@ -46,6 +47,7 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -69,6 +71,7 @@ import de.dal33t.powerfolder.PreferencesEntry;
 import de.dal33t.powerfolder.disk.dao.FileInfoCriteria;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAOHashMapImpl;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAOMappedImpl;
 import de.dal33t.powerfolder.disk.problem.DeviceDisconnectedProblem;
 import de.dal33t.powerfolder.disk.problem.FileConflictProblem;
 import de.dal33t.powerfolder.disk.problem.FilenameProblemHelper;
@@ -89,6 +92,7 @@ import de.dal33t.powerfolder.light.DirectoryInfo;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.HashedFileInfo;
 import de.dal33t.powerfolder.light.MemberInfo;
 import de.dal33t.powerfolder.message.FileList;
 import de.dal33t.powerfolder.message.FileRequestCommand;
@@ -189,6 +193,26 @@ public class Folder extends PFComponent {
      */
     private final Object scanLock = new Object();
 
+    /**
+     * The directory stamps of the last committed scan. For incremental scans.
+     */
+    private final DirectoryStamps directoryStamps = new DirectoryStamps();
+
+    /**
+     * The content hashes of the local files.
+     */
+    private HashCache hashCache;
+
+    /**
+     * The blocks of the local files for delta-sync across files.
+     */
+    private BlockIndex blockIndex;
+
+    /**
+     * If all known files have been queued for hashing since start.
+     */
+    private boolean hashesQueued;
+
     /** All members of this folder. Key == Value. Use Map for concurrency. */
     private final Map<Member, Member> members;
 
@@ -230,6 +254,17 @@ public class Folder extends PFComponent {
      */
     private volatile boolean dirty;
 
+    /**
+     * Change log of the local domain since the last full write of the folder
+     * database.
+     */
+    private FolderDBJournal journal;
+
+    /**
+     * The members stored in the last full write of the folder database.
+     */
+    private Set<MemberInfo> membersAtCheckpoint;
+
     /**
      * The FileInfos that have problems inlcuding the desciptions of the
      * problems. DISABLED
@@ -415,11 +450,14 @@ public class Folder extends PFComponent {
         diskItemFilter = new DiskItemFilter();
 
         // Initialize the DAO
-        initFileInfoDAO();
+        initFileInfoDAO(0);
         checkIfDeviceDisconnected();
 
         members = new ConcurrentHashMap<Member, Member>();
 
+        journal = new FolderDBJournal(getSystemSubDir0().resolve(
+            Constants.DB_FILENAME + FolderDBJournal.JOURNAL_FILENAME_SUFFIX));
+
         // Load folder database, ignore patterns and other metadata stuff.
         loadMetadata();
 
@@ -604,6 +642,28 @@ public class Folder extends PFComponent {
             }
         }
 
+        if (scanResult.directoryStamps != null) {
+            // Database now reflects the stamped directories.
+            directoryStamps.commit(scanResult.directoryStamps,
+                !scanResult.isIncremental());
+        }
+
+        carryOverMoves(scanResult);
+        for (FileInfo fInfo : scanResult.deletedFiles) {
+            hashCache.remove(fInfo.getRelativeName());
+            blockIndex.remove(fInfo.getRelativeName());
+        }
+        FileHasher hasher = getController().getFolderRepository()
+            .getFileHasher();
+        if (!hashesQueued) {
+            hasher.enqueueAll(this);
+            hashesQueued = true;
+        } else {
+            hasher.enqueue(this, scanResult.newFiles);
+            hasher.enqueue(this, scanResult.changedFiles);
+            hasher.enqueue(this, scanResult.restoredFiles);
+        }
+
         hasOwnDatabase = true;
         if (isFine()) {
             logFine("Scanned " + scanResult.getTotalFilesCount() + " total, "
@@ -630,6 +690,52 @@ public class Folder extends PFComponent {
         }
     }
 
+    /**
+     * Takes over the content hashes and indexed blocks of moved files to their
+     * new names, so the {@link FileHasher} does not read them again. A
+     * directory moved as a whole is taken over in one go.
+     *
+     * @param scanResult
+     */
+    private void carryOverMoves(ScanResult scanResult) {
+        Map<FileInfo, FileInfo> movedDirs = scanResult.getMovedDirectories();
+        Set<String> movedDirNames = new HashSet<String>(movedDirs.size());
+        for (FileInfo dirInfo : movedDirs.keySet()) {
+            movedDirNames.add(dirInfo.getRelativeName());
+        }
+        for (Map.Entry<FileInfo, FileInfo> move : movedDirs.entrySet()) {
+            String from = move.getKey().getRelativeName();
+            boolean parentMoved = false;
+            for (int i = from.lastIndexOf('/'); i > 0 && !parentMoved; i = from
+                .lastIndexOf('/', i - 1))
+            {
+                parentMoved = movedDirNames.contains(from.substring(0, i));
+            }
+            if (parentMoved) {
+                // Taken over with the parent directory
+                continue;
+            }
+            String to = move.getValue().getRelativeName();
+            int n = hashCache.moveDirectory(from, to);
+            blockIndex.moveDirectory(from, to);
+            if (isFine()) {
+                logFine("Directory moved from " + from + " to " + to
+                    + ". Took over " + n + " hashes");
+            }
+        }
+        for (Map.Entry<FileInfo, FileInfo> move : scanResult.getMovedFiles()
+            .entrySet())
+        {
+            if (move.getKey().isFile()) {
+                // Nothing left if taken over with its directory
+                String from = move.getKey().getRelativeName();
+                String to = move.getValue().getRelativeName();
+                hashCache.move(from, to);
+                blockIndex.move(from, to);
+            }
+        }
+    }
+
     public boolean hasOwnDatabase() {
         return hasOwnDatabase;
     }
@@ -971,6 +1077,9 @@ public class Folder extends PFComponent {
                 fileChanged(fInfo);
             }
         }
+        // Content hash and blocks of the new content
+        getController().getFolderRepository().getFileHasher()
+            .enqueue(this, Collections.singleton(fInfo));
         return true;
     }
 
@@ -1105,12 +1214,12 @@ public class Folder extends PFComponent {
             }
 
             // Max
-            if (watcher.isSupported()) {
+            if (watcher.isSupported() && !watcher.hasUnwatchedDirectories()) {
                 if (!syncProfile.isCustom() && frequency > FIVE_MINUTES) {
                     frequency = FIVE_MINUTES;
                 }
             } else {
-                // Fallback for not supported watcher
+                // Fallback for not supported or incomplete watcher
                 frequency = setFrequency;
             }
 
@@ -1645,11 +1754,32 @@ public class Folder extends PFComponent {
         }
     }
 
-    private void initFileInfoDAO() {
+    /**
+     * Creates the DAO. Very large folders keep the FileInfos off the heap in
+     * memory-mapped files.
+     * 
+     * @param expectedItems
+     *            the expected number of items in the local domain.
+     */
+    private void initFileInfoDAO(int expectedItems) {
         if (dao != null) {
             // Stop old DAO
             dao.stop();
         }
+        if (isMappedFileInfoDAORequired(expectedItems)) {
+            try {
+                Path daoDir = Files.createTempDirectory(
+                    Controller.getTempFilesLocation(), "PowerFolder-filedb-");
+                dao = new FileInfoDAOMappedImpl(daoDir, getMySelf().getId(),
+                    diskItemFilter);
+                logInfo("Using memory-mapped folder database for "
+                    + expectedItems + " items at " + daoDir);
+                return;
+            } catch (IOException | RuntimeException e) {
+                logWarning("Unable to create memory-mapped folder database. "
+                    + "Keeping items on heap. " + e);
+            }
+        }
         dao = new FileInfoDAOHashMapImpl(getMySelf().getId(),
             diskItemFilter);
 
@@ -1664,6 +1794,18 @@ public class Folder extends PFComponent {
         // "sa", "", null);
     }
 
+    /**
+     * @param expectedItems
+     * @return true if the given number of items should be kept in a
+     *         memory-mapped DAO instead of on the heap.
+     */
+    private boolean isMappedFileInfoDAORequired(int expectedItems) {
+        int minItems = ConfigurationEntry.FOLDER_DB_MAPPED_MIN_ITEMS
+            .getValueInt(getController());
+        return minItems > 0 && expectedItems >= minItems
+            && !(dao instanceof FileInfoDAOMappedImpl);
+    }
+
     /**
      * Loads the folder database from disk
      * 
@@ -1700,6 +1842,9 @@ public class Folder extends PFComponent {
                             setDBDirty();
                         }
                     }
+                    if (isMappedFileInfoDAORequired(files.length)) {
+                        initFileInfoDAO(files.length);
+                    }
                     // Help with initial capacity info.
                     dao.deleteDomain(null, files.length);
                     dao.store(null, files);
@@ -1766,11 +1911,26 @@ public class Folder extends PFComponent {
                     logSevere("read ignore error: " + this + e.getMessage(), e);
                 }
 
+                long checkpointID = 0;
+                try {
+                    Object object = in.readObject();
+                    if (object instanceof Long) {
+                        checkpointID = (Long) object;
+                    }
+                } catch (EOFException e) {
+                    logFine("No checkpoint id. Database without journal");
+                }
+
                 in.close();
                 fIn.close();
 
+                membersAtCheckpoint = new HashSet<MemberInfo>(
+                    Arrays.asList(members1));
+                int nReplayed = replayFolderDBJournal(checkpointID);
+
                 logFine("Loaded folder database (" + files.length
-                    + " files) from " + dbFile.toAbsolutePath());
+                    + " files, " + nReplayed + " journal records) from "
+                    + dbFile.toAbsolutePath());
             } catch (Exception e) {
                 logWarning(this + ": Unable to read database file: "
                     + dbFile.toAbsolutePath() + ". " + e);
@@ -1795,12 +1955,51 @@ public class Folder extends PFComponent {
         return true;
     }
 
+    /**
+     * Replays the changes from the journal on top of the loaded folder
+     * database.
+     * 
+     * @param checkpointID
+     *            the id of the loaded folder database file.
+     * @return the number of replayed changes.
+     */
+    private int replayFolderDBJournal(long checkpointID) {
+        int nReplayed;
+        synchronized (dbAccessLock) {
+            nReplayed = journal.replay(checkpointID,
+                new FolderDBJournal.ReplayVisitor() {
+                    public void stored(FileInfo fInfo) {
+                        FileInfo correctedInfo = correctFolderInfo(fInfo);
+                        if (fInfo != correctedInfo) {
+                            setDBDirty();
+                        }
+                        dao.store(null, correctedInfo);
+                    }
+
+                    public void deleted(FileInfo fInfo) {
+                        dao.delete(null, correctFolderInfo(fInfo));
+                    }
+
+                    public void lastScan(Date date) {
+                        lastScan = date;
+                    }
+                });
+        }
+        if (nReplayed > 0 && isFine()) {
+            logFine("Replayed " + nReplayed + " changes from "
+                + journal.getFile());
+        }
+        return Math.max(nReplayed, 0);
+    }
+
     /**
      * Loads the metadata information of this folder. Folder database, ignore
      * patterns and last synchronized date.
      */
     private void loadMetadata() {
         loadFolderDB();
+        loadHashCache();
+        loadBlockIndex();
         loadLastSyncDate();
         diskItemFilter.loadPatternsFrom(getSystemSubDir0().resolve(
             DiskItemFilter.PATTERNS_FILENAME), false);
@@ -1823,6 +2022,53 @@ public class Folder extends PFComponent {
         logFine("Unable to read folder db, even from backup. Maybe new folder?");
     }
 
+    private void loadHashCache() {
+        String algorithm = ConfigurationEntry.FILE_HASHER_ALGORITHM
+            .getValue(getController());
+        try {
+            hashCache = HashCache.load(
+                getSystemSubDir0().resolve(HashCache.FILENAME), algorithm);
+            if (isFine() && hashCache.size() > 0) {
+                logFine("Loaded " + hashCache.size() + " content hashes");
+            }
+        } catch (IOException e) {
+            logWarning("Unable to read content hashes. " + e);
+            hashCache = new HashCache(algorithm);
+        }
+    }
+
+    private void storeHashCache() {
+        try {
+            hashCache.store(getSystemSubDir().resolve(HashCache.FILENAME));
+        } catch (IOException e) {
+            logWarning("Unable to store content hashes. " + e);
+        }
+    }
+
+    private void loadBlockIndex() {
+        int maxBlocks = Math.max(0, ConfigurationEntry.DELTA_BLOCK_INDEX_MAX
+            .getValueInt(getController()));
+        try {
+            blockIndex = BlockIndex.load(
+                getSystemSubDir0().resolve(BlockIndex.FILENAME), maxBlocks);
+            if (isFine() && blockIndex.size() > 0) {
+                logFine("Loaded " + blockIndex.size() + " blocks of "
+                    + blockIndex.getFileCount() + " files");
+            }
+        } catch (IOException e) {
+            logWarning("Unable to read block index. " + e);
+            blockIndex = new BlockIndex(maxBlocks);
+        }
+    }
+
+    private void storeBlockIndex() {
+        try {
+            blockIndex.store(getSystemSubDir().resolve(BlockIndex.FILENAME));
+        } catch (IOException e) {
+            logWarning("Unable to store block index. " + e);
+        }
+    }
+
     /**
      * Shuts down the folder
      */
@@ -1840,6 +2086,12 @@ public class Folder extends PFComponent {
                 DiskItemFilter.PATTERNS_FILENAME), true);
             savePatternsToMetaFolder();
         }
+        if (hashCache.isDirty() && !checkIfDeviceDisconnected()) {
+            storeHashCache();
+        }
+        if (blockIndex.isDirty() && !checkIfDeviceDisconnected()) {
+            storeBlockIndex();
+        }
         getController().removeScheduled(persister);
         getController().removeScheduled(persisterFuture);
         dao.stop();
@@ -1868,10 +2120,62 @@ public class Folder extends PFComponent {
     }
 
     /**
-     * Stores the current file-database to disk
+     * Stores the current file-database to disk. Appends the changes to the
+     * journal if possible, writes the full database otherwise.
      */
     private boolean storeFolderDB() {
-            Path dbTempFile = getSystemSubDir().resolve(Constants.DB_FILENAME
+        if (isFolderDBJournalAppendable()) {
+            try {
+                int nPending = journal.countPending();
+                journal.append(lastScan);
+                if (isFine()) {
+                    logFine("Appended " + nPending
+                        + " changes to folder database journal ("
+                        + journal.countRecords() + " records)");
+                }
+                return true;
+            } catch (IOException e) {
+                logWarning("Unable to append to folder database journal "
+                    + journal.getFile() + ". Writing full database. " + e);
+                logFiner(e);
+            }
+        }
+        return storeFolderDBCheckpoint();
+    }
+
+    /**
+     * @return true if the pending changes can be appended to the journal
+     *         instead of writing the full folder database.
+     */
+    private boolean isFolderDBJournalAppendable() {
+        if (!ConfigurationEntry.FOLDER_DB_JOURNAL_ENABLED
+            .getValueBoolean(getController()))
+        {
+            return false;
+        }
+        if (Files.notExists(getSystemSubDir0().resolve(Constants.DB_FILENAME)))
+        {
+            return false;
+        }
+        // Members are only contained in the full database.
+        Set<MemberInfo> currentMembers = new HashSet<MemberInfo>();
+        for (Member member : getMembersAsCollection()) {
+            currentMembers.add(member.getInfo());
+        }
+        if (!currentMembers.equals(membersAtCheckpoint)) {
+            return false;
+        }
+        int compactThreshold = Math.max(1000, getKnownItemCount()
+            * ConfigurationEntry.FOLDER_DB_JOURNAL_COMPACT_PERCENT
+                .getValueInt(getController()) / 100);
+        return journal.isAppendable(compactThreshold);
+    }
+
+    /**
+     * Writes the full folder database and starts a new journal.
+     */
+    private boolean storeFolderDBCheckpoint() {
+        Path dbTempFile = getSystemSubDir().resolve(Constants.DB_FILENAME
                 + PathUtils.removeInvalidFilenameChars(getController().getMySelf()
                     .getId()) + ".writing");
         Path dbFile = getSystemSubDir().resolve(Constants.DB_FILENAME);
@@ -1886,6 +2190,8 @@ public class Folder extends PFComponent {
         try {
             FileInfo[] diskItems;
             synchronized (dbAccessLock) {
+                // Changes until now are contained in the checkpoint.
+                journal.checkpointStarted();
                 Collection<FileInfo> files = dao.findAllFiles(null);
                 Collection<DirectoryInfo> dirs = dao.findAllDirectories(null);
                 diskItems = new FileInfo[files.size() + dirs.size()];
@@ -1910,27 +2216,36 @@ public class Folder extends PFComponent {
                 return false;
             }
             
-            try (ObjectOutputStream oOut = new ObjectOutputStream(Files.newOutputStream(dbTempFile))) {
+            MemberInfo[] memberInfos = Convert
+                .asMemberInfos(getMembersAsCollection().toArray(
+                    new Member[getMembersAsCollection().size()]));
+            Date lastScanWritten = lastScan;
+            long checkpointID = Math.max(System.currentTimeMillis(),
+                journal.getCheckpointID() + 1);
+            try (ObjectOutputStream oOut = new ObjectOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(dbTempFile))))
+            {
                 // Store files
                 oOut.writeObject(diskItems);
                 // Store members
-                oOut.writeObject(Convert.asMemberInfos(getMembersAsCollection()
-                    .toArray(new Member[getMembersAsCollection().size()])));
+                oOut.writeObject(memberInfos);
                 // Old blacklist. Maintained for backward serialization
                 // compatability. Do not remove.
                 oOut.writeObject(new ArrayList<FileInfo>());
     
-                if (lastScan == null) {
+                if (lastScanWritten == null) {
+                    lastScanWritten = new Date();
                     if (isFiner()) {
-                        logFiner("write default time: " + new Date());
+                        logFiner("write default time: " + lastScanWritten);
                     }
-                    oOut.writeObject(new Date());
                 } else {
                     if (isFiner()) {
-                        logFiner("write lastScan: " + lastScan);
+                        logFiner("write lastScan: " + lastScanWritten);
                     }
-                    oOut.writeObject(lastScan);
                 }
+                oOut.writeObject(lastScanWritten);
+                // The journal continues this checkpoint.
+                oOut.writeObject(Long.valueOf(checkpointID));
             }
 
             // Put in the right place:
@@ -1956,6 +2271,16 @@ public class Folder extends PFComponent {
                 }
             }
 
+            membersAtCheckpoint = new HashSet<MemberInfo>(
+                Arrays.asList(memberInfos));
+            try {
+                journal.reset(checkpointID, lastScanWritten);
+            } catch (IOException e) {
+                // Not fatal: Next persist writes the full database again.
+                logWarning("Unable to start folder database journal "
+                    + journal.getFile() + ". " + e);
+            }
+
             if (isFine()) {
                 logFine("Successfully wrote folder database file ("
                     + diskItems.length + " disk items)");
@@ -2051,7 +2376,7 @@ public class Folder extends PFComponent {
                 }
                 expired++;
                 // Remove
-                dao.delete(null, file);
+                deleteLocal(file);
                 for (Member member : members.values()) {
                     dao.delete(member.getId(), file);
                 }
@@ -2223,7 +2548,7 @@ public class Folder extends PFComponent {
                                 fileInfo.getRelativeName())));
                     }
                 }
-                dao.delete(null, fileInfo);
+                deleteLocal(fileInfo);
             }
             return true;
         } finally {
@@ -2742,7 +3067,7 @@ public class Folder extends PFComponent {
     public void removeDeletedFileInfo(FileInfo fileInfo) {
         Reject.ifFalse(fileInfo.isDeleted(),
             "Should only be removing deleted infos.");
-        dao.delete(null, fileInfo);
+        deleteLocal(fileInfo);
         setDBDirty();
     }
 
@@ -2775,8 +3100,7 @@ public class Folder extends PFComponent {
     public boolean isSyncing() {
         return isScanning()
             || isTransferring()
-            || getController().getFolderRepository()
-                .getCurrentlyMaintainingFolder() == this;
+            || getController().getFolderRepository().isMaintaining(this);
     }
 
     /**
@@ -2788,12 +3112,52 @@ public class Folder extends PFComponent {
         return isDownloading() || isUploading();
     }
 
+    /**
+     * @return the directory stamps of the last committed scan.
+     */
+    DirectoryStamps getDirectoryStamps() {
+        return directoryStamps;
+    }
+
+    /**
+     * @return the content hashes of the local files.
+     */
+    HashCache getHashCache() {
+        return hashCache;
+    }
+
+    /**
+     * @return the blocks of the local files, to copy parts of downloads from.
+     */
+    public BlockIndex getBlockIndex() {
+        return blockIndex;
+    }
+
+    /**
+     * @param fInfo
+     * @return the local version of the file with the hash of its content or
+     *         null if the hash was not calculated yet.
+     * @see FileHasher
+     */
+    public HashedFileInfo getHashedFileInfo(FileInfo fInfo) {
+        FileInfo localFile = getFile(fInfo);
+        if (localFile == null || localFile.isDeleted() || !localFile.isFile())
+        {
+            return null;
+        }
+        byte[] digest = hashCache.get(localFile);
+        if (digest == null) {
+            return null;
+        }
+        return new HashedFileInfo(localFile, hashCache.getAlgorithm(), digest);
+    }
+
     /**
      * @return true if the folder get currently scanned
      */
     public boolean isScanning() {
         return getController().getFolderRepository().getFolderScanner()
-            .getCurrentScanningFolder() == this;
+            .isScanning(this);
     }
 
     /**
@@ -3520,6 +3884,21 @@ public class Folder extends PFComponent {
                 dao.deleteDomain(domainID, newDomainSize);
             }
             dao.store(domainID, fileInfos);
+            if (domainID == null) {
+                journal.logStored(fileInfos);
+            }
+        }
+    }
+
+    /**
+     * Removes the FileInfo from the local domain of the folder database.
+     * 
+     * @param fileInfo
+     */
+    private void deleteLocal(FileInfo fileInfo) {
+        synchronized (dbAccessLock) {
+            dao.delete(null, fileInfo);
+            journal.logDeleted(fileInfo);
         }
     }
 
@@ -5147,6 +5526,12 @@ public class Folder extends PFComponent {
                     savePatternsToMetaFolder();
                 }
             }
+            if (hashCache.isDirty() && !checkIfDeviceDisconnected()) {
+                storeHashCache();
+            }
+            if (blockIndex.isDirty() && !checkIfDeviceDisconnected()) {
+                storeBlockIndex();
+            }
         }
 
         @Override
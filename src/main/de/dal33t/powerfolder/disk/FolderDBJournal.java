@@ -0,0 +1,382 @@
+/*
+ * Copyright 2004 - 2008 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * Append-only change log of the local domain of a folder database.
+ * <p>
+ * The full folder database (the checkpoint) gets written only from time to
+ * time. All changes in between are appended to this journal as batches of
+ * {@link FileInfo} upserts and deletions. On load the journal gets replayed on
+ * top of the checkpoint it belongs to. The journal is bound to a checkpoint by
+ * its checkpoint id. A journal that does not belong to the loaded checkpoint
+ * gets ignored.
+ * <p>
+ * Every batch is written with length and CRC32 prefix. A batch torn by a crash
+ * is detected on replay and cut off, all batches before it remain valid.
+ * <p>
+ * Thread safety: All methods are synchronized. The caller is responsible to
+ * log changes in the same order they are applied to the DAO.
+ */
+public class FolderDBJournal extends Loggable {
+    public static final String JOURNAL_FILENAME_SUFFIX = ".journal";
+
+    private static final int MAGIC = 0x50464a31;
+    private static final int HEADER_LENGTH = 12;
+    private static final byte RECORD_STORE = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_LAST_SCAN = 3;
+
+    private final Path file;
+    private final List<Object[]> pending = new ArrayList<Object[]>();
+
+    /**
+     * The id of the checkpoint this journal continues.
+     */
+    private long checkpointID;
+
+    /**
+     * True if batches may be appended to the journal file on disk. False if
+     * the next write has to be a full checkpoint.
+     */
+    private boolean appendable;
+
+    /**
+     * Number of records in the journal file.
+     */
+    private int nRecords;
+    private Date lastScanWritten;
+
+    /**
+     * @param file
+     *            the journal file
+     */
+    public FolderDBJournal(Path file) {
+        Reject.ifNull(file, "File is null");
+        this.file = file;
+    }
+
+    /**
+     * Logs the stored {@link FileInfo}s of the local domain.
+     *
+     * @param fInfos
+     */
+    public synchronized void logStored(Collection<FileInfo> fInfos) {
+        for (FileInfo fInfo : fInfos) {
+            pending.add(new Object[]{RECORD_STORE, fInfo});
+        }
+    }
+
+    /**
+     * Logs the removal of a {@link FileInfo} from the local domain.
+     *
+     * @param fInfo
+     */
+    public synchronized void logDeleted(FileInfo fInfo) {
+        pending.add(new Object[]{RECORD_DELETE, fInfo});
+    }
+
+    /**
+     * @return the number of changes not written to disk yet.
+     */
+    public synchronized int countPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of changes written to the journal file since the
+     *         last checkpoint.
+     */
+    public synchronized int countRecords() {
+        return nRecords;
+    }
+
+    /**
+     * @param compactThreshold
+     *            the maximum number of journal records before a checkpoint is
+     *            required.
+     * @return true if the pending changes can be appended to the journal.
+     *         false if a full checkpoint should be written instead.
+     */
+    public synchronized boolean isAppendable(int compactThreshold) {
+        return appendable
+            && nRecords + pending.size() <= compactThreshold;
+    }
+
+    /**
+     * Appends all pending changes as one batch to the journal file.
+     *
+     * @param lastScan
+     *            the last scan date of the folder. Gets written if changed.
+     * @throws IOException
+     *             if the batch could not be written. The journal is no longer
+     *             appendable afterwards.
+     */
+    public synchronized void append(Date lastScan) throws IOException {
+        Reject.ifFalse(appendable, "Journal not appendable: " + file);
+        boolean writeLastScan = lastScan != null
+            && !lastScan.equals(lastScanWritten);
+        if (pending.isEmpty() && !writeLastScan) {
+            return;
+        }
+        int nBatch = pending.size() + (writeLastScan ? 1 : 0);
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(
+            1024 + pending.size() * 128);
+        try (ObjectOutputStream oOut = new ObjectOutputStream(bOut)) {
+            oOut.writeInt(nBatch);
+            for (Object[] record : pending) {
+                oOut.writeByte((Byte) record[0]);
+                oOut.writeObject(record[1]);
+            }
+            if (writeLastScan) {
+                oOut.writeByte(RECORD_LAST_SCAN);
+                oOut.writeObject(lastScan);
+            }
+        }
+        byte[] payload = bOut.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buf = ByteBuffer.allocate(12 + payload.length);
+        buf.putInt(payload.length);
+        buf.putLong(crc.getValue());
+        buf.put(payload);
+        buf.flip();
+
+        boolean ok = false;
+        try (FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+        {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(false);
+            ok = true;
+        } finally {
+            if (!ok) {
+                // Partially written batch is cut off on replay. Anyways start
+                // over with a new checkpoint.
+                appendable = false;
+            }
+        }
+        nRecords += nBatch;
+        pending.clear();
+        if (writeLastScan) {
+            lastScanWritten = lastScan;
+        }
+    }
+
+    /**
+     * To be called while the snapshot for a new checkpoint is taken. Drops all
+     * pending changes, they are contained in the checkpoint. The journal stays
+     * not appendable until {@link #reset(long, Date)} is called after the
+     * checkpoint has been written successfully.
+     */
+    public synchronized void checkpointStarted() {
+        pending.clear();
+        appendable = false;
+    }
+
+    /**
+     * Starts a new, empty journal for the given checkpoint. The old journal
+     * is atomically replaced.
+     *
+     * @param newCheckpointID
+     *            the id of the checkpoint just written.
+     * @param lastScan
+     *            the last scan date contained in the checkpoint.
+     * @throws IOException
+     */
+    public synchronized void reset(long newCheckpointID, Date lastScan)
+        throws IOException
+    {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".writing");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC);
+        header.putLong(newCheckpointID);
+        header.flip();
+        try (FileChannel channel = FileChannel.open(tempFile,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE))
+        {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        checkpointID = newCheckpointID;
+        nRecords = 0;
+        lastScanWritten = lastScan;
+        appendable = true;
+    }
+
+    /**
+     * Replays the journal on top of the loaded checkpoint. Cuts off a torn
+     * batch at the end of the journal file.
+     *
+     * @param loadedCheckpointID
+     *            the id of the loaded checkpoint.
+     * @param visitor
+     *            receives the replayed changes in order
+     * @return the number of replayed records. -1 if the journal does not
+     *         belong to the loaded checkpoint or does not exist.
+     */
+    public synchronized int replay(long loadedCheckpointID,
+        ReplayVisitor visitor)
+    {
+        appendable = false;
+        nRecords = 0;
+        pending.clear();
+        if (loadedCheckpointID == 0 || Files.notExists(file)) {
+            return -1;
+        }
+        long validLength = 0;
+        try (FileChannel channel = FileChannel.open(file,
+            StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel)));
+            if (in.readInt() != MAGIC || in.readLong() != loadedCheckpointID)
+            {
+                logFine("Journal does not belong to loaded checkpoint: "
+                    + file);
+                return -1;
+            }
+            validLength = HEADER_LENGTH;
+            while (true) {
+                byte[] payload;
+                long crcValue;
+                try {
+                    int length = in.readInt();
+                    crcValue = in.readLong();
+                    if (length < 0
+                        || length > channel.size() - validLength - 12)
+                    {
+                        throw new EOFException("Illegal batch length "
+                            + length);
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != crcValue) {
+                    logWarning("Torn batch found in journal " + file
+                        + " at " + validLength + ". Cutting off");
+                    break;
+                }
+                nRecords += replayBatch(payload, visitor);
+                validLength += 12 + payload.length;
+            }
+            if (channel.size() > validLength) {
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            logWarning("Unable to replay journal " + file + ". " + e);
+            return -1;
+        }
+        checkpointID = loadedCheckpointID;
+        appendable = true;
+        return nRecords;
+    }
+
+    private int replayBatch(byte[] payload, ReplayVisitor visitor)
+        throws IOException, ClassNotFoundException
+    {
+        try (ObjectInputStream oIn = new ObjectInputStream(
+            new ByteArrayInputStream(payload)))
+        {
+            int n = oIn.readInt();
+            for (int i = 0; i < n; i++) {
+                byte type = oIn.readByte();
+                Object obj = oIn.readObject();
+                switch (type) {
+                    case RECORD_STORE :
+                        visitor.stored((FileInfo) obj);
+                        break;
+                    case RECORD_DELETE :
+                        visitor.deleted((FileInfo) obj);
+                        break;
+                    case RECORD_LAST_SCAN :
+                        lastScanWritten = (Date) obj;
+                        visitor.lastScan(lastScanWritten);
+                        break;
+                    default :
+                        throw new IOException("Unknown journal record type "
+                            + type);
+                }
+            }
+            return n;
+        }
+    }
+
+    public synchronized long getCheckpointID() {
+        return checkpointID;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Receives the replayed changes.
+     */
+    public interface ReplayVisitor {
+        void stored(FileInfo fInfo);
+
+        void deleted(FileInfo fInfo);
+
+        void lastScan(Date lastScan);
+    }
+
+    @Override
+    public String toString() {
+        return "FolderDBJournal " + file + " (" + nRecords + " records, "
+            + pending.size() + " pending)";
+    }
+}
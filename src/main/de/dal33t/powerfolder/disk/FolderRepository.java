@@ -43,6 +43,11 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
@@ -75,6 +80,7 @@ import de.dal33t.powerfolder.task.FolderObtainPermissionTask;
 import de.dal33t.powerfolder.transfer.FileRequestor;
 import de.dal33t.powerfolder.ui.notices.WarningNotice;
 import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.NamedThreadFactory;
 import de.dal33t.powerfolder.util.PathUtils;
 import de.dal33t.powerfolder.util.ProUtil;
 import de.dal33t.powerfolder.util.Profiling;
@@ -86,6 +92,7 @@ import de.dal33t.powerfolder.util.UserDirectories;
 import de.dal33t.powerfolder.util.UserDirectory;
 import de.dal33t.powerfolder.util.Util;
 import de.dal33t.powerfolder.util.Waiter;
+import de.dal33t.powerfolder.util.WrapperExecutorService;
 import de.dal33t.powerfolder.util.collection.CompositeCollection;
 import de.dal33t.powerfolder.util.compare.FolderComparator;
 import de.dal33t.powerfolder.util.os.OSUtil;
@@ -106,7 +113,10 @@ public class FolderRepository extends PFComponent implements Runnable {
     private final Map<FolderInfo, Folder> metaFolders;
     private Thread myThread;
     private final FileRequestor fileRequestor;
-    private Folder currentlyMaintainingFolder;
+    /** The folders currently maintained */
+    private final Set<Folder> maintainingFolders = new CopyOnWriteArraySet<Folder>();
+    /** Maintains independent folders at the same time */
+    private ExecutorService maintenanceWorkers;
     private final Set<String> onLoginFolderEntryIds;
     // Flag if the repo is started
     private boolean started;
@@ -121,6 +131,8 @@ public class FolderRepository extends PFComponent implements Runnable {
 
     /** The disk scanner */
     private final FolderScanner folderScanner;
+    private final FileHasher fileHasher;
+    private final DirectoryWatchService directoryWatchService;
 
     /**
      * The current synchronizater of all folder memberships
@@ -161,6 +173,8 @@ public class FolderRepository extends PFComponent implements Runnable {
         loadRemovedFolderDirectories();
 
         folderScanner = new FolderScanner(getController());
+        fileHasher = new FileHasher(getController());
+        directoryWatchService = new DirectoryWatchService(getController());
 
         // Create listener support
         folderRepositoryListenerSupport = ListenerSupportFactory
@@ -212,6 +226,31 @@ public class FolderRepository extends PFComponent implements Runnable {
         return folderScanner;
     }
 
+    /**
+     * @return the background calculation of the content hashes of the local
+     *         files.
+     */
+    public FileHasher getFileHasher() {
+        return fileHasher;
+    }
+
+    /**
+     * @return the Java WatchService shared by the {@link FolderWatcher}s.
+     */
+    DirectoryWatchService getDirectoryWatchService() {
+        return directoryWatchService;
+    }
+
+    /**
+     * Re-attaches the {@link FolderWatcher}s of all folders, e.g. after
+     * {@link ConfigurationEntry#FOLDER_WATCHER_BACKEND} was changed.
+     */
+    public void reconfigureFolderWatchers() {
+        for (Folder folder : getFolders()) {
+            folder.getFolderWatcher().reconfigure(folder.getSyncProfile());
+        }
+    }
+
     public void setSuspendFireEvents(boolean suspended) {
         ListenerSupportFactory.setSuspended(folderRepositoryListenerSupport,
             suspended);
@@ -561,6 +600,12 @@ public class FolderRepository extends PFComponent implements Runnable {
         }
 
         folderScanner.start();
+        fileHasher.start();
+        maintenanceWorkers = new WrapperExecutorService(
+            Executors.newFixedThreadPool(Math.max(1,
+                ConfigurationEntry.FOLDER_MAINTENANCE_PARALLELISM
+                    .getValueInt(getController())), new NamedThreadFactory(
+                "FolderMaintenance-")));
 
         // Now start thread
         myThread = new Thread(this, getClass().getName());
@@ -590,10 +635,15 @@ public class FolderRepository extends PFComponent implements Runnable {
             }
         }
         folderScanner.shutdown();
+        fileHasher.shutdown();
+        directoryWatchService.shutdown();
 
         if (myThread != null) {
             myThread.interrupt();
         }
+        if (maintenanceWorkers != null) {
+            maintenanceWorkers.shutdownNow();
+        }
         synchronized (scanTrigger) {
             scanTrigger.notifyAll();
         }
@@ -1115,11 +1165,7 @@ public class FolderRepository extends PFComponent implements Runnable {
             triggerSynchronizeAllFolderMemberships();
 
             // Abort scanning
-            boolean folderCurrentlyScannng = folder.equals(folderScanner
-                .getCurrentScanningFolder());
-            if (folderCurrentlyScannng) {
-                folderScanner.abortScan();
-            }
+            folderScanner.abortScan(folder);
 
             // Delete the .PowerFolder dir and contents
             if (deleteSystemSubDir) {
@@ -1266,11 +1312,20 @@ public class FolderRepository extends PFComponent implements Runnable {
     }
 
     /**
-     * @return the folder that currently gets maintainted or null if not
+     * @return one of the folders that currently get maintainted or null if not
      *         maintaining any folder.
      */
     public Folder getCurrentlyMaintainingFolder() {
-        return currentlyMaintainingFolder;
+        Iterator<Folder> it = maintainingFolders.iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * @param folder
+     * @return true if the folder currently gets maintained.
+     */
+    public boolean isMaintaining(Folder folder) {
+        return maintainingFolders.contains(folder);
     }
 
     /**
@@ -1321,12 +1376,14 @@ public class FolderRepository extends PFComponent implements Runnable {
         // }
 
         List<Folder> scanningFolders = new ArrayList<Folder>();
+        List<Folder> scanningMetaFolders = new ArrayList<Folder>();
         Controller controller = getController();
 
         while (!myThread.isInterrupted() && myThread.isAlive()) {
             // Only scan if not in paused mode
             if (!controller.isPaused()) {
                 scanningFolders.clear();
+                scanningMetaFolders.clear();
                 for (Folder folder : folders.values()) {
                     if (folder.isMaintenanceRequired()) {
                         scanningFolders.add(folder);
@@ -1334,37 +1391,23 @@ public class FolderRepository extends PFComponent implements Runnable {
                 }
                 for (Folder metaFolder : metaFolders.values()) {
                     if (metaFolder.isMaintenanceRequired()) {
-                        scanningFolders.add(metaFolder);
+                        scanningMetaFolders.add(metaFolder);
                     }
                 }
                 Collections.sort(scanningFolders, FolderComparator.INSTANCE);
+                Collections.sort(scanningMetaFolders,
+                    FolderComparator.INSTANCE);
                 if (isFiner()) {
-                    logFiner("Maintaining " + scanningFolders.size()
+                    logFiner("Maintaining "
+                        + (scanningFolders.size() + scanningMetaFolders.size())
                         + " folders...");
                 }
-                for (Folder folder : scanningFolders) {
-                    currentlyMaintainingFolder = folder;
-                    // Fire event
-                    fireMaintanceStarted(currentlyMaintainingFolder);
-                    currentlyMaintainingFolder.maintain();
-                    Folder maintainedFolder = currentlyMaintainingFolder;
-                    currentlyMaintainingFolder = null;
-                    // Fire event
-                    fireMaintenanceFinished(maintainedFolder);
-
-                    if (controller.isPaused() || myThread.isInterrupted()) {
-                        break;
-                    }
-
-                    // Wait a bit to give other waiting sync processes time...
-                    try {
-                        Thread.sleep(50);
-                    } catch (InterruptedException e) {
-                        break;
-                    }
-                }
+                // A folder is never maintained together with its meta folder
+                maintain(scanningFolders);
+                maintain(scanningMetaFolders);
                 if (isFiner()) {
-                    logFiner("Maintained " + scanningFolders.size()
+                    logFiner("Maintained "
+                        + (scanningFolders.size() + scanningMetaFolders.size())
                         + " folder(s)");
                 }
             }
@@ -1384,6 +1427,66 @@ public class FolderRepository extends PFComponent implements Runnable {
         }
     }
 
+    /**
+     * Maintains the folders, up to
+     * {@link ConfigurationEntry#FOLDER_MAINTENANCE_PARALLELISM} at the same
+     * time. Returns when all folders are maintained.
+     *
+     * @param toMaintain
+     */
+    private void maintain(List<Folder> toMaintain) {
+        List<Future<?>> running = new ArrayList<Future<?>>(toMaintain.size());
+        for (final Folder folder : toMaintain) {
+            try {
+                running.add(maintenanceWorkers.submit(new Runnable() {
+                    public void run() {
+                        maintain(folder);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                // Shut down
+                break;
+            }
+        }
+        for (Future<?> future : running) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                for (Future<?> notDone : running) {
+                    notDone.cancel(false);
+                }
+                myThread.interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // Already logged by the worker
+                logFiner(e);
+            }
+        }
+    }
+
+    private void maintain(Folder folder) {
+        if (getController().isPaused() || myThread.isInterrupted()) {
+            return;
+        }
+        maintainingFolders.add(folder);
+        // Fire event
+        fireMaintanceStarted(folder);
+        try {
+            folder.maintain();
+        } finally {
+            maintainingFolders.remove(folder);
+        }
+        // Fire event
+        fireMaintenanceFinished(folder);
+
+        // Wait a bit to give other waiting sync processes time...
+        try {
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /*
      * General
      */
@@ -23,15 +23,28 @@ import java.io.IOException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Feature;
 import de.dal33t.powerfolder.PFComponent;
@@ -43,173 +56,402 @@ import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.util.PathUtils;
 import de.dal33t.powerfolder.util.Reject;
-import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.StringUtils;
 
 /**
  * Disk Scanner for a folder. It compares the curent database of files agains
  * the ones availeble on disk and produces a ScanResult. MultiThreading is used,
- * for each subfolder of the root a DirectoryCrawler is used with a maximum of
- * MAX_CRAWLERS.<BR>
+ * every directory is crawled by a task of a work-stealing pool. There is one
+ * pool per volume (file store), so folders on different disks get scanned in
+ * parallel while folders on the same disk share the configured number of
+ * crawlers ({@link ConfigurationEntry#FOLDER_SCANNER_PARALLELISM}).<BR>
+ * A folder can only be scanned once at a time, different folders can be
+ * scanned concurrently.<BR>
+ * If the sync profile of the folder allows incremental scans, directories that
+ * did not change since the last scan are not listed, their known entries are
+ * taken from the database. See {@link DirectoryStamps}.<BR>
+ * Full scans write a checkpoint periodically and when aborted. The next scan
+ * of the folder continues from there if the folder database did not change
+ * meanwhile ({@link ConfigurationEntry#FOLDER_SCANNER_CHECKPOINT_SECONDS}).
+ * See {@link ScanCheckpoint}.<BR>
  * On succes the resultState of ScanResult is ScanResult.ResultState.SCANNED.<BR>
  * If the user aborted the scan (by selecting paused mode) the resultState =
  * ScanResult.ResultState.USER_ABORT.<BR>
  * If during scanning files dare deleted when scanning, the whole folder is
  * deleted or in practice the harddisk fails the resultState is
  * ScanResult.ResultState.HARDWARE_FAILURE. <BR>
+ * If the folder is already being scanned the resultState is
+ * ScanResult.ResultState.BUSY. <BR>
  * usage:<BR>
  * <code>
  * ScanResult result = folderScannner.scanFolder(folder);
  * </code>
  */
 public class FolderScanner extends PFComponent {
-    /** The folder that is being scanned */
-    private Folder currentScanningFolder;
-    private ScanResult currentScanResult;
-
     /**
-     * This is the list of knownfiles, if a file is found on disk the file is
-     * removed from this list. The files that are left in this list after
-     * scanning are deleted from disk.
+     * The volume name used if the file store of a folder can not be
+     * determined.
      */
-    private Map<String, FileInfo> remaining = Util.createConcurrentHashMap();
-
-    /** DirectoryCrawler threads that are idle */
-    private final List<DirectoryCrawler> directoryCrawlersPool = new CopyOnWriteArrayList<DirectoryCrawler>();
+    private static final String UNKNOWN_VOLUME = "unknown";
 
-    /** Where crawling DirectoryCrawlers are */
-    private final List<DirectoryCrawler> activeDirectoryCrawlers = new CopyOnWriteArrayList<DirectoryCrawler>();
-    /**
-     * Maximum number of DirectoryCrawlers after test of a big folder this seams
-     * the optimum number.
-     */
-    private static final int MAX_CRAWLERS = 3;
+    /** The scans in progress. Folder -> Scan */
+    private final ConcurrentMap<Folder, Scan> scans = new ConcurrentHashMap<Folder, Scan>();
 
-    /**
-     * The files which could not be scanned
-     */
-    private List<Path> unableToScanFiles = new CopyOnWriteArrayList<Path>();
-
-    /**
-     * Because of multi threading we use a flag to indicate a failed besides
-     * returning false
-     */
-    private volatile boolean failure = false;
-
-    /**
-     * when set to true the scanning process will be aborted and the resultState
-     * of the scan will be ScanResult.ResultState.USER_ABORT
-     */
-    private volatile boolean abort = false;
+    /** The DirectoryCrawler pools. Volume name -> Pool */
+    private final Map<String, ForkJoinPool> pools = new HashMap<String, ForkJoinPool>();
 
     /**
-     * The semaphore to acquire = means this thread got the folder scan now.
+     * when set to true no new scans are started, the result of the scan will be
+     * ScanResult.ResultState.USER_ABORT
      */
-    private Semaphore threadOwnership;
+    private volatile boolean shutdown = false;
 
     /**
      * Do not use this constructor, this should only be done by the Folder
      * Repositoty, to get the folder scanner call:
      * folderRepository.getFolderScanner()
-     * 
+     *
      * @param controller
      *            the controller that holds this folder.
      */
     FolderScanner(Controller controller) {
         super(controller);
-        threadOwnership = new Semaphore(1);
     }
 
     /**
-     * Starts the folder scanner, creates MAX_CRAWLERS number of
-     * DirectoryCrawler
+     * Starts the folder scanner. The DirectoryCrawler pools are created on
+     * first use per volume.
      */
     public void start() {
-        // start directoryCrawlers
-        for (int i = 0; i < MAX_CRAWLERS; ++i) {
-            DirectoryCrawler directoryCrawler = new DirectoryCrawler();
-            Thread thread = new Thread(directoryCrawler,
-                "FolderScanner.DirectoryCrawler #" + i);
-            thread.setPriority(Thread.MIN_PRIORITY);
-            thread.start();
-            directoryCrawlersPool.add(directoryCrawler);
-        }
-        currentScanResult = new ScanResult(true);
+        shutdown = false;
     }
 
     /**
-     * sets aborted to true (user probably closed the program), and shutsdown
-     * the DirectoryCrawlers
+     * aborts all scans (user probably closed the program), and shutsdown the
+     * DirectoryCrawlers
      */
     public void shutdown() {
-        abort = true;
-        synchronized (directoryCrawlersPool) {
-            for (DirectoryCrawler directoryCrawler : directoryCrawlersPool) {
-                directoryCrawler.shutdown();
-            }
-            for (DirectoryCrawler directoryCrawler : activeDirectoryCrawlers) {
-                directoryCrawler.shutdown();
+        shutdown = true;
+        abortScan();
+        synchronized (pools) {
+            for (ForkJoinPool pool : pools.values()) {
+                pool.shutdown();
             }
+            pools.clear();
         }
-        // waitForCrawlersToStop();
     }
 
+    /**
+     * @return one of the folders that are currently scanned or null if no
+     *         scan is in progress.
+     */
     public Folder getCurrentScanningFolder() {
-        return currentScanningFolder;
+        Iterator<Folder> it = scans.keySet().iterator();
+        return it.hasNext() ? it.next() : null;
     }
 
     /**
-     * Abort scanning. when called the scanning process will be aborted and the
-     * resultState of the scan will be ScanResult.ResultState.USER_ABORT
-     * 
+     * @param folder
+     * @return true if the folder is currently scanned.
+     */
+    public boolean isScanning(Folder folder) {
+        Reject.ifNull(folder, "folder cannot be null");
+        return scans.containsKey(folder);
+    }
+
+    /**
+     * Abort scanning. when called the scanning processes will be aborted and
+     * the resultState of the scans will be ScanResult.ResultState.USER_ABORT
+     *
      * @return true if abort has been initiated, false if not currently scanning
      */
     public boolean abortScan() {
-        if (currentScanningFolder != null) {
-            abort = true;
-            return true;
+        boolean aborted = false;
+        for (Scan scan : scans.values()) {
+            scan.abort = true;
+            aborted = true;
         }
-        return false;
+        return aborted;
+    }
+
+    /**
+     * Abort scanning of one folder. when called the scanning process will be
+     * aborted and the resultState of the scan will be
+     * ScanResult.ResultState.USER_ABORT
+     *
+     * @param folder
+     * @return true if abort has been initiated, false if the folder is not
+     *         currently scanned
+     */
+    public boolean abortScan(Folder folder) {
+        Reject.ifNull(folder, "folder cannot be null");
+        Scan scan = scans.get(folder);
+        if (scan == null) {
+            return false;
+        }
+        scan.abort = true;
+        return true;
     }
 
     /**
      * Scans a folder. See class description for explaining.
-     * 
+     *
      * @param folder
      *            The folder to scan.
      * @return a ScanResult the scan result.
      */
-    public synchronized ScanResult scanFolder(Folder folder) {
+    public ScanResult scanFolder(Folder folder) {
         Reject.ifNull(folder, "folder cannot be null");
-
-        if (!threadOwnership.tryAcquire()) {
+        if (shutdown) {
+            return new ScanResult(ScanResult.ResultState.USER_ABORT);
+        }
+        Scan scan = new Scan(folder);
+        if (scans.putIfAbsent(folder, scan) != null) {
             return new ScanResult(ScanResult.ResultState.BUSY);
         }
+        try {
+            return scan.scan();
+        } finally {
+            // Not longer scanning
+            scans.remove(folder, scan);
+        }
+    }
 
+    /**
+     * @param base
+     *            the local base of the folder to scan.
+     * @return the DirectoryCrawler pool for the volume the base is located on.
+     */
+    private ForkJoinPool getPool(Path base) {
+        String volume;
         try {
-            currentScanningFolder = folder;
+            volume = Files.getFileStore(base).name();
+        } catch (IOException e) {
+            logFiner("Unable to get volume of " + base + ". " + e);
+            volume = UNKNOWN_VOLUME;
+        }
+        synchronized (pools) {
+            ForkJoinPool pool = pools.get(volume);
+            if (pool == null) {
+                int parallelism = getParallelism(volume);
+                if (isFine()) {
+                    logFine("Starting " + parallelism
+                        + " DirectoryCrawlers for volume " + volume);
+                }
+                pool = new ForkJoinPool(parallelism,
+                    new DirectoryCrawlerFactory(volume), null, false);
+                pools.put(volume, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * @param volume
+     * @return the number of DirectoryCrawlers to use for the volume.
+     */
+    private int getParallelism(String volume) {
+        String volumes = ConfigurationEntry.FOLDER_SCANNER_PARALLELISM_VOLUMES
+            .getValue(getController());
+        if (StringUtils.isNotBlank(volumes)) {
+            for (String entry : volumes.split(";")) {
+                int i = entry.lastIndexOf('=');
+                if (i <= 0 || !entry.substring(0, i).trim().equals(volume)) {
+                    continue;
+                }
+                try {
+                    return Math.max(1,
+                        Integer.parseInt(entry.substring(i + 1).trim()));
+                } catch (NumberFormatException e) {
+                    logWarning("Illegal scanner parallelism for volume "
+                        + volume + ": " + entry);
+                }
+            }
+        }
+        return Math.max(1,
+            ConfigurationEntry.FOLDER_SCANNER_PARALLELISM
+                .getValueInt(getController()));
+    }
+
+    /** Creates the low priority DirectoryCrawler threads of a volume */
+    private static class DirectoryCrawlerFactory implements
+        ForkJoinPool.ForkJoinWorkerThreadFactory
+    {
+        private final String volume;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private DirectoryCrawlerFactory(String volume) {
+            this.volume = volume;
+        }
+
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory
+                .newThread(pool);
+            thread.setName("FolderScanner.DirectoryCrawler " + volume + " #"
+                + count.getAndIncrement());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+
+    /** The state of the scan of one folder */
+    private class Scan {
+        private final Folder folder;
+        private final ScanResult result = new ScanResult(true);
+
+        /**
+         * This is the list of knownfiles, if a file is found on disk the file
+         * is removed from this list. The files that are left in this list after
+         * scanning are deleted from disk.
+         */
+        private final RemainingItems remaining = new RemainingItems(
+            FileInfo.IGNORE_CASE);
+
+        /**
+         * The files which could not be scanned
+         */
+        private final List<Path> unableToScanFiles = new CopyOnWriteArrayList<Path>();
+
+        /**
+         * Because of multi threading we use a flag to indicate a failed
+         * besides returning false
+         */
+        private volatile boolean failure = false;
+
+        /**
+         * when set to true the scanning process will be aborted and the
+         * resultState of the scan will be ScanResult.ResultState.USER_ABORT
+         */
+        private volatile boolean abort = false;
+
+        /**
+         * The stamps of the last committed scan. null if the folder does not
+         * use incremental scans.
+         */
+        private final DirectoryStamps stamps;
+
+        /**
+         * true to skip directories whose stamp did not change.
+         */
+        private final boolean incremental;
+
+        /**
+         * The stamps recorded by this scan. null if stamps are not used.
+         */
+        private final Map<String, DirectoryStamps.Stamp> recordedStamps;
+
+        /**
+         * The known items by relative name of their parent directory. Only
+         * filled for incremental scans.
+         */
+        private final Map<String, List<FileInfo>> knownByDir = new HashMap<String, List<FileInfo>>();
+
+        private final AtomicInteger skippedDirs = new AtomicInteger();
+
+        private long started;
+
+        /**
+         * The interval in ms between checkpoints. 0 if this scan does not use
+         * checkpoints.
+         */
+        private final long checkpointInterval;
+
+        /**
+         * The fingerprint of the known items. Sum of
+         * {@link ScanCheckpoint#fingerprint(FileInfo)}.
+         */
+        private long fingerprint;
+
+        /**
+         * Relative names of the directories scanned completely. The names of
+         * subdirectories are removed once their parent is completed.
+         */
+        private final Set<String> completedDirs = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        /**
+         * true if the scan continued from a checkpoint.
+         */
+        private boolean resumed;
+
+        private volatile long lastCheckpoint;
+        private final ReentrantLock checkpointLock = new ReentrantLock();
+
+        private Scan(Folder folder) {
+            this.folder = folder;
+            SyncProfile profile = folder.getSyncProfile();
+            if (profile.isIncrementalScan()) {
+                stamps = folder.getDirectoryStamps();
+                incremental = stamps.isIncrementalAllowed(profile
+                    .getHoursBetweenFullScans());
+                recordedStamps = new ConcurrentHashMap<String, DirectoryStamps.Stamp>();
+            } else {
+                folder.getDirectoryStamps().clear();
+                stamps = null;
+                incremental = false;
+                recordedStamps = null;
+            }
+            // Incremental scans are fast. No need to resume them.
+            checkpointInterval = incremental ? 0 : 1000L * Math.max(0,
+                ConfigurationEntry.FOLDER_SCANNER_CHECKPOINT_SECONDS
+                    .getValueInt(getController()));
+        }
+
+        private ScanResult scan() {
             if (isFiner()) {
                 logFiner("Scan of folder: " + folder.getName() + " start");
             }
-            long started = System.currentTimeMillis();
-            // Debug.dumpThreadStacks();
+            started = System.currentTimeMillis();
 
-            Path base = currentScanningFolder.getLocalBase();
-            remaining.clear();
-            for (FileInfo fInfo : currentScanningFolder.getKnownFiles()) {
-                remaining.put(fInfo.getRelativeName(), fInfo);
+            Path base = folder.getLocalBase();
+            for (FileInfo fInfo : folder.getKnownFiles()) {
+                addKnown(fInfo);
             }
-            for (FileInfo fInfo : currentScanningFolder.getKnownDirectories()) {
-                remaining.put(fInfo.getRelativeName(), fInfo);
+            for (FileInfo fInfo : folder.getKnownDirectories()) {
+                addKnown(fInfo);
             }
-            if (!scan(base) || failure) {
-                // if false there was an IOError
-                reset();
+            if (base == null) {
+                return new ScanResult(ScanResult.ResultState.HARDWARE_FAILURE);
+            }
+            if (checkpointInterval > 0) {
+                lastCheckpoint = started;
+                resume(base);
+            }
+            BasicFileAttributes baseAttrs = null;
+            if (stamps != null) {
+                try {
+                    baseAttrs = Files.readAttributes(base,
+                        BasicFileAttributes.class);
+                } catch (IOException e) {
+                    logFiner("Unable to read attributes of " + base + ". "
+                        + e);
+                }
+            }
+            try {
+                getPool(base).invoke(
+                    new DirectoryCrawler(base, "", baseAttrs, true));
+            } catch (RejectedExecutionException e) {
+                // Shut down in the meantime
+                return new ScanResult(ScanResult.ResultState.USER_ABORT);
+            }
+            if (failure) {
+                // IOError
                 return new ScanResult(ScanResult.ResultState.HARDWARE_FAILURE);
             }
             if (abort) {
-                reset();
+                if (checkpointInterval > 0) {
+                    checkpointLock.lock();
+                    try {
+                        writeCheckpoint();
+                    } finally {
+                        checkpointLock.unlock();
+                    }
+                }
                 return new ScanResult(ScanResult.ResultState.USER_ABORT);
             }
+            if (checkpointInterval > 0) {
+                deleteCheckpoint();
+            }
             // from , to
             tryFindMovementsInCurrentScan();
             tryFindProblemsInCurrentScan();
@@ -219,28 +461,24 @@ public class FolderScanner extends PFComponent {
             int n = unableToScanFiles.size();
             for (int i = 0; i < n; i++) {
                 Path file = unableToScanFiles.get(i);
-                FileInfo fInfo = FileInfoFactory.lookupInstance(
-                    currentScanningFolder, file);
+                FileInfo fInfo = FileInfoFactory.lookupInstance(folder, file);
                 remaining.remove(fInfo.getRelativeName());
                 // TRAC #523
                 if (Files.isDirectory(file)) {
-                    String dirPath = file.toAbsolutePath().toString().replace(
-                        file.getFileSystem().getSeparator(), "/");
+                    String dirPath = file.toAbsolutePath().toString()
+                        .replace(file.getFileSystem().getSeparator(), "/");
                     // Is a directory. Remove all from remaining that are in
                     // that
                     // dir.
                     logFiner("Checking unreadable folder for files that were not scanned: "
                         + dirPath);
-                    for (Iterator<FileInfo> it = remaining.values().iterator(); it
-                        .hasNext();)
-                    {
-                        FileInfo fInfo2 = it.next();
+                    for (FileInfo fInfo2 : remaining.values()) {
                         String locationInFolder = fInfo2
                             .getLowerCaseFilenameOnly();
                         if (dirPath.endsWith(locationInFolder)) {
                             logWarning("Found file in unreadable folder. Unable to scan: "
                                 + fInfo2);
-                            it.remove();
+                            remaining.remove(fInfo2.getRelativeName());
                             unableToScanFiles.add(fInfo2
                                 .getDiskFile(getController()
                                     .getFolderRepository()));
@@ -261,14 +499,11 @@ public class FolderScanner extends PFComponent {
             // Remaining files = deleted! But only if they are not already
             // flagged
             // as deleted or if the could not be scanned
-            for (Iterator<FileInfo> it = remaining.values().iterator(); it
-                .hasNext();)
-            {
-                FileInfo fInfo = it.next();
+            for (FileInfo fInfo : remaining.values()) {
                 if (fInfo.isDeleted()) {
                     // This file was already flagged as deleted,
                     // = not a freshly deleted file
-                    it.remove();
+                    remaining.remove(fInfo.getRelativeName());
                 } else {
                     logFine("Deleted file detected: " + fInfo.toDetailString());
                 }
@@ -280,537 +515,666 @@ public class FolderScanner extends PFComponent {
                 // Do not perform FileInfo.syncFromDiskIfRequired
                 // This would leave to extra I/O for all files that had been
                 // deleted in the past on every scan.
-                FileInfo deletedFileInfo = FileInfoFactory
-                    .deletedFile(fileInfo, getController().getMySelf()
-                        .getInfo(), new Date());
-                currentScanResult.deletedFiles.add(deletedFileInfo);
+                FileInfo deletedFileInfo = FileInfoFactory.deletedFile(
+                    fileInfo, getController().getMySelf().getInfo(),
+                    new Date());
+                result.deletedFiles.add(deletedFileInfo);
             }
 
-            // result.setMovedFiles(moved);
-            // result.setProblemFiles(problemFiles);
-            // result.setRestoredFiles(restoredFiles);
-            // currentScanResult.totalFilesCount = totalFilesCount;
-            // result.setResultState(ScanResult.ResultState.SCANNED);
+            if (stamps != null) {
+                result.setIncremental(incremental);
+                result.directoryStamps = recordedStamps;
+                if (incremental && isFine()) {
+                    logFine("Incremental scan of folder " + folder.getName()
+                        + " skipped " + skippedDirs.get() + " of "
+                        + recordedStamps.size() + " stamped directories");
+                }
+            }
 
-            // prepare for next scan
-            ScanResult myResult = currentScanResult;
-            reset();
             if (isWarning()) {
-                if (currentScanResult.getResultState() == ResultState.SCANNED) {
+                if (result.getResultState() == ResultState.SCANNED) {
                     logFiner("Scan of folder " + folder.getName() + " done in "
                         + (System.currentTimeMillis() - started)
-                        + "ms. Result: " + currentScanResult.getResultState());
+                        + "ms. Result: " + result.getResultState());
                 } else {
                     logWarning("Scan of folder " + folder.getName()
                         + " done in " + (System.currentTimeMillis() - started)
-                        + "ms. Result: " + currentScanResult.getResultState());
+                        + "ms. Result: " + result.getResultState());
                 }
             }
-            return myResult;
-        } finally {
-            // Not longer scanning
-            currentScanningFolder = null;
-            // Remove ownership for this thread
-            threadOwnership.release();
+            return result;
         }
-    }
 
-    /** after scanning the state of this scanning should be reset */
-    private void reset() {
-        // Ensure gracful stop
-        waitForCrawlersToStop();
-        abort = false;
-        failure = false;
-        // changedFiles.clear();
-        // newFiles.clear();
-        // allFiles.clear();
-        // restoredFiles.clear();
-        unableToScanFiles.clear();
-        // totalFilesCount = 0;
-        currentScanResult = new ScanResult(true);
-    }
-
-    private void waitForCrawlersToStop() {
-        while (!activeDirectoryCrawlers.isEmpty()) {
-            logFine("Waiting for " + activeDirectoryCrawlers.size()
-                + " crawlers to stop");
-            synchronized (this) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                }
+        private void addKnown(FileInfo fInfo) {
+            remaining.add(fInfo);
+            if (checkpointInterval > 0) {
+                fingerprint += ScanCheckpoint.fingerprint(fInfo);
             }
+            if (!incremental) {
+                return;
+            }
+            String name = fInfo.getRelativeName();
+            int i = name.lastIndexOf('/');
+            String parent = i < 0 ? "" : name.substring(0, i);
+            List<FileInfo> children = knownByDir.get(parent);
+            if (children == null) {
+                children = new ArrayList<FileInfo>();
+                knownByDir.put(parent, children);
+            }
+            children.add(fInfo);
         }
-    }
 
-    /**
-     * Produces a list of FilenameProblems per FileInfo that has problems.
-     * Public for testing
-     * 
-     * @param files
-     */
-    private void tryFindProblemsInCurrentScan() {
-        if (!PreferencesEntry.FILE_NAME_CHECK.getValueBoolean(getController()))
-        {
-            return;
+        private Path getCheckpointFile() {
+            return folder.getSystemSubDir().resolve(ScanCheckpoint.FILENAME);
         }
-        tryToFindProblemsInCurrentScan(currentScanResult.getChangedFiles());
-        tryToFindProblemsInCurrentScan(currentScanResult.getRestoredFiles());
-        tryToFindProblemsInCurrentScan(currentScanResult.getNewFiles());
-    }
 
-    private void tryToFindProblemsInCurrentScan(Collection<FileInfo> files)
-    {
-        for (FileInfo fileInfo : files) {
-            List<Problem> problemList = null;
-            if (FilenameProblemHelper.hasProblems(fileInfo)) {
-                if (problemList == null) {
-                    problemList = new ArrayList<Problem>();
+        /**
+         * Continues from the checkpoint of an interrupted scan: Takes the
+         * partial result of the completed directories. These are not crawled
+         * again.
+         *
+         * @param base
+         *            the local base of the folder.
+         */
+        private void resume(Path base) {
+            Path file = getCheckpointFile();
+            ScanCheckpoint checkpoint;
+            try {
+                checkpoint = ScanCheckpoint.load(file);
+            } catch (IOException e) {
+                logWarning("Unable to read scan checkpoint of folder "
+                    + folder.getName() + ". " + e);
+                deleteCheckpoint();
+                return;
+            }
+            if (checkpoint == null) {
+                return;
+            }
+            if (checkpoint.getFingerprint() != fingerprint) {
+                logFine("Discarding scan checkpoint of folder "
+                    + folder.getName() + ". Folder database changed since "
+                    + checkpoint.getCreated());
+                deleteCheckpoint();
+                return;
+            }
+            Set<String> vanished = checkpoint.getVanished();
+            for (FileInfo fInfo : remaining.values()) {
+                String name = fInfo.getRelativeName();
+                if (checkpoint.isCompleted(name) && !vanished.contains(name))
+                {
+                    // Found on disk by the interrupted scan.
+                    remaining.remove(name);
+                    result.incrementTotalFilesCount();
                 }
-                problemList.addAll(FilenameProblemHelper.getProblems(
-                    getController(), fileInfo));
-
             }
-            if (problemList != null) {
-                currentScanResult.putFileProblems(fileInfo, problemList);
+            for (int i = 0; i < checkpoint.getNewFiles().size(); i++) {
+                result.incrementTotalFilesCount();
             }
+            result.newFiles.addAll(checkpoint.getNewFiles());
+            result.changedFiles.addAll(checkpoint.getChangedFiles());
+            result.restoredFiles.addAll(checkpoint.getRestoredFiles());
+            for (String unable : checkpoint.getUnableToScan()) {
+                unableToScanFiles.add(base.resolve(unable));
+            }
+            completedDirs.addAll(checkpoint.getCompletedDirs());
+            resumed = true;
+            logInfo("Resuming scan of folder " + folder.getName() + " from "
+                + checkpoint);
         }
-    }
-
-    /**
-     * Scans folder from the local base folder as root
-     * 
-     * @param folderBase
-     *            The file root of the folder to scan from.
-     * @returns true on success, false on failure (hardware not found?)
-     */
-    private boolean scan(Path folderBase) {
-        if (folderBase == null) {
-            failure = true;
-            return false;
-        }
-        
-        try (DirectoryStream<Path> stream = Files
-            .newDirectoryStream(folderBase)) {
 
-            if (stream == null) {
-                failure = true;
-                return false;
+        /**
+         * Writes a checkpoint if the interval elapsed and no other crawler is
+         * writing one.
+         */
+        private void checkpointIfRequired() {
+            if (System.currentTimeMillis() - lastCheckpoint < checkpointInterval
+                || !checkpointLock.tryLock())
+            {
+                return;
             }
-
-            Iterator<Path> it = stream.iterator();
-
-            if (it == null) {
-                failure = true;
-                return false;
+            try {
+                if (System.currentTimeMillis() - lastCheckpoint >= checkpointInterval)
+                {
+                    writeCheckpoint();
+                    lastCheckpoint = System.currentTimeMillis();
+                }
+            } finally {
+                checkpointLock.unlock();
             }
+        }
 
-            while (it.hasNext()) {
-                Path path = it.next();
-
-                if (failure) {
-                    return false;
+        /**
+         * Writes the completed directories and their partial result. Items
+         * of a directory get added to the result before the directory is
+         * completed, so the result contains all items of the completed
+         * directories.
+         */
+        private void writeCheckpoint() {
+            Set<String> completed = new HashSet<String>(completedDirs);
+            if (completed.isEmpty()) {
+                return;
+            }
+            ScanCheckpoint checkpoint = new ScanCheckpoint(fingerprint,
+                completed);
+            for (FileInfo fInfo : remaining.values()) {
+                if (checkpoint.isCompleted(fInfo.getRelativeName())) {
+                    checkpoint.getVanished().add(fInfo.getRelativeName());
                 }
-                if (abort) {
-                    break;
+            }
+            checkpoint.addCompleted(result.newFiles, checkpoint.getNewFiles());
+            checkpoint.addCompleted(result.changedFiles,
+                checkpoint.getChangedFiles());
+            checkpoint.addCompleted(result.restoredFiles,
+                checkpoint.getRestoredFiles());
+            Path base = folder.getLocalBase();
+            for (Path unable : unableToScanFiles) {
+                String relative = base.relativize(unable).toString()
+                    .replace(unable.getFileSystem().getSeparator(), "/");
+                if (checkpoint.isCompleted(FileInfoFactory
+                    .decodeIllegalChars(relative)))
+                {
+                    checkpoint.getUnableToScan().add(relative);
                 }
-                if (Files.isRegularFile(path)) {
-                    if (PathUtils.isScannable(path, currentScanningFolder)) {
-                        if (!scanFile(path, "")) {
-                            failure = true;
-                            return false;
-                        }
-                    }
-                } else if (Files.isDirectory(path)) {
-                    if (!PathUtils.isScannable(path, currentScanningFolder)
-                        || currentScanningFolder.isSystemSubDir(path))
-                    {
-                        continue;
-                    }
-                    while (directoryCrawlersPool.isEmpty()) {
-                        synchronized (this) {
-                            try {
-                                wait();
-                            } catch (InterruptedException e) {
-                            }
-                        }
-                    }
-                    synchronized (directoryCrawlersPool) {
-                        DirectoryCrawler crawler = directoryCrawlersPool
-                            .remove(0);
-                        activeDirectoryCrawlers.add(crawler);
-                        crawler.scan(path);
-                    }
-                } else {
-                    boolean deviceDisconnected = currentScanningFolder
-                        .checkIfDeviceDisconnected();
-                    logWarning("Unable to scan file: " + path.toAbsolutePath()
-                        + ". Folder device disconnected? " + deviceDisconnected);
-                    if (deviceDisconnected) {
-                        // Hardware not longer available? BREAK scan!
-                        failure = true;
-                        return false;
-                    }
-                    unableToScanFiles.add(path);
+            }
+            try {
+                checkpoint.store(getCheckpointFile());
+                if (isFine()) {
+                    logFine("Stored scan checkpoint of folder "
+                        + folder.getName() + ": " + checkpoint);
                 }
+            } catch (IOException e) {
+                logWarning("Unable to store scan checkpoint of folder "
+                    + folder.getName() + ". " + e);
             }
-        } catch (IOException ioe) {
-            return false;
         }
 
-        while (!isReady()) {
+        private void deleteCheckpoint() {
             try {
-                synchronized (this) {
-                    wait();
-                }
-            } catch (InterruptedException e) {
-                logFiner(e);
-                return false;
+                Files.deleteIfExists(getCheckpointFile());
+            } catch (IOException e) {
+                logWarning("Unable to delete scan checkpoint of folder "
+                    + folder.getName() + ". " + e);
             }
         }
-        return true;
-    }
 
-    /** @return true if all directory Crawler are idle. */
-    private boolean isReady() {
-        boolean ready;
-        synchronized (directoryCrawlersPool) {
-            ready = activeDirectoryCrawlers.isEmpty()
-                && directoryCrawlersPool.size() == MAX_CRAWLERS;
+        /**
+         * Produces a list of FilenameProblems per FileInfo that has problems.
+         */
+        private void tryFindProblemsInCurrentScan() {
+            if (!PreferencesEntry.FILE_NAME_CHECK
+                .getValueBoolean(getController()))
+            {
+                return;
+            }
+            tryToFindProblemsInCurrentScan(result.getChangedFiles());
+            tryToFindProblemsInCurrentScan(result.getRestoredFiles());
+            tryToFindProblemsInCurrentScan(result.getNewFiles());
         }
-        return ready;
-    }
 
-    /**
-     * if a file is in the knownFilesNotOnDisk list and in the newlyFoundFiles
-     * list with the same size and modification date the file is for 99% sure
-     * moved. Map<from , to>
-     */
-    private void tryFindMovementsInCurrentScan() {
-        if (Feature.CORRECT_MOVEMENT_DETECTION.isDisabled()) {
-            return;
+        private void tryToFindProblemsInCurrentScan(Collection<FileInfo> files)
+        {
+            for (FileInfo fileInfo : files) {
+                List<Problem> problemList = null;
+                if (FilenameProblemHelper.hasProblems(fileInfo)) {
+                    if (problemList == null) {
+                        problemList = new ArrayList<Problem>();
+                    }
+                    problemList.addAll(FilenameProblemHelper.getProblems(
+                        getController(), fileInfo));
+
+                }
+                if (problemList != null) {
+                    result.putFileProblems(fileInfo, problemList);
+                }
+            }
         }
-        for (FileInfo deletedFile : remaining.values()) {
-            long size = deletedFile.getSize();
-            long modificationDate = deletedFile.getModifiedDate().getTime();
-            for (FileInfo newFile : currentScanResult.newFiles) {
-                if (newFile.getSize() == size
-                    && newFile.getModifiedDate().getTime() == modificationDate)
+
+        /**
+         * if a file is in the knownFilesNotOnDisk list and in the
+         * newlyFoundFiles list with the same size and modification date the
+         * file is for 99% sure moved. Map<from , to>
+         *
+         * @see MoveDetector
+         */
+        private void tryFindMovementsInCurrentScan() {
+            if (Feature.CORRECT_MOVEMENT_DETECTION.isDisabled()
+                || result.newFiles.isEmpty())
+            {
+                return;
+            }
+            List<FileInfo> vanished = new ArrayList<FileInfo>();
+            for (FileInfo fInfo : remaining.values()) {
+                // Not already flagged as deleted
+                if (!fInfo.isDeleted()) {
+                    vanished.add(fInfo);
+                }
+            }
+            if (vanished.isEmpty()) {
+                return;
+            }
+            MoveDetector detector = new MoveDetector(vanished,
+                result.newFiles, folder.getHashCache()).detect();
+            if (isFine()) {
+                for (Map.Entry<FileInfo, FileInfo> move : detector
+                    .getMovedDirectories().entrySet())
                 {
-                    // possible movement detected
-                    if (isFine()) {
-                        logFine("Movement from: " + deletedFile + " to: "
-                            + newFile);
+                    logFine("Directory movement from: " + move.getKey()
+                        + " to: " + move.getValue());
+                }
+                if (isFiner()) {
+                    for (Map.Entry<FileInfo, FileInfo> move : detector
+                        .getMovedFiles().entrySet())
+                    {
+                        logFiner("Movement from: " + move.getKey() + " to: "
+                            + move.getValue());
                     }
-                    currentScanResult.movedFiles.put(deletedFile, newFile);
                 }
             }
+            result.movedFiles.putAll(detector.getMovedFiles());
+            result.movedDirectories.putAll(detector.getMovedDirectories());
         }
-    }
 
-    /**
-     * scans a single file.
-     * 
-     * @param fileToScan
-     *            the disk file to examine.
-     * @param currentDirName
-     *            The location the use when creating a FileInfo. This is that
-     *            same for each file in the same directory and so not neccesary
-     *            to "calculate" this per file.
-     * @return true on success and false on IOError (disk failure or file
-     *         removed in the meantime)
-     */
-    private boolean scanFile(Path fileToScan, String currentDirName) {
-        Reject.ifNull(currentScanningFolder,
-            "currentScanningFolder must not be null");
-        currentScanResult.incrementTotalFilesCount();
-        String filename;
-        if (currentDirName.length() == 0) {
-            filename = fileToScan.getFileName().toString();
-        } else {
-            filename = currentDirName + '/' + fileToScan.getFileName().toString();
+        /**
+         * scans a single file.
+         *
+         * @param fileToScan
+         *            the disk file to examine.
+         * @param currentDirName
+         *            The location the use when creating a FileInfo. This is
+         *            that same for each file in the same directory and so not
+         *            neccesary to "calculate" this per file.
+         * @param attrs
+         *            the attributes of the file read while crawling.
+         * @return true on success and false on IOError (disk failure or file
+         *         removed in the meantime)
+         */
+        private boolean scanFile(Path fileToScan, String currentDirName,
+            BasicFileAttributes attrs)
+        {
+            result.incrementTotalFilesCount();
+            String filename;
+            if (currentDirName.length() == 0) {
+                filename = fileToScan.getFileName().toString();
+            } else {
+                filename = currentDirName + '/'
+                    + fileToScan.getFileName().toString();
+            }
+            return scanDiskItem(fileToScan,
+                FileInfoFactory.decodeIllegalChars(filename), attrs);
         }
-        return scanDiskItem(fileToScan, FileInfoFactory.decodeIllegalChars(filename), false);
-    }
 
-    /**
-     * scans a single directory.
-     * 
-     * @param dirToScan
-     *            the disk directory to examine.
-     * @param currentDirName
-     *            The location the use when creating a FileInfo. This is that
-     *            same for each file in the same directory and so not neccesary
-     *            to "calculate" this per file.
-     * @return true on success and false on IOError (disk failure or file
-     *         removed in the meantime)
-     */
-    private boolean scanDirectory(Path dirToScan, String currentDirName) {
-        Reject.ifNull(currentScanningFolder,
-            "currentScanningFolder must not be null");
-        if (isFiner()) {
-            logFiner("Scanning subdir " + dirToScan + " / " + currentDirName);
+        /**
+         * scans a single directory.
+         *
+         * @param dirToScan
+         *            the disk directory to examine.
+         * @param currentDirName
+         *            The location the use when creating a FileInfo.
+         * @param attrs
+         *            the attributes of the directory read while crawling.
+         * @return true on success and false on IOError (disk failure or file
+         *         removed in the meantime)
+         */
+        private boolean scanDirectory(Path dirToScan, String currentDirName,
+            BasicFileAttributes attrs)
+        {
+            if (isFiner()) {
+                logFiner("Scanning subdir " + dirToScan + " / "
+                    + currentDirName);
+            }
+            result.incrementTotalFilesCount();
+            return scanDiskItem(dirToScan,
+                FileInfoFactory.decodeIllegalChars(currentDirName), attrs);
         }
-        currentScanResult.incrementTotalFilesCount();
-        return scanDiskItem(dirToScan, FileInfoFactory.decodeIllegalChars(currentDirName), true);
-    }
 
-    /**
-     * scans a single file.
-     * 
-     * @param fileToScan
-     *            the disk file to examine.
-     * @param currentDirName
-     *            The location the use when creating a FileInfo. This is that
-     *            same for each file in the same directory and so not neccesary
-     *            to "calculate" this per file.
-     * @return true on success and false on IOError (disk failure or file
-     *         removed in the meantime)
-     */
-    private boolean scanDiskItem(Path fileToScan, String filename,
-        boolean directory)
-    {
-        Reject.ifNull(currentScanningFolder,
-            "currentScanningFolder must not be null");
-
-        // #1531 / #1804
-        FileInfo exists = remaining.remove(filename);
-        if (exists == null && FileInfo.IGNORE_CASE) {
-            // Try harder, same file with the
-            for (FileInfo otherFInfo : remaining.values()) {
-                if (otherFInfo.getRelativeName().equalsIgnoreCase(filename)) {
-                    if (isFiner()) {
-                        logFiner("Found local diskfile with diffrent name-case in db. file: "
-                            + fileToScan.toAbsolutePath().toString()
-                            + ", dbFile: "
-                            + otherFInfo.toDetailString());
-                    }
-                    // if (fInfo.getRelativeName().equals(
-                    // otherFInfo.getRelativeName())
-                    // && !fInfo.equals(otherFInfo))
-                    // {
-                    // throw new RuntimeException(
-                    // "Bad failure: FileInfos not equal. "
-                    // + fInfo.toDetailString() + " and "
-                    // + otherFInfo.toDetailString()
-                    // + " Probably FolderInfo objects are not equal?");
-                    // }
-                    remaining.remove(otherFInfo.getRelativeName());
-                    exists = otherFInfo;
-                }
+        /**
+         * scans a single file.
+         *
+         * @param fileToScan
+         *            the disk file to examine.
+         * @param filename
+         *            the relative name of the file in the folder.
+         * @param attrs
+         *            the attributes of the disk item read while crawling. All
+         *            checks are done on this single snapshot, the disk item is
+         *            not accessed again.
+         * @return true on success and false on IOError (disk failure or file
+         *         removed in the meantime)
+         */
+        private boolean scanDiskItem(Path fileToScan, String filename,
+            BasicFileAttributes attrs)
+        {
+            // #1531 / #1804
+            FileInfo exists = remaining.take(filename);
+            if (exists != null && isFiner()
+                && !exists.getRelativeName().equals(filename))
+            {
+                logFiner("Found local diskfile with diffrent name-case in db. file: "
+                    + fileToScan.toAbsolutePath().toString()
+                    + ", dbFile: "
+                    + exists.toDetailString());
             }
-        }
-        try {
-            if (exists != null) {// file was known
-                if (exists.isDeleted()) {
-                    // file restored
-                    FileInfo restoredFile = exists.syncFromDiskIfRequired(
-                        currentScanningFolder, fileToScan);
-                    if (restoredFile != null) {
-                        if (isInfo()) {
-                            logInfo("Restored detected: "
-                                + exists.toDetailString() + ". On disk: size: "
-                                + Files.size(fileToScan) + ", lastMod: "
-                                + Files.getLastModifiedTime(fileToScan));
+            try {
+                if (exists != null) {// file was known
+                    if (exists.isDeleted()) {
+                        // file restored
+                        FileInfo restoredFile = exists.syncFromDiskIfRequired(
+                            folder, fileToScan, attrs);
+                        if (restoredFile != null) {
+                            if (isInfo()) {
+                                logInfo("Restored detected: "
+                                    + exists.toDetailString()
+                                    + ". On disk: size: " + attrs.size()
+                                    + ", lastMod: " + attrs.lastModifiedTime());
+                            }
+                            result.restoredFiles.add(restoredFile);
+                        }
+                    } else {
+                        FileInfo changedFile = exists.syncFromDiskIfRequired(
+                            folder, fileToScan, attrs);
+                        if (changedFile != null) {
+                            if (isInfo()
+                                && folder.getDiskItemFilter().isRetained(
+                                    changedFile))
+                            {
+                                logInfo("Change detected: "
+                                    + exists.toDetailString()
+                                    + ". On disk: size: " + attrs.size()
+                                    + ", lastMod: " + attrs.lastModifiedTime());
+                            }
+                            result.changedFiles.add(changedFile);
                         }
-                        currentScanResult.restoredFiles.add(restoredFile);
                     }
                 } else {
-                    FileInfo changedFile = exists.syncFromDiskIfRequired(
-                        currentScanningFolder, fileToScan);
-                    if (changedFile != null) {
-                        if (isInfo()
-                            && currentScanningFolder.getDiskItemFilter()
-                                .isRetained(changedFile))
-                        {
-                            logInfo("Change detected: "
-                                + exists.toDetailString() + ". On disk: size: "
-                                + Files.size(fileToScan) + ", lastMod: "
-                                + Files.getLastModifiedTime(fileToScan));
-                        }
-                        currentScanResult.changedFiles.add(changedFile);
+                    // file is new
+                    FileInfo info = FileInfoFactory.newFile(folder,
+                        fileToScan, attrs, getController().getMySelf()
+                            .getInfo(), attrs.isDirectory());
+                    result.newFiles.add(info);
+                    if (isFiner()) {
+                        logFiner("New found: " + info.toDetailString());
+                    }
+                    if (attrs.isRegularFile()) {
+                        // Moved within the folder? Keeps the content hash.
+                        folder.getHashCache().carryOver(filename, attrs);
                     }
                 }
-            } else {
-                // file is new
-                FileInfo info = FileInfoFactory.newFile(currentScanningFolder,
-                    fileToScan, getController().getMySelf().getInfo(),
-                    directory);
-                currentScanResult.newFiles.add(info);
-                if (isFiner()) {
-                    logFiner("New found: " + info.toDetailString());
-                }
+            } catch (Exception e) {
+                logWarning("Unable to scan: " + fileToScan + ". " + e);
+                unableToScanFiles.add(fileToScan);
             }
-        } catch (Exception e) {
-            logWarning("Unable to scan: " + fileToScan + ". " + e);
-            unableToScanFiles.add(fileToScan);
+            return true;
         }
-        return true;
-    }
 
-    /**
-     * calculates the subdir of this file relative to the location of the folder
-     */
-    private static String getCurrentDirName(Folder folder, Path subFile) {
-        String fileName = subFile.getFileName().toString();
-        Path parent = subFile.getParent();
-        Path folderBase = folder.getLocalBase();
-        while (!folderBase.equals(parent)) {
-            if (parent == null) {
-                throw new NullPointerException(
-                    "Local file seems not to be in a subdir of the local powerfolder copy");
-            }
-            fileName = parent.getFileName().toString() + '/' + fileName;
-            parent = parent.getParent();
-        }
-        return fileName;
-    }
+        /**
+         * A task that scans a directory. Files are scanned directly, a new
+         * task is forked for every subdirectory. Idle DirectoryCrawler threads
+         * steal these tasks, so even a folder with a single huge subdirectory
+         * keeps all crawlers busy.
+         */
+        private class DirectoryCrawler extends RecursiveAction {
+            private static final long serialVersionUID = 100L;
 
-    /** A Thread that scans a directory */
-    private class DirectoryCrawler implements Runnable {
-        private Path root;
-        private boolean shutdown = false;
+            private final Path dirToScan;
+            private final String currentDirName;
+            private final BasicFileAttributes attrs;
+            private final boolean root;
 
-        private void scan(Path aRoot) {
-            if (root != null) {
-                throw new IllegalStateException(
-                    "cannot scan 2 directories at once");
-            }
-            synchronized (this) {
-                root = aRoot;
-                notify();
-            }
-        }
+            /**
+             * The relative names of the crawled subdirectories. Only
+             * collected if checkpoints are written.
+             */
+            private List<String> subdirNames;
 
-        public void shutdown() {
-            shutdown = true;
-            synchronized (this) {
-                notify();
+            /**
+             * @param dirToScan
+             *            The directory to scan
+             * @param currentDirName
+             *            the relative name of the directory in the folder.
+             *            Empty string for the base directory.
+             * @param attrs
+             *            the attributes of the directory read while crawling
+             *            its parent. null for the base directory.
+             * @param root
+             *            if this is the local base of the folder.
+             */
+            private DirectoryCrawler(Path dirToScan, String currentDirName,
+                BasicFileAttributes attrs, boolean root)
+            {
+                this.dirToScan = dirToScan;
+                this.currentDirName = currentDirName;
+                this.attrs = attrs;
+                this.root = root;
             }
-        }
 
-        public void run() {
-            while (true) {
+            @Override
+            protected void compute() {
+                if (failure || abort) {
+                    return;
+                }
                 try {
-                    while (root == null) {
-                        synchronized (this) {
-                            if (root != null) {
-                                // Make sure that we don't wait with root!
-                                continue;
-                            }
-                            try {
-                                wait();
-                                if (shutdown) {
-                                    return;
-                                }
-                            } catch (InterruptedException e) {
-                                logFiner(e.getMessage());
-                                return;
-                            }
-                        }
-                    }
-                    if (!scanDir(root)) {
+                    if (!scanDir()) {
                         // hardware failure
                         failure = true;
+                    } else if (checkpointInterval > 0 && !root && !failure
+                        && !abort)
+                    {
+                        completed();
                     }
-                    root = null;
-
-                    synchronized (directoryCrawlersPool) {
-                        activeDirectoryCrawlers.remove(this);
-                        directoryCrawlersPool.add(this);
-                    }
-
                 } catch (RuntimeException e) {
-                    logSevere("Folder scanner crashed @ " + root + ". " + e, e);
+                    logSevere("Folder scanner crashed @ " + dirToScan + ". "
+                        + e, e);
                     failure = true;
-                } finally {
-                    // scan of this directory is ready, notify FolderScanner we
-                    // are ready for the next folder.
-                    synchronized (FolderScanner.this) {
-                        FolderScanner.this.notify();
-                    }
                 }
             }
-        }
 
-        /**
-         * Scans a directory, will recurse into subdirectories
-         * 
-         * @param dirToScan
-         *            The directory to scan
-         * @return true or succes or false is failed (harware failure or
-         *         directory or file removed in the meantime)
-         */
-        private boolean scanDir(Path dirToScan) {
-            Reject.ifNull(currentScanningFolder,
-                "current scanning folder must not be null");
-            String currentDirName = getCurrentDirName(currentScanningFolder,
-                dirToScan);
-            try {
-                // Give CPU room to breath. Don't consume 100% CPU.
-                Thread.sleep(1);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-            scanDirectory(dirToScan, currentDirName);
-            
-            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirToScan)) {
-                Iterator<Path> it = stream.iterator();
-                
-                if (it == null) {
-                    throw new IOException("Unable to access directory");
-                }
-
-                while (it.hasNext()) {
-                    Path path = it.next();
-                    if (failure) {
-                        return false;
+            /**
+             * Scans the directory and forks the scan of its subdirectories.
+             *
+             * @return true or succes or false is failed (harware failure or
+             *         directory or file removed in the meantime)
+             */
+            private boolean scanDir() {
+                if (!root) {
+                    try {
+                        // Give CPU room to breath. Don't consume 100% CPU.
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
                     }
-                    if (abort) {
-                        break;
+                    scanDirectory(dirToScan, currentDirName, attrs);
+                }
+
+                String dirName = null;
+                DirectoryStamps.Stamp stamp = null;
+                if (stamps != null && attrs != null) {
+                    dirName = FileInfoFactory.decodeIllegalChars(currentDirName);
+                    stamp = DirectoryStamps.read(dirToScan, attrs);
+                    if (incremental && stamp.equals(stamps.get(dirName))) {
+                        List<DirectoryCrawler> known = skipUnchanged(dirName);
+                        if (known != null) {
+                            recordedStamps.put(dirName, stamp);
+                            skippedDirs.incrementAndGet();
+                            invokeAll(known);
+                            return true;
+                        }
+                        // Entries changed anyway. List the directory.
                     }
-                    if (Files.isRegularFile(path)) {
-                        if (PathUtils.isScannable(path, currentScanningFolder)
-                            && !scanFile(path, currentDirName)) {
-                            failure = true;
+                }
+
+                int unableToScanBefore = unableToScanFiles.size();
+                boolean complete = true;
+                List<DirectoryCrawler> subdirs = null;
+                try (DirectoryStream<Path> stream = Files
+                    .newDirectoryStream(dirToScan))
+                {
+                    for (Path path : stream) {
+                        if (failure) {
                             return false;
                         }
-                    } else if (Files.isDirectory(path)) {
-                        if (PathUtils.isScannable(path, currentScanningFolder)
-                            && !scanDir(path)) {
-                            failure = true;
-                            return false;
+                        if (abort) {
+                            complete = false;
+                            break;
                         }
-                    } else {
-                        boolean deviceDisconnected = currentScanningFolder
-                            .checkIfDeviceDisconnected();
-                        logWarning("Unable to scan file: "
-                            + path.toAbsolutePath()
-                            + ". Folder device disconnected? " + deviceDisconnected);
-                        if (deviceDisconnected) {
-                            // hardware failure
-                            failure = true;
-                            return false;
+                        // The only file system access per disk item.
+                        BasicFileAttributes pathAttrs = readAttributes(path);
+                        if (pathAttrs != null && pathAttrs.isRegularFile()) {
+                            if (PathUtils.isScannable(path, folder)
+                                && !scanFile(path, currentDirName, pathAttrs))
+                            {
+                                return false;
+                            }
+                        } else if (pathAttrs != null
+                            && pathAttrs.isDirectory())
+                        {
+                            if (!PathUtils.isScannable(path, folder)
+                                || root && folder.isSystemSubDir(path))
+                            {
+                                continue;
+                            }
+                            String subDirName = getSubDirName(path);
+                            if (checkpointInterval > 0) {
+                                String name = FileInfoFactory
+                                    .decodeIllegalChars(subDirName);
+                                if (subdirNames == null) {
+                                    subdirNames = new ArrayList<String>();
+                                }
+                                subdirNames.add(name);
+                                if (resumed && completedDirs.contains(name)) {
+                                    // Scanned before interruption.
+                                    continue;
+                                }
+                            }
+                            if (subdirs == null) {
+                                subdirs = new ArrayList<DirectoryCrawler>();
+                            }
+                            subdirs.add(new DirectoryCrawler(path,
+                                subDirName, pathAttrs, false));
+                        } else {
+                            boolean deviceDisconnected = folder
+                                .checkIfDeviceDisconnected();
+                            logWarning("Unable to scan file: "
+                                + path.toAbsolutePath()
+                                + ". Folder device disconnected? "
+                                + deviceDisconnected);
+                            if (deviceDisconnected) {
+                                // hardware failure
+                                return false;
+                            }
+                            unableToScanFiles.add(path);
                         }
-                        unableToScanFiles.add(path);
                     }
+                } catch (IOException ioe) {
+                    if (root) {
+                        return false;
+                    }
+                    boolean deviceDisconnected = folder
+                        .checkIfDeviceDisconnected();
+                    logWarning("Unable to scan dir: "
+                        + dirToScan.toAbsolutePath()
+                        + ". Folder device disconnected? " + deviceDisconnected);
+                    if (deviceDisconnected) {
+                        // hardware failure
+                        return false;
+                    }
+                    unableToScanFiles.add(dirToScan);
+                    return true;
                 }
 
+                if (stamp != null && complete
+                    && unableToScanFiles.size() == unableToScanBefore
+                    && stamp.isSettled(started))
+                {
+                    recordedStamps.put(dirName, stamp);
+                }
+
+                // Directory stream closed. Now crawl the subdirectories.
+                if (subdirs != null) {
+                    invokeAll(subdirs);
+                }
                 return true;
             }
-            catch (IOException ioe) {
-                boolean deviceDisconnected = currentScanningFolder
-                    .checkIfDeviceDisconnected();
-                logWarning("Unable to scan dir: " + dirToScan.toAbsolutePath()
-                    + ". Folder device disconnected? " + deviceDisconnected);
-                if (deviceDisconnected) {
-                    // hardware failure
-                    failure = true;
-                    return false;
+
+            /**
+             * Marks the subtree of this directory as scanned completely.
+             */
+            private void completed() {
+                completedDirs.add(FileInfoFactory
+                    .decodeIllegalChars(currentDirName));
+                if (subdirNames != null) {
+                    // Contained in this directory now.
+                    completedDirs.removeAll(subdirNames);
                 }
-                unableToScanFiles.add(dirToScan);
-                return true;
+                checkpointIfRequired();
+            }
+
+            /**
+             * Takes the known entries of an unchanged directory without
+             * listing it. Only the known subdirectories are accessed.
+             *
+             * @param dirName
+             *            the relative name of the directory.
+             * @return the crawlers for the known subdirectories or null if
+             *         the known entries do not match the disk.
+             */
+            private List<DirectoryCrawler> skipUnchanged(String dirName) {
+                List<FileInfo> children = knownByDir.get(dirName);
+                if (children == null) {
+                    return Collections.emptyList();
+                }
+                List<DirectoryCrawler> subdirs = new ArrayList<DirectoryCrawler>();
+                List<FileInfo> files = new ArrayList<FileInfo>(children.size());
+                for (FileInfo child : children) {
+                    if (child.isDeleted()) {
+                        // Stays remaining = already deleted.
+                        continue;
+                    }
+                    if (!child.isDiretory()) {
+                        files.add(child);
+                        continue;
+                    }
+                    Path subdir = folder.getDiskFile(child);
+                    BasicFileAttributes subdirAttrs = readAttributes(subdir);
+                    if (subdirAttrs == null || !subdirAttrs.isDirectory()) {
+                        return null;
+                    }
+                    subdirs.add(new DirectoryCrawler(subdir, FileInfoFactory
+                        .encodeIllegalChars(child.getRelativeName()),
+                        subdirAttrs, false));
+                }
+                for (FileInfo file : files) {
+                    if (remaining.take(file.getRelativeName()) != null) {
+                        result.incrementTotalFilesCount();
+                    }
+                }
+                return subdirs;
+            }
+
+            /**
+             * @param path
+             * @return the attributes of the disk item, following links. null
+             *         if the disk item does not exist or is not accessible.
+             */
+            private BasicFileAttributes readAttributes(Path path) {
+                try {
+                    return Files.readAttributes(path,
+                        BasicFileAttributes.class);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+
+            /**
+             * calculates the subdir of this directory relative to the location
+             * of the folder
+             */
+            private String getSubDirName(Path subdir) {
+                String name = subdir.getFileName().toString();
+                if (currentDirName.length() == 0) {
+                    return name;
+                }
+                return currentDirName + '/' + name;
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -19,12 +19,28 @@
  */
 package de.dal33t.powerfolder.disk;
 
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import net.contentobjects.jnotify.JNotify;
@@ -32,8 +48,10 @@ import net.contentobjects.jnotify.JNotifyException;
 import net.contentobjects.jnotify.JNotifyListener;
 import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.disk.dao.FileInfoCriteria;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.util.Format;
 import de.dal33t.powerfolder.util.PathUtils;
 import de.dal33t.powerfolder.util.Reject;
 import de.dal33t.powerfolder.util.Util;
@@ -43,17 +61,41 @@ import de.dal33t.powerfolder.util.os.OSUtil;
  * TRAC #711: Automatic change detection by watching the filesystem.
  * <p>
  * Does NOT watch Meta Folders.
+ * <p>
+ * Uses the native JNotify library or the Java {@link java.nio.file.WatchService}
+ * , see {@link ConfigurationEntry#FOLDER_WATCHER_BACKEND}. With the
+ * WatchService lost events of a directory (OVERFLOW) cause a rescan of the
+ * entries of that directory.
+ * <p>
+ * Changes get scanned after a quiet period of
+ * {@link ConfigurationEntry#FOLDER_WATCHER_DELAY} without further events. If
+ * more than {@link ConfigurationEntry#FOLDER_WATCHER_COLLAPSE_THRESHOLD} files
+ * of one directory change in between, e.g. while unpacking an archive, the
+ * single files are dropped and the directory tree gets scanned as a whole.
  * 
  * @author sprajc
  */
 public class FolderWatcher extends PFComponent {
 
+    static final String BACKEND_AUTO = "auto";
+    static final String BACKEND_JNOTIFY = "jnotify";
+    static final String BACKEND_NIO = "nio";
+
     private static final boolean UNREGISTER_WATCHERS = true;
+    /**
+     * Above this number of files found in a new directory tree or directories
+     * with lost events a full scan is cheaper.
+     */
+    private static final int MAX_DIRTY_FILES = 10000;
+    private static final int MAX_OVERFLOW_DIRS = 100;
     private static Boolean LIB_LOADED;
 
     private Folder folder;
     private int watchID = -1;
     private NotifyListener listener;
+    private volatile NioListener nioListener;
+    private Set<Path> overflowDirs = Collections
+        .newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
     private Map<String, FileInfo> dirtyFiles = Util.createConcurrentHashMap();
     private volatile boolean ignoreAll;
     private Map<FileInfo, FileInfo> ignoreFiles = Util
@@ -61,6 +103,22 @@ public class FolderWatcher extends PFComponent {
     private AtomicBoolean scheduled = new AtomicBoolean(false);
     private ReentrantLock scannerLock = new ReentrantLock();
     private long delay;
+    private long maxDelay;
+    private int collapseThreshold;
+
+    /** Directory -> Number of dirty files in it */
+    private ConcurrentMap<String, AtomicInteger> dirtyCounts = Util
+        .createConcurrentHashMap();
+    /** Directories to scan including all subdirectories */
+    private Set<String> collapsedDirs = Collections
+        .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile long firstEvent;
+    private volatile long lastEvent;
+
+    // Statistics
+    private AtomicLong nEvents = new AtomicLong();
+    private AtomicLong nCollapsedEvents = new AtomicLong();
+    private AtomicLong nCollapsedDirs = new AtomicLong();
 
     FolderWatcher(Folder folder) {
         super(folder.getController());
@@ -71,7 +129,86 @@ public class FolderWatcher extends PFComponent {
 
     public boolean isSupported() {
         return ConfigurationEntry.FOLDER_WATCHER_ENABLED
-            .getValueBoolean(getController()) && isLibLoaded();
+            .getValueBoolean(getController()) && getBackend() != null;
+    }
+
+    /**
+     * @return the configured and available backend {@link #BACKEND_JNOTIFY} or
+     *         {@link #BACKEND_NIO}. null if none is available.
+     */
+    String getBackend() {
+        String backend = ConfigurationEntry.FOLDER_WATCHER_BACKEND.getValue(
+            getController()).trim().toLowerCase();
+        if (BACKEND_NIO.equals(backend)) {
+            return BACKEND_NIO;
+        }
+        if (isLibLoaded()) {
+            return BACKEND_JNOTIFY;
+        }
+        if (BACKEND_JNOTIFY.equals(backend)) {
+            return null;
+        }
+        return DirectoryWatchService.isAvailable() ? BACKEND_NIO : null;
+    }
+
+    /**
+     * @return the number of file system events received.
+     */
+    public long getEventCount() {
+        return nEvents.get();
+    }
+
+    /**
+     * @return the number of file system events that got merged into the scan
+     *         of a directory tree.
+     */
+    public long getCollapsedEventCount() {
+        return nCollapsedEvents.get();
+    }
+
+    /**
+     * @return the number of directory trees scanned instead of single files.
+     */
+    public long getCollapsedDirCount() {
+        return nCollapsedDirs.get();
+    }
+
+    /**
+     * @return the share of file system events merged into directory scans (0.0
+     *         - 1.0).
+     */
+    public double getCollapseRatio() {
+        long events = nEvents.get();
+        return events > 0 ? (double) nCollapsedEvents.get() / events : 0;
+    }
+
+    /**
+     * @return true if changes are currently watched.
+     */
+    boolean isWatching() {
+        return watchID >= 0 || nioListener != null;
+    }
+
+    /**
+     * @return true if some directories could not be watched with the Java
+     *         WatchService. Their changes are only found by scans.
+     */
+    boolean hasUnwatchedDirectories() {
+        NioListener nl = nioListener;
+        return nl != null && nl.incomplete;
+    }
+
+    /**
+     * Rescans the entries of the directory as if its file system events got
+     * lost. Only with the Java WatchService.
+     *
+     * @param dir
+     */
+    void overflow(Path dir) {
+        NioListener nl = nioListener;
+        if (nl != null) {
+            nl.overflow(dir);
+        }
     }
 
     /**
@@ -138,8 +275,12 @@ public class FolderWatcher extends PFComponent {
     }
 
     synchronized void remove() {
-        if (!isLibLoaded()) {
-            return;
+        NioListener nl = nioListener;
+        if (nl != null) {
+            nioListener = null;
+            overflowDirs.clear();
+            getController().getFolderRepository().getDirectoryWatchService()
+                .cancel(nl);
         }
         if (watchID >= 0) {
             if (!UNREGISTER_WATCHERS) {
@@ -163,33 +304,47 @@ public class FolderWatcher extends PFComponent {
         if (folder.isEncrypted()) {
             return;
         }
+        // Backend might have changed
+        remove();
         if (!isSupported()) {
             return;
         }
         if (!syncProfile.isInstantSync()) {
-            remove();
             return;
         }
         if (folder.getInfo().isMetaFolder()) {
-            remove();
             return;
         }
         if (folder.checkIfDeviceDisconnected()) {
-            remove();
             return;
         }
         if (!folder.getLocalBase().getFileSystem().provider().getScheme().equals("file")) {
-            remove();
             return;
         }
         String path = folder.getLocalBase().toAbsolutePath().toString();
         if (path.startsWith("\\")) {
             // Don't watch on UNC paths
-            remove();
             return;
         }
         delay = 1000L * ConfigurationEntry.FOLDER_WATCHER_DELAY
             .getValueInt(getController());
+        maxDelay = Math.max(delay, 1000L
+            * ConfigurationEntry.FOLDER_WATCHER_MAX_DELAY
+                .getValueInt(getController()));
+        collapseThreshold = ConfigurationEntry.FOLDER_WATCHER_COLLAPSE_THRESHOLD
+            .getValueInt(getController());
+        if (BACKEND_NIO.equals(getBackend())) {
+            final NioListener nl = new NioListener(folder.getLocalBase()
+                .toAbsolutePath());
+            nioListener = nl;
+            // Registering walks the whole tree
+            getController().getIOProvider().startIO(new Runnable() {
+                public void run() {
+                    nl.registerTree(nl.base);
+                }
+            });
+            return;
+        }
         boolean watchSubtree = true;
         try {
             watchID = JNotify.addWatch(path, JNotify.FILE_ANY, watchSubtree,
@@ -217,21 +372,46 @@ public class FolderWatcher extends PFComponent {
                 // Already locked
                 return;
             }
-            if (dirtyFiles.isEmpty()) {
-                return;
-            }
-            if (ignoreAll) {
-                return;
-            }
             FileInfo dirtyFile = null;
             try {
+                if (dirtyFiles.isEmpty() && collapsedDirs.isEmpty()) {
+                    return;
+                }
+                if (ignoreAll) {
+                    return;
+                }
                 List<FileInfo> fileInfos = new LinkedList<FileInfo>();
                 if (folder.checkIfDeviceDisconnected()) {
                     logFine("Device disconnected while scanning " + folder
                         + ": " + folder.getLocalBase());
                     dirtyFiles.clear();
+                    collapsedDirs.clear();
+                    dirtyCounts.clear();
                     return;
                 }
+                // Take the collapsed directories first. Later events below
+                // them get into dirtyFiles again.
+                List<String> dirs = new ArrayList<String>(collapsedDirs);
+                collapsedDirs.removeAll(dirs);
+                dirtyCounts.clear();
+                boolean fullScan = false;
+                Map<String, FileInfo> subtreeFiles = Util
+                    .createConcurrentHashMap();
+                for (String dir : dirs) {
+                    if (!addSubtree(dir, subtreeFiles)) {
+                        fullScan = true;
+                        break;
+                    }
+                }
+                if (fullScan) {
+                    logFine("Too many changes in " + folder
+                        + ". Scanning whole folder");
+                    dirtyFiles.clear();
+                    folder.recommendScanOnNextMaintenance();
+                    getController().getFolderRepository().triggerMaintenance();
+                    return;
+                }
+                dirtyFiles.putAll(subtreeFiles);
                 for (Entry<String, FileInfo> entry : dirtyFiles.entrySet()) {
                     dirtyFile = entry.getValue();
                     if (ignoreAll) {
@@ -255,7 +435,10 @@ public class FolderWatcher extends PFComponent {
                     }
                 }
                 if (fileInfos.size() > 0 && isFine()) {
-                    logFine("Scanned " + fileInfos.size() + " changed files");
+                    logFine("Scanned " + fileInfos.size() + " changed files, "
+                        + dirs.size() + " directory trees. " + nEvents.get()
+                        + " events, collapse ratio "
+                        + Format.formatDecimal(getCollapseRatio()));
                 }
             } catch (Exception e) {
                 logSevere("Unable to scan changed file: " + dirtyFile + ". "
@@ -263,8 +446,241 @@ public class FolderWatcher extends PFComponent {
             } finally {
                 scannerLock.unlock();
             }
+            if (!dirtyFiles.isEmpty() || !collapsedDirs.isEmpty()) {
+                // Changed while scanning
+                scheduleDirtyFilesScanner();
+            }
         }
 
+        /**
+         * Adds the files of the directory tree on disk and in the database.
+         *
+         * @return false if the tree is too large to be scanned as a list of
+         *         files.
+         */
+        private boolean addSubtree(String dir, final Map<String, FileInfo> into)
+            throws IOException
+        {
+            if (dir.length() == 0) {
+                return false;
+            }
+            final Path base = folder.getLocalBase();
+            Path start = base.resolve(dir);
+            into.put(dir, lookupInstance(dir));
+            if (Files.isDirectory(start)) {
+                Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path subDir,
+                        BasicFileAttributes attrs)
+                    {
+                        if (subDir.equals(folder.getSystemSubDir())) {
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        return add(subDir);
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file,
+                        BasicFileAttributes attrs)
+                    {
+                        return add(file);
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file,
+                        IOException exc)
+                    {
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    private FileVisitResult add(Path path) {
+                        String name = FileInfoFactory.decodeIllegalChars(base
+                            .relativize(path).toString().replace('\\', '/'));
+                        if (PathUtils.isScannable(name, folder)) {
+                            into.put(name, lookupInstance(name));
+                        }
+                        return into.size() > MAX_DIRTY_FILES
+                            ? FileVisitResult.TERMINATE
+                            : FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+            // Detect deleted files
+            FileInfoCriteria criteria = new FileInfoCriteria();
+            criteria.addMySelf(folder);
+            criteria.setPath(dir);
+            criteria.setRecursive(true);
+            for (FileInfo fInfo : folder.getDAO().findFiles(criteria)) {
+                if (!fInfo.isDeleted()) {
+                    into.put(fInfo.getRelativeName(),
+                        lookupInstance(fInfo.getRelativeName()));
+                }
+            }
+            return into.size() <= MAX_DIRTY_FILES;
+        }
+    }
+
+    private void fileChanged(String rootPath, String name) {
+        if (!isWatching()) {
+            // Illegal / Useless
+            return;
+        }
+        if (!isSupported()) {
+            // No supported
+            return;
+        }
+        if (!folder.scanAllowedNow()) {
+            // Not allowed
+            return;
+        }
+        if (!PathUtils.isScannable(name, folder)) {
+            return;
+        }
+        if (ignoreAll) {
+            return;
+        }
+        if (OSUtil.isMacOS() && name.contains("?")) {
+            // Skip
+            return;
+        }
+        // For linux
+        if (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+
+        name = PathUtils.getDiskFileName(rootPath, name);
+        name = FileInfoFactory.decodeIllegalChars(name);
+        nEvents.incrementAndGet();
+        lastEvent = System.currentTimeMillis();
+        if (isCollapsed(name)) {
+            // Scanned with the directory
+            nCollapsedEvents.incrementAndGet();
+            return;
+        }
+        if (dirtyFiles.containsKey(name)) {
+            // Skipping already dirty file
+            return;
+        }
+        try {
+            FileInfo lookup = lookupInstance(name);
+            if (ignoreFiles.containsKey(lookup)) {
+                // Skipping ignored file
+                return;
+            }
+            dirtyFiles.put(name, lookup);
+            countDirty(name);
+            scheduleDirtyFilesScanner();
+        } catch (Exception e) {
+            logSevere("Unable to enqueue changed file for scan: " + rootPath
+                + ", " + name + ". " + e, e);
+        }
+    }
+
+    /**
+     * @return true if the file is below a directory that gets scanned as a
+     *         whole.
+     */
+    private boolean isCollapsed(String name) {
+        if (collapsedDirs.isEmpty()) {
+            return false;
+        }
+        if (collapsedDirs.contains("")) {
+            // Whole folder
+            return true;
+        }
+        for (int i = name.lastIndexOf('/'); i > 0; i = name.lastIndexOf('/',
+            i - 1))
+        {
+            if (collapsedDirs.contains(name.substring(0, i))) {
+                return true;
+            }
+        }
+        return collapsedDirs.contains(name);
+    }
+
+    /**
+     * Counts the dirty file in its directory. Replaces the dirty files of the
+     * directory by a scan of the directory tree if too many.
+     */
+    private void countDirty(String name) {
+        if (collapseThreshold <= 0) {
+            return;
+        }
+        int i = name.lastIndexOf('/');
+        String dir = i > 0 ? name.substring(0, i) : "";
+        AtomicInteger count = dirtyCounts.get(dir);
+        if (count == null) {
+            count = new AtomicInteger();
+            AtomicInteger existing = dirtyCounts.putIfAbsent(dir, count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        if (count.incrementAndGet() != collapseThreshold) {
+            return;
+        }
+        collapsedDirs.add(dir);
+        nCollapsedDirs.incrementAndGet();
+        String prefix = dir.length() > 0 ? dir + '/' : "";
+        // Includes directories collapsed before
+        for (Iterator<String> it = collapsedDirs.iterator(); it.hasNext();) {
+            String other = it.next();
+            if (other.startsWith(prefix) && !other.equals(dir)) {
+                it.remove();
+            }
+        }
+        int n = 0;
+        for (Iterator<String> it = dirtyFiles.keySet().iterator(); it
+            .hasNext();)
+        {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+                n++;
+            }
+        }
+        nCollapsedEvents.addAndGet(n);
+        if (isFine()) {
+            logFine("More than " + collapseThreshold + " changes in '" + dir
+                + "'. Scanning directory tree");
+        }
+    }
+
+    private void scheduleDirtyFilesScanner() {
+        if (scheduled.compareAndSet(false, true)) {
+            firstEvent = System.currentTimeMillis();
+            getController().schedule(new Debouncer(), delay);
+        }
+    }
+
+    /**
+     * Starts the scan after a quiet period without file system events. Files
+     * still being written get scanned once.
+     */
+    private class Debouncer implements Runnable {
+        public void run() {
+            long now = System.currentTimeMillis();
+            long quiet = now - lastEvent;
+            if (quiet < delay && now - firstEvent < maxDelay) {
+                getController().schedule(this, delay - quiet);
+                return;
+            }
+            scheduled.set(false);
+            getController().getIOProvider().startIO(new DirtyFilesScanner());
+        }
+    }
+
+    private FileInfo lookupInstance(String rawName) {
+        String name = rawName;
+        if (name.contains("\\")) {
+            name = name.replace('\\', '/');
+        }
+        if (name.contains("//")) {
+            name = name.replace("//", "/");
+        }
+        if (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        return FileInfoFactory.lookupInstance(folder.getInfo(), name);
     }
 
     private class NotifyListener implements JNotifyListener {
@@ -286,77 +702,182 @@ public class FolderWatcher extends PFComponent {
         public void fileCreated(int wd, String rootPath, String name) {
             fileChanged(rootPath, name);
         }
+    }
+
+    /**
+     * Receives the events of the Java WatchService. Replaced on every
+     * reconfiguration, events of a replaced listener get dropped.
+     */
+    private class NioListener implements DirectoryWatchService.Listener,
+        DirectoryWatchService.Filter
+    {
+        private final Path base;
+        private final String rootPath;
+        /** If directories could not be registered */
+        private volatile boolean incomplete;
+
+        private NioListener(Path base) {
+            this.base = base;
+            this.rootPath = base.toString();
+        }
 
-        private void fileChanged(String rootPath, String name) {
-            if (watchID < 0) {
-                // Illegal / Useless
+        public boolean accept(Path dir) {
+            return !dir.equals(folder.getSystemSubDir());
+        }
+
+        public void changed(Path path, boolean newDir) {
+            if (nioListener != this) {
                 return;
             }
-            if (!isSupported()) {
-                // No supported
+            fileChanged(rootPath, base.relativize(path).toString());
+            if (newDir) {
+                // Files might have been created before the directory got
+                // registered.
+                final Path dir = path;
+                getController().getIOProvider().startIO(new Runnable() {
+                    public void run() {
+                        registerTree(dir);
+                    }
+                });
+            }
+        }
+
+        public void overflow(Path dir) {
+            if (nioListener != this) {
                 return;
             }
-            if (!folder.scanAllowedNow()) {
-                // Not allowed
+            logFine("Lost file system events in " + dir);
+            if (overflowDirs.add(dir) && overflowDirs.size() == 1) {
+                getController().schedule(new Runnable() {
+                    public void run() {
+                        getController().getIOProvider().startIO(
+                            new OverflowScanner(NioListener.this));
+                    }
+                }, delay);
+            }
+        }
+
+        public void unwatched(Path dir, IOException e) {
+            if (nioListener != this) {
                 return;
             }
-            if (!PathUtils.isScannable(name, folder)) {
+            if (!incomplete) {
+                incomplete = true;
+                logWarning("Unable to watch " + dir
+                    + ". Falling back to regular scans of " + folder + ". "
+                    + e);
+            } else {
+                logFine("Unable to watch " + dir + ". " + e);
+            }
+            // Changes might have been missed
+            folder.recommendScanOnNextMaintenance();
+        }
+
+        private void registerTree(Path dir) {
+            DirectoryWatchService service = getController()
+                .getFolderRepository().getDirectoryWatchService();
+            boolean root = dir.equals(base);
+            List<Path> found = root ? null : new ArrayList<Path>();
+            try {
+                int n = service.registerTree(dir, this, this, found);
+                if (root) {
+                    logFine("Initialized filesystem watch on " + dir
+                        + " (" + n + " directories) / " + folder);
+                }
+            } catch (IOException e) {
+                if (root) {
+                    logSevere("Unable to initialize filesystem watch for "
+                        + folder + ". " + e);
+                    logFiner(e);
+                } else {
+                    logFine("Unable to watch " + dir + ". " + e);
+                }
+            }
+            if (nioListener != this) {
+                // Removed meanwhile
+                service.cancel(this);
                 return;
             }
-            if (ignoreAll) {
+            if (found == null) {
                 return;
             }
-            if (OSUtil.isMacOS() && name.contains("?")) {
-                // Skip
+            if (found.size() > MAX_DIRTY_FILES) {
+                folder.recommendScanOnNextMaintenance();
                 return;
             }
-            // For linux
-            if (name.endsWith("/")) {
-                name = name.substring(0, name.length() - 1);
+            for (Path path : found) {
+                fileChanged(rootPath, base.relativize(path).toString());
             }
-            
-            name = PathUtils.getDiskFileName(rootPath, name);
-            name = FileInfoFactory.decodeIllegalChars(name);
-            if (dirtyFiles.containsKey(name)) {
-                // Skipping already dirty file
+        }
+
+        /**
+         * Marks the entries on disk and in the database of the directory as
+         * dirty.
+         */
+        private void rescanDirectory(Path dir) {
+            if (!Files.isDirectory(dir)) {
+                // Parent directory gets the delete event
                 return;
             }
-            try {
-                FileInfo lookup = lookupInstance(rootPath, name);
-                if (ignoreFiles.containsKey(lookup)) {
-                    // Skipping ignored file
-                    return;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+            {
+                for (Path entry : stream) {
+                    fileChanged(rootPath, base.relativize(entry).toString());
                 }
-                dirtyFiles.put(name, lookup);
-                if (!scannerLock.isLocked()) {
-                    if (scheduled.compareAndSet(false, true)) {
-                        getController().schedule(new Runnable() {
-                            public void run() {
-                                getController().getIOProvider().startIO(
-                                    new DirtyFilesScanner());
-                                scheduled.set(false);
-                            }
-                        }, delay);
-                    }
+            } catch (IOException e) {
+                logFine("Unable to list " + dir + ". " + e);
+                folder.recommendScanOnNextMaintenance();
+                return;
+            }
+            // Detect deleted entries
+            String relDir = FileInfoFactory.decodeIllegalChars(base
+                .relativize(dir).toString().replace('\\', '/'));
+            FileInfoCriteria criteria = new FileInfoCriteria();
+            criteria.addMySelf(folder);
+            criteria.setPath(relDir);
+            criteria.setRecursive(false);
+            Collection<FileInfo> known = folder.getDAO().findFiles(criteria);
+            for (FileInfo fInfo : known) {
+                if (fInfo.isDeleted()
+                    || dirtyFiles.containsKey(fInfo.getRelativeName()))
+                {
+                    continue;
+                }
+                FileInfo lookup = lookupInstance(fInfo.getRelativeName());
+                if (!ignoreFiles.containsKey(lookup)) {
+                    dirtyFiles.put(fInfo.getRelativeName(), lookup);
                 }
-            } catch (Exception e) {
-                logSevere("Unable to enqueue changed file for scan: "
-                    + rootPath + ", " + name + ". " + e, e);
             }
+            scheduleDirtyFilesScanner();
         }
+    }
+
+    /**
+     * Rescans the directories that lost file system events. If too many
+     * directories are affected the next maintenance scans the whole folder.
+     */
+    private class OverflowScanner implements Runnable {
+        private final NioListener nl;
 
-        private FileInfo lookupInstance(String rootPath, String rawName) {
-            String name = rawName;
-            if (name.contains("\\")) {
-                name = name.replace('\\', '/');
+        private OverflowScanner(NioListener nl) {
+            this.nl = nl;
+        }
+
+        public void run() {
+            List<Path> dirs = new ArrayList<Path>(overflowDirs);
+            overflowDirs.removeAll(dirs);
+            if (nioListener != nl || !folder.scanAllowedNow()) {
+                return;
             }
-            if (name.contains("//")) {
-                name = name.replace("//", "/");
+            if (dirs.size() > MAX_OVERFLOW_DIRS) {
+                logFine("Lost file system events in " + dirs.size()
+                    + " directories. Scanning " + folder);
+                folder.recommendScanOnNextMaintenance();
+                return;
             }
-            if (name.startsWith("/")) {
-                name = name.substring(1);
+            for (Path dir : dirs) {
+                nl.rescanDirectory(dir);
             }
-            return FileInfoFactory.lookupInstance(folder.getInfo(), name);
         }
     }
 
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * The content hashes of the local files of a folder. An entry is only valid as
+ * long as size, modification date and - where supported - the file key (inode)
+ * of the file did not change.
+ * <p>
+ * Entries are also indexed by file key. A file moved within the folder keeps
+ * its file key, so its hash gets carried over to the new name without reading
+ * the file again, see {@link #carryOver(String, BasicFileAttributes)}.
+ * <p>
+ * Thread-safe.
+ */
+public class HashCache {
+    static final String FILENAME = Constants.DB_FILENAME + ".hashes";
+
+    private static final int MAGIC = 0x50464831;
+    private static final int MAX_UTF_LENGTH = 65535 / 3;
+
+    private final String algorithm;
+
+    /** Relative name -> Entry */
+    private final ConcurrentMap<String, Entry> entries = Util
+        .createConcurrentHashMap();
+
+    /** File key -> Relative name */
+    private final ConcurrentMap<String, String> byFileKey = Util
+        .createConcurrentHashMap();
+
+    private volatile boolean dirty;
+
+    /**
+     * @param algorithm
+     *            the MessageDigest algorithm of the hashes.
+     */
+    public HashCache(String algorithm) {
+        Reject.ifBlank(algorithm, "Algorithm is blank");
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * @return the MessageDigest algorithm of the hashes.
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @param fInfo
+     *            the known file.
+     * @return the hash of the file or null if not known for this size and
+     *         modification date.
+     */
+    public byte[] get(FileInfo fInfo) {
+        Entry entry = entries.get(fInfo.getRelativeName());
+        if (entry == null || entry.size != fInfo.getSize()
+            || entry.modified != fInfo.getModifiedDate().getTime())
+        {
+            return null;
+        }
+        return entry.digest;
+    }
+
+    /**
+     * @param relativeName
+     * @param attrs
+     *            the current attributes of the file on disk.
+     * @return the hash of the file or null if not known or the file changed.
+     */
+    public byte[] get(String relativeName, BasicFileAttributes attrs) {
+        Entry entry = entries.get(relativeName);
+        if (entry == null || !entry.matches(attrs)) {
+            return null;
+        }
+        return entry.digest;
+    }
+
+    /**
+     * Stores the hash of a file.
+     *
+     * @param relativeName
+     * @param attrs
+     *            the attributes of the file read before hashing.
+     * @param digest
+     */
+    public void put(String relativeName, BasicFileAttributes attrs,
+        byte[] digest)
+    {
+        put(relativeName, new Entry(attrs.size(), attrs.lastModifiedTime()
+            .toMillis(), toString(attrs.fileKey()), digest));
+    }
+
+    /**
+     * Takes over the hash of a file that was moved to a new name within the
+     * folder. The file is recognized by its file key, size and modification
+     * date.
+     *
+     * @param relativeName
+     *            the new name of the file.
+     * @param attrs
+     *            the attributes of the file at the new name.
+     * @return the hash or null if the file is unknown.
+     */
+    byte[] carryOver(String relativeName, BasicFileAttributes attrs) {
+        String fileKey = toString(attrs.fileKey());
+        if (fileKey == null) {
+            return null;
+        }
+        String oldName = byFileKey.get(fileKey);
+        if (oldName == null || oldName.equals(relativeName)) {
+            return null;
+        }
+        Entry entry = entries.get(oldName);
+        if (entry == null || !entry.matches(attrs)) {
+            return null;
+        }
+        // The old entry stays until the old name is removed. Move detection
+        // compares both.
+        entries.put(relativeName, entry);
+        byFileKey.put(fileKey, relativeName);
+        dirty = true;
+        return entry.digest;
+    }
+
+    /**
+     * Takes over the hash of a file to the name it was moved to.
+     *
+     * @param from
+     *            the old name of the file.
+     * @param to
+     *            the new name of the file.
+     */
+    public void move(String from, String to) {
+        Entry entry = entries.remove(from);
+        if (entry == null) {
+            return;
+        }
+        if (entry.fileKey != null) {
+            byFileKey.remove(entry.fileKey, from);
+        }
+        put(to, entry);
+    }
+
+    /**
+     * Takes over the hashes of all files below a directory to the name the
+     * directory was moved to.
+     *
+     * @param from
+     *            the old name of the directory.
+     * @param to
+     *            the new name of the directory.
+     * @return the number of hashes taken over.
+     */
+    public int moveDirectory(String from, String to) {
+        String prefix = from + '/';
+        List<String> names = new ArrayList<String>();
+        for (String name : entries.keySet()) {
+            if (name.startsWith(prefix)) {
+                names.add(name);
+            }
+        }
+        for (String name : names) {
+            move(name, to + '/' + name.substring(prefix.length()));
+        }
+        return names.size();
+    }
+
+    /**
+     * @param relativeName
+     *            the name of the file that was deleted.
+     */
+    public void remove(String relativeName) {
+        Entry entry = entries.remove(relativeName);
+        if (entry == null) {
+            return;
+        }
+        if (entry.fileKey != null) {
+            byFileKey.remove(entry.fileKey, relativeName);
+        }
+        dirty = true;
+    }
+
+    /**
+     * @return the number of cached hashes.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return true if changed since loaded or stored.
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Writes the cache. The previous file gets replaced atomically.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void store(Path file) throws IOException {
+        dirty = false;
+        Path tempFile = file.resolveSibling(file.getFileName() + ".writing");
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(tempFile))))
+        {
+            out.writeInt(MAGIC);
+            out.writeUTF(algorithm);
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (e.getKey().length() > MAX_UTF_LENGTH) {
+                    continue;
+                }
+                Entry entry = e.getValue();
+                out.writeBoolean(true);
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeUTF(entry.fileKey != null ? entry.fileKey : "");
+                out.writeByte(entry.digest.length);
+                out.write(entry.digest);
+            }
+            out.writeBoolean(false);
+        } catch (IOException e) {
+            dirty = true;
+            throw e;
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param file
+     * @param algorithm
+     *            the MessageDigest algorithm in use.
+     * @return the loaded cache. Empty if the file does not exist or was
+     *         written with another algorithm.
+     * @throws IOException
+     *             if the file could not be read.
+     */
+    public static HashCache load(Path file, String algorithm)
+        throws IOException
+    {
+        HashCache cache = new HashCache(algorithm);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(file))))
+        {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Illegal hash cache file: " + file);
+            }
+            if (!algorithm.equals(in.readUTF())) {
+                // Hashes of other algorithm are useless.
+                cache.dirty = true;
+                return cache;
+            }
+            while (in.readBoolean()) {
+                String name = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                String fileKey = in.readUTF();
+                byte[] digest = new byte[in.readUnsignedByte()];
+                in.readFully(digest);
+                cache.put(name, new Entry(size, modified,
+                    fileKey.length() > 0 ? fileKey : null, digest));
+            }
+        } catch (NoSuchFileException e) {
+            // New folder
+        }
+        cache.dirty = false;
+        return cache;
+    }
+
+    // Internals **************************************************************
+
+    private void put(String relativeName, Entry entry) {
+        Entry previous = entries.put(relativeName, entry);
+        if (previous != null && previous.fileKey != null
+            && !previous.fileKey.equals(entry.fileKey))
+        {
+            byFileKey.remove(previous.fileKey, relativeName);
+        }
+        if (entry.fileKey != null) {
+            byFileKey.put(entry.fileKey, relativeName);
+        }
+        dirty = true;
+    }
+
+    private static String toString(Object fileKey) {
+        return fileKey != null ? fileKey.toString() : null;
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long modified;
+        private final String fileKey;
+        private final byte[] digest;
+
+        private Entry(long size, long modified, String fileKey, byte[] digest)
+        {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.digest = digest;
+        }
+
+        private boolean matches(BasicFileAttributes attrs) {
+            if (size != attrs.size()
+                || modified != attrs.lastModifiedTime().toMillis())
+            {
+                return false;
+            }
+            String key = HashCache.toString(attrs.fileKey());
+            return fileKey == null || key == null || fileKey.equals(key);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.Range;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+import de.dal33t.powerfolder.util.delta.FilePartsState;
+import de.dal33t.powerfolder.util.delta.FilePartsState.PartState;
+import de.dal33t.powerfolder.util.delta.PartInfo;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * Copies the parts of a content defined {@link FilePartsRecord} found in the
+ * {@link BlockIndex} of a folder to a file. Every block gets verified against
+ * the digest of the part before it is copied. Files changed since they were
+ * indexed and blocks with other content are removed from the index.
+ */
+public class IndexedBlockCopyWorker extends Loggable implements
+    Callable<FilePartsState>
+{
+    private final Folder folder;
+    private final Path dstFile;
+    private final FilePartsRecord record;
+    private final ProgressListener progressObserver;
+    private final FilePartsState state;
+
+    /** Relative name -> Open source file, null if changed */
+    private final Map<String, FileChannel> sources = new HashMap<String, FileChannel>();
+    private ByteBuffer buffer;
+
+    /**
+     * @param folder
+     * @param dstFile
+     * @param record
+     *            a content defined record.
+     * @param obs
+     * @param state
+     *            the state of the parts already copied from another source or
+     *            null. Parts which are AVAILABLE are not copied again.
+     */
+    public IndexedBlockCopyWorker(Folder folder, Path dstFile,
+        FilePartsRecord record, ProgressListener obs, FilePartsState state)
+    {
+        Reject.noNullElements(folder, dstFile, record);
+        Reject.ifFalse(record.isContentDefined(),
+            "Record is not content defined");
+        this.folder = folder;
+        this.dstFile = dstFile;
+        this.record = record;
+        this.progressObserver = obs;
+        this.state = state;
+    }
+
+    public FilePartsState call() throws Exception {
+        FilePartsState result = state != null
+            ? state
+            : new FilePartsState(record.getFileLength());
+        BlockIndex index = folder.getBlockIndex();
+        MessageDigest digester = MessageDigest
+            .getInstance(BlockIndex.DIGEST_ALGORITHM);
+        PartInfo[] parts = record.getInfos();
+        long copied = 0;
+        try (FileChannel dst = FileChannel.open(dstFile,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+        {
+            for (int i = 0; i < parts.length; i++) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (progressObserver != null) {
+                    progressObserver.progressReached((double) i
+                        / parts.length);
+                }
+                Range range = record.getPartRange(i);
+                if (result.countPartStates(range, PartState.AVAILABLE) == range
+                    .getLength())
+                {
+                    continue;
+                }
+                for (BlockIndex.Block block : index.find(parts[i].getDigest(),
+                    range.getLength()))
+                {
+                    if (!read(block)) {
+                        continue;
+                    }
+                    digester.update(buffer);
+                    if (!Arrays.equals(parts[i].getDigest(), digester.digest()))
+                    {
+                        // Stale or colliding prefix
+                        continue;
+                    }
+                    buffer.rewind();
+                    long pos = range.getStart();
+                    while (buffer.hasRemaining()) {
+                        pos += dst.write(buffer, pos);
+                    }
+                    result.setPartState(range, PartState.AVAILABLE);
+                    copied += range.getLength();
+                    break;
+                }
+            }
+        } finally {
+            for (FileChannel source : sources.values()) {
+                if (source != null) {
+                    source.close();
+                }
+            }
+        }
+        if (isFine()) {
+            logFine("Copied " + copied + " bytes from " + sources.size()
+                + " other files of " + folder + " to " + dstFile);
+        }
+        return result;
+    }
+
+    // Internals **************************************************************
+
+    /**
+     * Reads a block into the buffer.
+     *
+     * @return false if the file is not available or changed since indexed.
+     */
+    private boolean read(BlockIndex.Block block) throws IOException {
+        String name = block.getRelativeName();
+        FileChannel source;
+        if (sources.containsKey(name)) {
+            source = sources.get(name);
+        } else {
+            source = open(block);
+            sources.put(name, source);
+        }
+        if (source == null) {
+            return false;
+        }
+        int length = (int) block.getLength();
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocate(length);
+        }
+        buffer.clear().limit(length);
+        long pos = block.getOffset();
+        while (buffer.hasRemaining()) {
+            int read = source.read(buffer, pos);
+            if (read < 0) {
+                return false;
+            }
+            pos += read;
+        }
+        buffer.flip();
+        return true;
+    }
+
+    private FileChannel open(BlockIndex.Block block) {
+        String name = block.getRelativeName();
+        Path file = folder.getDiskFile(FileInfoFactory.lookupInstance(
+            folder.getInfo(), name));
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file,
+                BasicFileAttributes.class);
+            if (!block.matches(attrs)) {
+                folder.getBlockIndex().remove(name);
+                return null;
+            }
+            return FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            logFine("Unable to read indexed file " + file + ". " + e);
+            folder.getBlockIndex().remove(name);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import de.dal33t.powerfolder.light.FileInfo;
+
+/**
+ * Detects movements between the items that vanished from disk and the items
+ * that were newly found by a scan.
+ * <p>
+ * An item is considered moved if a new item of the same type has the same size
+ * and modification date. The new items are indexed by these, so the detection
+ * runs in linear time. If several new items match, the one with the same
+ * filename and then the one nearest to the old location wins. Ties are broken
+ * by the relative name. Every new item is the target of at most one move.
+ * <p>
+ * If content hashes are available, a new item with a different hash is not
+ * considered and a new item with the same hash is preferred.
+ * <p>
+ * A vanished directory is reported as moved as a whole if all its vanished
+ * files moved to the same relative location below one new directory.
+ */
+class MoveDetector {
+    /**
+     * The maximum number of candidates to compare for the nearest location.
+     * Protects against huge buckets, e.g. many empty files created at the same
+     * time.
+     */
+    private static final int MAX_CANDIDATES = 64;
+
+    private static final Comparator<FileInfo> BY_NAME = new Comparator<FileInfo>()
+    {
+        public int compare(FileInfo o1, FileInfo o2) {
+            return o1.getRelativeName().compareTo(o2.getRelativeName());
+        }
+    };
+
+    private final List<FileInfo> vanished;
+    private final List<FileInfo> found;
+    private final HashCache hashes;
+    private final Map<FileInfo, FileInfo> movedFiles = new LinkedHashMap<FileInfo, FileInfo>();
+    private final Map<FileInfo, FileInfo> movedDirectories = new LinkedHashMap<FileInfo, FileInfo>();
+
+    /**
+     * @param vanished
+     *            the known items not found on disk anymore.
+     * @param found
+     *            the new items found on disk.
+     */
+    MoveDetector(Collection<FileInfo> vanished, Collection<FileInfo> found) {
+        this(vanished, found, null);
+    }
+
+    /**
+     * @param vanished
+     *            the known items not found on disk anymore.
+     * @param found
+     *            the new items found on disk.
+     * @param hashes
+     *            the known content hashes or null if not available.
+     */
+    MoveDetector(Collection<FileInfo> vanished, Collection<FileInfo> found,
+        HashCache hashes)
+    {
+        this.vanished = new ArrayList<FileInfo>(vanished);
+        this.found = new ArrayList<FileInfo>(found);
+        this.hashes = hashes;
+        Collections.sort(this.vanished, BY_NAME);
+        Collections.sort(this.found, BY_NAME);
+    }
+
+    /**
+     * Detects the moves.
+     *
+     * @return this
+     */
+    MoveDetector detect() {
+        findMovedFiles();
+        findMovedDirectories();
+        return this;
+    }
+
+    /**
+     * @return the moved items. From -> To. Contains the items of moved
+     *         directories too.
+     */
+    Map<FileInfo, FileInfo> getMovedFiles() {
+        return movedFiles;
+    }
+
+    /**
+     * @return the directories that moved as a whole. From -> To.
+     */
+    Map<FileInfo, FileInfo> getMovedDirectories() {
+        return movedDirectories;
+    }
+
+    // Internals **************************************************************
+
+    private void findMovedFiles() {
+        Map<Key, Bucket> index = new HashMap<Key, Bucket>(found.size());
+        for (FileInfo fInfo : found) {
+            Key key = new Key(fInfo);
+            Bucket bucket = index.get(key);
+            if (bucket == null) {
+                bucket = new Bucket();
+                index.put(key, bucket);
+            }
+            bucket.add(fInfo);
+        }
+        for (FileInfo from : vanished) {
+            Bucket bucket = index.get(new Key(from));
+            if (bucket == null) {
+                continue;
+            }
+            FileInfo to = bucket.take(from, hashes);
+            if (to != null) {
+                movedFiles.put(from, to);
+            }
+        }
+    }
+
+    private void findMovedDirectories() {
+        if (movedFiles.isEmpty()) {
+            return;
+        }
+        // Candidate pairs of directories: From dir -> (To dir -> moves)
+        Map<String, Map<String, Integer>> pairs = new TreeMap<String, Map<String, Integer>>();
+        for (Map.Entry<FileInfo, FileInfo> move : movedFiles.entrySet()) {
+            if (!move.getKey().isFile()) {
+                continue;
+            }
+            String[] from = split(move.getKey().getRelativeName());
+            String[] to = split(move.getValue().getRelativeName());
+            int suffix = commonSuffix(from, from.length, to, to.length);
+            if (suffix == 0 || suffix >= from.length || suffix >= to.length) {
+                // Renamed or moved into/out of the base directory
+                continue;
+            }
+            String fromDir = join(from, from.length - suffix);
+            String toDir = join(to, to.length - suffix);
+            Map<String, Integer> targets = pairs.get(fromDir);
+            if (targets == null) {
+                targets = new HashMap<String, Integer>(2);
+                pairs.put(fromDir, targets);
+            }
+            Integer n = targets.get(toDir);
+            targets.put(toDir, n == null ? 1 : n + 1);
+        }
+        if (pairs.isEmpty()) {
+            return;
+        }
+
+        // Count the vanished files below the candidate directories.
+        Map<String, Integer> vanishedCounts = new HashMap<String, Integer>(
+            pairs.size());
+        for (FileInfo fInfo : vanished) {
+            if (!fInfo.isFile()) {
+                continue;
+            }
+            String name = fInfo.getRelativeName();
+            for (int i = name.indexOf('/'); i > 0; i = name.indexOf('/', i + 1))
+            {
+                String dir = name.substring(0, i);
+                if (pairs.containsKey(dir)) {
+                    Integer n = vanishedCounts.get(dir);
+                    vanishedCounts.put(dir, n == null ? 1 : n + 1);
+                }
+            }
+        }
+
+        Map<String, FileInfo> vanishedDirs = directoriesByName(vanished);
+        Map<String, FileInfo> foundDirs = directoriesByName(found);
+        for (Map.Entry<String, Map<String, Integer>> pair : pairs.entrySet())
+        {
+            FileInfo fromDir = vanishedDirs.get(pair.getKey());
+            if (fromDir == null) {
+                continue;
+            }
+            Integer total = vanishedCounts.get(pair.getKey());
+            for (Map.Entry<String, Integer> target : pair.getValue()
+                .entrySet())
+            {
+                FileInfo toDir = foundDirs.get(target.getKey());
+                if (toDir != null && target.getValue().equals(total)) {
+                    movedDirectories.put(fromDir, toDir);
+                }
+            }
+        }
+    }
+
+    private static Map<String, FileInfo> directoriesByName(
+        Collection<FileInfo> fInfos)
+    {
+        Map<String, FileInfo> dirs = new HashMap<String, FileInfo>();
+        for (FileInfo fInfo : fInfos) {
+            if (fInfo.isDiretory()) {
+                dirs.put(fInfo.getRelativeName(), fInfo);
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * @param from
+     * @param to
+     * @return the distance between the parent directories in the directory
+     *         tree.
+     */
+    private static int distance(String[] from, String[] to) {
+        int fromDepth = from.length - 1;
+        int toDepth = to.length - 1;
+        int prefix = 0;
+        while (prefix < fromDepth && prefix < toDepth
+            && from[prefix].equals(to[prefix]))
+        {
+            prefix++;
+        }
+        return fromDepth - prefix + toDepth - prefix;
+    }
+
+    private static int commonSuffix(String[] a, int aLength, String[] b,
+        int bLength)
+    {
+        int n = 0;
+        while (n < aLength && n < bLength
+            && a[aLength - 1 - n].equals(b[bLength - 1 - n]))
+        {
+            n++;
+        }
+        return n;
+    }
+
+    private static String[] split(String relativeName) {
+        return relativeName.split("/");
+    }
+
+    private static String join(String[] segments, int n) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                b.append('/');
+            }
+            b.append(segments[i]);
+        }
+        return b.toString();
+    }
+
+    /**
+     * The identifying attributes of a file content.
+     */
+    private static class Key {
+        private final long size;
+        private final long modified;
+        private final boolean directory;
+
+        private Key(FileInfo fInfo) {
+            size = fInfo.getSize();
+            modified = fInfo.getModifiedDate().getTime();
+            directory = fInfo.isDiretory();
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (size ^ (size >>> 32));
+            result = 31 * result + (int) (modified ^ (modified >>> 32));
+            return directory ? ~result : result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return size == other.size && modified == other.modified
+                && directory == other.directory;
+        }
+    }
+
+    /**
+     * The not yet taken new items with the same key.
+     */
+    private static class Bucket {
+        private final Set<FileInfo> items = new LinkedHashSet<FileInfo>(2);
+        private Map<String, Set<FileInfo>> byFilename;
+
+        private void add(FileInfo fInfo) {
+            items.add(fInfo);
+            if (items.size() == 1) {
+                // Most buckets only have one item. Index lazy.
+                return;
+            }
+            if (byFilename == null) {
+                byFilename = new HashMap<String, Set<FileInfo>>();
+                for (FileInfo item : items) {
+                    addByFilename(item);
+                }
+            } else {
+                addByFilename(fInfo);
+            }
+        }
+
+        private void addByFilename(FileInfo fInfo) {
+            Set<FileInfo> named = byFilename.get(fInfo.getFilenameOnly());
+            if (named == null) {
+                named = new LinkedHashSet<FileInfo>(2);
+                byFilename.put(fInfo.getFilenameOnly(), named);
+            }
+            named.add(fInfo);
+        }
+
+        /**
+         * Takes the best matching item out of this bucket.
+         *
+         * @param from
+         * @param hashes
+         *            the known content hashes or null.
+         * @return the item or null if this bucket is empty or contains no
+         *         item with the same content.
+         */
+        private FileInfo take(FileInfo from, HashCache hashes) {
+            if (items.isEmpty()) {
+                return null;
+            }
+            FileInfo best = null;
+            byte[] fromHash = hashes != null ? hashes.get(from) : null;
+            Collection<FileInfo> sameContent = fromHash != null ? sameContent(
+                fromHash, hashes) : null;
+            if (sameContent != null) {
+                List<FileInfo> named = new ArrayList<FileInfo>();
+                for (FileInfo candidate : sameContent) {
+                    if (candidate.getFilenameOnly().equals(
+                        from.getFilenameOnly()))
+                    {
+                        named.add(candidate);
+                    }
+                }
+                best = nearest(from, named);
+                if (best == null) {
+                    best = nearest(from, sameContent);
+                }
+                if (best == null) {
+                    return null;
+                }
+            } else if (byFilename != null) {
+                best = nearest(from, byFilename.get(from.getFilenameOnly()));
+            } else if (items.iterator().next().getFilenameOnly()
+                .equals(from.getFilenameOnly()))
+            {
+                best = items.iterator().next();
+            }
+            if (best == null) {
+                best = nearest(from, items);
+            }
+            return remove(best);
+        }
+
+        /**
+         * @param hash
+         *            the content hash of the vanished item.
+         * @param hashes
+         * @return the items with the same hash. If there are none the items
+         *         with unknown hash. null if no hash of the items is known.
+         */
+        private Collection<FileInfo> sameContent(byte[] hash,
+            HashCache hashes)
+        {
+            List<FileInfo> same = new ArrayList<FileInfo>(1);
+            List<FileInfo> unknown = new ArrayList<FileInfo>(items.size());
+            boolean known = false;
+            int n = 0;
+            for (FileInfo item : items) {
+                byte[] itemHash = n++ < MAX_CANDIDATES ? hashes.get(item) : null;
+                if (itemHash == null) {
+                    unknown.add(item);
+                } else if (Arrays.equals(hash, itemHash)) {
+                    same.add(item);
+                } else {
+                    known = true;
+                }
+            }
+            if (!same.isEmpty()) {
+                return same;
+            }
+            return known ? unknown : null;
+        }
+
+        private FileInfo remove(FileInfo best) {
+            items.remove(best);
+            if (byFilename != null) {
+                Set<FileInfo> named = byFilename.get(best.getFilenameOnly());
+                named.remove(best);
+                if (named.isEmpty()) {
+                    byFilename.remove(best.getFilenameOnly());
+                }
+            }
+            return best;
+        }
+
+        private static FileInfo nearest(FileInfo from,
+            Collection<FileInfo> candidates)
+        {
+            if (candidates == null || candidates.isEmpty()) {
+                return null;
+            }
+            String[] fromPath = split(from.getRelativeName());
+            FileInfo best = null;
+            int bestDistance = Integer.MAX_VALUE;
+            int bestSuffix = -1;
+            int n = 0;
+            for (Iterator<FileInfo> it = candidates.iterator(); it.hasNext()
+                && n < MAX_CANDIDATES; n++)
+            {
+                FileInfo candidate = it.next();
+                String[] toPath = split(candidate.getRelativeName());
+                int distance = distance(fromPath, toPath);
+                int suffix = commonSuffix(fromPath, fromPath.length - 1,
+                    toPath, toPath.length - 1);
+                // Candidates are sorted by name. First wins on tie.
+                if (distance < bestDistance || distance == bestDistance
+                    && suffix > bestSuffix)
+                {
+                    best = candidate;
+                    bestDistance = distance;
+                    bestSuffix = suffix;
+                }
+            }
+            return best;
+        }
+    }
+}
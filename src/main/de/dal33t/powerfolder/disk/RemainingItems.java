@@ -0,0 +1,170 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Util;
+
+/**
+ * The known items of a folder that have not been found on disk yet by the
+ * running scan. Items get taken out when found, the items left after the scan
+ * are deleted from disk.
+ * <p>
+ * If case is ignored the items are additionally indexed by their lower case
+ * name, so a disk item with a different name-case is found in constant time
+ * too (#1531 / #1804).
+ * <p>
+ * Thread-safe. Taken by all DirectoryCrawlers of a scan concurrently.
+ */
+class RemainingItems {
+    /** Relative name -> item */
+    private final ConcurrentMap<String, FileInfo> items = Util
+        .createConcurrentHashMap();
+
+    /**
+     * Lower case relative name -> items. null if case is not ignored.
+     */
+    private final ConcurrentMap<String, List<FileInfo>> lowerCaseItems;
+
+    /**
+     * @param ignoreCase
+     *            true to find items with a different name-case.
+     */
+    RemainingItems(boolean ignoreCase) {
+        lowerCaseItems = ignoreCase ? Util
+            .<String, List<FileInfo>> createConcurrentHashMap() : null;
+    }
+
+    /**
+     * @param fInfo
+     *            the known item to add.
+     */
+    void add(FileInfo fInfo) {
+        items.put(fInfo.getRelativeName(), fInfo);
+        if (lowerCaseItems == null) {
+            return;
+        }
+        String key = fInfo.getLowerCaseFilenameOnly();
+        List<FileInfo> variants = lowerCaseItems.get(key);
+        if (variants == null) {
+            variants = new ArrayList<FileInfo>(1);
+            List<FileInfo> existing = lowerCaseItems.putIfAbsent(key, variants);
+            if (existing != null) {
+                variants = existing;
+            }
+        }
+        synchronized (variants) {
+            variants.add(fInfo);
+        }
+    }
+
+    /**
+     * Takes the item with the given relative name. If case is ignored and no
+     * item with exactly that name exists, all items with a different
+     * name-case get taken and one of them is returned.
+     *
+     * @param relativeName
+     * @return the taken item or null if no item with that name remains.
+     */
+    FileInfo take(String relativeName) {
+        FileInfo exists = items.remove(relativeName);
+        if (lowerCaseItems == null) {
+            return exists;
+        }
+        String key = relativeName.toLowerCase();
+        if (exists != null) {
+            removeVariant(key, exists);
+            return exists;
+        }
+        List<FileInfo> variants = lowerCaseItems.remove(key);
+        if (variants == null) {
+            return null;
+        }
+        List<FileInfo> candidates;
+        synchronized (variants) {
+            candidates = new ArrayList<FileInfo>(variants);
+            variants.clear();
+        }
+        for (FileInfo variant : candidates) {
+            if (items.remove(variant.getRelativeName(), variant)
+                && exists == null)
+            {
+                exists = variant;
+            }
+        }
+        return exists;
+    }
+
+    /**
+     * Removes the item with exactly the given relative name.
+     *
+     * @param relativeName
+     * @return the removed item or null if no item with that name remains.
+     */
+    FileInfo remove(String relativeName) {
+        FileInfo removed = items.remove(relativeName);
+        if (removed != null && lowerCaseItems != null) {
+            removeVariant(removed.getLowerCaseFilenameOnly(), removed);
+        }
+        return removed;
+    }
+
+    /**
+     * @return the remaining items. Weakly consistent, items may be removed
+     *         while iterating.
+     */
+    Collection<FileInfo> values() {
+        return Collections.unmodifiableCollection(items.values());
+    }
+
+    /**
+     * @return the number of remaining items.
+     */
+    int size() {
+        return items.size();
+    }
+
+    // Internals **************************************************************
+
+    private void removeVariant(String key, FileInfo fInfo) {
+        List<FileInfo> variants = lowerCaseItems.get(key);
+        if (variants == null) {
+            return;
+        }
+        synchronized (variants) {
+            // FileInfo.equals ignores the case. Remove by identity.
+            for (int i = 0; i < variants.size(); i++) {
+                if (variants.get(i) == fInfo) {
+                    variants.remove(i);
+                    break;
+                }
+            }
+            if (variants.isEmpty()) {
+                lowerCaseItems.remove(key, variants);
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.dal33t.powerfolder.Constants;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * The progress of an interrupted folder scan. Contains the directories whose
+ * subtree was scanned completely and the partial scan result of these
+ * subtrees. A later scan continues from here and only crawls the remaining
+ * directories.
+ * <p>
+ * A checkpoint is only valid for the folder database it was created on. The
+ * known items are summarized by a fingerprint, a checkpoint with a different
+ * fingerprint gets discarded.
+ * <p>
+ * Changes on disk in the completed subtrees after the checkpoint was written
+ * are detected by the next scan.
+ */
+class ScanCheckpoint implements Serializable {
+    private static final long serialVersionUID = 100L;
+
+    static final String FILENAME = Constants.DB_FILENAME + ".scan";
+
+    private final long fingerprint;
+    private final Date created;
+
+    /** Relative names of the directories scanned completely. */
+    private final Set<String> completedDirs;
+
+    /**
+     * Relative names of the known items in the completed directories that
+     * have not been found on disk.
+     */
+    private final Set<String> vanished = new HashSet<String>();
+
+    private final List<FileInfo> newFiles = new ArrayList<FileInfo>();
+    private final List<FileInfo> changedFiles = new ArrayList<FileInfo>();
+    private final List<FileInfo> restoredFiles = new ArrayList<FileInfo>();
+
+    /**
+     * The disk items in the completed directories which could not be
+     * scanned. Path relative to the local base.
+     */
+    private final List<String> unableToScan = new ArrayList<String>();
+
+    /**
+     * @param fingerprint
+     *            the fingerprint of the known items the scan started with.
+     * @param completedDirs
+     *            the relative names of the directories scanned completely.
+     */
+    ScanCheckpoint(long fingerprint, Set<String> completedDirs) {
+        Reject.ifNull(completedDirs, "Completed dirs is null");
+        this.fingerprint = fingerprint;
+        this.created = new Date();
+        this.completedDirs = completedDirs;
+    }
+
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    Date getCreated() {
+        return created;
+    }
+
+    Set<String> getCompletedDirs() {
+        return completedDirs;
+    }
+
+    Set<String> getVanished() {
+        return vanished;
+    }
+
+    List<FileInfo> getNewFiles() {
+        return newFiles;
+    }
+
+    List<FileInfo> getChangedFiles() {
+        return changedFiles;
+    }
+
+    List<FileInfo> getRestoredFiles() {
+        return restoredFiles;
+    }
+
+    List<String> getUnableToScan() {
+        return unableToScan;
+    }
+
+    /**
+     * Adds the items located in the completed directories.
+     *
+     * @param source
+     *            the items to check. Synchronized on while iterating.
+     * @param target
+     *            the list to add to.
+     */
+    void addCompleted(Collection<FileInfo> source, List<FileInfo> target) {
+        synchronized (source) {
+            for (FileInfo fInfo : source) {
+                if (isCompleted(fInfo.getRelativeName())) {
+                    target.add(fInfo);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param relativeName
+     * @return true if the item is located in a completed directory or is a
+     *         completed directory.
+     */
+    boolean isCompleted(String relativeName) {
+        return isBelow(relativeName, completedDirs);
+    }
+
+    /**
+     * Writes this checkpoint. The previous checkpoint gets replaced
+     * atomically.
+     *
+     * @param file
+     * @throws IOException
+     */
+    void store(Path file) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".writing");
+        try (ObjectOutputStream oOut = new ObjectOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(tempFile))))
+        {
+            oOut.writeObject(this);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param file
+     * @return the checkpoint or null if not existing.
+     * @throws IOException
+     *             if the checkpoint could not be read.
+     */
+    static ScanCheckpoint load(Path file) throws IOException {
+        try (ObjectInputStream oIn = new ObjectInputStream(
+            new BufferedInputStream(Files.newInputStream(file))))
+        {
+            return (ScanCheckpoint) oIn.readObject();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Illegal scan checkpoint: " + e, e);
+        }
+    }
+
+    /**
+     * @param fInfo
+     * @return the part of the fingerprint for the known item. Sum up for all
+     *         known items, so the fingerprint does not depend on the order.
+     */
+    static long fingerprint(FileInfo fInfo) {
+        long h = fInfo.getRelativeName().hashCode();
+        h = 31 * h + fInfo.getVersion();
+        h = 31 * h + fInfo.getSize();
+        h = 31 * h + fInfo.getModifiedDate().getTime();
+        h = 31 * h + (fInfo.isDeleted() ? 1 : 0);
+        h *= 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * @param relativeName
+     * @param dirs
+     *            relative names of directories.
+     * @return true if the item is one of the directories or located below one
+     *         of them.
+     */
+    static boolean isBelow(String relativeName, Set<String> dirs) {
+        if (dirs.isEmpty()) {
+            return false;
+        }
+        if (dirs.contains(relativeName)) {
+            return true;
+        }
+        for (int i = relativeName.indexOf('/'); i > 0; i = relativeName
+            .indexOf('/', i + 1))
+        {
+            if (dirs.contains(relativeName.substring(0, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "ScanCheckpoint [created=" + created + ", completedDirs="
+            + completedDirs.size() + ", vanished=" + vanished.size()
+            + ", newFiles=" + newFiles.size() + ", changedFiles="
+            + changedFiles.size() + ", restoredFiles=" + restoredFiles.size()
+            + "]";
+    }
+}
@@ -50,12 +50,26 @@ public class ScanResult {
     Collection<FileInfo> deletedFiles;
     /** from, to */
     Map<FileInfo, FileInfo> movedFiles;
+    /** Directories that moved with all their files. from, to */
+    Map<FileInfo, FileInfo> movedDirectories;
     /**
      * Files that where marked deleted in the database but are available on disk
      * are collected here.
      */
     Collection<FileInfo> restoredFiles;
 
+    /**
+     * The directory stamps recorded by the scan. null if the folder does not
+     * use incremental scans.
+     */
+    Map<String, DirectoryStamps.Stamp> directoryStamps;
+
+    /**
+     * true if directories that did not change since the last scan were
+     * skipped.
+     */
+    private boolean incremental;
+
     /** files with potential problems in filenames (like 2 long or illegal chars) */
     private Map<FileInfo, List<Problem>> problemFiles;
     
@@ -77,6 +91,8 @@ public class ScanResult {
                 .synchronizedList(new ArrayList<FileInfo>());
             movedFiles = Collections
                 .synchronizedMap(new HashMap<FileInfo, FileInfo>());
+            movedDirectories = Collections
+                .synchronizedMap(new HashMap<FileInfo, FileInfo>());
             restoredFiles = Collections
                 .synchronizedList(new ArrayList<FileInfo>());
             problemFiles = Collections
@@ -115,6 +131,16 @@ public class ScanResult {
     // this.movedFiles = new HashMap<FileInfo, FileInfo>(movedFiles);
     // }
 
+    /**
+     * @return the directories that moved as a whole. The moves of the files
+     *         below are contained in {@link #getMovedFiles()} too. The content
+     *         hashes of the files below are taken over in one go when the
+     *         result is committed. from, to
+     */
+    public Map<FileInfo, FileInfo> getMovedDirectories() {
+        return Collections.unmodifiableMap(movedDirectories);
+    }
+
     public Collection<FileInfo> getNewFiles() {
         return Collections.unmodifiableCollection(newFiles);
     }
@@ -165,6 +191,19 @@ public class ScanResult {
         this.resultState = resultState;
     }
 
+    /**
+     * @return true if directories that did not change since the last scan
+     *         were skipped. Modified files in these directories are not
+     *         detected.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
     public void incrementTotalFilesCount() {
             totalFilesCount++;
     }
@@ -174,6 +213,8 @@ public class ScanResult {
             + ", Newfiles: " + newFiles.size() + ", changed files: "
             + changedFiles.size() + ", deleted files: " + deletedFiles.size()
             + " restoredFiles: " + restoredFiles.size() + ", movedFiles: "
-            + movedFiles.size() + ", problemFiles: " + problemFiles.size();
+            + movedFiles.size() + ", movedDirectories: "
+            + movedDirectories.size() + ", problemFiles: "
+            + problemFiles.size();
     }
 }
@@ -296,6 +296,16 @@ public class SyncProfile implements Serializable {
      * @return string representation of the profile config as a list of fields
      */
     public String getFieldList() {
+        String fieldList = getFieldList0();
+        if (configuration.isIncrementalScan()) {
+            // Only if set. Keeps the field list of other profiles unchanged.
+            fieldList += FIELD_LIST_DELIMITER
+                + configuration.getHoursBetweenFullScans();
+        }
+        return fieldList;
+    }
+
+    private String getFieldList0() {
         // Twice for backward compatibility. TRAC #1626
         return configuration.isAutoDownload()
             + FIELD_LIST_DELIMITER
@@ -472,11 +482,23 @@ public class SyncProfile implements Serializable {
         if (st.hasMoreTokens()) {
             instantSync = Boolean.parseBoolean(st.nextToken());
         }
+        int hoursBetweenFullScans = 0;
+        if (st.hasMoreTokens()) {
+            String hours = st.nextToken();
+            try {
+                hoursBetweenFullScans = Integer.parseInt(hours);
+            } catch (NumberFormatException e) {
+                Logger.getLogger(SyncProfile.class.getName()).warning(
+                    "Illegal hours between full scans '" + hours + "' in "
+                        + fieldList + ". Using 0: " + e);
+            }
+        }
 
         return retrieveSyncProfile(profileName, new SyncProfileConfiguration(
             autoDownloadFromFriends, autoDownloadFromOthers,
             syncDeletionWithFriends, syncDeletionWithOthers, timeBetweenScans,
-            dailySync, dailyHour, dailyDay, timeType, instantSync));
+            dailySync, dailyHour, dailyDay, timeType, instantSync,
+            hoursBetweenFullScans));
     }
 
     /**
@@ -554,6 +576,22 @@ public class SyncProfile implements Serializable {
         }
     }
 
+    /**
+     * @return true if scans may skip directories that did not change since the
+     *         last scan.
+     */
+    public boolean isIncrementalScan() {
+        return configuration.isIncrementalScan();
+    }
+
+    /**
+     * @return the hours between forced full scans if
+     *         {@link #isIncrementalScan()}.
+     */
+    public int getHoursBetweenFullScans() {
+        return configuration.getHoursBetweenFullScans();
+    }
+
     /**
      * @return true if new/update files should be automatically downloaded;
      */
@@ -129,6 +129,12 @@ public class SyncProfileConfiguration implements Serializable {
      */
     private final boolean instantSync;
 
+    /**
+     * The hours between full scans. Scans in between skip directories that
+     * did not change since the last scan. 0 = always do a full scan.
+     */
+    private final int hoursBetweenFullScans;
+
     /**
      * Simple construtor. Default values set for advanced configuration.
      * 
@@ -169,6 +175,34 @@ public class SyncProfileConfiguration implements Serializable {
         boolean dailySync, int dailyHour, int dailyDay, String regularTimeType,
         boolean instantSync)
     {
+        this(autoDownloadFromFriends, autoDownloadFromOthers,
+            syncDeletionWithFriends, syncDeletionWithOthers,
+            timeBetweenRegularScans, dailySync, dailyHour, dailyDay,
+            regularTimeType, instantSync, 0);
+    }
+
+    /**
+     * Full construtor including incremental scanning.
+     * 
+     * @param autoDownloadFromFriends
+     * @param autoDownloadFromOthers
+     * @param syncDeletionWithFriends
+     * @param syncDeletionWithOthers
+     * @param timeBetweenRegularScans
+     * @param dailySync
+     * @param dailyHour
+     * @param dailyDay
+     * @param regularTimeType
+     * @param instantSync
+     * @param hoursBetweenFullScans
+     *            0 = always do a full scan.
+     */
+    public SyncProfileConfiguration(boolean autoDownloadFromFriends,
+        boolean autoDownloadFromOthers, boolean syncDeletionWithFriends,
+        boolean syncDeletionWithOthers, int timeBetweenRegularScans,
+        boolean dailySync, int dailyHour, int dailyDay, String regularTimeType,
+        boolean instantSync, int hoursBetweenFullScans)
+    {
 
         Reject.ifBlank(regularTimeType, "Missing regularTimeType");
 
@@ -182,6 +216,7 @@ public class SyncProfileConfiguration implements Serializable {
         this.dailyDay = dailyDay;
         this.regularTimeType = regularTimeType;
         this.instantSync = instantSync;
+        this.hoursBetweenFullScans = Math.max(0, hoursBetweenFullScans);
     }
 
     /**
@@ -274,6 +309,23 @@ public class SyncProfileConfiguration implements Serializable {
         return regularTimeType;
     }
 
+    /**
+     * The hours between full scans. Scans in between skip directories that
+     * did not change since the last scan.
+     * 
+     * @return the hours or 0 if every scan is a full scan.
+     */
+    public int getHoursBetweenFullScans() {
+        return hoursBetweenFullScans;
+    }
+
+    /**
+     * @return true if scans may skip directories that did not change.
+     */
+    public boolean isIncrementalScan() {
+        return hoursBetweenFullScans > 0;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -289,6 +341,7 @@ public class SyncProfileConfiguration implements Serializable {
         result = prime * result + (syncDeletionWithFriends ? 1231 : 1237);
         result = prime * result + (syncDeletionWithOthers ? 1231 : 1237);
         result = prime * result + timeBetweenRegularScans;
+        result = prime * result + hoursBetweenFullScans;
         return result;
     }
 
@@ -324,6 +377,8 @@ public class SyncProfileConfiguration implements Serializable {
             return false;
         if (timeBetweenRegularScans != other.timeBetweenRegularScans)
             return false;
+        if (hoursBetweenFullScans != other.hoursBetweenFullScans)
+            return false;
         return true;
     }
 
@@ -340,6 +395,7 @@ public class SyncProfileConfiguration implements Serializable {
                 ", dailyDay=" + dailyDay +
                 ", regularTimeType='" + regularTimeType + '\'' +
                 ", instantSync=" + instantSync +
+                ", hoursBetweenFullScans=" + hoursBetweenFullScans +
                 '}';
     }
 }
\ No newline at end of file
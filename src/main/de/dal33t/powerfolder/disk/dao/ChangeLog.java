@@ -0,0 +1,154 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.dal33t.powerfolder.light.FileInfo;
+
+/**
+ * Bounded log of the latest modifications of one domain. Every modification
+ * has a generation number. The generations are increasing but not necessarily
+ * continuous, the counter may be shared among domains.
+ * <p>
+ * Only the latest {@link #CAPACITY} modifications are kept. Changes after an
+ * older generation can not be told anymore, the consumer has to process the
+ * whole domain in that case.
+ * <p>
+ * Not thread-safe. The owning domain has to synchronize modifications and
+ * queries.
+ */
+class ChangeLog {
+    static final int CAPACITY = 16 * 1024;
+
+    private final Deque<Change> changes = new ArrayDeque<Change>();
+
+    /**
+     * All changes after this generation are in the log.
+     */
+    private long completeAfter;
+    private long generation;
+
+    /**
+     * @param startGeneration
+     *            the generation of the empty domain.
+     */
+    ChangeLog(long startGeneration) {
+        completeAfter = startGeneration;
+        generation = startGeneration;
+    }
+
+    /**
+     * @param newGeneration
+     * @param fInfo
+     *            the stored item.
+     */
+    void stored(long newGeneration, FileInfo fInfo) {
+        add(new Change(newGeneration, fInfo, false));
+    }
+
+    /**
+     * @param newGeneration
+     * @param fInfo
+     *            the removed item.
+     */
+    void removed(long newGeneration, FileInfo fInfo) {
+        add(new Change(newGeneration, fInfo, true));
+    }
+
+    /**
+     * @return the generation of the last modification.
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param since
+     * @return the changes after the given generation. null if not available
+     *         anymore.
+     */
+    FileInfoChanges since(long since) {
+        if (since < completeAfter) {
+            return null;
+        }
+        // Newest change per name wins
+        Map<FileInfo, Change> latest = new LinkedHashMap<FileInfo, Change>();
+        for (Iterator<Change> it = changes.descendingIterator(); it.hasNext();)
+        {
+            Change change = it.next();
+            if (change.generation <= since) {
+                break;
+            }
+            if (!latest.containsKey(change.fInfo)) {
+                latest.put(change.fInfo, change);
+            }
+        }
+        List<FileInfo> stored = new ArrayList<FileInfo>(latest.size());
+        List<FileInfo> removed = new ArrayList<FileInfo>();
+        for (Change change : latest.values()) {
+            if (change.removed) {
+                removed.add(change.fInfo);
+            } else {
+                stored.add(change.fInfo);
+            }
+        }
+        return new FileInfoChanges(generation, stored, removed);
+    }
+
+    private void add(Change change) {
+        changes.add(change);
+        generation = change.generation;
+        if (changes.size() > CAPACITY) {
+            completeAfter = changes.poll().generation;
+        }
+    }
+
+    /**
+     * @return the number of logged changes.
+     */
+    int size() {
+        return changes.size();
+    }
+
+    private static class Change {
+        private final long generation;
+        private final FileInfo fInfo;
+        private final boolean removed;
+
+        private Change(long generation, FileInfo fInfo, boolean removed) {
+            this.generation = generation;
+            this.fInfo = fInfo;
+            this.removed = removed;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeLog [generation=" + generation + ", completeAfter="
+            + completeAfter + ", size=" + changes.size() + "]";
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import de.dal33t.powerfolder.light.FileInfo;
+
+/**
+ * Hierarchical path index of the {@link FileInfo}s of one domain. Lists the
+ * direct children or the whole subtree of a directory in time proportional to
+ * the result size.
+ * <p>
+ * Paths are compared case sensitive, like the path matching of
+ * {@link FileInfoDAO#findFiles(FileInfoCriteria)} always did. Directories that
+ * only exist as parent path of other items get a node too.
+ * <p>
+ * Not thread-safe. The owning domain has to synchronize modifications and
+ * queries.
+ */
+class DirectoryIndex {
+    private final Map<String, Node> nodes = new HashMap<String, Node>();
+
+    /**
+     * Adds the item to the node of its parent directory.
+     *
+     * @param fInfo
+     */
+    void add(FileInfo fInfo) {
+        String parent = getParentPath(fInfo.getRelativeName());
+        if (parent == null) {
+            return;
+        }
+        getOrCreateNode(parent).items.add(fInfo);
+    }
+
+    /**
+     * Removes the item from the node of its parent directory. Removes nodes
+     * that became empty.
+     *
+     * @param fInfo
+     *            the item to remove. <code>null</code> is ignored.
+     */
+    void remove(FileInfo fInfo) {
+        if (fInfo == null) {
+            return;
+        }
+        String parent = getParentPath(fInfo.getRelativeName());
+        if (parent == null) {
+            return;
+        }
+        Node node = nodes.get(parent);
+        if (node == null) {
+            return;
+        }
+        node.items.remove(fInfo);
+        removeIfEmpty(parent, node);
+    }
+
+    /**
+     * Replaces the previous instance of an item by a new one.
+     *
+     * @param previous
+     *            the previous item or <code>null</code> if not existing.
+     * @param fInfo
+     */
+    void replace(FileInfo previous, FileInfo fInfo) {
+        remove(previous);
+        add(fInfo);
+    }
+
+    /**
+     * Collects the items in a directory.
+     *
+     * @param path
+     *            the path of the directory without trailing slash. Empty
+     *            string for the base directory.
+     * @param recursive
+     *            true to also include the items of all subdirectories.
+     * @param visitor
+     *            receives the items. Stops collecting if it returns false.
+     */
+    void collect(String path, boolean recursive, FileInfoVisitor visitor) {
+        Node start = nodes.get(path);
+        if (start == null) {
+            return;
+        }
+        Deque<Node> queue = new ArrayDeque<Node>();
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            for (FileInfo fInfo : node.items) {
+                if (!visitor.visit(fInfo)) {
+                    return;
+                }
+            }
+            if (recursive) {
+                for (String subdir : node.subdirs) {
+                    Node subNode = nodes.get(subdir);
+                    if (subNode != null) {
+                        queue.add(subNode);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of directory nodes.
+     */
+    int countNodes() {
+        return nodes.size();
+    }
+
+    // Internals **************************************************************
+
+    private Node getOrCreateNode(String path) {
+        Node node = nodes.get(path);
+        if (node != null) {
+            return node;
+        }
+        node = new Node();
+        nodes.put(path, node);
+        String parent = getParentPath(path);
+        if (parent != null) {
+            getOrCreateNode(parent).subdirs.add(path);
+        }
+        return node;
+    }
+
+    private void removeIfEmpty(String path, Node node) {
+        while (node != null && node.items.isEmpty() && node.subdirs.isEmpty())
+        {
+            nodes.remove(path);
+            String parent = getParentPath(path);
+            if (parent == null) {
+                return;
+            }
+            node = nodes.get(parent);
+            if (node != null) {
+                node.subdirs.remove(path);
+            }
+            path = parent;
+        }
+    }
+
+    /**
+     * @param relativeName
+     * @return the path of the parent directory, empty string for items in the
+     *         base directory. <code>null</code> for the base directory itself.
+     */
+    private static String getParentPath(String relativeName) {
+        if (relativeName.length() == 0) {
+            return null;
+        }
+        int i = relativeName.lastIndexOf('/');
+        return i < 0 ? "" : relativeName.substring(0, i);
+    }
+
+    private static class Node {
+        private final Set<FileInfo> items = new HashSet<FileInfo>(4);
+        private final Set<String> subdirs = new HashSet<String>(4);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import de.dal33t.powerfolder.light.FileInfo;
+
+/**
+ * The changes of one domain of a {@link FileInfoDAO} after a given generation.
+ *
+ * @see FileInfoDAO#findChanges(String, long)
+ */
+public class FileInfoChanges {
+    private final long generation;
+    private final Collection<FileInfo> stored;
+    private final Collection<FileInfo> removed;
+
+    FileInfoChanges(long generation, Collection<FileInfo> stored,
+        Collection<FileInfo> removed)
+    {
+        this.generation = generation;
+        this.stored = Collections.unmodifiableCollection(stored);
+        this.removed = Collections.unmodifiableCollection(removed);
+    }
+
+    /**
+     * @return the generation of the domain these changes lead to. Use it for
+     *         the next call of {@link FileInfoDAO#findChanges(String, long)}.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the latest version of the items added or updated. Every name is
+     *         contained only once.
+     */
+    public Collection<FileInfo> getStored() {
+        return stored;
+    }
+
+    /**
+     * @return the items removed from the domain by
+     *         {@link FileInfoDAO#delete(String, FileInfo)}.
+     */
+    public Collection<FileInfo> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return true if nothing changed.
+     */
+    public boolean isEmpty() {
+        return stored.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "FileInfoChanges [generation=" + generation + ", stored="
+            + stored.size() + ", removed=" + removed.size() + "]";
+    }
+}
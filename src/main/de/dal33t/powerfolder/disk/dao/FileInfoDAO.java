@@ -209,4 +209,28 @@ public interface FileInfoDAO {
      * @return the total number of bytes in this domain that are in sync
      */
     long bytesInSync(String domain);
+
+    /**
+     * Every modification of a domain by {@link #store(String, Collection)} or
+     * {@link #delete(String, FileInfo)} gets a new, increasing generation
+     * number.
+     * 
+     * @param domain
+     * @return the generation of the last modification of the domain.
+     */
+    long getGeneration(String domain);
+
+    /**
+     * Finds the items stored or deleted after the given generation. Allows to
+     * process only the changes since the last look at the domain.
+     * 
+     * @param domain
+     * @param generation
+     *            a generation obtained by {@link #getGeneration(String)} or
+     *            {@link FileInfoChanges#getGeneration()}.
+     * @return the changes after the generation or <code>null</code> if they
+     *         are not available anymore. Process all items of the domain in
+     *         that case.
+     */
+    FileInfoChanges findChanges(String domain, long generation);
 }
\ No newline at end of file
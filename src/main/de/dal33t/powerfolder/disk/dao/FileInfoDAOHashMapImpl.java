@@ -7,7 +7,9 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import de.dal33t.powerfolder.Feature;
 import de.dal33t.powerfolder.disk.DiskItemFilter;
 import de.dal33t.powerfolder.disk.dao.FileInfoCriteria.Type;
 import de.dal33t.powerfolder.light.DirectoryInfo;
@@ -21,6 +23,12 @@ import de.dal33t.powerfolder.util.logging.Loggable;
 /**
  * A {@link FileInfoDAO} implementation based on fast, in-memory
  * {@link ConcurrentHashMap}s.
+ * <p>
+ * The statistics (counts and bytes in sync) are maintained incrementally on
+ * every modification. They get recalculated completely only after the
+ * {@link DiskItemFilter} or the set of domains changed. Enable
+ * {@link Feature#VERIFY_FILEINFO_DAO_STATS} to cross-check them against a full
+ * scan.
  * 
  * @author sprajc
  */
@@ -31,6 +39,22 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     private String selfDomain;
     private DiskItemFilter filter;
 
+    /**
+     * Guards the statistics of all domains and serializes all modifications.
+     */
+    private final Object statsLock = new Object();
+
+    /**
+     * The modification count of the filter the statistics have been calculated
+     * with. -1 if they have to be recalculated.
+     */
+    private int statsFilterModCount = -1;
+
+    /**
+     * The generation of the last modification of any domain.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
     public FileInfoDAOHashMapImpl(String selfDomain, DiskItemFilter filter) {
         super();
         this.selfDomain = selfDomain;
@@ -44,20 +68,14 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     {
         Domain d = getDomain(domain);
         if (excludeIgnored) {
-            int c = 0;
-            for (FileInfo fInfo : d.files.keySet()) {
-                if (filter.isRetained(fInfo) && !fInfo.isDeleted()) {
-                    c++;
+            synchronized (statsLock) {
+                ensureStats();
+                int c = d.nFiles + (includeDirs ? d.nDirs : 0);
+                if (Feature.VERIFY_FILEINFO_DAO_STATS.isEnabled()) {
+                    verifyStats("count", d, c, countScan(d, includeDirs));
                 }
+                return c;
             }
-            if (includeDirs) {
-                for (FileInfo dInfo : d.directories.keySet()) {
-                    if (filter.isRetained(dInfo) && !dInfo.isDeleted()) {
-                        c++;
-                    }
-                }
-            }
-            return c;
         } else {
             return d.files.size() + (includeDirs ? d.directories.size() : 0);
         }
@@ -67,44 +85,27 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         boolean excludeIgnored)
     {
         Domain d = getDomain(domain);
-        int c = 0;
-        for (FileInfo fInfo : d.files.values()) {
-            if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
-                continue;
-            }
-            FileInfo newestFileInfo = findNewestVersion(fInfo, domains.keySet());
-            if (inSync(fInfo, newestFileInfo)) {
-                c++;
-            }
-        }
-        if (includeDirs) {
-            for (FileInfo fInfo : d.directories.values()) {
-                if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
-                    continue;
-                }
-                FileInfo newestFileInfo = findNewestVersion(fInfo,
-                    domains.keySet());
-                if (inSync(fInfo, newestFileInfo)) {
-                    c++;
-                }
+        synchronized (statsLock) {
+            ensureStats();
+            int c = d.nFilesInSync + (includeDirs ? d.nDirsInSync : 0);
+            if (Feature.VERIFY_FILEINFO_DAO_STATS.isEnabled()) {
+                verifyStats("countInSync", d, c,
+                    countInSyncScan(d, includeDirs));
             }
+            return c;
         }
-        return c;
     }
 
     public long bytesInSync(String domain) {
         Domain d = getDomain(domain);
-        long bytes = 0;
-        for (FileInfo fInfo : d.files.values()) {
-            if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
-                continue;
-            }
-            FileInfo newestFileInfo = findNewestVersion(fInfo, domains.keySet());
-            if (inSync(fInfo, newestFileInfo)) {
-                bytes += fInfo.getSize();
+        synchronized (statsLock) {
+            ensureStats();
+            if (Feature.VERIFY_FILEINFO_DAO_STATS.isEnabled()) {
+                verifyStats("bytesInSync", d, d.bytesInSync,
+                    bytesInSyncScan(d));
             }
+            return d.bytesInSync;
         }
-        return bytes;
     }
 
     private static boolean inSync(FileInfo fileInfo, FileInfo newestFileInfo) {
@@ -120,23 +121,49 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     }
 
     public void delete(String domain, FileInfo info) {
-        if (info.isFile()) {
-            getDomain(domain).files.remove(info);
-        } else {
+        Domain d = getDomain(domain);
+        if (!info.isFile()) {
             logWarning("Deleting directory: " + info.toDetailString());
-            getDomain(domain).directories.remove(info);
+        }
+        synchronized (statsLock) {
+            boolean updateStats = isStatsMaintained();
+            if (updateStats) {
+                updateStats(info, -1);
+            }
+            synchronized (d) {
+                FileInfo removed;
+                if (info.isFile()) {
+                    removed = d.files.remove(info);
+                } else {
+                    removed = d.directories.remove(info);
+                }
+                if (removed != null) {
+                    d.indexRemoved(removed);
+                    d.changes.removed(generation.incrementAndGet(), removed);
+                }
+            }
+            if (updateStats) {
+                updateStats(info, 1);
+            }
         }
     }
 
     public void deleteDomain(String domain, int newInitialSize) {
         String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
-        domains.remove(theDomain);
-        if (newInitialSize > 0) {
-            domains.put(theDomain, new Domain(newInitialSize));
-            if (isFiner()) {
-                logFiner("Created new domain (" + theDomain
-                    + ") with initial capacity " + newInitialSize);
+        synchronized (statsLock) {
+            domains.remove(theDomain);
+            // Changes of the old domain are lost
+            generation.incrementAndGet();
+            if (newInitialSize > 0) {
+                domains.put(theDomain, new Domain(newInitialSize,
+                    generation.get()));
+                if (isFiner()) {
+                    logFiner("Created new domain (" + theDomain
+                        + ") with initial capacity " + newInitialSize);
+                }
             }
+            // Changes in sync state of all other domains
+            statsFilterModCount = -1;
         }
     }
 
@@ -193,7 +220,11 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     }
 
     public void stop() {
-        domains.clear();
+        synchronized (statsLock) {
+            domains.clear();
+            statsFilterModCount = -1;
+            generation.incrementAndGet();
+        }
     }
 
     public void store(String domain, FileInfo... infos) {
@@ -203,19 +234,39 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
     public void store(String domain, Collection<FileInfo> infos) {
         Domain d = getDomain(domain);
 
-        for (FileInfo fileInfo : infos) {
-            if (fileInfo.isFile()) {
-                d.files.put(fileInfo, fileInfo);
-                // Make sure not dir is left with name name.
-                d.directories.remove(fileInfo);
-            } else {
-                if (isFiner()) {
-                    logFiner("Storing directory: " + fileInfo.toDetailString());
+        synchronized (statsLock) {
+            boolean updateStats = isStatsMaintained();
+            for (FileInfo fileInfo : infos) {
+                if (updateStats) {
+                    updateStats(fileInfo, -1);
+                }
+                if (fileInfo.isFile()) {
+                    synchronized (d) {
+                        // Make sure not dir is left with name name.
+                        d.indexRemoved(d.directories.remove(fileInfo));
+                        d.indexStored(d.files.put(fileInfo, fileInfo),
+                            fileInfo);
+                        d.changes.stored(generation.incrementAndGet(),
+                            fileInfo);
+                    }
+                } else {
+                    if (isFiner()) {
+                        logFiner("Storing directory: "
+                            + fileInfo.toDetailString());
+                    }
+                    synchronized (d) {
+                        // Make sure not file is left with name name.
+                        d.indexRemoved(d.files.remove(fileInfo));
+                        d.indexStored(d.directories.put(
+                            (DirectoryInfo) fileInfo, (DirectoryInfo) fileInfo),
+                            fileInfo);
+                        d.changes.stored(generation.incrementAndGet(),
+                            fileInfo);
+                    }
+                }
+                if (updateStats) {
+                    updateStats(fileInfo, 1);
                 }
-                d.directories.put((DirectoryInfo) fileInfo,
-                    (DirectoryInfo) fileInfo);
-                // Make sure not file is left with name name.
-                d.files.remove(fileInfo);
             }
         }
     }
@@ -260,6 +311,20 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
             if (domain == null) {
                 continue;
             }
+            if (KeywordIndex.isIndexable(criteria.getKeyWords())) {
+                // Keyword search: Only visit the candidates from the index
+                if (!findByKeyWords(domain, path, criteria, items)) {
+                    return items;
+                }
+                continue;
+            }
+            if (path.length() > 0 || !recursive) {
+                // Directory listing: Only visit the items below path
+                if (!findInTree(domain, path, criteria, items)) {
+                    return items;
+                }
+                continue;
+            }
             if (criteria.getType() == Type.DIRECTORIES_ONLY
                 || criteria.getType() == Type.FILES_AND_DIRECTORIES)
             {
@@ -314,13 +379,273 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
         return items;
     }
 
+    public long getGeneration(String domain) {
+        Domain d = getDomain(domain);
+        synchronized (d) {
+            return d.changes.getGeneration();
+        }
+    }
+
+    public FileInfoChanges findChanges(String domain, long since) {
+        Domain d = getDomain(domain);
+        synchronized (d) {
+            return d.changes.since(since);
+        }
+    }
+
     public FileHistory getFileHistory(FileInfo fileInfo) {
         // TODO Auto-generated method stub
         return null;
     }
 
+    // Statistics *************************************************************
+
+    /**
+     * Recalculates the statistics of all domains if the filter changed since
+     * the last calculation. Caller has to hold {@link #statsLock}.
+     */
+    private void ensureStats() {
+        int filterModCount = filter.getModCount();
+        if (statsFilterModCount == filterModCount) {
+            return;
+        }
+        for (Domain d : domains.values()) {
+            d.clearStats();
+        }
+        for (Domain d : domains.values()) {
+            for (FileInfo fInfo : d.files.values()) {
+                countStats(d, fInfo, findNewestVersion(fInfo), 1);
+            }
+            for (FileInfo dInfo : d.directories.values()) {
+                countStats(d, dInfo, findNewestVersion(dInfo), 1);
+            }
+        }
+        statsFilterModCount = filterModCount;
+        if (isFiner()) {
+            logFiner("Statistics recalculated: " + domains);
+        }
+    }
+
+    /**
+     * @return true if the statistics should be updated incrementally. Caller
+     *         has to hold {@link #statsLock}.
+     */
+    private boolean isStatsMaintained() {
+        return statsFilterModCount >= 0
+            && statsFilterModCount == filter.getModCount();
+    }
+
+    /**
+     * Adds or subtracts the current state of the item in all domains to/from
+     * the statistics. Call with -1 before and with +1 after a modification.
+     * Caller has to hold {@link #statsLock}.
+     *
+     * @param fInfo
+     *            the modified item.
+     * @param sign
+     *            1 to add, -1 to subtract.
+     */
+    private void updateStats(FileInfo fInfo, int sign) {
+        FileInfo newestFileInfo = findNewestVersion(fInfo);
+        for (Domain d : domains.values()) {
+            FileInfo candidate = d.files.get(fInfo);
+            if (candidate == null) {
+                candidate = d.directories.get(fInfo);
+            }
+            countStats(d, candidate, newestFileInfo, sign);
+        }
+    }
+
+    private void countStats(Domain d, FileInfo fInfo,
+        FileInfo newestFileInfo, int sign)
+    {
+        if (fInfo == null || fInfo.isDeleted() || filter.isExcluded(fInfo)) {
+            return;
+        }
+        boolean inSync = newestFileInfo != null
+            && !newestFileInfo.isNewerThan(fInfo);
+        if (fInfo.isFile()) {
+            d.nFiles += sign;
+            if (inSync) {
+                d.nFilesInSync += sign;
+                d.bytesInSync += sign * fInfo.getSize();
+            }
+        } else {
+            d.nDirs += sign;
+            if (inSync) {
+                d.nDirsInSync += sign;
+            }
+        }
+    }
+
+    private FileInfo findNewestVersion(FileInfo info) {
+        return findNewestVersion(info, domains.keySet());
+    }
+
+    private void verifyStats(String what, Domain d, long value,
+        long scannedValue)
+    {
+        if (value != scannedValue) {
+            String msg = "Incremental " + what + " of " + d + " is " + value
+                + ", full scan found " + scannedValue;
+            logSevere(msg);
+            throw new IllegalStateException(msg);
+        }
+    }
+
+    private int countScan(Domain d, boolean includeDirs) {
+        int c = 0;
+        for (FileInfo fInfo : d.files.values()) {
+            if (filter.isRetained(fInfo) && !fInfo.isDeleted()) {
+                c++;
+            }
+        }
+        if (includeDirs) {
+            for (FileInfo dInfo : d.directories.values()) {
+                if (filter.isRetained(dInfo) && !dInfo.isDeleted()) {
+                    c++;
+                }
+            }
+        }
+        return c;
+    }
+
+    private int countInSyncScan(Domain d, boolean includeDirs) {
+        int c = 0;
+        for (FileInfo fInfo : d.files.values()) {
+            if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
+                continue;
+            }
+            FileInfo newestFileInfo = findNewestVersion(fInfo, domains.keySet());
+            if (inSync(fInfo, newestFileInfo)) {
+                c++;
+            }
+        }
+        if (includeDirs) {
+            for (FileInfo fInfo : d.directories.values()) {
+                if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
+                    continue;
+                }
+                FileInfo newestFileInfo = findNewestVersion(fInfo,
+                    domains.keySet());
+                if (inSync(fInfo, newestFileInfo)) {
+                    c++;
+                }
+            }
+        }
+        return c;
+    }
+
+    private long bytesInSyncScan(Domain d) {
+        long bytes = 0;
+        for (FileInfo fInfo : d.files.values()) {
+            if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
+                continue;
+            }
+            FileInfo newestFileInfo = findNewestVersion(fInfo, domains.keySet());
+            if (inSync(fInfo, newestFileInfo)) {
+                bytes += fInfo.getSize();
+            }
+        }
+        return bytes;
+    }
+
+
     // Internals **************************************************************
 
+    /**
+     * Collects the matching items below the path from the directory index.
+     *
+     * @return false if the maximum number of results has been reached.
+     */
+    private boolean findInTree(Domain domain, String path,
+        final FileInfoCriteria criteria, final Collection<FileInfo> items)
+    {
+        final boolean dirs = criteria.getType() == Type.DIRECTORIES_ONLY
+            || criteria.getType() == Type.FILES_AND_DIRECTORIES;
+        final boolean files = criteria.getType() == Type.FILES_ONLY
+            || criteria.getType() == Type.FILES_AND_DIRECTORIES;
+        final boolean[] full = new boolean[1];
+        String dirPath = path.endsWith("/") ? path.substring(0,
+            path.length() - 1) : path;
+        synchronized (domain) {
+            domain.tree.collect(dirPath, criteria.isRecursive(),
+                new FileInfoVisitor() {
+                    public boolean visit(FileInfo fInfo) {
+                        if (criteria.getMaxResults() > 0
+                            && items.size() >= criteria.getMaxResults())
+                        {
+                            full[0] = true;
+                            return false;
+                        }
+                        if (fInfo.isDiretory() ? !dirs : !files) {
+                            return true;
+                        }
+                        if (!items.contains(fInfo)
+                            && matches(fInfo, criteria.getKeyWords()))
+                        {
+                            items.add(fInfo);
+                        }
+                        return true;
+                    }
+                });
+        }
+        return !full[0];
+    }
+
+    /**
+     * Collects the matching items from the keyword index. Builds the index of
+     * the domain on first use.
+     *
+     * @return false if the maximum number of results has been reached.
+     */
+    private boolean findByKeyWords(Domain domain, final String path,
+        final FileInfoCriteria criteria, final Collection<FileInfo> items)
+    {
+        final boolean dirs = criteria.getType() == Type.DIRECTORIES_ONLY
+            || criteria.getType() == Type.FILES_AND_DIRECTORIES;
+        final boolean files = criteria.getType() == Type.FILES_ONLY
+            || criteria.getType() == Type.FILES_AND_DIRECTORIES;
+        final boolean[] full = new boolean[1];
+        synchronized (domain) {
+            if (domain.keywords == null) {
+                long start = System.currentTimeMillis();
+                domain.keywords = new KeywordIndex(domain.files.values());
+                for (DirectoryInfo dInfo : domain.directories.values()) {
+                    domain.keywords.add(dInfo);
+                }
+                if (isFine()) {
+                    logFine("Built keyword index of " + domain + " in "
+                        + (System.currentTimeMillis() - start) + "ms");
+                }
+            }
+            domain.keywords.collect(criteria.getKeyWords(),
+                new FileInfoVisitor() {
+                    public boolean visit(FileInfo fInfo) {
+                        if (criteria.getMaxResults() > 0
+                            && items.size() >= criteria.getMaxResults())
+                        {
+                            full[0] = true;
+                            return false;
+                        }
+                        if (fInfo.isDiretory() ? !dirs : !files) {
+                            return true;
+                        }
+                        if (!isInSubDir(fInfo, path, criteria.isRecursive())) {
+                            return true;
+                        }
+                        if (!items.contains(fInfo)
+                            && matches(fInfo, criteria.getKeyWords()))
+                        {
+                            items.add(fInfo);
+                        }
+                        return true;
+                    }
+                });
+        }
+        return !full[0];
+    }
+
     private Domain getDomain(String domain) {
         String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
         synchronized (domains) {
@@ -331,20 +656,17 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
             if (isFiner()) {
                 logFiner("Domain '" + theDomain + "' created");
             }
-            d = new Domain(500);
+            d = new Domain(500, generation.get());
             domains.put(theDomain, d);
             return d;
         }
     }
 
-    /*
-     * TODO: Performance optimization
-     */
     private boolean matches(FileInfo fInfo, Set<String> keyWords) {
         if (keyWords.isEmpty()) {
             return true;
         }
-        String lower = fInfo.getRelativeName().toLowerCase();
+        String lower = fInfo.getLowerCaseFilenameOnly();
         for (String keyWord : keyWords) {
             if (!lower.contains(keyWord)) {
                 return false;
@@ -368,13 +690,71 @@ public class FileInfoDAOHashMapImpl extends Loggable implements FileInfoDAO {
 
     private static class Domain {
 
+        /**
+         * Index of the items by directory. Guarded by the domain.
+         */
+        private final DirectoryIndex tree = new DirectoryIndex();
+        /**
+         * Index of the items by name trigrams. Built on first keyword search.
+         * Guarded by the domain.
+         */
+        private KeywordIndex keywords;
+        /**
+         * The latest modifications. Guarded by the domain.
+         */
+        private final ChangeLog changes;
         private final ConcurrentMap<FileInfo, FileInfo> files;
         private final ConcurrentMap<DirectoryInfo, DirectoryInfo> directories = Util
             .createConcurrentHashMap(4);
 
-        public Domain(int suggestedSize) {
+        // Statistics of the retained, not deleted items. Guarded by statsLock
+        private int nFiles;
+        private int nDirs;
+        private int nFilesInSync;
+        private int nDirsInSync;
+        private long bytesInSync;
+
+        public Domain(int suggestedSize, long startGeneration) {
             super();
             files = Util.createConcurrentHashMap(suggestedSize);
+            changes = new ChangeLog(startGeneration);
+        }
+
+        /**
+         * Removes an item from the indexes. Caller has to hold the domain.
+         *
+         * @param fInfo
+         *            the removed item. <code>null</code> is ignored.
+         */
+        private void indexRemoved(FileInfo fInfo) {
+            tree.remove(fInfo);
+            if (keywords != null) {
+                keywords.remove(fInfo);
+            }
+        }
+
+        /**
+         * Updates the indexes after an item has been stored. Caller has to
+         * hold the domain.
+         *
+         * @param previous
+         *            the replaced item or <code>null</code> if new.
+         * @param fInfo
+         *            the stored item.
+         */
+        private void indexStored(FileInfo previous, FileInfo fInfo) {
+            tree.replace(previous, fInfo);
+            if (keywords != null) {
+                keywords.add(fInfo);
+            }
+        }
+
+        private void clearStats() {
+            nFiles = 0;
+            nDirs = 0;
+            nFilesInSync = 0;
+            nDirsInSync = 0;
+            bytesInSync = 0;
         }
 
         public String toString() {
@@ -0,0 +1,1025 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.disk.dao.FileInfoCriteria.Type;
+import de.dal33t.powerfolder.light.DirectoryInfo;
+import de.dal33t.powerfolder.light.FileHistory;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.StringUtils;
+import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.logging.Loggable;
+
+/**
+ * A {@link FileInfoDAO} implementation for very large folders. Keeps the
+ * {@link FileInfo}s off the heap in a compact binary layout in memory-mapped
+ * files. {@link FileInfo} objects are only created on lookup.
+ * <p>
+ * Every domain has a record file and an open-addressing hash index file. A
+ * record holds the fields of one {@link FileInfo}. {@link MemberInfo}s and
+ * {@link FolderInfo}s are only referenced by their position in a shared table.
+ * Updates append a new record and mark the old one dead. The record file of a
+ * domain gets compacted if more than half of it is dead.
+ * <p>
+ * The files are temporary and deleted on {@link #stop()}. The persistent
+ * folder database is still written by the {@link de.dal33t.powerfolder.disk.Folder}.
+ * <p>
+ * Collections returned by {@link #findAllFiles(String)} and
+ * {@link #findAllDirectories(String)} are weakly consistent views. An item
+ * updated during the iteration may be returned twice.
+ */
+public class FileInfoDAOMappedImpl extends Loggable implements FileInfoDAO {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Size of one mapped segment of a record file. Records never span
+     * segments.
+     */
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    // Record layout
+    private static final int POS_LENGTH = 0;
+    private static final int POS_FLAGS = 4;
+    private static final int POS_VERSION = 5;
+    private static final int POS_SIZE = 9;
+    private static final int POS_MODIFIED_DATE = 17;
+    private static final int POS_MODIFIED_BY = 25;
+    private static final int POS_FOLDER = 29;
+    private static final int POS_NAME_LENGTH = 33;
+    private static final int HEADER_LENGTH = 37;
+
+    private static final byte FLAG_LIVE = 1;
+    private static final byte FLAG_DIRECTORY = 2;
+    private static final byte FLAG_DELETED = 4;
+
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+
+    /**
+     * Compact the record file if the dead bytes exceed this size and are more
+     * than the live bytes.
+     */
+    private static final long MIN_COMPACT_BYTES = 4 * 1024 * 1024;
+
+    private final ConcurrentMap<String, Domain> domains = Util
+        .createConcurrentHashMap(4);
+
+    private final Path baseDir;
+    private final String selfDomain;
+    private DiskItemFilter filter;
+
+    /**
+     * Shared tables of the referenced {@link MemberInfo}s and
+     * {@link FolderInfo}s. Guarded by itself for writes.
+     */
+    private final List<MemberInfo> memberTable = new CopyOnWriteArrayList<MemberInfo>();
+    private final Map<MemberInfo, Integer> memberIndex = new HashMap<MemberInfo, Integer>();
+    private final List<FolderInfo> folderTable = new CopyOnWriteArrayList<FolderInfo>();
+    private final Map<FolderInfo, Integer> folderIndex = new HashMap<FolderInfo, Integer>();
+
+    private int domainCounter;
+
+    /**
+     * The generation of the last modification of any domain.
+     */
+    private final AtomicLong changeGeneration = new AtomicLong();
+
+    /**
+     * @param baseDir
+     *            the directory to place the mapped files in. Existing content
+     *            gets deleted.
+     * @param selfDomain
+     * @param filter
+     */
+    public FileInfoDAOMappedImpl(Path baseDir, String selfDomain,
+        DiskItemFilter filter)
+    {
+        super();
+        Reject.ifNull(baseDir, "Base dir is null");
+        this.baseDir = baseDir;
+        this.selfDomain = selfDomain;
+        this.filter = filter;
+        if (filter == null) {
+            this.filter = new DiskItemFilter();
+        }
+        try {
+            Files.createDirectories(baseDir);
+            deleteFiles();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create directory for "
+                + "mapped file database: " + baseDir + ". " + e, e);
+        }
+    }
+
+    public int count(String domain, boolean includeDirs, boolean excludeIgnored)
+    {
+        Domain d = getDomain(domain);
+        if (!excludeIgnored) {
+            return d.nFiles + (includeDirs ? d.nDirs : 0);
+        }
+        int c = 0;
+        for (FileInfo fInfo : d.items(true, includeDirs)) {
+            if (filter.isRetained(fInfo) && !fInfo.isDeleted()) {
+                c++;
+            }
+        }
+        return c;
+    }
+
+    public int countInSync(String domain, boolean includeDirs,
+        boolean excludeIgnored)
+    {
+        Domain d = getDomain(domain);
+        int c = 0;
+        for (FileInfo fInfo : d.items(true, includeDirs)) {
+            if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
+                continue;
+            }
+            FileInfo newestFileInfo = findNewestVersion(fInfo, domains.keySet());
+            if (inSync(fInfo, newestFileInfo)) {
+                c++;
+            }
+        }
+        return c;
+    }
+
+    public long bytesInSync(String domain) {
+        Domain d = getDomain(domain);
+        long bytes = 0;
+        for (FileInfo fInfo : d.items(true, false)) {
+            if (filter.isExcluded(fInfo) || fInfo.isDeleted()) {
+                continue;
+            }
+            FileInfo newestFileInfo = findNewestVersion(fInfo, domains.keySet());
+            if (inSync(fInfo, newestFileInfo)) {
+                bytes += fInfo.getSize();
+            }
+        }
+        return bytes;
+    }
+
+    private static boolean inSync(FileInfo fileInfo, FileInfo newestFileInfo) {
+        if (newestFileInfo == null) {
+            // It is intended not to use Reject.ifNull for performance reasons.
+            throw new NullPointerException("Newest FileInfo not found of "
+                + fileInfo.toDetailString());
+        }
+        if (fileInfo == null) {
+            return false;
+        }
+        return !newestFileInfo.isNewerThan(fileInfo);
+    }
+
+    public void delete(String domain, FileInfo info) {
+        if (info.isDiretory()) {
+            logWarning("Deleting directory: " + info.toDetailString());
+        }
+        getDomain(domain).delete(info);
+    }
+
+    public void deleteDomain(String domain, int newInitialSize) {
+        String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
+        synchronized (domains) {
+            Domain d = domains.remove(theDomain);
+            if (d != null) {
+                d.close();
+            }
+            // Changes of the old domain are lost
+            changeGeneration.incrementAndGet();
+            if (newInitialSize > 0) {
+                domains.put(theDomain, createDomain(newInitialSize));
+                if (isFiner()) {
+                    logFiner("Created new domain (" + theDomain
+                        + ") with initial capacity " + newInitialSize);
+                }
+            }
+        }
+    }
+
+    public FileInfo find(FileInfo info, String domain) {
+        return getDomain(domain).find(info.getRelativeName());
+    }
+
+    @Deprecated
+    @SuppressWarnings("unchecked")
+    public Collection<FileInfo> findAllFiles(String domain) {
+        return (Collection<FileInfo>) getDomain(domain).items(true, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Collection<DirectoryInfo> findAllDirectories(String domain) {
+        return (Collection<DirectoryInfo>) getDomain(domain).items(false,
+            true);
+    }
+
+    public FileInfo findNewestVersion(FileInfo info, String... domainStrings) {
+        return findNewestVersion(info, Arrays.asList(domainStrings));
+    }
+
+    private FileInfo findNewestVersion(FileInfo info,
+        Collection<String> domainStrings)
+    {
+        FileInfo newestVersion = null;
+        for (String domain : domainStrings) {
+            FileInfo candidateFile = getDomain(domain).find(
+                info.getRelativeName());
+            if (candidateFile == null) {
+                continue;
+            }
+            if (!candidateFile.isValid()) {
+                continue;
+            }
+            // Check if remote file in newer
+            if (newestVersion == null
+                || candidateFile.isNewerThan(newestVersion))
+            {
+                newestVersion = candidateFile;
+            }
+        }
+        return newestVersion;
+    }
+
+    public void stop() {
+        synchronized (domains) {
+            for (Domain d : domains.values()) {
+                d.close();
+            }
+            domains.clear();
+            changeGeneration.incrementAndGet();
+        }
+        try {
+            deleteFiles();
+            Files.deleteIfExists(baseDir);
+        } catch (IOException e) {
+            logFine("Unable to delete mapped file database at " + baseDir
+                + ". " + e);
+        }
+    }
+
+    public void store(String domain, FileInfo... infos) {
+        store(domain, Arrays.asList(infos));
+    }
+
+    public void store(String domain, Collection<FileInfo> infos) {
+        Domain d = getDomain(domain);
+        for (FileInfo fileInfo : infos) {
+            if (isFiner() && fileInfo.isDiretory()) {
+                logFiner("Storing directory: " + fileInfo.toDetailString());
+            }
+            d.store(fileInfo);
+        }
+    }
+
+    @Deprecated
+    public Collection<FileInfo> findInDirectory(String domainStr,
+        DirectoryInfo directoryInfo, boolean recursive)
+    {
+        FileInfoCriteria crit = new FileInfoCriteria();
+        crit.addDomain(domainStr);
+        crit.setPath(directoryInfo);
+        crit.setRecursive(recursive);
+        return findFiles(crit);
+    }
+
+    @Deprecated
+    public Collection<FileInfo> findInDirectory(String domainStr, String path,
+        boolean recursive)
+    {
+        FileInfoCriteria crit = new FileInfoCriteria();
+        crit.addDomain(domainStr);
+        crit.setPath(path);
+        crit.setRecursive(recursive);
+        return findFiles(crit);
+    }
+
+    public Collection<FileInfo> findFiles(FileInfoCriteria criteria) {
+        Reject.ifTrue(criteria.getDomains().isEmpty(),
+            "No domains/members selected in criteria");
+        String path = criteria.getPath();
+        if (path == null) {
+            path = "";
+        }
+        if (path.equals("/")) {
+            path = "";
+        }
+        if (path.length() > 0 && !path.endsWith("/")) {
+            path += "/";
+        }
+        boolean recursive = criteria.isRecursive();
+        boolean files = criteria.getType() == Type.FILES_ONLY
+            || criteria.getType() == Type.FILES_AND_DIRECTORIES;
+        boolean dirs = criteria.getType() == Type.DIRECTORIES_ONLY
+            || criteria.getType() == Type.FILES_AND_DIRECTORIES;
+        Collection<FileInfo> items = new HashSet<FileInfo>();
+        for (String domainStr : criteria.getDomains()) {
+            Domain domain = getDomain(domainStr);
+            for (FileInfo fInfo : domain.items(files, dirs)) {
+                if (criteria.getMaxResults() > 0
+                    && items.size() >= criteria.getMaxResults())
+                {
+                    return items;
+                }
+                if (!isInSubDir(fInfo, path, recursive)) {
+                    continue;
+                }
+                if (fInfo.isDiretory()
+                    && Util.equalsRelativeName(fInfo.getRelativeName(), path))
+                {
+                    continue;
+                }
+                if (!items.contains(fInfo)
+                    && matches(fInfo, criteria.getKeyWords()))
+                {
+                    items.add(fInfo);
+                }
+            }
+        }
+        return items;
+    }
+
+    public long getGeneration(String domain) {
+        return getDomain(domain).getChangeGeneration();
+    }
+
+    public FileInfoChanges findChanges(String domain, long since) {
+        return getDomain(domain).findChanges(since);
+    }
+
+    public FileHistory getFileHistory(FileInfo fileInfo) {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "FileInfoDAOMappedImpl " + baseDir + " " + domains;
+    }
+
+    // Internals **************************************************************
+
+    private Domain getDomain(String domain) {
+        String theDomain = StringUtils.isBlank(domain) ? selfDomain : domain;
+        Domain d = domains.get(theDomain);
+        if (d != null) {
+            return d;
+        }
+        synchronized (domains) {
+            d = domains.get(theDomain);
+            if (d != null) {
+                return d;
+            }
+            if (isFiner()) {
+                logFiner("Domain '" + theDomain + "' created");
+            }
+            d = createDomain(500);
+            domains.put(theDomain, d);
+            return d;
+        }
+    }
+
+    private Domain createDomain(int suggestedSize) {
+        try {
+            return new Domain(domainCounter++, suggestedSize);
+        } catch (IOException e) {
+            throw new IllegalStateException(
+                "Unable to create mapped file database domain in " + baseDir
+                    + ". " + e, e);
+        }
+    }
+
+    private void deleteFiles() throws IOException {
+        if (Files.notExists(baseDir)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseDir))
+        {
+            for (Path file : stream) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // Still mapped on some platforms.
+                    logFiner("Unable to delete " + file + ". " + e);
+                }
+            }
+        }
+    }
+
+    private int memberRef(MemberInfo mInfo) {
+        if (mInfo == null) {
+            return -1;
+        }
+        synchronized (memberTable) {
+            Integer ref = memberIndex.get(mInfo);
+            if (ref == null) {
+                ref = memberTable.size();
+                memberTable.add(mInfo);
+                memberIndex.put(mInfo, ref);
+            }
+            return ref;
+        }
+    }
+
+    private int folderRef(FolderInfo foInfo) {
+        synchronized (folderTable) {
+            Integer ref = folderIndex.get(foInfo);
+            if (ref == null) {
+                ref = folderTable.size();
+                folderTable.add(foInfo);
+                folderIndex.put(foInfo, ref);
+            }
+            return ref;
+        }
+    }
+
+    private static boolean matches(FileInfo fInfo, Set<String> keyWords) {
+        if (keyWords.isEmpty()) {
+            return true;
+        }
+        String lower = fInfo.getLowerCaseFilenameOnly();
+        for (String keyWord : keyWords) {
+            if (!lower.contains(keyWord)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isInSubDir(FileInfo fInfo, String path,
+        boolean recursive)
+    {
+        if (!fInfo.getRelativeName().startsWith(path)) {
+            return false;
+        }
+        if (recursive) {
+            return true;
+        }
+        int offset = path.length() + 1;
+        int i = fInfo.getRelativeName().indexOf('/', offset);
+        // No other subdirectory at end.
+        return i < 0;
+    }
+
+    /**
+     * @return the 64 bit FNV-1a hash of the relative name. Case insensitive if
+     *         {@link FileInfo#IGNORE_CASE}.
+     */
+    private static long hash(String relativeName) {
+        String name = FileInfo.IGNORE_CASE
+            ? relativeName.toLowerCase()
+            : relativeName;
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        // Never collide with the markers of empty slots.
+        return h == EMPTY || h == TOMBSTONE ? 1 : h;
+    }
+
+    private static int nextPowerOfTwo(int n) {
+        int c = 16;
+        while (c < n) {
+            c <<= 1;
+        }
+        return c;
+    }
+
+    /**
+     * The append-only record file of one domain, mapped in segments.
+     */
+    private static class Records {
+        private final Path file;
+        private final FileChannel channel;
+        private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<MappedByteBuffer>();
+        private volatile long end;
+
+        Records(Path file) throws IOException {
+            this.file = file;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        }
+
+        /**
+         * @return the offset to write a record of the given length at.
+         */
+        long allocate(int length) throws IOException {
+            Reject.ifTrue(length > SEGMENT_SIZE, "Record too large: "
+                + length);
+            long offset = end;
+            int segment = (int) (offset / SEGMENT_SIZE);
+            int pos = (int) (offset % SEGMENT_SIZE);
+            if (pos + length > SEGMENT_SIZE) {
+                // Skip rest of the segment. Zero length marks the gap.
+                segment++;
+                pos = 0;
+            }
+            while (segments.size() <= segment) {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE,
+                    (long) segments.size() * SEGMENT_SIZE, SEGMENT_SIZE));
+            }
+            return (long) segment * SEGMENT_SIZE + pos;
+        }
+
+        ByteBuffer segment(long offset) {
+            return segments.get((int) (offset / SEGMENT_SIZE));
+        }
+
+        static int pos(long offset) {
+            return (int) (offset % SEGMENT_SIZE);
+        }
+
+        /**
+         * @return the offset of the next record after the given offset or -1
+         *         if at end.
+         */
+        long next(long offset) {
+            int pos = pos(offset);
+            long next = offset + segment(offset).getInt(pos + POS_LENGTH);
+            return skipGap(next);
+        }
+
+        /**
+         * @return the given offset or the start of the next segment if the
+         *         offset points to the unused rest of a segment. -1 if at end
+         */
+        long skipGap(long offset) {
+            long theEnd = end;
+            if (offset >= theEnd) {
+                return -1;
+            }
+            int pos = pos(offset);
+            if (pos + HEADER_LENGTH > SEGMENT_SIZE
+                || segment(offset).getInt(pos + POS_LENGTH) == 0)
+            {
+                long nextSegment = (offset / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+                return nextSegment < theEnd ? nextSegment : -1;
+            }
+            return offset;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Still mapped on some platforms.
+            }
+        }
+    }
+
+    /**
+     * All records of one member/domain.
+     */
+    private class Domain {
+        private final int id;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private int generation;
+        private volatile Records records;
+        private Path indexFile;
+        private LongBuffer index;
+        private int capacity;
+        private int usedSlots;
+        private volatile int nFiles;
+        private volatile int nDirs;
+        private long liveBytes;
+        private long deadBytes;
+        private final ChangeLog changes;
+
+        Domain(int id, int suggestedSize) throws IOException {
+            this.id = id;
+            changes = new ChangeLog(changeGeneration.get());
+            records = new Records(baseDir.resolve("domain-" + id + "-"
+                + generation + ".records"));
+            createIndex(nextPowerOfTwo(suggestedSize * 2));
+        }
+
+        private void createIndex(int newCapacity) throws IOException {
+            Path file = baseDir.resolve("domain-" + id + "-" + generation
+                + "-" + newCapacity + ".index");
+            LongBuffer newIndex;
+            try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                newIndex = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) newCapacity * 16).asLongBuffer();
+            }
+            if (indexFile != null) {
+                try {
+                    Files.deleteIfExists(indexFile);
+                } catch (IOException e) {
+                    // Still mapped on some platforms.
+                }
+            }
+            indexFile = file;
+            index = newIndex;
+            capacity = newCapacity;
+            usedSlots = 0;
+        }
+
+        // Index ***********************************************************
+
+        /**
+         * @return the slot holding the record with the given name or -1
+         */
+        private int findSlot(String relativeName, long hash) {
+            int mask = capacity - 1;
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            for (int i = 0; i < capacity; i++) {
+                long ref = index.get(slot * 2 + 1);
+                if (ref == EMPTY) {
+                    return -1;
+                }
+                if (ref != TOMBSTONE && index.get(slot * 2) == hash
+                    && Util.equalsRelativeName(relativeName,
+                        readName(ref - 1)))
+                {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void insertSlot(long hash, long offset) {
+            int mask = capacity - 1;
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (true) {
+                long ref = index.get(slot * 2 + 1);
+                if (ref == EMPTY || ref == TOMBSTONE) {
+                    if (ref == EMPTY) {
+                        usedSlots++;
+                    }
+                    index.put(slot * 2, hash);
+                    index.put(slot * 2 + 1, offset + 1);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void ensureCapacity() throws IOException {
+            if ((usedSlots + 1) * 10L < capacity * 6L) {
+                return;
+            }
+            int live = nFiles + nDirs;
+            LongBuffer oldIndex = index;
+            int oldCapacity = capacity;
+            createIndex(nextPowerOfTwo((live + 1) * 3));
+            for (int i = 0; i < oldCapacity; i++) {
+                long ref = oldIndex.get(i * 2 + 1);
+                if (ref != EMPTY && ref != TOMBSTONE) {
+                    insertSlot(oldIndex.get(i * 2), ref - 1);
+                }
+            }
+        }
+
+        // Records *********************************************************
+
+        private String readName(long offset) {
+            return readName(records, offset);
+        }
+
+        private String readName(Records recs, long offset) {
+            ByteBuffer seg = recs.segment(offset).duplicate();
+            int pos = Records.pos(offset);
+            int nameLength = seg.getInt(pos + POS_NAME_LENGTH);
+            byte[] name = new byte[nameLength];
+            seg.position(pos + HEADER_LENGTH);
+            seg.get(name);
+            return new String(name, UTF8);
+        }
+
+        private FileInfo read(Records recs, long offset) {
+            ByteBuffer seg = recs.segment(offset);
+            int pos = Records.pos(offset);
+            byte flags = seg.get(pos + POS_FLAGS);
+            int memberRef = seg.getInt(pos + POS_MODIFIED_BY);
+            MemberInfo modifiedBy = memberRef >= 0 ? memberTable
+                .get(memberRef) : null;
+            FolderInfo foInfo = folderTable.get(seg.getInt(pos + POS_FOLDER));
+            return FileInfoFactory.unmarshallFile(foInfo,
+                readName(recs, offset), seg.getLong(pos + POS_SIZE),
+                modifiedBy, new Date(seg.getLong(pos + POS_MODIFIED_DATE)),
+                seg.getInt(pos + POS_VERSION), (flags & FLAG_DELETED) != 0,
+                (flags & FLAG_DIRECTORY) != 0);
+        }
+
+        private long write(FileInfo fInfo) throws IOException {
+            byte[] name = fInfo.getRelativeName().getBytes(UTF8);
+            int length = HEADER_LENGTH + name.length;
+            long offset = records.allocate(length);
+            ByteBuffer seg = records.segment(offset).duplicate();
+            int pos = Records.pos(offset);
+            byte flags = FLAG_LIVE;
+            if (fInfo.isDiretory()) {
+                flags |= FLAG_DIRECTORY;
+            }
+            if (fInfo.isDeleted()) {
+                flags |= FLAG_DELETED;
+            }
+            seg.put(pos + POS_FLAGS, flags);
+            seg.putInt(pos + POS_VERSION, fInfo.getVersion());
+            seg.putLong(pos + POS_SIZE, fInfo.getSize());
+            seg.putLong(pos + POS_MODIFIED_DATE, fInfo.getModifiedDate()
+                .getTime());
+            seg.putInt(pos + POS_MODIFIED_BY,
+                memberRef(fInfo.getModifiedBy()));
+            seg.putInt(pos + POS_FOLDER, folderRef(fInfo.getFolderInfo()));
+            seg.putInt(pos + POS_NAME_LENGTH, name.length);
+            seg.position(pos + HEADER_LENGTH);
+            seg.put(name);
+            // Length last: Makes the record visible to iterators.
+            seg.putInt(pos + POS_LENGTH, length);
+            records.end = offset + length;
+            liveBytes += length;
+            return offset;
+        }
+
+        private void kill(long offset) {
+            ByteBuffer seg = records.segment(offset);
+            int pos = Records.pos(offset);
+            byte flags = seg.get(pos + POS_FLAGS);
+            seg.put(pos + POS_FLAGS, (byte) (flags & ~FLAG_LIVE));
+            int length = seg.getInt(pos + POS_LENGTH);
+            liveBytes -= length;
+            deadBytes += length;
+            if ((flags & FLAG_DIRECTORY) != 0) {
+                nDirs--;
+            } else {
+                nFiles--;
+            }
+        }
+
+        private boolean isDirectory(long offset) {
+            return (records.segment(offset).get(
+                Records.pos(offset) + POS_FLAGS) & FLAG_DIRECTORY) != 0;
+        }
+
+        /**
+         * Rewrites the live records into a new record file and index.
+         */
+        private void compact() throws IOException {
+            Records oldRecords = records;
+            generation++;
+            records = new Records(baseDir.resolve("domain-" + id + "-"
+                + generation + ".records"));
+            int live = nFiles + nDirs;
+            createIndex(nextPowerOfTwo((live + 1) * 3));
+            liveBytes = 0;
+            deadBytes = 0;
+            long offset = oldRecords.skipGap(0);
+            while (offset >= 0) {
+                ByteBuffer seg = oldRecords.segment(offset);
+                int pos = Records.pos(offset);
+                if ((seg.get(pos + POS_FLAGS) & FLAG_LIVE) != 0) {
+                    FileInfo fInfo = read(oldRecords, offset);
+                    insertSlot(hash(fInfo.getRelativeName()), write(fInfo));
+                }
+                offset = oldRecords.next(offset);
+            }
+            oldRecords.close();
+            if (isFiner()) {
+                logFiner("Compacted domain " + id + ": " + this);
+            }
+        }
+
+        // Operations ******************************************************
+
+        FileInfo find(String relativeName) {
+            lock.readLock().lock();
+            try {
+                int slot = findSlot(relativeName, hash(relativeName));
+                if (slot < 0) {
+                    return null;
+                }
+                return read(records, index.get(slot * 2 + 1) - 1);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void store(FileInfo fInfo) {
+            String name = fInfo.getRelativeName();
+            long hash = hash(name);
+            lock.writeLock().lock();
+            try {
+                int slot = findSlot(name, hash);
+                if (slot >= 0) {
+                    kill(index.get(slot * 2 + 1) - 1);
+                    index.put(slot * 2 + 1, write(fInfo) + 1);
+                } else {
+                    ensureCapacity();
+                    insertSlot(hash, write(fInfo));
+                }
+                if (fInfo.isDiretory()) {
+                    nDirs++;
+                } else {
+                    nFiles++;
+                }
+                changes.stored(changeGeneration.incrementAndGet(), fInfo);
+                if (deadBytes > MIN_COMPACT_BYTES && deadBytes > liveBytes) {
+                    compact();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to store "
+                    + fInfo.toDetailString() + " in " + records.file + ". "
+                    + e, e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void delete(FileInfo fInfo) {
+            String name = fInfo.getRelativeName();
+            lock.writeLock().lock();
+            try {
+                int slot = findSlot(name, hash(name));
+                if (slot < 0) {
+                    return;
+                }
+                long offset = index.get(slot * 2 + 1) - 1;
+                if (isDirectory(offset) != fInfo.isDiretory()) {
+                    return;
+                }
+                FileInfo removed = read(records, offset);
+                kill(offset);
+                index.put(slot * 2 + 1, TOMBSTONE);
+                changes.removed(changeGeneration.incrementAndGet(), removed);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        long getChangeGeneration() {
+            lock.readLock().lock();
+            try {
+                return changes.getGeneration();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        FileInfoChanges findChanges(long since) {
+            lock.readLock().lock();
+            try {
+                return changes.since(since);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void close() {
+            lock.writeLock().lock();
+            try {
+                records.close();
+                if (indexFile != null) {
+                    try {
+                        Files.deleteIfExists(indexFile);
+                    } catch (IOException e) {
+                        // Still mapped on some platforms.
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * @return a weakly consistent view of the live items of this domain.
+         */
+        Collection<? extends FileInfo> items(final boolean files,
+            final boolean dirs)
+        {
+            return new AbstractCollection<FileInfo>() {
+                @Override
+                public Iterator<FileInfo> iterator() {
+                    return new ItemIterator(files, dirs);
+                }
+
+                @Override
+                public int size() {
+                    return (files ? nFiles : 0) + (dirs ? nDirs : 0);
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "Domain: " + nFiles + " files, " + nDirs + " dirs, "
+                + liveBytes + " live bytes, " + deadBytes + " dead bytes";
+        }
+
+        private class ItemIterator implements Iterator<FileInfo> {
+            private final boolean files;
+            private final boolean dirs;
+            private final Records recs;
+            private long offset;
+            private FileInfo next;
+
+            ItemIterator(boolean files, boolean dirs) {
+                this.files = files;
+                this.dirs = dirs;
+                lock.readLock().lock();
+                try {
+                    recs = records;
+                    offset = recs.skipGap(0);
+                } finally {
+                    lock.readLock().unlock();
+                }
+                advance();
+            }
+
+            private void advance() {
+                next = null;
+                lock.readLock().lock();
+                try {
+                    while (next == null && offset >= 0) {
+                        ByteBuffer seg = recs.segment(offset);
+                        byte flags = seg.get(Records.pos(offset) + POS_FLAGS);
+                        boolean dir = (flags & FLAG_DIRECTORY) != 0;
+                        if ((flags & FLAG_LIVE) != 0
+                            && (dir ? dirs : files))
+                        {
+                            next = read(recs, offset);
+                        }
+                        offset = recs.next(offset);
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public FileInfo next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                FileInfo result = next;
+                advance();
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException(
+                    "Read only collection");
+            }
+        }
+    }
+}
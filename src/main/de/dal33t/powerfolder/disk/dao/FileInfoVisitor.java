@@ -0,0 +1,33 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import de.dal33t.powerfolder.light.FileInfo;
+
+/**
+ * Receives the items collected from an index of a {@link FileInfoDAO}.
+ */
+interface FileInfoVisitor {
+    /**
+     * @param fInfo
+     * @return true to continue, false to stop collecting.
+     */
+    boolean visit(FileInfo fInfo);
+}
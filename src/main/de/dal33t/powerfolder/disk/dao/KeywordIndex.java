@@ -0,0 +1,222 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.dal33t.powerfolder.light.FileInfo;
+
+/**
+ * Inverted trigram index over the lower case relative names of the
+ * {@link FileInfo}s of one domain. Finds the candidates for a keyword search
+ * without looking at every item.
+ * <p>
+ * A keyword is contained in a name only if all trigrams of the keyword are
+ * contained in the name. The candidates are taken from the shortest posting
+ * list of all keyword trigrams and must still be checked against the
+ * keywords. Keywords shorter than {@link #MIN_KEYWORD_LENGTH} can not be
+ * looked up.
+ * <p>
+ * Every name gets an id. Ids of removed items are not reused, their postings
+ * stay until the index gets rebuilt because more than half of the ids are
+ * dead.
+ * <p>
+ * Not thread-safe. The owning domain has to synchronize modifications and
+ * queries.
+ */
+class KeywordIndex {
+    static final int MIN_KEYWORD_LENGTH = 3;
+
+    /**
+     * Do not rebuild small indexes.
+     */
+    private static final int MIN_REBUILD_IDS = 1024;
+
+    private final Map<FileInfo, Integer> ids = new HashMap<FileInfo, Integer>();
+    /**
+     * id -> item. null if removed.
+     */
+    private final List<FileInfo> items = new ArrayList<FileInfo>();
+    private final Map<Long, Postings> postings = new HashMap<Long, Postings>();
+
+    /**
+     * @param fInfos
+     *            the initial content
+     */
+    KeywordIndex(Collection<? extends FileInfo> fInfos) {
+        for (FileInfo fInfo : fInfos) {
+            add(fInfo);
+        }
+    }
+
+    /**
+     * Adds an item or replaces an item with the same name.
+     *
+     * @param fInfo
+     */
+    void add(FileInfo fInfo) {
+        Integer id = ids.get(fInfo);
+        if (id != null) {
+            // Same name, same trigrams.
+            items.set(id, fInfo);
+            return;
+        }
+        id = items.size();
+        items.add(fInfo);
+        ids.put(fInfo, id);
+        String name = fInfo.getLowerCaseFilenameOnly();
+        Set<Long> trigrams = new HashSet<Long>(name.length());
+        for (int i = 0; i + MIN_KEYWORD_LENGTH <= name.length(); i++) {
+            Long trigram = trigram(name, i);
+            if (!trigrams.add(trigram)) {
+                continue;
+            }
+            Postings p = postings.get(trigram);
+            if (p == null) {
+                p = new Postings();
+                postings.put(trigram, p);
+            }
+            p.add(id);
+        }
+    }
+
+    /**
+     * @param fInfo
+     *            the item to remove. <code>null</code> is ignored.
+     */
+    void remove(FileInfo fInfo) {
+        if (fInfo == null) {
+            return;
+        }
+        Integer id = ids.remove(fInfo);
+        if (id == null) {
+            return;
+        }
+        items.set(id, null);
+        if (items.size() > MIN_REBUILD_IDS && ids.size() < items.size() / 2)
+        {
+            rebuild();
+        }
+    }
+
+    /**
+     * Collects the items that possibly contain all keywords.
+     *
+     * @param keyWords
+     *            the lower case keywords.
+     * @param visitor
+     *            receives the candidates. Stops collecting if it returns
+     *            false.
+     * @return false if none of the keywords can be looked up in the index.
+     *         Nothing got collected in that case.
+     */
+    boolean collect(Collection<String> keyWords, FileInfoVisitor visitor) {
+        Postings shortest = null;
+        boolean indexed = false;
+        for (String keyWord : keyWords) {
+            for (int i = 0; i + MIN_KEYWORD_LENGTH <= keyWord.length(); i++) {
+                indexed = true;
+                Postings p = postings.get(trigram(keyWord, i));
+                if (p == null) {
+                    // No name contains this trigram.
+                    return true;
+                }
+                if (shortest == null || p.size < shortest.size) {
+                    shortest = p;
+                }
+            }
+        }
+        if (!indexed) {
+            return false;
+        }
+        for (int i = 0; i < shortest.size; i++) {
+            FileInfo fInfo = items.get(shortest.ids[i]);
+            if (fInfo != null && !visitor.visit(fInfo)) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param keyWords
+     * @return true if at least one of the keywords can be looked up in the
+     *         index.
+     */
+    static boolean isIndexable(Collection<String> keyWords) {
+        for (String keyWord : keyWords) {
+            if (keyWord.length() >= MIN_KEYWORD_LENGTH) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of indexed items.
+     */
+    int size() {
+        return ids.size();
+    }
+
+    // Internals **************************************************************
+
+    private void rebuild() {
+        List<FileInfo> live = new ArrayList<FileInfo>(ids.size());
+        for (FileInfo fInfo : items) {
+            if (fInfo != null) {
+                live.add(fInfo);
+            }
+        }
+        ids.clear();
+        items.clear();
+        postings.clear();
+        for (FileInfo fInfo : live) {
+            add(fInfo);
+        }
+    }
+
+    private static Long trigram(String s, int offset) {
+        return Long.valueOf(((long) s.charAt(offset) << 32)
+            | ((long) s.charAt(offset + 1) << 16) | s.charAt(offset + 2));
+    }
+
+    /**
+     * Growable list of item ids.
+     */
+    private static class Postings {
+        private int[] ids = new int[2];
+        private int size;
+
+        private void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+}
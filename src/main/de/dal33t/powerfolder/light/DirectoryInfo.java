@@ -19,11 +19,9 @@
  */
 package de.dal33t.powerfolder.light;
 
-import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Date;
 
-import de.dal33t.powerfolder.util.Reject;
-
 /**
  * A lightweight object representing an actual directory in the PowerFolder.
  * <p>
@@ -119,13 +117,13 @@ public class DirectoryInfo extends FileInfo {
     }
 
     /**
-     * @param diskFile
-     *            the file on disk.
+     * @param attrs
+     *            the attributes of the file on disk or null if the file does
+     *            not exist.
      * @return true if the fileinfo is in sync with the file on disk.
      */
-    public boolean inSyncWithDisk(Path diskFile) {
-        Reject.ifNull(diskFile, "Diskfile is null");
-        return inSyncWithDisk0(diskFile, true);
+    public boolean inSyncWithDisk(BasicFileAttributes attrs) {
+        return inSyncWithDisk0(attrs, true);
     }
 
     // hashCode() is used from FileInfo
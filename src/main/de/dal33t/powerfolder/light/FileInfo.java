@@ -28,10 +28,10 @@ import java.io.Serializable;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Date;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -192,6 +192,39 @@ public class FileInfo implements Serializable, DiskItem, Cloneable {
      *         sync
      */
     public FileInfo syncFromDiskIfRequired(Folder folder, Path diskFile) {
+        if (diskFile == null) {
+            throw new NullPointerException("diskFile is null");
+        }
+        BasicFileAttributes attrs;
+        try {
+            attrs = readDiskAttributes(diskFile);
+        } catch (IOException e) {
+            log.warning("Could not access file attributes of file "
+                + diskFile.toAbsolutePath().toString() + "\n"
+                + toDetailString() + "\n" + e.toString());
+            return null;
+        }
+        return syncFromDiskIfRequired(folder, diskFile, attrs);
+    }
+
+    /**
+     * Syncs fileinfo with diskfile using already read attributes of the
+     * diskfile. Saves the file system calls of
+     * {@link #syncFromDiskIfRequired(Folder, Path)} when scanning.
+     * 
+     * @param folder
+     *            the folder to sync with
+     * @param diskFile
+     *            the diskfile of this file, not gets it from controller !
+     * @param attrs
+     *            the attributes of the diskfile or null if the diskfile does
+     *            not exist.
+     * @return the new FileInfo if the file was synced or null if the file is in
+     *         sync
+     */
+    public FileInfo syncFromDiskIfRequired(Folder folder, Path diskFile,
+        BasicFileAttributes attrs)
+    {
         Reject.ifNull(folder, "Folder is null");
         Reject.ifFalse(folder.getInfo().equals(folderInfo), "Folder mismatch");
         if (diskFile == null) {
@@ -218,11 +251,11 @@ public class FileInfo implements Serializable, DiskItem, Cloneable {
         // log.warning("File does not exsists on disk: " + toDetailString());
         // }
 
-        if (!inSyncWithDisk(diskFile)) {
+        if (!inSyncWithDisk(attrs)) {
             MemberInfo mySelf = folder.getController().getMySelf().getInfo();
-            if (Files.exists(diskFile)) {
+            if (attrs != null) {
                 return FileInfoFactory.modifiedFile(this, folder, diskFile,
-                    mySelf);
+                    attrs, mySelf);
             } else {
                 return FileInfoFactory.deletedFile(this, mySelf, new Date());
             }
@@ -237,22 +270,39 @@ public class FileInfo implements Serializable, DiskItem, Cloneable {
      * @return true if the fileinfo is in sync with the file on disk.
      */
     public boolean inSyncWithDisk(Path diskFile) {
-        return inSyncWithDisk0(diskFile, false);
+        Reject.ifNull(diskFile, "Diskfile is null");
+        try {
+            return inSyncWithDisk(readDiskAttributes(diskFile));
+        } catch (IOException e) {
+            log.warning("Could not access file attributes of file "
+                + diskFile.toAbsolutePath().toString() + "\n"
+                + toDetailString() + "\n" + e.toString());
+            return false;
+        }
     }
 
     /**
-     * @param diskFile
-     *            the file on disk.
+     * @param attrs
+     *            the attributes of the file on disk or null if the file does
+     *            not exist.
+     * @return true if the fileinfo is in sync with the file on disk.
+     */
+    public boolean inSyncWithDisk(BasicFileAttributes attrs) {
+        return inSyncWithDisk0(attrs, false);
+    }
+
+    /**
+     * @param attrs
+     *            the attributes of the file on disk or null if the file does
+     *            not exist.
      * @param ignoreSizeAndModDate
      *            ignore the reported size of the diskfile/dir.
      * @return true if the fileinfo is in sync with the file on disk.
      */
-    protected boolean inSyncWithDisk0(Path diskFile,
+    protected boolean inSyncWithDisk0(BasicFileAttributes attrs,
         boolean ignoreSizeAndModDate)
     {
-        Reject.ifNull(diskFile, "Diskfile is null");
-
-        boolean diskFileDeleted = Files.notExists(diskFile);
+        boolean diskFileDeleted = attrs == null;
         boolean existanceSync = diskFileDeleted && deleted || !diskFileDeleted
             && !deleted;
 
@@ -260,41 +310,40 @@ public class FileInfo implements Serializable, DiskItem, Cloneable {
             return false;
         }
 
-        boolean diskIsDirectory;
-        long diskLastMod;
-        long diskSize;
-
         if (!diskFileDeleted) {
-            try {
-                Map<String, Object> attrs = Files.readAttributes(diskFile, "size,lastModifiedTime,isDirectory");
-                diskSize = ((Long)attrs.get("size")).longValue();
-                diskLastMod = ((FileTime)attrs.get("lastModifiedTime")).toMillis();
-                diskIsDirectory = ((Boolean)attrs.get("isDirectory")).booleanValue();
-            } catch (Exception e) {
-                log.warning("Could not access file attributes of file "
-                    + diskFile.toAbsolutePath().toString() + "\n"
-                    + toDetailString() + "\n" + e.toString());
-                return false;
-            }
-
             if (ignoreSizeAndModDate) {
-                boolean dirFileSync = diskFileDeleted
-                    || (isDiretory() && diskIsDirectory);
-                return existanceSync && dirFileSync;
+                return isDiretory() && attrs.isDirectory();
             }
             boolean lastModificationSync = DateUtil.equalsFileDateCrossPlattform(
-                diskLastMod, lastModifiedDate.getTime());
+                attrs.lastModifiedTime().toMillis(), lastModifiedDate.getTime());
             if (!lastModificationSync) {
                 return false;
             }
 
-            boolean sizeSync = size == diskSize;
+            boolean sizeSync = size == attrs.size();
             if (!sizeSync) {
                 return false;
             }
         }
         return true;
-        // return existanceSync && lastModificationSync && sizeSync;
+    }
+
+    /**
+     * Reads the attributes of a file on disk with a single file system call.
+     * 
+     * @param diskFile
+     * @return the attributes or null if the file does not exist.
+     * @throws IOException
+     *             if the attributes could not be read.
+     */
+    public static BasicFileAttributes readDiskAttributes(Path diskFile)
+        throws IOException
+    {
+        try {
+            return Files.readAttributes(diskFile, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
     }
 
     /**
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -148,6 +149,18 @@ public final class FileInfoFactory {
         return new FileInfo(fileName, size, modby, modDate, version, false, fi);
     }
 
+    public static FileInfo unmarshallFile(FolderInfo fi, String fileName,
+        long size, MemberInfo modby, Date modDate, int version,
+        boolean deleted, boolean dir)
+    {
+        if (dir) {
+            return new DirectoryInfo(fileName, size, modby, modDate, version,
+                deleted, fi);
+        }
+        return new FileInfo(fileName, size, modby, modDate, version, deleted,
+            fi);
+    }
+
     public static FileInfo unmarshallDeletedFile(FolderInfo fi,
         String fileName, MemberInfo modby, Date modDate, int version,
         boolean dir)
@@ -172,25 +185,39 @@ public final class FileInfoFactory {
     public static FileInfo newFile(Folder folder, Path localFile,
         MemberInfo creator, boolean directory)
     {
-        long date = new Date().getTime();
-        long size = 0;
-
+        BasicFileAttributes attrs = null;
         try {
-            date = Files.getLastModifiedTime(localFile).toMillis();
+            attrs = Files.readAttributes(localFile, BasicFileAttributes.class);
         } catch (IOException ioe) {
             LOG.fine(ioe.getMessage());
         }
+        return newFile(folder, localFile, attrs, creator, directory);
+    }
+
+    /**
+     * Initalize within a folder from already read attributes.
+     * 
+     * @param folder
+     * @param localFile
+     * @param attrs
+     *            the attributes of the local file. null if not available.
+     * @param creator
+     * @param directory
+     *            if the given file is a directory.
+     * @return the new file
+     */
+    public static FileInfo newFile(Folder folder, Path localFile,
+        BasicFileAttributes attrs, MemberInfo creator, boolean directory)
+    {
+        long date = attrs != null
+            ? attrs.lastModifiedTime().toMillis()
+            : new Date().getTime();
 
         if (directory) {
             return new DirectoryInfo(buildFileName(folder.getLocalBase(),
                 localFile), creator, new Date(date), 0, false, folder.getInfo());
         } else {
-            try {
-                size = Files.size(localFile);
-            } catch (IOException ioe) {
-                LOG.fine(ioe.getMessage());
-            }
-
+            long size = attrs != null ? attrs.size() : 0;
             return new FileInfo(
                 buildFileName(folder.getLocalBase(), localFile),
                 size, creator, new Date(date), 0, false,
@@ -200,43 +227,59 @@ public final class FileInfoFactory {
 
     public static FileInfo modifiedFile(FileInfo original, Folder folder,
         Path localFile, MemberInfo modby)
+    {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(localFile, BasicFileAttributes.class);
+        } catch (IOException ioe) {
+            LOG.warning(ioe.getMessage());
+            return null;
+        }
+        return modifiedFile(original, folder, localFile, attrs, modby);
+    }
+
+    /**
+     * @param original
+     * @param folder
+     * @param localFile
+     * @param attrs
+     *            the already read attributes of the local file.
+     * @param modby
+     * @return the modified file with the size and modification date of the
+     *         attributes.
+     */
+    public static FileInfo modifiedFile(FileInfo original, Folder folder,
+        Path localFile, BasicFileAttributes attrs, MemberInfo modby)
     {
         Reject.ifNull(original, "Original FileInfo is null");
         Reject.ifTrue(original.isLookupInstance(),
             "Cannot modify template FileInfo!");
         Reject.ifNull(folder, "Folder is null");
+        Reject.ifNull(attrs, "Attributes are null");
         String fn = buildFileName(folder.getLocalBase(), localFile);
         if (original.getRelativeName().equals(fn)) {
             fn = original.getRelativeName();
         }
 
-        boolean isDir = Files.isDirectory(localFile);
-        try {
-            if (original.isFile()) {
-                if (isDir) {
-                    return new DirectoryInfo(fn, Files.size(localFile), modby,
-                        new Date(Files.getLastModifiedTime(localFile).toMillis()),
-                        original.getVersion() + 1, false, original.getFolderInfo());
-                }
-                return new FileInfo(fn, Files.size(localFile), modby, new Date(
-                    Files.getLastModifiedTime(localFile).toMillis()),
+        boolean isDir = attrs.isDirectory();
+        Date modDate = new Date(attrs.lastModifiedTime().toMillis());
+        if (original.isFile()) {
+            if (isDir) {
+                return new DirectoryInfo(fn, attrs.size(), modby, modDate,
                     original.getVersion() + 1, false, original.getFolderInfo());
-            } else if (original.isDiretory()) {
-                if (!isDir) {
-                    return new FileInfo(fn, Files.size(localFile), modby, new Date(
-                        Files.getLastModifiedTime(localFile).toMillis()),
-                        original.getVersion() + 1, false, original.getFolderInfo());
-                }
-                return new DirectoryInfo(fn, Files.size(localFile), modby,
-                    new Date(Files.getLastModifiedTime(localFile).toMillis()),
+            }
+            return new FileInfo(fn, attrs.size(), modby, modDate,
+                original.getVersion() + 1, false, original.getFolderInfo());
+        } else if (original.isDiretory()) {
+            if (!isDir) {
+                return new FileInfo(fn, attrs.size(), modby, modDate,
                     original.getVersion() + 1, false, original.getFolderInfo());
-            } else {
-                throw new IllegalArgumentException("Illegal original FileInfo: "
-                    + original.getClass() + ": " + original.toDetailString());
             }
-        } catch (IOException ioe) {
-            LOG.warning(ioe.getMessage());
-            return null;
+            return new DirectoryInfo(fn, attrs.size(), modby, modDate,
+                original.getVersion() + 1, false, original.getFolderInfo());
+        } else {
+            throw new IllegalArgumentException("Illegal original FileInfo: "
+                + original.getClass() + ": " + original.toDetailString());
         }
     }
 
@@ -24,29 +24,76 @@ import java.util.Arrays;
 
 import de.dal33t.powerfolder.util.Reject;
 
+/**
+ * A {@link FileInfo} together with the hash of its content.
+ */
 public class HashedFileInfo implements Serializable {
     private static final long serialVersionUID = -3233726429455214290L;
 
+    public static final String MD5 = "MD5";
+
     private final FileInfo fileInfo;
     private final byte[] md5;
 
+    /**
+     * The MessageDigest algorithm of the hash. null = MD5 (older versions).
+     */
+    private final String algorithm;
+
     private int hashCode;
 
     public HashedFileInfo(FileInfo fileInfo, byte[] md5) {
+        this(fileInfo, MD5, md5);
+        Reject.ifTrue(md5.length != 16, "Invalid MD5 of length: " + md5.length);
+    }
+
+    /**
+     * @param fileInfo
+     * @param algorithm
+     *            the MessageDigest algorithm of the hash.
+     * @param digest
+     *            the hash of the content.
+     */
+    public HashedFileInfo(FileInfo fileInfo, String algorithm, byte[] digest)
+    {
         super();
         Reject.ifNull(fileInfo, "FileInfo is null!");
         Reject.ifTrue(fileInfo.isLookupInstance(), "FileInfo must not be template!");
-        Reject.ifNull(md5, "MD5 is null!");
-        Reject.ifTrue(md5.length != 16, "Invalid MD5 of length: " + md5.length);
+        Reject.ifBlank(algorithm, "Algorithm is blank!");
+        Reject.ifNull(digest, "Digest is null!");
         this.fileInfo = fileInfo;
-        this.md5 = Arrays.copyOf(md5, md5.length);
+        this.algorithm = algorithm;
+        this.md5 = Arrays.copyOf(digest, digest.length);
     }
 
     public FileInfo getFileInfo() {
         return fileInfo;
     }
 
+    /**
+     * @return the MessageDigest algorithm of the hash.
+     */
+    public String getAlgorithm() {
+        return algorithm != null ? algorithm : MD5;
+    }
+
+    /**
+     * @return the hash of the content.
+     */
+    public byte[] getDigest() {
+        return Arrays.copyOf(md5, md5.length);
+    }
+
+    /**
+     * @return the MD5 hash of the content.
+     * @throws IllegalStateException
+     *             if the hash was calculated with another algorithm.
+     */
     public byte[] getMD5() {
+        if (!MD5.equals(getAlgorithm())) {
+            throw new IllegalStateException("Not a MD5 hash: "
+                + getAlgorithm());
+        }
         return Arrays.copyOf(md5, md5.length);
     }
 
@@ -74,6 +121,8 @@ public class HashedFileInfo implements Serializable {
         HashedFileInfo other = (HashedFileInfo) obj;
         if (!fileInfo.isVersionDateAndSizeIdentical(other.fileInfo))
             return false;
+        if (!getAlgorithm().equals(other.getAlgorithm()))
+            return false;
         if (!Arrays.equals(md5, other.md5))
             return false;
         return true;
@@ -19,10 +19,13 @@
  */
 package de.dal33t.powerfolder.message;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
 
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
@@ -35,6 +38,13 @@ import de.dal33t.powerfolder.light.FileInfoFactory;
  */
 public class FileChunkExt extends FileChunk implements Externalizable {
 
+    /**
+     * The last byte of a chunk serialized with {@link #serializeHeader()}.
+     */
+    public static final byte TRAILER = ObjectStreamConstants.TC_ENDBLOCKDATA;
+
+    private transient boolean omitData;
+
     public FileChunkExt() {
         super();
     }
@@ -60,7 +70,45 @@ public class FileChunkExt extends FileChunk implements Externalizable {
         file.writeExternal(out);
         out.writeLong(offset);
         out.writeInt(data.length);
-        out.write(data);
+        if (!omitData) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * Serializes the chunk without compression, but without its data. The
+     * serialized chunk is the returned header, followed by the data and
+     * {@link #TRAILER}. Other nodes read it like any other serialized chunk.
+     * Saves copying the data into and out of a serialization buffer.
+     *
+     * @return the header.
+     * @throws IOException
+     */
+    public byte[] serializeHeader() throws IOException {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(512);
+        ObjectOutputStream objOut = new ObjectOutputStream(bOut);
+        omitData = true;
+        try {
+            objOut.writeUnshared(this);
+        } finally {
+            omitData = false;
+        }
+        objOut.close();
+        byte[] serialized = bOut.toByteArray();
+        int n = serialized.length - 1;
+        if (serialized[n] != TRAILER) {
+            throw new IOException("Unexpected end of serialized chunk: "
+                + serialized[n]);
+        }
+        // Continue the object data with the chunk data in one block
+        byte[] header = new byte[n + 5];
+        System.arraycopy(serialized, 0, header, 0, n);
+        header[n] = ObjectStreamConstants.TC_BLOCKDATALONG;
+        header[n + 1] = (byte) (data.length >>> 24);
+        header[n + 2] = (byte) (data.length >>> 16);
+        header[n + 3] = (byte) (data.length >>> 8);
+        header[n + 4] = (byte) data.length;
+        return header;
     }
 
 }
\ No newline at end of file
@@ -23,6 +23,9 @@ import de.dal33t.powerfolder.light.FileInfo;
 
 /**
  * Requests a FilePartsRecord for a given file.
+ * <p>
+ * Older clients ignore the content defined flag and always reply with a record
+ * of fixed size parts.
  * @author Dennis "Dante" Waldherr
  * @version $Revision$
  */ 
@@ -30,16 +33,35 @@ public class RequestFilePartsRecord extends Message {
 	private static final long serialVersionUID = 100L;
 
 	private FileInfo file;
+	private boolean contentDefined;
 	
 	public RequestFilePartsRecord() {
 	}
 
 	public RequestFilePartsRecord(FileInfo file) {
+		this(file, false);
+	}
+
+	/**
+	 * @param file
+	 * @param contentDefined
+	 *            true if a record of content defined parts may be sent.
+	 */
+	public RequestFilePartsRecord(FileInfo file, boolean contentDefined) {
 		super();
 		this.file = file;
+		this.contentDefined = contentDefined;
 	}
 
 	public FileInfo getFile() {
 		return file;
 	}
+
+	/**
+	 * @return true if the requesting side can handle a record of content
+	 *         defined parts.
+	 */
+	public boolean isContentDefined() {
+		return contentDefined;
+	}
 }
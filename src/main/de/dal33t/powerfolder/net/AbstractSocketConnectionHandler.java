@@ -39,6 +39,7 @@ import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.Feature;
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.message.FileChunkExt;
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.message.IdentityReply;
 import de.dal33t.powerfolder.message.LimitBandwidth;
@@ -64,6 +65,7 @@ import de.dal33t.powerfolder.util.net.NetworkUtil;
 public abstract class AbstractSocketConnectionHandler extends PFComponent
     implements ConnectionHandler
 {
+    private static final byte[] CHUNK_TRAILER = {FileChunkExt.TRAILER};
 
     /** The basic io socket */
     private Socket socket;
@@ -149,6 +151,22 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
     protected abstract byte[] serialize(Message message)
         throws ConnectionException;
 
+    /**
+     * (Optional) Serializes a file chunk without its data, see
+     * {@link FileChunkExt#serializeHeader()}. The data gets written to the
+     * socket straight from the chunk.
+     * 
+     * @param chunk
+     *            the chunk to serialize
+     * @return the serialized chunk without data or null if the chunk has to
+     *         be serialized by {@link #serialize(Message)}.
+     */
+    protected byte[] serializeHeader(FileChunkExt chunk)
+        throws ConnectionException
+    {
+        return null;
+    }
+
     /**
      * Called when the data got read from the socket. Should re-construct the
      * serialized object from the data.
@@ -473,6 +491,13 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
                 boolean omittBandwidthLimit = !(message instanceof LimitBandwidth)
                     || this.omitBandwidthLimit;
 
+                if (message instanceof FileChunkExt
+                    && writeFileChunk((FileChunkExt) message,
+                        omittBandwidthLimit))
+                {
+                    return;
+                }
+
                 byte[] data = serialize(message);
 
                 // Write paket header / total length
@@ -531,6 +556,36 @@ public abstract class AbstractSocketConnectionHandler extends PFComponent
         }
     }
 
+    /**
+     * Writes a file chunk without copying its data into a serialization
+     * buffer.
+     * 
+     * @return false if the chunk has to be serialized completely.
+     */
+    private boolean writeFileChunk(FileChunkExt chunk,
+        boolean omittBandwidthLimit) throws IOException, ConnectionException
+    {
+        byte[] header = serializeHeader(chunk);
+        if (header == null) {
+            return false;
+        }
+        int size = header.length + chunk.data.length + 1;
+        byte[] packetHeader = new byte[4 + header.length];
+        System.arraycopy(Convert.convert2Bytes(size), 0, packetHeader, 0, 4);
+        System.arraycopy(header, 0, packetHeader, 4, header.length);
+        getController().getTransferManager().getTotalUploadTrafficCounter()
+            .bytesTransferred(size + 4);
+        if (!started) {
+            throw new ConnectionException(
+                "Unable to send message to peer, connection shutdown").with(
+                member).with(this);
+        }
+        out.write(packetHeader, 0, packetHeader.length, omittBandwidthLimit);
+        out.write(chunk.data, 0, chunk.data.length, omittBandwidthLimit);
+        out.write(CHUNK_TRAILER, 0, 1, omittBandwidthLimit);
+        return true;
+    }
+
     public void sendMessagesAsynchron(Message... messages) {
         for (Message message : messages) {
             sendMessageAsynchron(message, null);
@@ -24,6 +24,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 
 import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.message.FileChunkExt;
 import de.dal33t.powerfolder.message.Identity;
 import de.dal33t.powerfolder.message.Message;
 import de.dal33t.powerfolder.util.ByteSerializer;
@@ -92,6 +93,23 @@ public class PlainSocketConnectionHandler extends
         }
     }
 
+    @Override
+    protected byte[] serializeHeader(FileChunkExt chunk)
+        throws ConnectionException
+    {
+        if (getMyIdentity().isUseCompressedStream()) {
+            // Data has to go through the compression
+            return null;
+        }
+        try {
+            return chunk.serializeHeader();
+        } catch (IOException e) {
+            throw new ConnectionException(
+                "Unable to send message to peer, connection closed", e)
+                .with(this);
+        }
+    }
+
     @Override
     protected Identity createOwnIdentity() {
         return new Identity(getController(), getController().getMySelf()
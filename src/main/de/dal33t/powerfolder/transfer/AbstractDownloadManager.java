@@ -30,19 +30,25 @@ import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.disk.BlockIndex;
+import de.dal33t.powerfolder.disk.Folder;
 import de.dal33t.powerfolder.disk.FolderStatistic;
+import de.dal33t.powerfolder.disk.IndexedBlockCopyWorker;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.message.FileChunk;
 import de.dal33t.powerfolder.transfer.Transfer.State;
 import de.dal33t.powerfolder.transfer.Transfer.TransferState;
+import de.dal33t.powerfolder.transfer.swarm.AbstractFileRecordProvider;
 import de.dal33t.powerfolder.util.Base64;
 import de.dal33t.powerfolder.util.Convert;
 import de.dal33t.powerfolder.util.DateUtil;
@@ -108,6 +114,9 @@ public abstract class AbstractDownloadManager extends PFComponent implements
 
     protected FilePartsRecord remotePartRecord;
 
+    /** The digest of the temp file while receiving, null if not started */
+    private TempFileDigest tempFileDigest;
+
     private volatile TransferCounter counter;
     private State transferState = new State();
 
@@ -312,13 +321,12 @@ public abstract class AbstractDownloadManager extends PFComponent implements
             FilePartsRecord thisRemotePartRecord = remotePartRecord;
             byte[] tempFileHash = null;
             if (thisRemotePartRecord != null) {
-                tempFileHash = PathUtils.digest(getTempFile(),
-                    MessageDigest.getInstance("MD5"), new ProgressListener() {
-                        public void progressReached(double percentageReached) {
-                            setTransferState(percentageReached / 100.0);
-                        }
+                tempFileHash = completeTempFileDigest(new ProgressListener() {
+                    public void progressReached(double percentageReached) {
+                        setTransferState(percentageReached / 100.0);
+                    }
 
-                    });
+                });
             }
             // If we don't have a record, no hashing was performed and the file
             // is assumed to be "valid"
@@ -351,6 +359,46 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         return false;
     }
 
+    /**
+     * Completes the MD5 digest of the temp file. Only reads the data that was
+     * not passed to the digest while the download was running.
+     *
+     * @param listener
+     * @return the digest of the temp file.
+     */
+    private byte[] completeTempFileDigest(ProgressListener listener)
+        throws IOException, NoSuchAlgorithmException, InterruptedException
+    {
+        TempFileDigest digest;
+        synchronized (this) {
+            digest = tempFileDigest;
+            tempFileDigest = null;
+        }
+        if (digest == null) {
+            digest = new TempFileDigest(fileInfo.getSize());
+        }
+        return digest.complete(getTempFile(), listener);
+    }
+
+    /**
+     * Passes the data available from the start of the temp file to the
+     * digest.
+     *
+     * @param chunk
+     *            the chunk just written.
+     */
+    private void updateTempFileDigest(FileChunk chunk) {
+        if (remotePartRecord == null) {
+            // Not verified
+            return;
+        }
+        if (tempFileDigest == null) {
+            tempFileDigest = new TempFileDigest(fileInfo.getSize());
+        }
+        tempFileDigest.update(chunk.offset, chunk.data, filePartsState,
+            tempRAF);
+    }
+
     protected Path getFile() {
         return fileInfo.getDiskFile(getController().getFolderRepository());
     }
@@ -406,39 +454,93 @@ public abstract class AbstractDownloadManager extends PFComponent implements
     protected boolean isNeedingFilePartsRecord() {
         return !isCompleted() && remotePartRecord == null
             && fileInfo.getSize() >= Constants.MIN_SIZE_FOR_PARTTRANSFERS
-            && fileInfo.diskFileExists(getController());
+            && (!getMatchSources().isEmpty() || hasIndexedBlocks());
+    }
+
+    /**
+     * @return true if other local files might contain parts of the download.
+     */
+    private boolean hasIndexedBlocks() {
+        if (!ConfigurationEntry.DELTA_CONTENT_DEFINED
+            .getValueBoolean(getController()))
+        {
+            // Blocks are only found by content defined parts
+            return false;
+        }
+        int partSize = AbstractFileRecordProvider
+            .getContentDefinedPartSize(fileInfo.getSize());
+        if (partSize != AbstractFileRecordProvider.CONTENT_DEFINED_PART_SIZE) {
+            // Parts of large files are larger than the indexed blocks
+            return false;
+        }
+        Folder folder = fileInfo.getFolder(getController()
+            .getFolderRepository());
+        return folder != null
+            && folder.getBlockIndex().isIndexed(fileInfo.getSize())
+            && folder.getBlockIndex().size() > 0;
+    }
+
+    /**
+     * @return the local file and the newest archived versions of it, which
+     *         exist and might contain parts of the download.
+     */
+    protected List<Path> getMatchSources() {
+        List<Path> sources = new ArrayList<Path>();
+        if (fileInfo.diskFileExists(getController())) {
+            sources.add(getFile());
+        }
+        int versions = ConfigurationEntry.DELTA_ARCHIVE_VERSIONS
+            .getValueInt(getController());
+        Folder folder = fileInfo.getFolder(getController()
+            .getFolderRepository());
+        if (versions > 0 && folder != null) {
+            sources.addAll(folder.getFileArchiver().getNewestArchivedFiles(
+                fileInfo, versions));
+        }
+        return sources;
     }
 
     protected void matchAndCopyData() throws BrokenDownloadException,
         InterruptedException
     {
         try {
-            Path src = getFile();
-
-            setTransferState(TransferState.MATCHING);
             ProgressListener transferObs = new ProgressListener() {
                 public void progressReached(double percentageReached) {
                     setTransferState(percentageReached);
                 }
             };
-            Callable<List<MatchInfo>> mInfoWorker = new MatchResultWorker(
-                remotePartRecord, src, transferObs);
-            List<MatchInfo> mInfoRes = null;
-            mInfoRes = mInfoWorker.call();
-
-            // logFine("Records: " + record.getInfos().length);
-            if (isFine()) {
-                logFine("Matches: "
-                    + mInfoRes.size()
-                    + " which are "
-                    + Format.formatBytes(remotePartRecord.getPartLength()
-                        * mInfoRes.size()) + " bytes (bit less maybe) on "
-                    + fileInfo.toDetailString());
+            Path localFile = getFile();
+            FilePartsState calcedState = null;
+            for (Path src : getMatchSources()) {
+                try {
+                    calcedState = matchAndCopyData(src, calcedState,
+                        transferObs);
+                } catch (IOException e) {
+                    if (src.equals(localFile)) {
+                        throw e;
+                    }
+                    // Archived version removed meanwhile
+                    logFine("Unable to match archived version " + src + ". "
+                        + e);
+                }
+                if (calcedState != null && calcedState.isCompleted()) {
+                    break;
+                }
+            }
+            if (remotePartRecord.isContentDefined()
+                && (calcedState == null || !calcedState.isCompleted())
+                && hasIndexedBlocks())
+            {
+                setTransferState(TransferState.COPYING);
+                calcedState = new IndexedBlockCopyWorker(fileInfo
+                    .getFolder(getController().getFolderRepository()),
+                    getTempFile(), remotePartRecord, transferObs, calcedState)
+                    .call();
+            }
+            if (calcedState == null) {
+                calcedState = new FilePartsState(remotePartRecord
+                    .getFileLength());
             }
-            setTransferState(TransferState.COPYING);
-            Callable<FilePartsState> pStateWorker = new MatchCopyWorker(src,
-                getTempFile(), remotePartRecord, mInfoRes, transferObs);
-            FilePartsState calcedState = pStateWorker.call();
             if (calcedState.getFileLength() != fileInfo.getSize()) {
                 // Concurrent file modification
                 throw new BrokenDownloadException();
@@ -463,6 +565,40 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         }
     }
 
+    /**
+     * Copies the parts of the download found in the source file to the temp
+     * file.
+     *
+     * @param src
+     *            the local file or an archived version of it.
+     * @param state
+     *            the parts copied from previous sources or null.
+     * @param transferObs
+     * @return the parts copied from this and the previous sources.
+     * @throws Exception
+     */
+    private FilePartsState matchAndCopyData(Path src, FilePartsState state,
+        ProgressListener transferObs) throws Exception
+    {
+        setTransferState(TransferState.MATCHING);
+        Callable<List<MatchInfo>> mInfoWorker = new MatchResultWorker(
+            remotePartRecord, src, transferObs);
+        List<MatchInfo> mInfoRes = mInfoWorker.call();
+
+        if (isFine()) {
+            logFine("Matches: "
+                + mInfoRes.size()
+                + " which are "
+                + Format.formatBytes(remotePartRecord.getPartLength()
+                    * mInfoRes.size()) + " bytes (bit less maybe) in " + src
+                + " on " + fileInfo.toDetailString());
+        }
+        setTransferState(TransferState.COPYING);
+        Callable<FilePartsState> pStateWorker = new MatchCopyWorker(src,
+            getTempFile(), remotePartRecord, mInfoRes, transferObs, state);
+        return pStateWorker.call();
+    }
+
     protected abstract void removeSourceImpl(Download source);
 
     protected abstract void requestFilePartsRecord(Download download);
@@ -556,6 +692,8 @@ public abstract class AbstractDownloadManager extends PFComponent implements
         }
 
         filePartsState = state;
+        // Data might have been changed
+        tempFileDigest = null;
     }
 
     protected void setStarted() {
@@ -672,6 +810,7 @@ public abstract class AbstractDownloadManager extends PFComponent implements
 
         Range range = Range.getRangeByLength(chunk.offset, chunk.data.length);
         filePartsState.setPartState(range, PartState.AVAILABLE);
+        updateTempFileDigest(chunk);
 
         long avs = filePartsState.countPartStates(filePartsState.getRange(),
             PartState.AVAILABLE);
@@ -1248,4 +1387,4 @@ public abstract class AbstractDownloadManager extends PFComponent implements
 
         }
     }
-}
+}
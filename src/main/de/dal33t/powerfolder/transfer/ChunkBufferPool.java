@@ -0,0 +1,92 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.dal33t.powerfolder.message.FileChunk;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Reuses the data arrays of {@link FileChunk}s sent by uploads. The data of a
+ * chunk has the exact length of the requested part, so only arrays of the
+ * usual chunk size are kept. Arrays of other sizes are allocated and dropped.
+ * <p>
+ * Thread-safe.
+ */
+public class ChunkBufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param bufferSize
+     *            the size of the kept arrays.
+     * @param maxBuffers
+     *            the maximum number of kept arrays.
+     */
+    public ChunkBufferPool(int bufferSize, int maxBuffers) {
+        Reject.ifTrue(bufferSize < 1, "Buffer size must be at least 1");
+        Reject.ifTrue(maxBuffers < 0, "Max buffers must not be negative");
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * @param length
+     * @return an array of exactly the length. Its content is undefined.
+     */
+    public byte[] take(int length) {
+        if (length == bufferSize) {
+            byte[] buffer = buffers.poll();
+            if (buffer != null) {
+                size.decrementAndGet();
+                return buffer;
+            }
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Returns an array to the pool. It must not be used afterwards.
+     *
+     * @param buffer
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != bufferSize) {
+            return;
+        }
+        if (size.incrementAndGet() > maxBuffers) {
+            size.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+
+    /**
+     * @return the number of arrays kept for reuse.
+     */
+    public int getSize() {
+        return size.get();
+    }
+}
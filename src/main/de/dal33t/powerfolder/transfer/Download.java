@@ -26,6 +26,7 @@ import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.disk.Folder;
@@ -67,6 +68,7 @@ public class Download extends Transfer {
     private Queue<RequestPart> pendingRequests = new ConcurrentLinkedQueue<RequestPart>();
 
     private transient DownloadManager dlManager;
+    private transient volatile RequestWindow requestWindow;
 
     /** for serialisation */
     public Download() {
@@ -162,7 +164,9 @@ public class Download extends Transfer {
         requestCheckState();
 
         getPartner().sendMessagesAsynchron(
-            new RequestFilePartsRecord(getFile()));
+            new RequestFilePartsRecord(getFile(),
+                ConfigurationEntry.DELTA_CONTENT_DEFINED
+                    .getValueBoolean(getController())));
     }
 
     /**
@@ -199,9 +203,11 @@ public class Download extends Transfer {
         requestCheckState();
 
         RequestPart rp;
-        if (pendingRequests.size() >= getTransferManager()
-            .getMaxRequestsQueued())
-        {
+        RequestWindow window = getRequestWindow();
+        int maxRequests = window != null
+            ? window.getSize()
+            : getTransferManager().getMaxRequestsQueued();
+        if (pendingRequests.size() >= maxRequests) {
             if (isFiner()) {
                 logFiner("X Skipping request. Already got too many pending requests: " + range);
             }
@@ -227,10 +233,30 @@ public class Download extends Transfer {
                 "Concurrent file change while requesting: " + e);
         }
         pendingRequests.add(rp);
+        if (window != null) {
+            window.requested(rp, System.nanoTime());
+        }
         getPartner().sendMessagesAsynchron(rp);
         return true;
     }
 
+    /**
+     * @return the window of requests adapted to this source or null if
+     *         disabled.
+     */
+    synchronized RequestWindow getRequestWindow() {
+        if (requestWindow == null) {
+            int max = getTransferManager().getMaxRequestsWindow();
+            if (max < RequestWindow.MIN_SIZE) {
+                return null;
+            }
+            requestWindow = new RequestWindow(getTransferManager()
+                .getMaxRequestsQueued(), max, getTransferManager()
+                .getMaxFileChunkSize());
+        }
+        return requestWindow;
+    }
+
     public Collection<RequestPart> getPendingRequests() {
         return Collections.unmodifiableCollection(pendingRequests);
     }
@@ -272,14 +298,22 @@ public class Download extends Transfer {
 
         // Maybe the sender merged requests from us, so check all
         // requests
+        long now = System.nanoTime();
+        RequestWindow window = requestWindow;
         for (Iterator<RequestPart> ip = pendingRequests.iterator(); ip
             .hasNext();)
         {
             RequestPart p = ip.next();
             if (p.getRange().contains(range)) {
                 ip.remove();
+                if (window != null) {
+                    window.answered(p, now);
+                }
             }
         }
+        if (window != null) {
+            window.received(chunk.data.length, now);
+        }
 
         getCounter().chunkTransferred(chunk);
 
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import de.dal33t.powerfolder.message.RequestPart;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * The number of parts a {@link Download} may have requested from its source at
+ * the same time. Sized to twice the bandwidth-delay product of the source, so
+ * the pipe does not run empty between chunks on high latency links and
+ * requests do not pile up at slow sources.
+ * <p>
+ * The delay is the minimum round trip time of a request seen recently. The
+ * bandwidth is the average rate chunks arrive with while requests are
+ * outstanding. Until both are known the initial size is used.
+ * <p>
+ * While the window is full the round trip times include the time the requests
+ * wait at the source. So if no lower round trip time was seen for a while,
+ * the window shrinks to its minimum until a request sent into the drained
+ * pipe was answered.
+ * <p>
+ * All times are from {@link System#nanoTime()}. Thread-safe.
+ */
+public class RequestWindow {
+    /** The smallest window, keeps one request in flight while one arrives */
+    static final int MIN_SIZE = 2;
+    /** The window is sized to this multiple of the bandwidth-delay product */
+    private static final int GAIN = 2;
+    /** The minimum time chunks are counted for one rate sample */
+    private static final long RATE_INTERVAL = TimeUnit.MILLISECONDS
+        .toNanos(250);
+    /** After this time the minimum round trip time is measured again */
+    private static final long MIN_RTT_VALIDITY = TimeUnit.SECONDS.toNanos(10);
+
+    private final int initialSize;
+    private final int maxSize;
+    private final int chunkSize;
+
+    /** Request -> When and how it was sent */
+    private final Map<RequestPart, Sent> sent = new HashMap<RequestPart, Sent>();
+
+    private long minRtt = -1;
+    private long minRttTime;
+    /** If draining to measure the round trip time again */
+    private boolean probing;
+
+    /** Bytes per second, 0 if unknown */
+    private double rate;
+    private boolean measuring;
+    private long rateStart;
+    private long rateBytes;
+
+    /**
+     * @param initialSize
+     *            the number of requests until the link is measured.
+     * @param maxSize
+     *            the maximum number of requests.
+     * @param chunkSize
+     *            the maximum size of a requested part.
+     */
+    public RequestWindow(int initialSize, int maxSize, int chunkSize) {
+        Reject.ifTrue(maxSize < MIN_SIZE, "Max size must be at least "
+            + MIN_SIZE);
+        Reject.ifTrue(chunkSize < 1, "Chunk size must be at least 1");
+        this.initialSize = Math.max(MIN_SIZE, Math.min(maxSize, initialSize));
+        this.maxSize = maxSize;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param request
+     *            the request just sent.
+     * @param now
+     */
+    public synchronized void requested(RequestPart request, long now) {
+        if (sent.isEmpty()) {
+            // Pipe was empty, idle time does not count for the rate
+            rateStart = now;
+            rateBytes = 0;
+            measuring = true;
+        }
+        sent.put(request, new Sent(now, sent.size() < MIN_SIZE));
+    }
+
+    /**
+     * @param request
+     *            the request answered by a received chunk.
+     * @param now
+     */
+    public synchronized void answered(RequestPart request, long now) {
+        Sent s = sent.remove(request);
+        if (s == null) {
+            return;
+        }
+        long rtt = now - s.time;
+        if (minRtt < 0 || rtt <= minRtt || probing && s.drained) {
+            minRtt = rtt;
+            minRttTime = now;
+            probing = false;
+        } else if (now - minRttTime > MIN_RTT_VALIDITY) {
+            probing = true;
+        }
+    }
+
+    /**
+     * @param bytes
+     *            the length of a received chunk.
+     * @param now
+     */
+    public synchronized void received(long bytes, long now) {
+        if (!measuring || probing) {
+            // The rate of the drained pipe does not count
+            rateStart = now;
+            rateBytes = 0;
+            return;
+        }
+        rateBytes += bytes;
+        long elapsed = now - rateStart;
+        if (elapsed < RATE_INTERVAL) {
+            return;
+        }
+        double sample = rateBytes * (double) TimeUnit.SECONDS.toNanos(1)
+            / elapsed;
+        rate = rate > 0 ? (3 * rate + sample) / 4 : sample;
+        rateStart = now;
+        rateBytes = 0;
+    }
+
+    /**
+     * @return the number of requests that may be outstanding.
+     */
+    public synchronized int getSize() {
+        if (probing) {
+            return MIN_SIZE;
+        }
+        if (rate <= 0 || minRtt < 0) {
+            return initialSize;
+        }
+        // Transferring the answering chunk itself is no delay
+        double delay = Math.max(0, (double) minRtt
+            / TimeUnit.SECONDS.toNanos(1) - chunkSize / rate);
+        double bdp = rate * delay;
+        long size = (long) Math.ceil(GAIN * bdp / chunkSize) + 1;
+        return (int) Math.max(MIN_SIZE, Math.min(maxSize, size));
+    }
+
+    /**
+     * @return the average rate in bytes per second. 0 if not measured yet.
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return the minimum round trip time in nanoseconds. -1 if not measured
+     *         yet.
+     */
+    public synchronized long getMinRtt() {
+        return minRtt;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RequestWindow [size=" + getSize() + ", rate=" + (long) rate
+            + " B/s, minRtt="
+            + TimeUnit.NANOSECONDS.toMillis(Math.max(0, minRtt)) + "ms]";
+    }
+
+    private static class Sent {
+        private final long time;
+        /** If sent with at most one other request outstanding */
+        private final boolean drained;
+
+        private Sent(long time, boolean drained) {
+            this.time = time;
+            this.drained = drained;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.dal33t.powerfolder.util.Format;
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.Range;
+import de.dal33t.powerfolder.util.delta.FilePartsState;
+import de.dal33t.powerfolder.util.delta.FilePartsState.PartState;
+
+/**
+ * The MD5 digest of a temp file, updated while the file is written part by
+ * part. Data written in order is taken as it is written. Data already
+ * available after it, e.g. copied from a local file or received out of order,
+ * is read back from the temp file, at most {@link #MAX_READ} bytes per update.
+ * The rest gets read when the digest is completed.
+ * <p>
+ * If data already passed to the digest is written again or the temp file
+ * cannot be read back, the whole file is read on completion.
+ * <p>
+ * Not thread-safe.
+ */
+public class TempFileDigest {
+    private static final Logger LOG = Logger.getLogger(TempFileDigest.class
+        .getName());
+
+    /** The maximum number of bytes read back from the temp file per update */
+    static final int MAX_READ = 512 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long fileSize;
+    /** Null if not started yet */
+    private MessageDigest digest;
+    /** -1 if the digest has to be calculated on completion */
+    private long position;
+    private byte[] buffer;
+
+    /**
+     * @param fileSize
+     *            the size of the completed file.
+     */
+    public TempFileDigest(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * @return the number of bytes from the start of the file passed to the
+     *         digest, -1 if the whole file gets read on completion.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Passes the data available from the start of the temp file to the
+     * digest.
+     *
+     * @param offset
+     *            the offset the data was written to.
+     * @param data
+     *            the data just written.
+     * @param partsState
+     *            the parts of the temp file, the written data already marked
+     *            as available.
+     * @param tempFile
+     *            the temp file to read already available data from.
+     */
+    public void update(long offset, byte[] data, FilePartsState partsState,
+        RandomAccessFile tempFile)
+    {
+        if (position < 0) {
+            return;
+        }
+        if (digest == null) {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                // If this error occurs, no downloads will ever succeed.
+                throw new RuntimeException(e);
+            }
+        }
+        if (offset < position) {
+            // Data already passed to the digest was overwritten
+            LOG.fine("Data written again, verifying on completion: " + offset);
+            invalidate();
+            return;
+        }
+        if (offset == position) {
+            digest.update(data);
+            position += data.length;
+        }
+        long remaining = Math.min(MAX_READ, fileSize - position);
+        if (remaining <= 0) {
+            return;
+        }
+        Range available = partsState.findPart(Range.getRangeByLength(position,
+            remaining), PartState.AVAILABLE);
+        if (available == null || available.getStart() != position) {
+            return;
+        }
+        if (buffer == null) {
+            buffer = new byte[BUFFER_SIZE];
+        }
+        try {
+            tempFile.seek(available.getStart());
+            for (long left = available.getLength(); left > 0;) {
+                int len = (int) Math.min(left, buffer.length);
+                tempFile.readFully(buffer, 0, len);
+                digest.update(buffer, 0, len);
+                left -= len;
+            }
+            position += available.getLength();
+        } catch (IOException e) {
+            LOG.warning("Unable to read back, verifying on completion. " + e);
+            invalidate();
+        }
+    }
+
+    /**
+     * Reads the part of the temp file not passed to the digest yet and
+     * completes the digest.
+     *
+     * @param tempFile
+     * @param listener
+     *            receives the progress of reading in percent.
+     * @return the MD5 digest of the temp file.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws InterruptedException
+     */
+    public byte[] complete(Path tempFile, ProgressListener listener)
+        throws IOException, NoSuchAlgorithmException, InterruptedException
+    {
+        try (FileChannel in = FileChannel.open(tempFile,
+            StandardOpenOption.READ))
+        {
+            long size = in.size();
+            long pos = position;
+            if (digest == null || pos < 0 || pos > size) {
+                digest = MessageDigest.getInstance("MD5");
+                pos = 0;
+            }
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Verifying " + Format.formatBytes(size - pos)
+                    + " not verified while receiving of " + tempFile);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+            int read;
+            while ((read = in.read(buf, pos)) > 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+                pos += read;
+                listener.progressReached(pos * 100.0 / size);
+            }
+            return digest.digest();
+        } finally {
+            invalidate();
+        }
+    }
+
+    private void invalidate() {
+        digest = null;
+        position = -1;
+        buffer = null;
+    }
+}
@@ -75,6 +75,7 @@ import de.dal33t.powerfolder.message.FileChunk;
 import de.dal33t.powerfolder.message.RequestDownload;
 import de.dal33t.powerfolder.message.TransferStatus;
 import de.dal33t.powerfolder.net.ConnectionHandler;
+import de.dal33t.powerfolder.transfer.swarm.CachedFileRecordProvider;
 import de.dal33t.powerfolder.transfer.swarm.FileRecordProvider;
 import de.dal33t.powerfolder.transfer.swarm.VolatileFileRecordProvider;
 import de.dal33t.powerfolder.util.Filter;
@@ -154,6 +155,12 @@ public class TransferManager extends PFComponent {
     /** Threadpool for Upload Threads */
     private ExecutorService threadPool;
 
+    /** The data arrays of the sent file chunks */
+    private ChunkBufferPool chunkBufferPool;
+
+    /** Serves the started uploads */
+    private UploadEngine uploadEngine;
+
     /** the counter for uploads (effecitve) */
     private final TransferCounter uploadCounter;
     /** the counter for downloads (effecitve) */
@@ -291,12 +298,26 @@ public class TransferManager extends PFComponent {
             logWarning("Not starting TransferManager. disabled by config");
             return;
         }
-        fileRecordProvider = new VolatileFileRecordProvider(getController());
+        int recordCacheMB = ConfigurationEntry.DELTA_RECORD_CACHE_MB
+            .getValueInt(getController());
+        if (recordCacheMB > 0) {
+            fileRecordProvider = new CachedFileRecordProvider(getController(),
+                Controller.getMiscFilesLocation().resolve(
+                    getController().getConfigName() + ".records"),
+                1024L * 1024L * recordCacheMB);
+        } else {
+            fileRecordProvider = new VolatileFileRecordProvider(
+                getController());
+        }
 
         bandwidthProvider.start();
 
         threadPool = new WrapperExecutorService(
             Executors.newCachedThreadPool(new NamedThreadFactory("TMThread-")));
+        chunkBufferPool = new ChunkBufferPool(getMaxFileChunkSize(), 64);
+        uploadEngine = new UploadEngine(getController(),
+            ConfigurationEntry.UPLOAD_WORKERS.getValueInt(getController()));
+        uploadEngine.start();
 
         myThread = new Thread(new TransferChecker(), "Transfer manager");
         myThread.start();
@@ -403,6 +424,9 @@ public class TransferManager extends PFComponent {
         if (threadPool != null) {
             threadPool.shutdownNow();
         }
+        if (uploadEngine != null) {
+            uploadEngine.shutdown();
+        }
 
         // shutdown active uploads
         for (Upload upload : activeUploads) {
@@ -1166,6 +1190,16 @@ public class TransferManager extends PFComponent {
             .getValueInt(getController());
     }
 
+    /**
+     * @return the maximum number of requests outstanding at one source, 0 if
+     *         not adapted to the source.
+     * @see ConfigurationEntry#TRANSFERS_MAX_REQUESTS_WINDOW
+     */
+    int getMaxRequestsWindow() {
+        return ConfigurationEntry.TRANSFERS_MAX_REQUESTS_WINDOW
+            .getValueInt(getController());
+    }
+
     /**
      * @return the counter for upload speed
      */
@@ -1405,12 +1439,17 @@ public class TransferManager extends PFComponent {
     }
 
     /**
-     * Perfoms a upload in the tranfsermanagers threadpool.
-     * 
-     * @param uploadPerformer
+     * @return the pool of the data arrays of file chunks sent by uploads.
+     */
+    ChunkBufferPool getChunkBufferPool() {
+        return chunkBufferPool;
+    }
+
+    /**
+     * @return the engine performing the uploads.
      */
-    void perfomUpload(Runnable uploadPerformer) {
-        threadPool.submit(uploadPerformer);
+    public UploadEngine getUploadEngine() {
+        return uploadEngine;
     }
 
     /**
@@ -22,12 +22,16 @@ package de.dal33t.powerfolder.transfer;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import de.dal33t.powerfolder.ConfigurationEntry;
 import de.dal33t.powerfolder.Constants;
 import de.dal33t.powerfolder.Member;
 import de.dal33t.powerfolder.disk.Folder;
@@ -43,6 +47,7 @@ import de.dal33t.powerfolder.message.StartUpload;
 import de.dal33t.powerfolder.message.StartUploadExt;
 import de.dal33t.powerfolder.message.StopUpload;
 import de.dal33t.powerfolder.net.ConnectionException;
+import de.dal33t.powerfolder.transfer.swarm.FileRecordProvider;
 import de.dal33t.powerfolder.util.Convert;
 import de.dal33t.powerfolder.util.DateUtil;
 import de.dal33t.powerfolder.util.ProgressListener;
@@ -61,11 +66,22 @@ public class Upload extends Transfer {
 
     private boolean aborted;
     private transient Queue<Message> pendingRequests = new LinkedList<Message>();
-    protected transient RandomAccessFile raf;
+    protected transient FileChannel channel;
     protected transient InputStream in;
     private long inpos;
     private String debugState;
 
+    // State between the steps served by the UploadEngine
+    private transient volatile Phase phase;
+    private transient volatile long wakeupTime;
+    private transient long sendStartTime;
+    /** Null while hashing, true if the requested record was sent */
+    private transient volatile Boolean recordSent;
+    /** If a step of this upload is queued or running */
+    transient AtomicBoolean scheduled = new AtomicBoolean();
+    /** If this upload has to be served again after the current step */
+    transient volatile boolean signalled;
+
     /**
      * Constructs a new uploads, package protected, can only be called by
      * transfermanager
@@ -98,8 +114,8 @@ public class Upload extends Transfer {
                         + getTransferManager().getMaxRequestsQueued() * 5);
                 }
                 pendingRequests.add(m);
-                pendingRequests.notifyAll();
             }
+            wakeup();
         } catch (TransferException e) {
             logSevere("TransferException", e);
             getTransferManager().uploadBroken(this,
@@ -166,12 +182,13 @@ public class Upload extends Transfer {
         synchronized (pendingRequests) {
             pendingRequests.clear();
             pendingRequests.add(su);
-            pendingRequests.notifyAll();
         }
+        wakeup();
     }
 
     /**
-     * Starts the upload in a own thread using the give transfer manager
+     * Starts the upload. Its steps are performed by the {@link UploadEngine}
+     * of the transfer manager.
      */
     synchronized void start() {
         if (isStarted()) {
@@ -186,126 +203,214 @@ public class Upload extends Transfer {
         debugState = "Starting";
         // Mark upload as started
         setStarted();
+        phase = Phase.OPENING;
+        getTransferManager().getUploadEngine().start(this);
+    }
 
-        Runnable uploadPerfomer = new Runnable() {
-            public void run() {
-                try {
+    /**
+     * Performs the next step of the upload. Called by the {@link UploadEngine}
+     * when a message arrived or the wakeup time passed, never by two threads
+     * at the same time. Does not wait for requests.
+     */
+    void serve() {
+        if (phase == null) {
+            return;
+        }
+        try {
+            switch (phase) {
+                case OPENING :
+                    open();
+                    break;
+                case WAITING :
+                    serveFirstRequest();
+                    break;
+                case HASHING :
                     if (isAborted() || isBroken()) {
-                        throw new TransferException(
-                            "Upload broken/aborted while starting. "
-                                + Upload.this);
+                        finish(true);
+                    } else if (recordSent == null) {
+                        // Still hashing
+                    } else if (recordSent) {
+                        debugState = "Waiting for remote matching";
+                        state.setState(TransferState.REMOTEMATCHING);
+                        logFiner("Waiting for initial part requests!");
+                        wakeupTime = System.currentTimeMillis()
+                            + Constants.UPLOAD_REMOTEHASHING_PART_REQUEST_TIMEOUT;
+                        phase = Phase.SENDING;
+                    } else {
+                        // Already broken
+                        closeIO();
+                        phase = Phase.DONE;
+                        debugState = "DONE";
                     }
-                    
-                    debugState = "Opening file";
-                    boolean useInputStream = true;
-                    Folder f = getFile().getFolder(
-                        getController().getFolderRepository());
-                    if (f.getLocalBase().getFileSystem().provider().getScheme()
-                        .equals("file"))
-                    {
-                        useInputStream = false;
-                        try {
-                            raf = new RandomAccessFile(getFile().getDiskFile(
-                                getController().getFolderRepository()).toFile(), "r");
-                        } catch (FileNotFoundException e) {
-                            useInputStream = true;
-                        }
-                    }
-                    if (useInputStream) {
-                        try {
-                            in = Files.newInputStream(getFile().getDiskFile(
-                                getController().getFolderRepository()));
-                            inpos = 0;
-                        } catch (FileNotFoundException e) {
-                            throw new TransferException(e);
-                        } catch (IOException ioe) {
-                            throw new TransferException(ioe);
-                        }
-                    }
-                    if (isAborted() || isBroken()) {
-                        throw new TransferException(
-                            "Upload broken/aborted while starting. "
-                                + Upload.this);
+                    break;
+                case SENDING :
+                    if (!sendPart()) {
+                        finish(true);
                     }
+                    break;
+                default :
+                    break;
+            }
+        } catch (TransferException e) {
+            closeIO();
+            phase = Phase.DONE;
+            debugState = "DONE";
+            // Loggable.logWarningStatic(Upload.class, "Upload broken: "
+            // + Upload.this, e);
+            getTransferManager().uploadBroken(Upload.this,
+                TransferProblem.TRANSFER_EXCEPTION, e.getMessage());
+        } catch (RuntimeException e) {
+            logSevere("Upload broken: " + this + ". " + e, e);
+            closeIO();
+            phase = Phase.DONE;
+            debugState = "DONE";
+            getTransferManager().uploadBroken(Upload.this,
+                TransferProblem.GENERAL_EXCEPTION, e.toString());
+        }
+    }
 
-                    // If our partner supports requests, let him request. This
-                    // is required for swarming to work.
-                    if (isFiner()) {
-                        logFiner("Both clients support partial transfers!");
-                    }
-                    debugState = "Sending StartUpload";
-                    try {
-                        if (getPartner().getProtocolVersion() >= 102) {
-                            getPartner().sendMessage(
-                                new StartUploadExt(getFile()));
-                        } else {
-                            getPartner()
-                                .sendMessage(new StartUpload(getFile()));
-                        }
+    /**
+     * @return true if the upload is completed or broken and will not be served
+     *         again.
+     */
+    boolean isDone() {
+        return phase == Phase.DONE;
+    }
 
-                    } catch (ConnectionException e) {
-                        throw new TransferException(e);
-                    }
-                    debugState = "Waiting for requests";
-                    if (waitForRequests(Constants.UPLOAD_REQUEST_TIMEOUT)) {
-                        if (isFiner()) {
-                            logFiner("Checking for parts request.");
-                        }
+    /**
+     * @return true if the file parts record is still being built. The upload
+     *         cannot handle requests until then.
+     */
+    boolean isHashing() {
+        return phase == Phase.HASHING;
+    }
 
-                        debugState = "Checking for FPR request.";
+    /**
+     * @return the time when the upload has to be served even without new
+     *         messages.
+     */
+    long getWakeupTime() {
+        return wakeupTime;
+    }
 
-                        // Check if the first request is for a
-                        // FilePartsRecord
-                        if (checkForFilePartsRecordRequest()) {
-                            debugState = "Waiting for remote matching";
-                            state.setState(TransferState.REMOTEMATCHING);
-                            logFiner("Waiting for initial part requests!");
-                            waitForRequests(Constants.UPLOAD_REMOTEHASHING_PART_REQUEST_TIMEOUT);
-                        }
-                        debugState = "Starting to send parts";
-                        if (isFine()) {
-                            logFine("Started " + this);
-                        }
-                        long startTime = System.currentTimeMillis();
-
-                        // FIXME: It shouldn't be possible to loop endlessly
-                        // This fixme has to solved somewhere else partly
-                        // since
-                        // it's like:
-                        // "How long do we allow to upload to some party" -
-                        // which can't be decided here.
-                        while (sendPart()) {
-                        }
-                        long took = System.currentTimeMillis() - startTime;
-                        getTransferManager().logTransfer(false, took,
-                            getFile(), getPartner());
-                    }
-                    closeIO();
-                    if (!isBroken() && !aborted) {
-                        getTransferManager().setCompleted(Upload.this);
-                    }
-                } catch (TransferException e) {
-                    closeIO();
-                    // Loggable.logWarningStatic(Upload.class, "Upload broken: "
-                    // + Upload.this, e);
-                    getTransferManager().uploadBroken(Upload.this,
-                        TransferProblem.TRANSFER_EXCEPTION, e.getMessage());
-                } finally {
-                    closeIO();
-                    debugState = "DONE";
-                }
+    boolean hasPendingRequests() {
+        synchronized (pendingRequests) {
+            return !pendingRequests.isEmpty();
+        }
+    }
+
+    private void wakeup() {
+        Phase p = phase;
+        if (p != null && p != Phase.DONE) {
+            getTransferManager().getUploadEngine().schedule(this);
+        }
+    }
+
+    private void open() throws TransferException {
+        if (isAborted() || isBroken()) {
+            throw new TransferException(
+                "Upload broken/aborted while starting. " + Upload.this);
+        }
+
+        debugState = "Opening file";
+        boolean useInputStream = true;
+        Folder f = getFile().getFolder(getController().getFolderRepository());
+        if (f.getLocalBase().getFileSystem().provider().getScheme()
+            .equals("file"))
+        {
+            useInputStream = false;
+            try {
+                channel = FileChannel.open(getFile().getDiskFile(
+                    getController().getFolderRepository()),
+                    StandardOpenOption.READ);
+            } catch (IOException e) {
+                useInputStream = true;
+            }
+        }
+        if (useInputStream) {
+            try {
+                in = Files.newInputStream(getFile().getDiskFile(
+                    getController().getFolderRepository()));
+                inpos = 0;
+            } catch (FileNotFoundException e) {
+                throw new TransferException(e);
+            } catch (IOException ioe) {
+                throw new TransferException(ioe);
             }
+        }
+        if (isAborted() || isBroken()) {
+            throw new TransferException(
+                "Upload broken/aborted while starting. " + Upload.this);
+        }
 
-            public String toString() {
-                return "Upload " + getFile().toDetailString() + " to "
-                    + getPartner().getNick();
+        // If our partner supports requests, let him request. This
+        // is required for swarming to work.
+        if (isFiner()) {
+            logFiner("Both clients support partial transfers!");
+        }
+        debugState = "Sending StartUpload";
+        try {
+            if (getPartner().getProtocolVersion() >= 102) {
+                getPartner().sendMessage(new StartUploadExt(getFile()));
+            } else {
+                getPartner().sendMessage(new StartUpload(getFile()));
             }
-        };
+        } catch (ConnectionException e) {
+            throw new TransferException(e);
+        }
+        debugState = "Waiting for requests";
+        wakeupTime = System.currentTimeMillis()
+            + Constants.UPLOAD_REQUEST_TIMEOUT;
+        phase = Phase.WAITING;
+    }
 
-        // Perfom upload in threadpool
-        getTransferManager().perfomUpload(uploadPerfomer);
+    private void serveFirstRequest() {
+        boolean broken = aborted || isBroken();
+        if (broken || !hasPendingRequests()) {
+            if (!broken && System.currentTimeMillis() < wakeupTime) {
+                return;
+            }
+            // No request in time
+            finish(false);
+            return;
+        }
+        if (isFiner()) {
+            logFiner("Checking for parts request.");
+        }
+        debugState = "Checking for FPR request.";
+        phase = Phase.SENDING;
+        sendStartTime = System.currentTimeMillis();
+        wakeupTime = sendStartTime
+            + Constants.UPLOAD_REMOTEHASHING_PART_REQUEST_TIMEOUT;
+        if (!checkForFilePartsRecordRequest()) {
+            debugState = "Starting to send parts";
+            if (isFine()) {
+                logFine("Started " + this);
+            }
+        }
     }
-    
+
+    /**
+     * Closes the file and completes the upload if it is not broken or
+     * aborted.
+     *
+     * @param sent
+     *            if the upload started sending parts.
+     */
+    private void finish(boolean sent) {
+        if (sent) {
+            long took = System.currentTimeMillis() - sendStartTime;
+            getTransferManager().logTransfer(false, took, getFile(),
+                getPartner());
+        }
+        closeIO();
+        phase = Phase.DONE;
+        debugState = "DONE";
+        if (!isBroken() && !aborted) {
+            getTransferManager().setCompleted(Upload.this);
+        }
+    }
+
     private synchronized void closeIO() {
         if (in != null) {
             try {
@@ -315,51 +420,87 @@ public class Upload extends Transfer {
                 logSevere("IOException", e);
             }
         }
-        if (raf != null) {
+        if (channel != null) {
             try {
                 if (isFiner()) {
-                    logFiner("Closing raf for "
+                    logFiner("Closing channel for "
                         + getFile().toDetailString());
                 }
-                raf.close();
-                raf = null;
+                channel.close();
+                channel = null;
             } catch (IOException e) {
                 logSevere("IOException", e);
             }
         }
     }
 
-    protected boolean checkForFilePartsRecordRequest() throws TransferException
-    {
-        RequestFilePartsRecord r = null;
+    /**
+     * Starts to build and send the FilePartsRecord if it is the next request.
+     * The record gets built in the threadpool of the transfer manager, the
+     * upload continues when it was sent.
+     *
+     * @return true if the next request was for a FilePartsRecord.
+     */
+    protected boolean checkForFilePartsRecordRequest() {
+        final RequestFilePartsRecord r;
         synchronized (pendingRequests) {
-            if (pendingRequests.isEmpty()) {
-                logWarning("Cancelled message too fast");
+            if (!(pendingRequests.peek() instanceof RequestFilePartsRecord)) {
                 return false;
             }
-            if (pendingRequests.peek() instanceof RequestFilePartsRecord) {
-                r = (RequestFilePartsRecord) pendingRequests.remove();
-            }
-        }
-        if (r == null) {
-            return false;
+            r = (RequestFilePartsRecord) pendingRequests.remove();
         }
+        phase = Phase.HASHING;
+        recordSent = null;
+        wakeupTime = Long.MAX_VALUE;
+        state.setState(TransferState.FILEHASHING);
+        getTransferManager().doWork(new Runnable() {
+            public void run() {
+                boolean sent = false;
+                try {
+                    sent = sendFilePartsRecord(r);
+                } finally {
+                    recordSent = sent;
+                    getTransferManager().getUploadEngine().schedule(
+                        Upload.this);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "FilePartsRecord of " + Upload.this;
+            }
+        });
+        return true;
+    }
+
+    private boolean sendFilePartsRecord(RequestFilePartsRecord r) {
         final FileInfo fi = r.getFile();
         try {
             checkLastModificationDate(fi,
                 fi.getDiskFile(getController().getFolderRepository()));
             FilePartsRecord fpr;
-            state.setState(TransferState.FILEHASHING);
-            fpr = getTransferManager().getFileRecordManager().retrieveRecord(
-                fi, new ProgressListener() {
-                    public void progressReached(double percentageReached) {
-                        state.setProgress(percentageReached);
-                    }
-
-                });
+            ProgressListener obs = new ProgressListener() {
+                public void progressReached(double percentageReached) {
+                    state.setProgress(percentageReached);
+                }
+            };
+            FileRecordProvider provider = getTransferManager()
+                .getFileRecordManager();
+            if (r.isContentDefined()
+                && ConfigurationEntry.DELTA_CONTENT_DEFINED
+                    .getValueBoolean(getController()))
+            {
+                fpr = provider.retrieveContentDefinedRecord(fi, obs);
+            } else {
+                fpr = provider.retrieveRecord(fi, obs);
+            }
             getPartner().sendMessagesAsynchron(
                 new ReplyFilePartsRecord(fi, fpr));
             state.setState(TransferState.UPLOADING);
+            return true;
+        } catch (TransferException e) {
+            getTransferManager().uploadBroken(Upload.this,
+                TransferProblem.TRANSFER_EXCEPTION, e.getMessage());
         } catch (FileNotFoundException e) {
             logSevere("FileNotFoundException", e);
             getTransferManager().uploadBroken(Upload.this,
@@ -369,11 +510,11 @@ public class Upload extends Transfer {
             getTransferManager().uploadBroken(Upload.this,
                 TransferProblem.IO_EXCEPTION, e.getMessage());
         }
-        return true;
+        return false;
     }
 
     /**
-     * Sends one requested part.
+     * Sends the next requested part, if any.
      * 
      * @return false if the upload should stop, true otherwise
      * @throws TransferException
@@ -388,45 +529,38 @@ public class Upload extends Transfer {
         if (isAborted() || isBroken()) {
             return false;
         }
-        state.setState(TransferState.UPLOADING);
         RequestPart pr = null;
-        long waitTime = Constants.UPLOAD_REMOTEHASHING_PART_REQUEST_TIMEOUT;
         synchronized (pendingRequests) {
-            while (pendingRequests.isEmpty() && !isBroken() && !isAborted()) {
-                try {
-                    pendingRequests.wait(waitTime);
-                    waitTime = Constants.UPLOAD_REQUEST_TIMEOUT;
-                } catch (InterruptedException e) {
-                    logWarning("Interrupted on " + this + ". " + e);
-                    logFiner(e);
-                    throw new TransferException(e);
+            Message next = pendingRequests.peek();
+            if (next == null) {
+                long now = System.currentTimeMillis();
+                if (now >= wakeupTime) {
+                    // Still connected, continue to wait for requests
+                    wakeupTime = now + Constants.UPLOAD_REQUEST_TIMEOUT;
                 }
+                return true;
             }
-            // If it's still empty we either got a StopUpload, or we got
-            // interrupted or it got aborted in which case we just drop out.
-            // Also the timeout could be the cause in which case this also is
-            // the end of the upload.
-            if (pendingRequests.isEmpty()) {
-                return false;
-            }
-            if (pendingRequests.peek() instanceof StopUpload) {
+            if (next instanceof StopUpload) {
                 pendingRequests.remove();
                 return false;
             }
-            pr = (RequestPart) pendingRequests.remove();
-
-            if (isAborted() || isBroken()) {
-                return false;
+            if (!(next instanceof RequestFilePartsRecord)) {
+                pr = (RequestPart) pendingRequests.remove();
             }
         }
+        if (pr == null) {
+            checkForFilePartsRecordRequest();
+            return true;
+        }
+        state.setState(TransferState.UPLOADING);
         Path f = pr.getFile()
             .getDiskFile(getController().getFolderRepository());
+        ChunkBufferPool buffers = getTransferManager().getChunkBufferPool();
+        byte[] data = null;
         try {
-            byte[] data = new byte[(int) pr.getRange().getLength()];
+            data = buffers.take((int) pr.getRange().getLength());
             long startOffset = pr.getRange().getStart();
-            if (raf != null) {
-                raf.seek(startOffset);
-            } else if (in != null) {
+            if (channel == null && in != null) {
                 long skip = startOffset - inpos;
                 if (skip >= 0) {
                     inpos += in.skip(skip);
@@ -451,8 +585,9 @@ public class Upload extends Transfer {
             while (pos < data.length) {
                 int read;
                 int readLen = data.length - pos;
-                if (raf != null) {
-                    read = raf.read(data, pos, readLen);
+                if (channel != null) {
+                    read = channel.read(ByteBuffer.wrap(data, pos, readLen),
+                        startOffset + pos);
                 } else if (in != null) {
                     read = in.read(data, pos, readLen);
                     inpos += read;
@@ -495,27 +630,15 @@ public class Upload extends Transfer {
                 logFiner("ConnectionException", e);
             }
             throw new TransferException(e);
+        } finally {
+            // Chunk is written or serialized
+            buffers.release(data);
         }
+        wakeupTime = System.currentTimeMillis()
+            + Constants.UPLOAD_REQUEST_TIMEOUT;
         return true;
     }
 
-    protected boolean waitForRequests(long requestTimeoutMS) {
-        if (isBroken() || aborted) {
-            return false;
-        }
-        synchronized (pendingRequests) {
-            if (!pendingRequests.isEmpty()) {
-                return true;
-            }
-            try {
-                pendingRequests.wait(requestTimeoutMS);
-            } catch (InterruptedException e) {
-                logFine("InterruptedException. " + e);
-            }
-        }
-        return !isBroken() && !aborted && !pendingRequests.isEmpty();
-    }
-
     /**
      * Aborts this dl if currently transferrings
      */
@@ -539,9 +662,9 @@ public class Upload extends Transfer {
     private void stopUploads() {
         synchronized (pendingRequests) {
             pendingRequests.clear();
-            // Notify any remaining waiter
-            pendingRequests.notifyAll();
         }
+        // Let the engine finish it
+        wakeup();
     }
 
     public boolean isAborted() {
@@ -640,4 +763,20 @@ public class Upload extends Transfer {
                 + Convert.convertToGlobalPrecision(Files.getLastModifiedTime(f).toMillis()));
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * The steps of an upload, see {@link #serve()}.
+     */
+    private enum Phase {
+        /** Opening the file and sending the StartUpload */
+        OPENING,
+        /** Waiting for the first request */
+        WAITING,
+        /** Building the requested FilePartsRecord */
+        HASHING,
+        /** Sending the requested parts */
+        SENDING,
+        /** Completed or broken */
+        DONE
+    }
+}
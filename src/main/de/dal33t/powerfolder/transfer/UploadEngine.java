@@ -0,0 +1,172 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.PFComponent;
+import de.dal33t.powerfolder.util.NamedThreadFactory;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.WrapperExecutorService;
+
+/**
+ * Runs all started {@link Upload}s on a fixed number of threads. An upload
+ * keeps its state between the requests of the remote side. It only occupies a
+ * thread while it sends a part or handles a message, not while it waits for
+ * the next request.
+ * <p>
+ * An upload gets scheduled when a message for it arrives or its wakeup time
+ * passed. It is never served by two threads at the same time. After one step
+ * it goes to the end of the queue, so uploads with many pending requests do
+ * not block the others.
+ */
+public class UploadEngine extends PFComponent {
+    /** The interval to check the wakeup times of the uploads */
+    private static final long WAKEUP_CHECK_INTERVAL = 1000L;
+
+    private final int nWorkers;
+    private final Set<Upload> uploads = Collections
+        .newSetFromMap(new ConcurrentHashMap<Upload, Boolean>());
+    private ExecutorService workers;
+    private ScheduledFuture<?> wakeupChecker;
+
+    /**
+     * @param controller
+     * @param nWorkers
+     *            the number of threads serving the uploads.
+     */
+    UploadEngine(Controller controller, int nWorkers) {
+        super(controller);
+        Reject.ifTrue(nWorkers < 1, "Number of workers must be at least 1");
+        this.nWorkers = nWorkers;
+    }
+
+    void start() {
+        workers = new WrapperExecutorService(Executors.newFixedThreadPool(
+            nWorkers, new NamedThreadFactory("Upload-")));
+        wakeupChecker = getController().scheduleAndRepeat(new WakeupChecker(),
+            WAKEUP_CHECK_INTERVAL, WAKEUP_CHECK_INTERVAL);
+    }
+
+    void shutdown() {
+        if (wakeupChecker != null) {
+            wakeupChecker.cancel(false);
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        uploads.clear();
+    }
+
+    /**
+     * Adds a started upload and schedules its first step.
+     *
+     * @param upload
+     */
+    void start(Upload upload) {
+        uploads.add(upload);
+        schedule(upload);
+    }
+
+    /**
+     * Lets the upload handle its pending messages and state changes soon.
+     *
+     * @param upload
+     */
+    void schedule(Upload upload) {
+        upload.signalled = true;
+        if (!upload.scheduled.compareAndSet(false, true)) {
+            // Gets checked again after the current step
+            return;
+        }
+        try {
+            workers.execute(new Step(upload));
+        } catch (RejectedExecutionException e) {
+            upload.scheduled.set(false);
+            logFine("Not scheduling " + upload + ". Engine shut down");
+        }
+    }
+
+    /**
+     * @return the number of uploads not done yet.
+     */
+    public int countUploads() {
+        return uploads.size();
+    }
+
+    /**
+     * @return the number of threads serving the uploads.
+     */
+    public int getWorkerCount() {
+        return nWorkers;
+    }
+
+    // Internal classes *******************************************************
+
+    private class Step implements Runnable {
+        private final Upload upload;
+
+        private Step(Upload upload) {
+            this.upload = upload;
+        }
+
+        public void run() {
+            upload.signalled = false;
+            try {
+                upload.serve();
+            } finally {
+                upload.scheduled.set(false);
+                if (upload.isDone()) {
+                    uploads.remove(upload);
+                } else if (upload.signalled
+                    || (upload.hasPendingRequests() && !upload.isHashing()))
+                {
+                    // Hashing uploads get scheduled once the hash is done
+                    schedule(upload);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Step of " + upload;
+        }
+    }
+
+    private class WakeupChecker implements Runnable {
+        public void run() {
+            long now = System.currentTimeMillis();
+            for (Upload upload : uploads) {
+                if (upload.isDone()) {
+                    uploads.remove(upload);
+                } else if (now >= upload.getWakeupTime()) {
+                    schedule(upload);
+                }
+            }
+        }
+    }
+}
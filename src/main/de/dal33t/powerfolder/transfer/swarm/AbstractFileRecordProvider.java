@@ -21,20 +21,27 @@ package de.dal33t.powerfolder.transfer.swarm;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.Adler32;
 
 import de.dal33t.powerfolder.Controller;
 import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.NamedThreadFactory;
 import de.dal33t.powerfolder.util.ProgressListener;
 import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.delta.ContentDefinedRecordBuilder;
 import de.dal33t.powerfolder.util.delta.FilePartsRecord;
 import de.dal33t.powerfolder.util.delta.FilePartsRecordBuilder;
+import de.dal33t.powerfolder.util.delta.ParallelFilePartsRecordBuilder;
 
 /**
  * Abstract {@link FileRecordProvider} which can compute {@link FilePartsRecord}
@@ -46,7 +53,23 @@ public abstract class AbstractFileRecordProvider implements FileRecordProvider {
 
     private static final Logger log = Logger
         .getLogger(AbstractFileRecordProvider.class.getName());
+    /** Files of this size and larger are processed on all CPUs */
+    private static final long PARALLEL_MIN_SIZE = 16L * 1024 * 1024;
+    /**
+     * The average size of content defined parts. The same for all files up to
+     * {@link #CONTENT_DEFINED_MAX_PARTS} parts, so equal content is cut into
+     * equal parts in these files and can be found in the
+     * {@link de.dal33t.powerfolder.disk.BlockIndex} of other local files.
+     */
+    public static final int CONTENT_DEFINED_PART_SIZE = 64 * 1024;
+    /**
+     * Larger files get larger content defined parts. Even if all parts had the
+     * minimum size of a quarter of the average, the record has to fit into one
+     * message.
+     */
+    public static final int CONTENT_DEFINED_MAX_PARTS = 32 * 1024;
     private Controller controller;
+    private ThreadPoolExecutor builderPool;
 
     /**
      * @param controller
@@ -60,6 +83,13 @@ public abstract class AbstractFileRecordProvider implements FileRecordProvider {
         return controller;
     }
 
+    public synchronized void shutdown() {
+        if (builderPool != null) {
+            builderPool.shutdownNow();
+            builderPool = null;
+        }
+    }
+
     protected FilePartsRecord computeFilePartsRecord(FileInfo fileInfo,
         ProgressListener obs) throws IOException
     {
@@ -67,14 +97,11 @@ public abstract class AbstractFileRecordProvider implements FileRecordProvider {
         long start = System.currentTimeMillis();
         Path f = fileInfo.getDiskFile(controller.getFolderRepository());
 
-        // TODO: Both, the RecordBuilder and the Matcher use "almost"
-        // the same algorithms, there should be a shared config.
-        // TODO: To select a part size I just took 4Gb as size and
-        // wanted the result to be ~512kb.
-        // But there should be a more thorough investigation on how to
-        // calculate it.
-        int partSize = Math
-            .max(4096, (int) (Math.pow(Files.size(f), 0.25) * 2048));
+        int partSize = getPartSize(Files.size(f));
+        int cpus = Runtime.getRuntime().availableProcessors();
+        if (cpus > 1 && Files.size(f) >= PARALLEL_MIN_SIZE) {
+            return computeParallel(f, partSize, cpus, obs);
+        }
         try (InputStream in = Files.newInputStream(f)) {
             FilePartsRecordBuilder b = new FilePartsRecordBuilder(
                 new Adler32(), MessageDigest.getInstance("SHA-256"),
@@ -101,4 +128,113 @@ public abstract class AbstractFileRecordProvider implements FileRecordProvider {
         }
     }
 
+    /**
+     * Computes a record of parts cut at content defined positions.
+     *
+     * @param fileInfo
+     * @param obs
+     * @return the record.
+     * @throws IOException
+     */
+    protected FilePartsRecord computeContentDefinedRecord(FileInfo fileInfo,
+        ProgressListener obs) throws IOException
+    {
+        assert fileInfo != null;
+        long start = System.currentTimeMillis();
+        Path f = fileInfo.getDiskFile(controller.getFolderRepository());
+        long size = Files.size(f);
+        try (InputStream in = Files.newInputStream(f)) {
+            ContentDefinedRecordBuilder b = new ContentDefinedRecordBuilder(
+                MessageDigest.getInstance("SHA-256"), MessageDigest
+                    .getInstance("MD5"), getContentDefinedPartSize(size));
+            int read = 0;
+            byte buf[] = new byte[65536];
+            long processed = 0;
+            while ((read = in.read(buf)) > 0) {
+                b.update(buf, 0, read);
+                if (obs != null) {
+                    obs.progressReached((double) processed / size);
+                    processed += read;
+                }
+            }
+            FilePartsRecord fileRecord = b.getRecord();
+            long took = System.currentTimeMillis() - start;
+            if (log.isLoggable(Level.FINE)) {
+                log.fine("Built content defined file parts for " + this
+                    + ". took " + took + "ms" + " while processing "
+                    + fileRecord.getFileLength() + " bytes.");
+            }
+            return fileRecord;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param fileSize
+     * @return the average size of the content defined parts for a file.
+     *         {@link #CONTENT_DEFINED_PART_SIZE} or a larger power of two for
+     *         files of more than {@link #CONTENT_DEFINED_MAX_PARTS} parts.
+     */
+    public static int getContentDefinedPartSize(long fileSize) {
+        int partSize = CONTENT_DEFINED_PART_SIZE;
+        while (fileSize / partSize > CONTENT_DEFINED_MAX_PARTS
+            && partSize < 1 << 28)
+        {
+            partSize *= 2;
+        }
+        return partSize;
+    }
+
+    /**
+     * @param fileSize
+     * @return the size of the parts for a file. Content defined parts use
+     *         {@link #getContentDefinedPartSize(long)}.
+     */
+    public static int getPartSize(long fileSize) {
+        // TODO: Both, the RecordBuilder and the Matcher use "almost"
+        // the same algorithms, there should be a shared config.
+        // TODO: To select a part size I just took 4Gb as size and
+        // wanted the result to be ~512kb.
+        // But there should be a more thorough investigation on how to
+        // calculate it.
+        return Math.max(4096, (int) (Math.pow(fileSize, 0.25) * 2048));
+    }
+
+    private FilePartsRecord computeParallel(Path f, int partSize, int cpus,
+        ProgressListener obs) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        long size = Files.size(f);
+        try (InputStream in = Files.newInputStream(f)) {
+            ParallelFilePartsRecordBuilder b;
+            b = new ParallelFilePartsRecordBuilder(getBuilderPool(cpus), cpus,
+                "SHA-256", "MD5", partSize);
+            FilePartsRecord fileRecord = b.build(in, size, obs);
+            long took = System.currentTimeMillis() - start;
+            if (log.isLoggable(Level.FINE)) {
+                log.fine("Built file parts for " + this + " on " + cpus
+                    + " threads. took " + took + "ms" + " while processing "
+                    + fileRecord.getFileLength() + " bytes.");
+            }
+            return fileRecord;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while building file parts of " + f);
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getBuilderPool(int threads) {
+        if (builderPool == null) {
+            builderPool = new ThreadPoolExecutor(threads, threads, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamedThreadFactory("FilePartsBuilder-"));
+            builderPool.allowCoreThreadTimeOut(true);
+        }
+        return builderPool;
+    }
+
 }
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.transfer.swarm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.dal33t.powerfolder.Controller;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+
+/**
+ * {@link FileRecordProvider} which stores computed {@link FilePartsRecord}s
+ * on disk. A record is reused as long as folder, name, version, size and
+ * modification date of the requested {@link FileInfo} match.
+ * <p>
+ * The total size of the stored records is limited. The least recently used
+ * records get removed first. The last use is kept as modification date of the
+ * record file, so the order survives restarts.
+ * <p>
+ * Small files are not cached, computing their records is cheap.
+ */
+public class CachedFileRecordProvider extends AbstractFileRecordProvider {
+
+    private static final Logger log = Logger
+        .getLogger(CachedFileRecordProvider.class.getName());
+    private static final String EXTENSION = ".record";
+    private static final long MIN_FILE_SIZE = 1024L * 1024;
+
+    private final Path dir;
+    private final long maxSize;
+
+    /** File name -> Size in bytes. In order of last use */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(
+        16, 0.75f, true);
+    private long totalSize;
+
+    /** Key -> Lock. Prevents computing the same record concurrently */
+    private final ConcurrentMap<String, Object> computing = Util
+        .createConcurrentHashMap();
+
+    /**
+     * @param controller
+     * @param dir
+     *            the directory to store the records in.
+     * @param maxSize
+     *            the maximum total size of the stored records in bytes.
+     */
+    public CachedFileRecordProvider(Controller controller, Path dir,
+        long maxSize)
+    {
+        super(controller);
+        Reject.ifNull(dir, "Directory is null");
+        this.dir = dir;
+        this.maxSize = maxSize;
+        loadEntries();
+    }
+
+    public FilePartsRecord retrieveRecord(FileInfo fileInfo,
+        ProgressListener obs) throws IOException
+    {
+        return retrieveRecord(fileInfo, false, obs);
+    }
+
+    public FilePartsRecord retrieveContentDefinedRecord(FileInfo fileInfo,
+        ProgressListener obs) throws IOException
+    {
+        return retrieveRecord(fileInfo, true, obs);
+    }
+
+    /**
+     * @return the total size of the stored records in bytes.
+     */
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return the number of stored records.
+     */
+    public synchronized int getCount() {
+        return entries.size();
+    }
+
+    // Internals **************************************************************
+
+    private FilePartsRecord retrieveRecord(FileInfo fileInfo,
+        boolean contentDefined, ProgressListener obs) throws IOException
+    {
+        Reject.ifNull(fileInfo, "FileInfo is null!");
+        if (fileInfo.getSize() < MIN_FILE_SIZE) {
+            return compute(fileInfo, contentDefined, obs);
+        }
+        String key = toKey(fileInfo, contentDefined);
+        Object lock = new Object();
+        Object existing = computing.putIfAbsent(key, lock);
+        if (existing != null) {
+            lock = existing;
+        }
+        try {
+            synchronized (lock) {
+                String fileName = toFileName(key);
+                FilePartsRecord record = load(fileName, key, fileInfo);
+                if (record != null) {
+                    if (log.isLoggable(Level.FINE)) {
+                        log.fine("Using stored file parts of "
+                            + fileInfo.toDetailString());
+                    }
+                    if (obs != null) {
+                        obs.progressReached(1);
+                    }
+                    return record;
+                }
+                record = compute(fileInfo, contentDefined, obs);
+                store(fileName, key, record);
+                return record;
+            }
+        } finally {
+            computing.remove(key, lock);
+        }
+    }
+
+    private FilePartsRecord compute(FileInfo fileInfo,
+        boolean contentDefined, ProgressListener obs) throws IOException
+    {
+        return contentDefined
+            ? computeContentDefinedRecord(fileInfo, obs)
+            : computeFilePartsRecord(fileInfo, obs);
+    }
+
+    private static String toKey(FileInfo fileInfo, boolean contentDefined) {
+        return fileInfo.getFolderInfo().getId() + '/'
+            + fileInfo.getRelativeName() + '/' + fileInfo.getVersion() + '/'
+            + fileInfo.getSize() + '/'
+            + fileInfo.getModifiedDate().getTime()
+            + (contentDefined ? "/cdc" : "");
+    }
+
+    private static String toFileName(String key) {
+        return new String(Util.encodeHex(Util.md5(key
+            .getBytes(StandardCharsets.UTF_8)))) + EXTENSION;
+    }
+
+    private FilePartsRecord load(String fileName, String key, FileInfo fileInfo)
+    {
+        synchronized (this) {
+            if (entries.get(fileName) == null) {
+                return null;
+            }
+        }
+        Path file = dir.resolve(fileName);
+        try (ObjectInputStream in = new ObjectInputStream(
+            new BufferedInputStream(Files.newInputStream(file))))
+        {
+            if (!key.equals(in.readUTF())) {
+                // Hash collision
+                return null;
+            }
+            FilePartsRecord record = (FilePartsRecord) in.readObject();
+            if (record.getFileLength() != fileInfo.getSize()) {
+                return null;
+            }
+            Files.setLastModifiedTime(file,
+                FileTime.fromMillis(System.currentTimeMillis()));
+            return record;
+        } catch (NoSuchFileException e) {
+            remove(fileName);
+            return null;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            log.warning("Unable to read stored file parts " + file + ". " + e);
+            remove(fileName);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e2) {
+                log.fine("Unable to delete " + file + ". " + e2);
+            }
+            return null;
+        }
+    }
+
+    private void store(String fileName, String key, FilePartsRecord record) {
+        Path file = dir.resolve(fileName);
+        Path tempFile = dir.resolve(fileName + ".writing");
+        try {
+            Files.createDirectories(dir);
+            try (ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempFile))))
+            {
+                out.writeUTF(key);
+                out.writeObject(record);
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            add(fileName, Files.size(file));
+        } catch (IOException e) {
+            log.warning("Unable to store file parts " + file + ". " + e);
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException e2) {
+                log.fine("Unable to delete " + tempFile + ". " + e2);
+            }
+        }
+    }
+
+    private void add(String fileName, long size) {
+        List<String> evicted = new ArrayList<String>();
+        synchronized (this) {
+            Long previous = entries.put(fileName, size);
+            totalSize += size - (previous != null ? previous : 0);
+            for (Iterator<Map.Entry<String, Long>> it = entries.entrySet()
+                .iterator(); it.hasNext() && totalSize > maxSize;)
+            {
+                Map.Entry<String, Long> entry = it.next();
+                if (entry.getKey().equals(fileName)) {
+                    continue;
+                }
+                totalSize -= entry.getValue();
+                evicted.add(entry.getKey());
+                it.remove();
+            }
+        }
+        for (String name : evicted) {
+            try {
+                Files.deleteIfExists(dir.resolve(name));
+            } catch (IOException e) {
+                log.fine("Unable to delete " + name + ". " + e);
+            }
+        }
+        if (!evicted.isEmpty() && log.isLoggable(Level.FINE)) {
+            log.fine("Removed " + evicted.size()
+                + " least recently used file parts");
+        }
+    }
+
+    private synchronized void remove(String fileName) {
+        Long size = entries.remove(fileName);
+        if (size != null) {
+            totalSize -= size;
+        }
+    }
+
+    /**
+     * Reads the stored records, least recently used first.
+     */
+    private void loadEntries() {
+        if (Files.notExists(dir)) {
+            return;
+        }
+        final Map<Path, Long> lastUsed = new LinkedHashMap<Path, Long>();
+        final Map<Path, Long> sizes = new LinkedHashMap<Path, Long>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(EXTENSION)) {
+                    // Incomplete
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                lastUsed.put(file, Files.getLastModifiedTime(file).toMillis());
+                sizes.put(file, Files.size(file));
+            }
+        } catch (IOException e) {
+            log.warning("Unable to read stored file parts in " + dir + ". "
+                + e);
+        }
+        List<Path> files = new ArrayList<Path>(lastUsed.keySet());
+        Collections.sort(files, new Comparator<Path>() {
+            public int compare(Path o1, Path o2) {
+                return lastUsed.get(o1).compareTo(lastUsed.get(o2));
+            }
+        });
+        for (Path file : files) {
+            add(file.getFileName().toString(), sizes.get(file));
+        }
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Loaded " + entries.size() + " stored file parts ("
+                + totalSize + " bytes) from " + dir);
+        }
+    }
+}
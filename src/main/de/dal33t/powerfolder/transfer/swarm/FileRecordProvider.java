@@ -45,6 +45,19 @@ public interface FileRecordProvider {
     FilePartsRecord retrieveRecord(FileInfo fileInfo, ProgressListener progObs)
         throws IOException;
 
+    /**
+     * Like {@link #retrieveRecord(FileInfo, ProgressListener)}, but the parts
+     * of the record are cut at content defined positions.
+     * 
+     * @param fileInfo
+     * @param progObs
+     * @return the requested record
+     * @throws IOException
+     *             if an exception occurred while retrieving the record
+     */
+    FilePartsRecord retrieveContentDefinedRecord(FileInfo fileInfo,
+        ProgressListener progObs) throws IOException;
+
     /**
      * Releases any resources held by this manager.
      */
@@ -47,6 +47,10 @@ public class VolatileFileRecordProvider extends AbstractFileRecordProvider {
         return computeFilePartsRecord(fileInfo, obs);
     }
 
-    public void shutdown() {
+    public FilePartsRecord retrieveContentDefinedRecord(FileInfo fileInfo,
+        ProgressListener obs) throws IOException
+    {
+        Reject.ifNull(fileInfo, "FileInfo is null!");
+        return computeContentDefinedRecord(fileInfo, obs);
     }
 }
@@ -459,7 +459,7 @@ public class CreateEditSyncProfileDialog extends BaseDialog implements
             scanTimeModel.getNumber().intValue(),
             dailyMode, hourModel.getNumber().intValue(),
             dayCombo.getSelectedIndex(), timeType,
-                instantMode);
+                instantMode, originalConfiguration.getHoursBetweenFullScans());
 
         String newProfileName = syncProfileName.getText().trim();
 
@@ -55,7 +55,8 @@ public class ByteSerializer extends Loggable {
     private static final Logger LOG = Logger.getLogger(ByteSerializer.class
         .getName());
 
-    private static final int MAX_BUFFER_SIZE = 10 * 1024 * 1024;
+    /** Larger messages are not read */
+    public static final int MAX_BUFFER_SIZE = 10 * 1024 * 1024;
     // Should at least cover one file chunk. if packet is greater, the buffer
     // won't get cached = memory waste.
     private static final int MAX_CACHE_BUFFER_SIZE = 0;
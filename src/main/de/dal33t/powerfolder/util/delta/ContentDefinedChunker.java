@@ -0,0 +1,129 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Cuts data into chunks at positions defined by the content. A gear hash rolls
+ * over the data, a chunk ends where the high bits of the hash are zero. The
+ * hash only depends on the last 64 bytes, so inserting or removing data only
+ * changes the neighbouring chunks.
+ * <p>
+ * Chunks are at least a quarter and at most four times the average size.
+ * <p>
+ * The gear table is part of the protocol: Both sides of a delta-sync need to
+ * cut the same data at the same positions. Don't change it.
+ */
+public final class ContentDefinedChunker {
+    private static final long[] GEAR = new long[256];
+    /** Bytes affecting the hash */
+    private static final int WINDOW = 64;
+
+    static {
+        // SplitMix64 with a fixed seed
+        long seed = 0x5046434443L;
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9E3779B97F4A7C15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final int averageSize;
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+
+    private long hash;
+    private int length;
+
+    /**
+     * @param averageSize
+     *            the average chunk size. Gets rounded down to a power of two.
+     */
+    public ContentDefinedChunker(int averageSize) {
+        Reject.ifTrue(averageSize < 256, "Average size must be at least 256");
+        this.averageSize = Integer.highestOneBit(averageSize);
+        this.minSize = this.averageSize / 4;
+        this.maxSize = this.averageSize * 4;
+        int bits = Integer.numberOfTrailingZeros(this.averageSize);
+        this.mask = -1L << (64 - bits);
+    }
+
+    /**
+     * @return the average chunk size, a power of two.
+     */
+    public int getAverageSize() {
+        return averageSize;
+    }
+
+    /**
+     * @return the maximum chunk size.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Continues the current chunk with the data.
+     *
+     * @param data
+     * @param off
+     * @param len
+     * @return the number of bytes up to and including the last byte of the
+     *         current chunk or -1 if the chunk doesn't end within the data.
+     *         In the first case the next chunk starts after the returned
+     *         number of bytes.
+     */
+    public int findCut(byte[] data, int off, int len) {
+        int end = off + len;
+        int i = off;
+        int l = length;
+        long h = hash;
+        // Bytes before the window of the first possible cut don't matter
+        int skip = Math.min(minSize - WINDOW - l, len);
+        if (skip > 0) {
+            i += skip;
+            l += skip;
+        }
+        while (i < end) {
+            h = (h << 1) + GEAR[data[i++] & 0xff];
+            l++;
+            if (l >= minSize && (h & mask) == 0 || l >= maxSize) {
+                reset();
+                return i - off;
+            }
+        }
+        hash = h;
+        length = l;
+        return -1;
+    }
+
+    /**
+     * Starts a new chunk.
+     */
+    public void reset() {
+        hash = 0;
+        length = 0;
+    }
+}
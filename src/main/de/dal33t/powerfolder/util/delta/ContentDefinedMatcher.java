@@ -0,0 +1,134 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Finds the parts of a content defined {@link FilePartsRecord} in a data
+ * stream. The stream gets cut by the same {@link ContentDefinedChunker} as the
+ * original data. Every chunk is digested and looked up in the parts of the
+ * record, so there is no need to test every position of the stream.
+ */
+public class ContentDefinedMatcher extends FilterInputStream {
+    private static final int BLOCK_SIZE = 1024 * 1024;
+
+    private final ContentDefinedChunker chunker;
+    private final MessageDigest digester;
+    /** Digest -> Parts with that digest */
+    private final Map<ByteBuffer, List<PartInfo>> parts;
+    private final LinkedList<MatchInfo> pending = new LinkedList<MatchInfo>();
+    private final byte[] buffer = new byte[BLOCK_SIZE];
+    private int bufferPos;
+    private int bufferEnd;
+    /** Stream position of buffer[bufferPos] */
+    private long pos;
+    /** Stream position of the current chunk */
+    private long chunkStart;
+    private boolean done;
+
+    /**
+     * @param in
+     * @param averagePartSize
+     *            the average part size of the record.
+     * @param digester
+     *            the digest algorithm of the parts.
+     * @param partInfos
+     */
+    public ContentDefinedMatcher(InputStream in, int averagePartSize,
+        MessageDigest digester, PartInfo[] partInfos)
+    {
+        super(in);
+        Reject.noNullElements(digester, partInfos);
+        this.chunker = new ContentDefinedChunker(averagePartSize);
+        this.digester = digester;
+        this.parts = new HashMap<ByteBuffer, List<PartInfo>>(
+            partInfos.length * 2);
+        for (PartInfo info : partInfos) {
+            ByteBuffer key = ByteBuffer.wrap(info.getDigest());
+            List<PartInfo> list = parts.get(key);
+            if (list == null) {
+                list = new ArrayList<PartInfo>(1);
+                parts.put(key, list);
+            }
+            list.add(info);
+        }
+    }
+
+    public MatchInfo nextMatch() throws IOException, InterruptedException {
+        while (pending.isEmpty()) {
+            if (bufferPos == bufferEnd) {
+                if (done) {
+                    return null;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                int read = read(buffer, 0, buffer.length);
+                if (read < 0) {
+                    if (pos > chunkStart) {
+                        endChunk();
+                    }
+                    done = true;
+                    continue;
+                }
+                bufferPos = 0;
+                bufferEnd = read;
+                continue;
+            }
+            int n = bufferEnd - bufferPos;
+            int cut = chunker.findCut(buffer, bufferPos, n);
+            if (cut < 0) {
+                digester.update(buffer, bufferPos, n);
+                pos += n;
+                bufferPos = bufferEnd;
+            } else {
+                digester.update(buffer, bufferPos, cut);
+                pos += cut;
+                bufferPos += cut;
+                endChunk();
+            }
+        }
+        return pending.removeFirst();
+    }
+
+    // Internals **************************************************************
+
+    private void endChunk() {
+        List<PartInfo> matches = parts.get(ByteBuffer.wrap(digester.digest()));
+        if (matches != null) {
+            for (PartInfo info : matches) {
+                pending.add(new MatchInfo(info, chunkStart));
+            }
+        }
+        chunkStart = pos;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.dal33t.powerfolder.util.Reject;
+import de.dal33t.powerfolder.util.Validate;
+
+/**
+ * Creates a {@link FilePartsRecord} of parts cut by a
+ * {@link ContentDefinedChunker}. The parts are identified by their digest
+ * only, the checksum of the {@link PartInfo}s is 0.
+ */
+public final class ContentDefinedRecordBuilder {
+    private final ContentDefinedChunker chunker;
+    private final MessageDigest partDigester, fileDigester;
+    private final List<PartInfo> parts = new ArrayList<PartInfo>();
+    private int[] lengths = new int[16];
+    private long processed;
+    private int partPos;
+
+    /**
+     * @param partDigester
+     * @param fileDigester
+     * @param averagePartSize
+     *            gets rounded down to a power of two.
+     */
+    public ContentDefinedRecordBuilder(MessageDigest partDigester,
+        MessageDigest fileDigester, int averagePartSize)
+    {
+        Reject.noNullElements(partDigester, fileDigester);
+        this.chunker = new ContentDefinedChunker(averagePartSize);
+        this.partDigester = partDigester;
+        this.fileDigester = fileDigester;
+    }
+
+    /**
+     * Updates the current record with the given data.
+     *
+     * @param data
+     * @param off
+     * @param len
+     */
+    public void update(byte[] data, int off, int len) {
+        Validate.notNull(data);
+        if (off < 0 || len < 0 || off + len > data.length) {
+            throw new IndexOutOfBoundsException("Invalid parameters!");
+        }
+        processed += len;
+        fileDigester.update(data, off, len);
+        while (len > 0) {
+            int cut = chunker.findCut(data, off, len);
+            if (cut < 0) {
+                partDigester.update(data, off, len);
+                partPos += len;
+                return;
+            }
+            partDigester.update(data, off, cut);
+            addPart(partPos + cut);
+            off += cut;
+            len -= cut;
+        }
+    }
+
+    /**
+     * Updates the current record with the given data. Same as calling
+     * update(data, 0, data.length).
+     *
+     * @param data
+     */
+    public void update(byte[] data) {
+        update(data, 0, data.length);
+    }
+
+    /**
+     * Ends the last part and returns the resulting record. The builder is
+     * reset after this call is made.
+     *
+     * @return a record containing {@link PartInfo}s and additional
+     *         information.
+     */
+    public FilePartsRecord getRecord() {
+        try {
+            if (partPos > 0) {
+                addPart(partPos);
+            }
+            int[] partLengths = new int[parts.size()];
+            System.arraycopy(lengths, 0, partLengths, 0, partLengths.length);
+            return new FilePartsRecord(processed, parts
+                .toArray(new PartInfo[parts.size()]), chunker
+                .getAverageSize(), partLengths, fileDigester.digest());
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Resets the builder for further use.
+     */
+    public void reset() {
+        processed = 0;
+        partPos = 0;
+        chunker.reset();
+        fileDigester.reset();
+        partDigester.reset();
+        parts.clear();
+    }
+
+    private void addPart(int length) {
+        int i = parts.size();
+        if (i == lengths.length) {
+            int[] grown = new int[lengths.length * 2];
+            System.arraycopy(lengths, 0, grown, 0, lengths.length);
+            lengths = grown;
+        }
+        lengths[i] = length;
+        parts.add(new PartInfo(i, 0, partDigester.digest()));
+        partPos = 0;
+    }
+}
@@ -22,8 +22,14 @@ package de.dal33t.powerfolder.util.delta;
 import java.io.Serializable;
 import java.util.Arrays;
 
+import de.dal33t.powerfolder.util.Range;
+
 /**
  * Holds the info of one set of PartInfos. 
+ * <p>
+ * The parts either all have the same length or were cut at content defined
+ * positions by a {@link ContentDefinedChunker}. In the latter case the part
+ * length is the average length used by the chunker.
  *  
  * @author Dennis "Dante" Waldherr
  * @version $Revision: $ 
@@ -35,6 +41,9 @@ public final class FilePartsRecord implements Serializable {
 	private int partLength;
 	private long fileLength;
 	private byte[] fileDigest;
+    /** The length of each part if cut content defined, otherwise null */
+    private int[] partLengths;
+    private transient long[] partOffsets;
 
     /**
      * Creates a new record with the given parameters.
@@ -52,6 +61,25 @@ public final class FilePartsRecord implements Serializable {
         this.fileLength = fileLength;
     }
 
+    /**
+     * Creates a new record of parts cut at content defined positions.
+     * @param fileLength the size of the file that was used.
+     * @param infos the {@link PartInfo}s that were produced.
+     * @param averagePartSize the average part size of the chunker.
+     * @param partLengths the length of each part.
+     * @param fileDigest the digest of the complete file.
+     */
+    public FilePartsRecord(long fileLength, PartInfo[] infos,
+        int averagePartSize, int[] partLengths, byte[] fileDigest)
+    {
+        this(fileLength, infos, averagePartSize, fileDigest);
+        if (partLengths.length != infos.length) {
+            throw new IllegalArgumentException("Got " + partLengths.length
+                + " lengths for " + infos.length + " parts");
+        }
+        this.partLengths = partLengths;
+    }
+
     /**
      * Returns the {@link PartInfo}s this record contains.
      * @return
@@ -84,6 +112,36 @@ public final class FilePartsRecord implements Serializable {
 		return fileLength;
 	}
 
+    /**
+     * @return true if the parts were cut at content defined positions.
+     */
+    public boolean isContentDefined() {
+        return partLengths != null;
+    }
+
+    /**
+     * @param index
+     *            the index of the part.
+     * @return the range of the part in the file.
+     */
+    public Range getPartRange(long index) {
+        if (partLengths == null) {
+            long start = index * partLength;
+            return Range.getRangeByLength(start, Math.min(partLength,
+                fileLength - start));
+        }
+        long[] offsets = partOffsets;
+        if (offsets == null) {
+            offsets = new long[partLengths.length];
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] = offsets[i - 1] + partLengths[i - 1];
+            }
+            partOffsets = offsets;
+        }
+        int i = (int) index;
+        return Range.getRangeByLength(offsets[i], partLengths[i]);
+    }
+
     @Override
     public boolean equals(Object arg0) {
         if (arg0.getClass() != FilePartsRecord.class) {
@@ -93,7 +151,8 @@ public final class FilePartsRecord implements Serializable {
         return partLength == o.partLength 
             && Arrays.equals(infos, o.infos)
             && Arrays.equals(fileDigest, o.fileDigest)
-            && fileLength == o.fileLength;
+            && fileLength == o.fileLength
+            && Arrays.equals(partLengths, o.partLengths);
     }
 
     @Override
@@ -103,6 +162,7 @@ public final class FilePartsRecord implements Serializable {
 
     @Override
     public String toString() {
-        return "[FilePartsRecord, fsize: " + fileLength + ", partLength: " + partLength + ", infocount: " + infos.length + "]";
+        return "[FilePartsRecord, fsize: " + fileLength + ", partLength: " + partLength + ", infocount: " + infos.length
+            + (isContentDefined() ? ", content defined" : "") + "]";
     }
 }
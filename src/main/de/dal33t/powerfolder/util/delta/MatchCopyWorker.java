@@ -47,9 +47,27 @@ public class MatchCopyWorker extends Loggable implements
     private long srcStreamPos;
     private RandomAccessFile dst;
     private final ProgressListener progressObserver;
+    private final FilePartsState state;
 
     public MatchCopyWorker(Path srcFile, Path dstFile, FilePartsRecord record,
         List<MatchInfo> matchInfoList, ProgressListener obs)
+    {
+        this(srcFile, dstFile, record, matchInfoList, obs, null);
+    }
+
+    /**
+     * @param srcFile
+     * @param dstFile
+     * @param record
+     * @param matchInfoList
+     * @param obs
+     * @param state
+     *            the state of the parts already copied from another source or
+     *            null. Parts which are AVAILABLE are not copied again.
+     */
+    public MatchCopyWorker(Path srcFile, Path dstFile, FilePartsRecord record,
+        List<MatchInfo> matchInfoList, ProgressListener obs,
+        FilePartsState state)
     {
         super();
         Reject.noNullElements(srcFile, dstFile, record, matchInfoList);
@@ -58,6 +76,7 @@ public class MatchCopyWorker extends Loggable implements
         this.record = record;
         this.matchInfoList = matchInfoList;
         this.progressObserver = obs;
+        this.state = state;
     }
 
     public FilePartsState call() throws Exception {
@@ -71,8 +90,9 @@ public class MatchCopyWorker extends Loggable implements
         try {
             dst = new RandomAccessFile(dstFile.toFile(), "rw");
             try {
-                FilePartsState result = new FilePartsState(
-                    record.getFileLength());
+                FilePartsState result = state != null
+                    ? state
+                    : new FilePartsState(record.getFileLength());
                 int index = 0;
                 for (MatchInfo info : matchInfoList) {
                     if (Thread.interrupted()) {
@@ -86,6 +106,16 @@ public class MatchCopyWorker extends Loggable implements
                     }
                     index++;
 
+                    Range range = record.getPartRange(info.getMatchedPart()
+                        .getIndex());
+                    long dstPos = range.getStart();
+                    int rem = (int) range.getLength();
+                    long available = result.countPartStates(range,
+                        PartState.AVAILABLE);
+                    if (available == rem) {
+                        // Already copied from another source
+                        continue;
+                    }
                     if (src != null) {
                         src.seek(info.getMatchedPosition());
                     } else {
@@ -96,19 +126,14 @@ public class MatchCopyWorker extends Loggable implements
                         srcStream.skip(info.getMatchedPosition());
                         srcStreamPos += info.getMatchedPosition();
                     }
-                    long dstPos = info.getMatchedPart().getIndex()
-                        * record.getPartLength();
                     dst.seek(dstPos);
-                    int rem = (int) Math.min(record.getPartLength(),
-                        record.getFileLength() - dstPos);
                     if (src != null) {
                         PathUtils.ncopy(src, dst, rem);
                     } else {
                         PathUtils.ncopy(srcStream, dst, rem);
                     }
                     // The copied data is now AVAILABLE
-                    result.setPartState(Range.getRangeByLength(dstPos, rem),
-                        PartState.AVAILABLE);
+                    result.setPartState(range, PartState.AVAILABLE);
                 }
                 return result;
             } finally {
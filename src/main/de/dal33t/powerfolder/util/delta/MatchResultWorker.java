@@ -49,18 +49,24 @@ public class MatchResultWorker implements Callable<List<MatchInfo>> {
         try {
             final long fsize = Files.size(inFile);
 
+            List<MatchInfo> matches = new LinkedList<MatchInfo>();
+            MatchInfo match = null;
+            if (record.isContentDefined()) {
+                ContentDefinedMatcher matcher = new ContentDefinedMatcher(in,
+                    record.getPartLength(), MessageDigest
+                        .getInstance("SHA-256"), record.getInfos());
+                while ((match = matcher.nextMatch()) != null) {
+                    progressReached(in, fsize);
+                    matches.add(match);
+                }
+                return matches;
+            }
+
             PartInfoMatcher matcher = new PartInfoMatcher(in,
                 new RollingAdler32(record.getPartLength()), MessageDigest
                     .getInstance("SHA-256"), record.getInfos());
-
-            List<MatchInfo> matches = new LinkedList<MatchInfo>();
-            MatchInfo match = null;
             while ((match = matcher.nextMatch()) != null) {
-                if (progressListener != null) {
-                    progressListener.progressReached(fsize > 0 ? (double) in
-                        .getReadBytes()
-                        / fsize : 1);
-                }
+                progressReached(in, fsize);
                 matches.add(match);
             }
             return matches;
@@ -68,4 +74,12 @@ public class MatchResultWorker implements Callable<List<MatchInfo>> {
             in.close();
         }
     }
+
+    private void progressReached(CountedInputStream in, long fsize) {
+        if (progressListener != null) {
+            progressListener.progressReached(fsize > 0 ? (double) in
+                .getReadBytes()
+                / fsize : 1);
+        }
+    }
 }
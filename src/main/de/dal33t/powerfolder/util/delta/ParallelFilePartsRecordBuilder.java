@@ -0,0 +1,287 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.util.delta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.Adler32;
+
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.Reject;
+
+/**
+ * Creates the same {@link FilePartsRecord} as a {@link FilePartsRecordBuilder}
+ * using {@link Adler32} as checksum, but calculates the parts on several
+ * threads.
+ * <p>
+ * The data is read sequentially in chunks of several parts. The file digest
+ * gets updated by the reading thread, the checksums and digests of the parts
+ * of a chunk are calculated by a task of the executor. At most
+ * <code>parallelism + 1</code> chunks are held in memory.
+ * <p>
+ * If the executor gets shut down during a build, its queued tasks might never
+ * run. The build then fails with an {@link IOException} instead of waiting for
+ * them.
+ */
+public final class ParallelFilePartsRecordBuilder {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    /** How often a waiting build checks if the executor was shut down */
+    private static final long SHUTDOWN_CHECK_MS = 500;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final String partDigestAlgorithm;
+    private final String fileDigestAlgorithm;
+    private final int partSize;
+
+    /**
+     * @param executor
+     *            executes the calculation of the parts.
+     * @param parallelism
+     *            the maximum number of chunks calculated at the same time.
+     * @param partDigestAlgorithm
+     *            e.g. "SHA-256"
+     * @param fileDigestAlgorithm
+     *            e.g. "MD5"
+     * @param partSize
+     * @throws NoSuchAlgorithmException
+     */
+    public ParallelFilePartsRecordBuilder(ExecutorService executor,
+        int parallelism, String partDigestAlgorithm,
+        String fileDigestAlgorithm, int partSize)
+        throws NoSuchAlgorithmException
+    {
+        Reject.noNullElements(executor, partDigestAlgorithm,
+            fileDigestAlgorithm);
+        Reject.ifTrue(parallelism < 1, "Parallelism must be at least 1");
+        Reject.ifTrue(partSize < 1, "Part size must be at least 1");
+        // Fail early
+        MessageDigest.getInstance(partDigestAlgorithm);
+        MessageDigest.getInstance(fileDigestAlgorithm);
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.partDigestAlgorithm = partDigestAlgorithm;
+        this.fileDigestAlgorithm = fileDigestAlgorithm;
+        this.partSize = partSize;
+    }
+
+    /**
+     * Reads the stream to the end and builds the record of the data. The
+     * stream is not closed.
+     *
+     * @param in
+     * @param length
+     *            the expected length of the data for progress reporting or 0
+     *            if unknown.
+     * @param obs
+     *            the listener to inform about the progress or null.
+     * @return a record containing {@link PartInfo}s and additional
+     *         information.
+     * @throws IOException
+     *             if reading failed or the executor was shut down.
+     * @throws InterruptedException
+     */
+    public FilePartsRecord build(InputStream in, long length,
+        ProgressListener obs) throws IOException, InterruptedException
+    {
+        Reject.ifNull(in, "Input stream is null");
+        MessageDigest fileDigester = newDigest(fileDigestAlgorithm);
+        int partsPerChunk = Math.max(1, CHUNK_SIZE / partSize);
+        int chunkSize = partsPerChunk * partSize;
+        BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<byte[]>(
+            parallelism + 1);
+        for (int i = 0; i <= parallelism; i++) {
+            buffers.add(new byte[chunkSize]);
+        }
+        List<Future<PartInfo[]>> chunks = new ArrayList<Future<PartInfo[]>>();
+        long processed = 0;
+        try {
+            while (true) {
+                byte[] buffer = takeBuffer(buffers, chunks);
+                int len = readFully(in, buffer);
+                if (len == 0) {
+                    break;
+                }
+                fileDigester.update(buffer, 0, len);
+                processed += len;
+                try {
+                    chunks.add(executor.submit(new ChunkTask(buffer, len,
+                        (long) chunks.size() * partsPerChunk, buffers)));
+                } catch (RejectedExecutionException e) {
+                    throw new IOException("Executor shut down while building "
+                        + "parts. " + e);
+                }
+                if (obs != null && length > 0) {
+                    obs.progressReached(Math.min(1, (double) processed
+                        / length));
+                }
+                if (len < chunkSize) {
+                    break;
+                }
+            }
+            List<PartInfo> parts = new ArrayList<PartInfo>(chunks.size()
+                * partsPerChunk);
+            for (Future<PartInfo[]> chunk : chunks) {
+                for (PartInfo info : getParts(chunk)) {
+                    parts.add(info);
+                }
+            }
+            return new FilePartsRecord(processed, parts
+                .toArray(new PartInfo[parts.size()]), partSize, fileDigester
+                .digest());
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to calculate parts. "
+                + e.getCause(), e.getCause());
+        } finally {
+            for (Future<PartInfo[]> chunk : chunks) {
+                chunk.cancel(true);
+            }
+        }
+    }
+
+    // Internals **************************************************************
+
+    /**
+     * Waits for a buffer returned by a finished task.
+     */
+    private byte[] takeBuffer(BlockingQueue<byte[]> buffers,
+        List<Future<PartInfo[]>> chunks) throws IOException,
+        InterruptedException
+    {
+        while (true) {
+            byte[] buffer = buffers.poll(SHUTDOWN_CHECK_MS,
+                TimeUnit.MILLISECONDS);
+            if (buffer != null) {
+                return buffer;
+            }
+            for (Future<PartInfo[]> chunk : chunks) {
+                if (chunk.isCancelled()) {
+                    throw new IOException("Calculation of parts cancelled");
+                }
+            }
+            checkNotTerminated();
+        }
+    }
+
+    private PartInfo[] getParts(Future<PartInfo[]> chunk) throws IOException,
+        InterruptedException, ExecutionException
+    {
+        while (true) {
+            try {
+                return chunk.get(SHUTDOWN_CHECK_MS, TimeUnit.MILLISECONDS);
+            } catch (CancellationException e) {
+                throw new IOException("Calculation of parts cancelled");
+            } catch (TimeoutException e) {
+                checkNotTerminated();
+            }
+        }
+    }
+
+    /**
+     * Tasks still queued when the executor was shut down with
+     * {@link ExecutorService#shutdownNow()} never run.
+     */
+    private void checkNotTerminated() throws IOException {
+        if (executor.isTerminated()) {
+            throw new IOException("Executor shut down while building parts");
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer)
+        throws IOException
+    {
+        int len = 0;
+        while (len < buffer.length) {
+            int read = in.read(buffer, len, buffer.length - len);
+            if (read < 0) {
+                break;
+            }
+            len += read;
+        }
+        return len;
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // Checked in constructor
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Calculates the parts of one chunk. The last part of the data is padded
+     * with zeros like {@link FilePartsRecordBuilder#getRecord()} does.
+     */
+    private class ChunkTask implements Callable<PartInfo[]> {
+        private final byte[] buffer;
+        private final int len;
+        private final long firstIndex;
+        private final BlockingQueue<byte[]> buffers;
+
+        private ChunkTask(byte[] buffer, int len, long firstIndex,
+            BlockingQueue<byte[]> buffers)
+        {
+            this.buffer = buffer;
+            this.len = len;
+            this.firstIndex = firstIndex;
+            this.buffers = buffers;
+        }
+
+        public PartInfo[] call() {
+            try {
+                int nParts = (len + partSize - 1) / partSize;
+                int padded = nParts * partSize;
+                for (int i = len; i < padded; i++) {
+                    buffer[i] = 0;
+                }
+                Adler32 chksum = new Adler32();
+                MessageDigest partDigester = newDigest(partDigestAlgorithm);
+                PartInfo[] infos = new PartInfo[nParts];
+                for (int i = 0; i < nParts; i++) {
+                    int off = i * partSize;
+                    chksum.reset();
+                    chksum.update(buffer, off, partSize);
+                    partDigester.update(buffer, off, partSize);
+                    infos[i] = new PartInfo(firstIndex + i, chksum.getValue(),
+                        partDigester.digest());
+                }
+                return infos;
+            } finally {
+                buffers.add(buffer);
+            }
+        }
+    }
+}
@@ -24,119 +24,345 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
 
 import de.dal33t.powerfolder.util.Reject;
-import de.dal33t.powerfolder.util.RingBuffer;
 
 /**
- * Creates arrays of PartInfos given the algorithms to use and a data set. 
- * 
+ * Finds the parts of a {@link FilePartsRecord} in a data stream.
+ * <p>
+ * The stream is read in large blocks and the frame rolls over the block in
+ * memory. For {@link RollingAdler32} the checksum is calculated inline. The
+ * rolling checksum of every position is tested against a small bit set first
+ * and then looked up in an open addressing table. Only on a hit the frame gets
+ * digested.
+ *
  * @author Dennis "Dante" Waldherr
- * @version $Revision: 4280 $ 
+ * @version $Revision: 4280 $
  */
 public class PartInfoMatcher extends FilterInputStream {
-	private static final int BUFFER_SIZE = 16384;
-	private final RollingChecksum chksum;
-	private final MessageDigest digester;
-    private final RingBuffer rbuf;
-    private final byte[] buf = new byte[BUFFER_SIZE];
-    private final Map<Long, List<PartInfo>> partCache =
-        new HashMap<Long, List<PartInfo>>();
-    private final byte[] dbuf;
-
-    private long pos;
-	
-	public PartInfoMatcher(InputStream in, RollingChecksum chksum, MessageDigest digester, PartInfo[] partInfos) {
-		super(in);
-		Reject.noNullElements(chksum, digester, partInfos);
-		this.chksum = chksum;
-		this.digester = digester;
-        
-        rbuf = new RingBuffer(chksum.getFrameSize());
-        dbuf = new byte[chksum.getFrameSize()];
-        for (PartInfo info: partInfos) {
-            List<PartInfo> pList = partCache.get(info.getChecksum());
-            if (pList == null) {
-                partCache.put(info.getChecksum(), pList = new LinkedList<PartInfo>());
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int MOD_ADLER = 65521;
+
+    private final RollingChecksum chksum;
+    private final boolean adler;
+    private final MessageDigest digester;
+    private final int frameSize;
+    private final PartTable parts;
+
+    /** (frameSize * i) % MOD_ADLER for every byte value i */
+    private final int[] outFactors = new int[256];
+
+    /** Holds the current frame and the data read ahead */
+    private final byte[] data;
+    /** Stream position of data[0] */
+    private long dataPos;
+    private int dataEnd;
+    /** Start of the frame in data */
+    private int frameStart;
+    /** Bytes of the frame available, up to frameSize */
+    private int frameLength;
+    private int a = 1, b;
+    private boolean eof;
+    private boolean done;
+
+    public PartInfoMatcher(InputStream in, RollingChecksum chksum,
+        MessageDigest digester, PartInfo[] partInfos)
+    {
+        super(in);
+        Reject.noNullElements(chksum, digester, partInfos);
+        this.chksum = chksum;
+        this.adler = chksum instanceof RollingAdler32;
+        this.digester = digester;
+        this.frameSize = chksum.getFrameSize();
+        this.parts = new PartTable(partInfos);
+        this.data = new byte[frameSize + Math.max(BLOCK_SIZE, frameSize)];
+        int nMod = frameSize % MOD_ADLER;
+        for (int i = 0; i < outFactors.length; i++) {
+            outFactors[i] = (nMod * i) % MOD_ADLER;
+        }
+    }
+
+    public MatchInfo nextMatch() throws IOException, InterruptedException {
+        if (done) {
+            return null;
+        }
+        // Step 1: Fill the frame
+        while (frameLength < frameSize) {
+            if (frameStart + frameLength == dataEnd && !fill()) {
+                return finish();
             }
-            pList.add(info);
-        }
-	}
-
-	public MatchInfo nextMatch() throws IOException, InterruptedException {
-	    // Step 1: Fill buffer for matching
-	    int rem = rbuf.remaining();
-
-	    while (rem > 0) {
-	        int amount = Math.min(rem, BUFFER_SIZE);
-	        int read = read(buf, 0, amount);
-	        if (read == -1) {
-	            break;
-	        }
-	        pos += read;
-	        rem -= read;
-	        chksum.update(buf, 0, read);
-	        rbuf.write(buf, 0, read);
-	    }
-	    // Step 2: If the buffer is full, try to find a match or EOF
-	    while (rbuf.remaining() == 0) {
-	        if (Thread.interrupted()) {
-	            throw new InterruptedException();
-	        }
-	        List<PartInfo> lookup = partCache.get(chksum.getValue());
-	        if (lookup != null) {
-                rbuf.peek(dbuf, 0, chksum.getFrameSize());
-                byte[] digest = digester.digest(dbuf);
-                
-                for (PartInfo info: lookup) {
-                    if (Arrays.equals(digest, info.getDigest())) {
-                        MatchInfo retval = new MatchInfo(info, pos - chksum.getFrameSize());
-                        rbuf.reset();
-                        return retval;
-                    }
+            int n = Math.min(frameSize - frameLength, dataEnd - frameStart
+                - frameLength);
+            frameLength += n;
+        }
+        resetChecksum();
+
+        // Step 2: Roll over the data until a part matches
+        final int n = frameSize;
+        int start = frameStart;
+        long sum = checksum();
+        while (true) {
+            if (parts.mightContain(sum)) {
+                PartInfo match = find(sum, data, start);
+                if (match != null) {
+                    MatchInfo retval = new MatchInfo(match, dataPos + start);
+                    frameStart = start + n;
+                    frameLength = 0;
+                    return retval;
+                }
+            }
+            if (start + n == dataEnd) {
+                frameStart = start;
+                if (!fill()) {
+                    // Frame without the first byte remains.
+                    frameStart++;
+                    frameLength = n - 1;
+                    return finish();
                 }
-	        }
-	        rbuf.skip(1);
-            int data = read();
-            if (data == -1) {
+                start = frameStart;
+            }
+            if (adler) {
+                start = roll(start, dataEnd - n);
+                sum = ((long) b << 16) | a;
+            } else {
+                chksum.update(data[start + n]);
+                start++;
+                sum = chksum.getValue();
+            }
+        }
+    }
+
+    // Internals **************************************************************
+
+    /**
+     * Moves the current frame to the front of the buffer and reads the next
+     * block.
+     *
+     * @return false on EOF.
+     */
+    private boolean fill() throws IOException, InterruptedException {
+        if (eof) {
+            return false;
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        int keep = dataEnd - frameStart;
+        if (frameStart > 0) {
+            System.arraycopy(data, frameStart, data, 0, keep);
+            dataPos += frameStart;
+            dataEnd = keep;
+            frameStart = 0;
+        }
+        int read = 0;
+        while (dataEnd < data.length) {
+            int r = read(data, dataEnd, data.length - dataEnd);
+            if (r == -1) {
+                eof = true;
                 break;
             }
-	        pos++;
-	        rbuf.write(data);
-	        chksum.update(data);
-	    }
-	    // Step 3: If we got on EOF before try to finalize the result or return null if all is done
-        rem = (int) (pos % chksum.getFrameSize());
-        if (rem > 0) {
-            pos -= rem;
-            
-            int av = rbuf.available();
-            rbuf.peek(dbuf, 0, av);
-            digester.update(dbuf, 0, av);
-            
-            
-            rem = chksum.getFrameSize() - rem;
-            
-            for (int i = 0; i < rem; i++) {
-                chksum.update(0);
-                digester.update((byte) 0);
+            dataEnd += r;
+            read += r;
+        }
+        return read > 0;
+    }
+
+    /**
+     * Rolls the Adler32 frame forward until a checksum might belong to a part
+     * or the end of the data is reached.
+     *
+     * @return the new start of the frame.
+     */
+    private int roll(int start, int last) {
+        final byte[] d = data;
+        final int[] factors = outFactors;
+        final PartTable table = parts;
+        final int n = frameSize;
+        int la = a;
+        int lb = b;
+        while (start < last) {
+            int out = d[start] & 0xff;
+            int in = d[start + n] & 0xff;
+            start++;
+            la += in - out;
+            if (la < 0) {
+                la += MOD_ADLER;
+            } else if (la >= MOD_ADLER) {
+                la -= MOD_ADLER;
             }
-            
-            byte[] digest = digester.digest();
-            List<PartInfo> mList = partCache.get(chksum.getValue());
-            
-            if (mList != null) {
-                for (PartInfo info: mList) {
-                    if (Arrays.equals(digest, info.getDigest())) {
-                        return new MatchInfo(info, pos);
-                    }
+            lb += la - 1 - factors[out];
+            if (lb < 0) {
+                lb += MOD_ADLER;
+            } else if (lb >= MOD_ADLER) {
+                lb -= MOD_ADLER;
+            }
+            if (table.mightContain(((long) lb << 16) | la)) {
+                break;
+            }
+        }
+        a = la;
+        b = lb;
+        return start;
+    }
+
+    private void resetChecksum() {
+        if (adler) {
+            a = 1;
+            b = 0;
+            for (int i = frameStart; i < frameStart + frameSize; i++) {
+                a += data[i] & 0xff;
+                if (a >= MOD_ADLER) {
+                    a -= MOD_ADLER;
+                }
+                b += a;
+                if (b >= MOD_ADLER) {
+                    b -= MOD_ADLER;
                 }
             }
+        } else {
+            chksum.reset();
+            chksum.update(data, frameStart, frameSize);
+        }
+    }
+
+    private long checksum() {
+        return adler ? ((long) b << 16) | a : chksum.getValue();
+    }
+
+    private PartInfo find(long sum, byte[] d, int start) {
+        int i = parts.first(sum);
+        if (i < 0) {
+            return null;
+        }
+        digester.update(d, start, frameSize);
+        byte[] digest = digester.digest();
+        for (; i >= 0; i = parts.next(i)) {
+            PartInfo info = parts.get(i);
+            if (Arrays.equals(digest, info.getDigest())) {
+                return info;
+            }
         }
         return null;
-	}
+    }
+
+    /**
+     * The last part of a record is padded with zeros. Tests the end of the
+     * remaining data against it if it could be the end of a file of the same
+     * length, also after data that did not match.
+     */
+    private MatchInfo finish() {
+        done = true;
+        long pos = dataPos + frameStart + frameLength;
+        int rem = (int) (pos % frameSize);
+        if (rem == 0 || frameLength < rem) {
+            return null;
+        }
+        byte[] tail = new byte[frameSize];
+        System.arraycopy(data, frameStart + frameLength - rem, tail, 0, rem);
+        long sum;
+        if (adler) {
+            int ta = 1, tb = 0;
+            for (byte x : tail) {
+                ta = (ta + (x & 0xff)) % MOD_ADLER;
+                tb = (tb + ta) % MOD_ADLER;
+            }
+            sum = ((long) tb << 16) | ta;
+        } else {
+            chksum.reset();
+            chksum.update(tail, 0, frameSize);
+            sum = chksum.getValue();
+        }
+        PartInfo match = find(sum, tail, 0);
+        return match != null ? new MatchInfo(match, pos - rem) : null;
+    }
+
+    /**
+     * Open addressing table: checksum -> parts with that checksum. Parts with
+     * equal checksums are chained. A bit set with two bits per checksum
+     * filters most positions without touching the table.
+     */
+    private static final class PartTable {
+        private final PartInfo[] infos;
+        private final int[] next;
+        private final long[] keys;
+        private final int[] heads;
+        private final int mask;
+        private final long[] bloom;
+        private final int bloomMask;
+
+        private PartTable(PartInfo[] partInfos) {
+            infos = partInfos;
+            next = new int[infos.length];
+            int capacity = Integer.highestOneBit(Math.max(infos.length, 4) * 2)
+                * 2;
+            keys = new long[capacity];
+            heads = new int[capacity];
+            Arrays.fill(heads, -1);
+            mask = capacity - 1;
+            // ~16 bits per part
+            int bits = Math.max(1024, capacity * 8);
+            bloom = new long[bits / 64];
+            bloomMask = bits - 1;
+            for (int i = infos.length - 1; i >= 0; i--) {
+                long key = infos[i].getChecksum();
+                int slot = slot(key);
+                next[i] = heads[slot];
+                heads[slot] = i;
+                keys[slot] = key;
+                long h = mix(key);
+                setBit((int) h);
+                setBit((int) (h >>> 32));
+            }
+        }
+
+        private boolean mightContain(long key) {
+            long h = mix(key);
+            return bit((int) h) && bit((int) (h >>> 32));
+        }
+
+        /**
+         * @return the index of the first part with the checksum or -1.
+         */
+        private int first(long key) {
+            int slot = (int) mix(key) & mask;
+            while (heads[slot] >= 0) {
+                if (keys[slot] == key) {
+                    return heads[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private int next(int i) {
+            return next[i];
+        }
+
+        private PartInfo get(int i) {
+            return infos[i];
+        }
+
+        private int slot(long key) {
+            int slot = (int) mix(key) & mask;
+            while (heads[slot] >= 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void setBit(int h) {
+            int i = h & bloomMask;
+            bloom[i >>> 6] |= 1L << i;
+        }
+
+        private boolean bit(int h) {
+            int i = h & bloomMask;
+            return (bloom[i >>> 6] & (1L << i)) != 0;
+        }
+
+        private static long mix(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return h ^ (h >>> 29);
+        }
+    }
 }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.transfer.swarm.AbstractFileRecordProvider;
+import de.dal33t.powerfolder.util.Range;
+import de.dal33t.powerfolder.util.delta.ContentDefinedRecordBuilder;
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+import de.dal33t.powerfolder.util.delta.PartInfo;
+
+public class BlockIndexTest extends TestCase {
+    private static final int SIZE = 256 * 1024;
+
+    private FilePartsRecord recordA;
+    private FilePartsRecord recordB;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        recordA = createRecord(1);
+        recordB = createRecord(2);
+    }
+
+    public void testPutFind() {
+        BlockIndex index = new BlockIndex(1000);
+        assertFalse(index.isDirty());
+        index.put("a.bin", attrs(SIZE, 1000), recordA);
+        assertTrue(index.isDirty());
+        assertEquals(recordA.getInfos().length, index.size());
+        assertTrue(index.contains("a.bin", attrs(SIZE, 1000)));
+        assertFalse(index.contains("a.bin", attrs(SIZE, 2000)));
+        assertFalse(index.contains("b.bin", attrs(SIZE, 1000)));
+        assertFound(index, recordA, "a.bin");
+
+        // Copy of the same content
+        index.put("copy/a.bin", attrs(SIZE, 3000), recordA);
+        PartInfo part = recordA.getInfos()[1];
+        Range range = recordA.getPartRange(1);
+        assertEquals(2, index.find(part.getDigest(), range.getLength()).size());
+        assertEquals(0, index.find(part.getDigest(), range.getLength() + 1)
+            .size());
+
+        // Content changed
+        index.put("a.bin", attrs(SIZE, 4000), recordB);
+        assertEquals(1, index.find(part.getDigest(), range.getLength()).size());
+        assertFound(index, recordB, "a.bin");
+
+        index.remove("copy/a.bin");
+        assertEquals(0, index.find(part.getDigest(), range.getLength()).size());
+        assertEquals(recordB.getInfos().length, index.size());
+        index.remove("a.bin");
+        assertEquals(0, index.size());
+        assertEquals(0, index.getFileCount());
+    }
+
+    public void testFileOfOtherSize() throws Exception {
+        // The content of a small file within a much larger one
+        byte[] small = randomData(1024 * 1024, 3);
+        byte[] large = new byte[10 * small.length];
+        new Random(4).nextBytes(large);
+        System.arraycopy(small, 0, large, 3 * small.length, small.length);
+
+        BlockIndex index = new BlockIndex(1000);
+        index.put("large.bin", attrs(large.length, 1000),
+            createContentDefinedRecord(large));
+        FilePartsRecord smallRecord = createContentDefinedRecord(small);
+        PartInfo[] parts = smallRecord.getInfos();
+        assertTrue(parts.length > 4);
+        // Parts at the edges differ, the neighbouring data is different
+        for (int i = 1; i < parts.length - 1; i++) {
+            Range range = smallRecord.getPartRange(i);
+            List<BlockIndex.Block> found = index.find(parts[i].getDigest(),
+                range.getLength());
+            assertEquals("Part " + i, 1, found.size());
+            assertEquals(3L * small.length + range.getStart(), found.get(0)
+                .getOffset());
+        }
+    }
+
+    public void testLimit() {
+        int max = recordA.getInfos().length + recordB.getInfos().length - 1;
+        BlockIndex index = new BlockIndex(max);
+        index.put("a.bin", attrs(SIZE, 1000), recordA);
+        index.put("b.bin", attrs(SIZE, 1000), recordB);
+        // Indexed first, removed first
+        assertEquals(1, index.getFileCount());
+        assertEquals(recordB.getInfos().length, index.size());
+        assertFalse(index.contains("a.bin", attrs(SIZE, 1000)));
+        assertFound(index, recordB, "b.bin");
+
+        BlockIndex disabled = new BlockIndex(0);
+        assertFalse(disabled.isIndexed(BlockIndex.MIN_FILE_SIZE));
+        disabled.put("a.bin", attrs(SIZE, 1000), recordA);
+        assertEquals(0, disabled.size());
+    }
+
+    public void testMove() {
+        BlockIndex index = new BlockIndex(1000);
+        index.put("a.bin", attrs(SIZE, 1000), recordA);
+        index.put("dir/b.bin", attrs(SIZE, 2000), recordB);
+        int blocks = index.size();
+
+        index.move("a.bin", "renamed.bin");
+        assertFalse(index.contains("a.bin", attrs(SIZE, 1000)));
+        assertTrue(index.contains("renamed.bin", attrs(SIZE, 1000)));
+        assertFound(index, recordA, "renamed.bin");
+
+        assertEquals(1, index.moveDirectory("dir", "moved/dir"));
+        assertFalse(index.contains("dir/b.bin", attrs(SIZE, 2000)));
+        assertTrue(index.contains("moved/dir/b.bin", attrs(SIZE, 2000)));
+        assertFound(index, recordB, "moved/dir/b.bin");
+        assertEquals(0, index.moveDirectory("dir", "other"));
+        assertEquals(blocks, index.size());
+        assertEquals(2, index.getFileCount());
+    }
+
+    public void testStoreLoad() throws Exception {
+        Path file = Files.createTempFile("BlockIndexTest", ".blocks");
+        try {
+            BlockIndex index = new BlockIndex(1000);
+            index.put("a.bin", attrs(SIZE, 1000), recordA);
+            index.put("dir/b.bin", attrs(SIZE, 2000), recordB);
+            index.store(file);
+            assertFalse(index.isDirty());
+
+            BlockIndex loaded = BlockIndex.load(file, 1000);
+            assertFalse(loaded.isDirty());
+            assertEquals(index.size(), loaded.size());
+            assertTrue(loaded.contains("a.bin", attrs(SIZE, 1000)));
+            assertTrue(loaded.contains("dir/b.bin", attrs(SIZE, 2000)));
+            assertFound(loaded, recordA, "a.bin");
+            assertFound(loaded, recordB, "dir/b.bin");
+
+            assertEquals(0, BlockIndex.load(file, 0).size());
+            Files.delete(file);
+            assertEquals(0, BlockIndex.load(file, 1000).size());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void assertFound(BlockIndex index, FilePartsRecord record,
+        String name)
+    {
+        PartInfo[] parts = record.getInfos();
+        for (int i = 0; i < parts.length; i++) {
+            Range range = record.getPartRange(i);
+            List<BlockIndex.Block> found = index.find(parts[i].getDigest(),
+                range.getLength());
+            boolean match = false;
+            for (BlockIndex.Block block : found) {
+                match |= block.getRelativeName().equals(name)
+                    && block.getOffset() == range.getStart()
+                    && block.getLength() == range.getLength();
+            }
+            assertTrue("Part " + i + " not found in " + found, match);
+        }
+    }
+
+    private static FilePartsRecord createContentDefinedRecord(byte[] data)
+        throws Exception
+    {
+        ContentDefinedRecordBuilder builder = new ContentDefinedRecordBuilder(
+            MessageDigest.getInstance(BlockIndex.DIGEST_ALGORITHM),
+            MessageDigest.getInstance("MD5"),
+            AbstractFileRecordProvider.CONTENT_DEFINED_PART_SIZE);
+        builder.update(data);
+        return builder.getRecord();
+    }
+
+    private static byte[] randomData(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static FilePartsRecord createRecord(long seed) throws Exception {
+        byte[] data = new byte[SIZE];
+        new Random(seed).nextBytes(data);
+        ContentDefinedRecordBuilder builder = new ContentDefinedRecordBuilder(
+            MessageDigest.getInstance("SHA-256"),
+            MessageDigest.getInstance("MD5"), 4096);
+        builder.update(data);
+        return builder.getRecord();
+    }
+
+    private static BasicFileAttributes attrs(final long size,
+        final long modified)
+    {
+        return new BasicFileAttributes() {
+            public FileTime lastModifiedTime() {
+                return FileTime.fromMillis(modified);
+            }
+
+            public FileTime lastAccessTime() {
+                return lastModifiedTime();
+            }
+
+            public FileTime creationTime() {
+                return lastModifiedTime();
+            }
+
+            public boolean isRegularFile() {
+                return true;
+            }
+
+            public boolean isDirectory() {
+                return false;
+            }
+
+            public boolean isSymbolicLink() {
+                return false;
+            }
+
+            public boolean isOther() {
+                return false;
+            }
+
+            public long size() {
+                return size;
+            }
+
+            public Object fileKey() {
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.util.PathUtils;
+
+public class DirectoryStampsTest extends TestCase {
+
+    public void testIncrementalAllowed() {
+        DirectoryStamps stamps = new DirectoryStamps();
+        assertFalse(stamps.isIncrementalAllowed(24));
+
+        Map<String, DirectoryStamps.Stamp> recorded = new HashMap<String, DirectoryStamps.Stamp>();
+        recorded.put("", new DirectoryStamps.Stamp(1000, 3));
+        recorded.put("sub", new DirectoryStamps.Stamp(2000, 2));
+
+        // Incremental scans never establish the full scan date.
+        stamps.commit(recorded, false);
+        assertEquals(2, stamps.size());
+        assertFalse(stamps.isIncrementalAllowed(24));
+
+        stamps.commit(recorded, true);
+        assertTrue(stamps.isIncrementalAllowed(24));
+        assertFalse(stamps.isIncrementalAllowed(0));
+        assertEquals(new DirectoryStamps.Stamp(2000, 2), stamps.get("sub"));
+        assertNull(stamps.get("other"));
+
+        // Commit replaces all stamps.
+        recorded.remove("sub");
+        stamps.commit(recorded, false);
+        assertNull(stamps.get("sub"));
+        assertTrue(stamps.isIncrementalAllowed(24));
+
+        stamps.clear();
+        assertEquals(0, stamps.size());
+        assertFalse(stamps.isIncrementalAllowed(24));
+    }
+
+    public void testStampChanges() throws Exception {
+        Path dir = Files.createTempDirectory("DirectoryStampsTest");
+        try {
+            long old = System.currentTimeMillis() - 60000L;
+            Files.setLastModifiedTime(dir, FileTime.fromMillis(old));
+            DirectoryStamps.Stamp before = DirectoryStamps.read(dir,
+                Files.readAttributes(dir, BasicFileAttributes.class));
+            assertTrue(before.isSettled(System.currentTimeMillis()));
+            assertEquals(before, DirectoryStamps.read(dir,
+                Files.readAttributes(dir, BasicFileAttributes.class)));
+
+            Files.createFile(dir.resolve("new.txt"));
+            DirectoryStamps.Stamp after = DirectoryStamps.read(dir,
+                Files.readAttributes(dir, BasicFileAttributes.class));
+            assertFalse(before.equals(after));
+            assertFalse(after.isSettled(System.currentTimeMillis()));
+        } finally {
+            PathUtils.recursiveDelete(dir);
+        }
+    }
+}
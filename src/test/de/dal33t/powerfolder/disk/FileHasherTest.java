@@ -0,0 +1,100 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.HashedFileInfo;
+import de.dal33t.powerfolder.util.Util;
+import de.dal33t.powerfolder.util.test.Condition;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class FileHasherTest extends ControllerTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getController().setPaused(true);
+        setupTestFolder(SyncProfile.HOST_FILES);
+    }
+
+    public void testHashInBackground() throws Exception {
+        Path file = TestHelper.createRandomFile(getFolder().getLocalBase(),
+            "file.bin");
+        final FileInfo lookup = FileInfoFactory.lookupInstance(getFolder(),
+            file);
+        assertNull(getFolder().getHashedFileInfo(lookup));
+
+        scanFolder(getFolder());
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                return getFolder().getHashedFileInfo(lookup) != null;
+            }
+        });
+        HashedFileInfo hashed = getFolder().getHashedFileInfo(lookup);
+        assertEquals("MD5", hashed.getAlgorithm());
+        assertTrue(Arrays.equals(Util.md5(Files.readAllBytes(file)),
+            hashed.getMD5()));
+
+        // Stored with the folder and loaded again.
+        getFolder().shutdown();
+        HashCache loaded = HashCache.load(getFolder().getSystemSubDir()
+            .resolve(HashCache.FILENAME), "MD5");
+        assertTrue(Arrays.equals(hashed.getDigest(),
+            loaded.get(hashed.getFileInfo())));
+    }
+
+    public void testChangedFile() throws Exception {
+        Path file = TestHelper.createRandomFile(getFolder().getLocalBase(),
+            "file.bin");
+        final FileInfo lookup = FileInfoFactory.lookupInstance(getFolder(),
+            file);
+        scanFolder(getFolder());
+        // Wait for the background hashing to be done with the file
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                return getFolder().getHashedFileInfo(lookup) != null;
+            }
+        });
+        FileHasher hasher = getController().getFolderRepository()
+            .getFileHasher();
+        byte[] before = hasher.hash(getFolder(), "file.bin");
+        assertNotNull(before);
+
+        TestHelper.changeFile(file);
+        // Database not updated yet.
+        assertNotNull(getFolder().getHashedFileInfo(lookup));
+        scanFolder(getFolder());
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                return getFolder().getHashedFileInfo(lookup) != null;
+            }
+        });
+        assertFalse(Arrays.equals(before, getFolder()
+            .getHashedFileInfo(lookup).getDigest()));
+        assertTrue(Arrays.equals(Util.md5(Files.readAllBytes(file)),
+            getFolder().getHashedFileInfo(lookup).getDigest()));
+    }
+}
@@ -30,6 +30,10 @@ public class FileInfoDAOHashTest extends FileInfoDAOTestCase {
         testStats(dao, filter, 5000);
     }
 
+    public void testStatsIncremental() {
+        testStatsIncremental(dao, filter, 2000);
+    }
+
     public void testIndexFileInfo() {
         testIndexFileInfo(dao);
     }
@@ -49,4 +53,22 @@ public class FileInfoDAOHashTest extends FileInfoDAOTestCase {
         testFindInDir(dao, 5000);
     }
 
+    public void testFindInDirAfterChange() {
+        testFindInDirAfterChange(dao);
+    }
+
+    public void testChanges() {
+        testChanges(dao);
+    }
+
+    public void testFindByKeyWords() {
+        LoggingManager.setConsoleLogging(Level.SEVERE);
+        testFindByKeyWords(dao, 1);
+    }
+
+    public void testFindByKeyWordsMany() {
+        LoggingManager.setConsoleLogging(Level.SEVERE);
+        testFindByKeyWords(dao, 100000);
+    }
+
 }
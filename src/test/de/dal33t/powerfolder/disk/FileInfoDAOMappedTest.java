@@ -0,0 +1,112 @@
+package de.dal33t.powerfolder.disk;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+
+import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
+import de.dal33t.powerfolder.disk.dao.FileInfoDAOMappedImpl;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.util.logging.LoggingManager;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class FileInfoDAOMappedTest extends FileInfoDAOTestCase {
+    private FileInfoDAO dao;
+    private DiskItemFilter filter;
+    private Path daoDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        filter = new DiskItemFilter();
+        daoDir = TestHelper.getTestDir().resolve("mappeddao");
+        dao = new FileInfoDAOMappedImpl(daoDir, "ME", filter);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        dao.stop();
+        super.tearDown();
+    }
+
+    public void testStats() {
+        testStats(dao, filter, 1);
+        testStats(dao, filter, 1000);
+        testStats(dao, filter, 5000);
+    }
+
+    public void testIndexFileInfo() {
+        testIndexFileInfo(dao);
+    }
+
+    public void testFindNewestVersion() {
+        testFindNewestVersion(dao);
+    }
+
+    public void testFindAll() {
+        LoggingManager.setConsoleLogging(Level.SEVERE);
+        testFindAll(dao, 5000);
+    }
+
+    public void testFindInDir() {
+        testFindInDir(dao, 1);
+        testFindInDir(dao, 100);
+        testFindInDir(dao, 5000);
+    }
+
+    public void testFindInDirAfterChange() {
+        testFindInDirAfterChange(dao);
+    }
+
+    public void testChanges() {
+        testChanges(dao);
+    }
+
+    public void testUpdateAndCompact() {
+        LoggingManager.setConsoleLogging(Level.SEVERE);
+        int n = 20000;
+        List<FileInfo> fInfos = new ArrayList<FileInfo>();
+        for (int i = 0; i < n; i++) {
+            fInfos.add(createRandomFileInfo(i, "UpdatedFile", 0));
+        }
+        dao.store(null, fInfos);
+        // Enough updates to trigger compaction of dead records
+        for (int v = 1; v <= 5; v++) {
+            Collection<FileInfo> updates = new ArrayList<FileInfo>();
+            for (FileInfo fInfo : fInfos) {
+                updates.add(version(fInfo, v));
+            }
+            dao.store(null, updates);
+        }
+        for (int i = 0; i < n; i += 2) {
+            dao.delete(null, fInfos.get(i));
+        }
+
+        assertEquals(n / 2, dao.count(null, true, false));
+        assertEquals(n / 2, dao.findAllFiles(null).size());
+        int iterated = 0;
+        for (FileInfo fInfo : dao.findAllFiles(null)) {
+            assertEquals(5, fInfo.getVersion());
+            iterated++;
+        }
+        assertEquals(n / 2, iterated);
+        assertNull(dao.find(fInfos.get(0), null));
+        FileInfo found = dao.find(fInfos.get(1), null);
+        assertNotNull(found);
+        assertEquals(5, found.getVersion());
+        assertEquals(fInfos.get(1).getModifiedBy(), found.getModifiedBy());
+        assertEquals(fInfos.get(1).getModifiedDate(), found.getModifiedDate());
+        assertEquals(fInfos.get(1).getSize(), found.getSize());
+    }
+
+    public void testStopDeletesFiles() {
+        dao.store(null, createRandomFileInfo(1, "file.txt"));
+        assertTrue(Files.exists(daoDir));
+        dao.stop();
+        assertTrue(Files.notExists(daoDir));
+    }
+}
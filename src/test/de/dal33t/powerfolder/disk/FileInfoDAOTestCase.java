@@ -23,9 +23,12 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
 import java.util.UUID;
 
+import de.dal33t.powerfolder.Feature;
 import de.dal33t.powerfolder.disk.DiskItemFilter;
+import de.dal33t.powerfolder.disk.dao.FileInfoChanges;
 import de.dal33t.powerfolder.disk.dao.FileInfoCriteria;
 import de.dal33t.powerfolder.disk.dao.FileInfoDAO;
 import de.dal33t.powerfolder.light.DirectoryInfo;
@@ -191,6 +194,61 @@ public abstract class FileInfoDAOTestCase extends ControllerTestCase {
         System.out.println(Profiling.dumpStats());
     }
 
+    /**
+     * Random modifications on several domains. Checks the statistics after
+     * every step against a full scan.
+     */
+    protected void testStatsIncremental(FileInfoDAO dao, DiskItemFilter filter,
+        int n)
+    {
+        Feature.VERIFY_FILEINFO_DAO_STATS.enable();
+        try {
+            filter.removeAllPatterns();
+            String[] domainIDs = {null, "OTHER", "ANOTHER"};
+            Random random = new Random(4711);
+            List<FileInfo> fInfos = new ArrayList<FileInfo>();
+            for (int i = 0; i < n / 4 + 1; i++) {
+                fInfos.add(createRandomFileInfo(i, "file.txt", 0));
+                if (i % 5 == 0) {
+                    fInfos.add(createRandomFileInfo(i, "dir", 0, true));
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                String domain = domainIDs[random.nextInt(domainIDs.length)];
+                FileInfo fInfo = fInfos.get(random.nextInt(fInfos.size()));
+                int op = random.nextInt(10);
+                if (op < 6) {
+                    dao.store(domain, version(fInfo, random.nextInt(3)));
+                } else if (op < 8) {
+                    dao.delete(domain, fInfo);
+                } else if (op < 9) {
+                    dao.store(domain, FileInfoFactory.unmarshallDeletedFile(
+                        fInfo.getFolderInfo(), fInfo.getRelativeName(),
+                        fInfo.getModifiedBy(), fInfo.getModifiedDate(),
+                        random.nextInt(3), fInfo.isDiretory()));
+                } else if (i % 50 == 0) {
+                    filter.removeAllPatterns();
+                    if (random.nextBoolean()) {
+                        filter.addPattern("*-" + random.nextInt(10) + "*");
+                    }
+                }
+                for (String domainID : domainIDs) {
+                    dao.count(domainID, true, true);
+                    dao.count(domainID, false, true);
+                    dao.countInSync(domainID, true, true);
+                    dao.countInSync(domainID, false, true);
+                    dao.bytesInSync(domainID);
+                }
+                if (i == n / 2) {
+                    dao.deleteDomain("ANOTHER", 10);
+                }
+            }
+        } finally {
+            Feature.VERIFY_FILEINFO_DAO_STATS.disable();
+            filter.removeAllPatterns();
+        }
+    }
+
     protected void testFindAll(FileInfoDAO dao, int n) {
         Collection<FileInfo> fInfos = new ArrayList<FileInfo>();
         for (int i = 0; i < n; i++) {
@@ -328,6 +386,152 @@ public abstract class FileInfoDAOTestCase extends ControllerTestCase {
             .size());
     }
 
+    protected void testFindInDirAfterChange(FileInfoDAO dao) {
+        FileInfo dirInfo = createFileInfo("dir", 0, true);
+        FileInfo file1 = createFileInfo("dir/sub/file1.txt", 0, false);
+        FileInfo file2 = createFileInfo("dir/sub/file2.txt", 0, false);
+        dao.store(null, dirInfo);
+        dao.store(null, file1);
+        dao.store(null, file2);
+        assertEquals(2, dao.findInDirectory(null, "dir/sub", false).size());
+        assertEquals(3, dao.findInDirectory(null, "", true).size());
+
+        // Update must not duplicate
+        dao.store(null, version(file1, 1));
+        assertEquals(2, dao.findInDirectory(null, "dir/sub", false).size());
+
+        dao.delete(null, file1);
+        dao.delete(null, file2);
+        assertEquals(0, dao.findInDirectory(null, "dir/sub", false).size());
+        assertEquals(0, dao.findInDirectory(null, "dir", true).size());
+        assertEquals(1, dao.findInDirectory(null, "", false).size());
+
+        // File replaced by directory with the same name
+        dao.store(null, file1);
+        dao.store(null, createFileInfo("dir/sub/file1.txt", 1, true));
+        Collection<FileInfo> found = dao.findInDirectory(null, "dir/sub",
+            false);
+        assertEquals(1, found.size());
+        assertTrue(found.iterator().next().isDiretory());
+    }
+
+    protected void testFindByKeyWords(FileInfoDAO dao, int n) {
+        for (int i = 0; i < n; i++) {
+            dao.store(null, createRandomFileInfo(i, "Report"));
+            dao.store(null, createRandomFileInfo(i, "Invoice"));
+        }
+        dao.store(null, createFileInfo("Projects/Budget 2010.xls", 0, false));
+        dao.store(null, createFileInfo("Projects/Old budget", 0, true));
+        dao.store(null, createFileInfo("Archive/budget.doc", 0, false));
+
+        FileInfoCriteria crit = new FileInfoCriteria();
+        crit.addDomain(null);
+        crit.setRecursive(true);
+        crit.addKeyWord("BUDGET");
+        assertEquals(3, dao.findFiles(crit).size());
+        crit.setType(FileInfoCriteria.Type.FILES_ONLY);
+        assertEquals(2, dao.findFiles(crit).size());
+        crit.setType(FileInfoCriteria.Type.FILES_AND_DIRECTORIES);
+        crit.setPath("Projects");
+        assertEquals(2, dao.findFiles(crit).size());
+        crit.addKeyWord("2010");
+        assertEquals(1, dao.findFiles(crit).size());
+
+        // Matches over the path and short keywords
+        crit = new FileInfoCriteria();
+        crit.addDomain(null);
+        crit.setRecursive(true);
+        crit.addKeyWord("ive/bu");
+        assertEquals(1, dao.findFiles(crit).size());
+        crit.addKeyWord("c");
+        assertEquals(1, dao.findFiles(crit).size());
+        crit = new FileInfoCriteria();
+        crit.addDomain(null);
+        crit.setRecursive(true);
+        crit.addKeyWord("-");
+        assertEquals(n * 2, dao.findFiles(crit).size());
+
+        // Index is maintained on changes
+        dao.delete(null, createFileInfo("Archive/budget.doc", 0, false));
+        dao.store(null, createFileInfo("Archive/budget.txt", 1, false));
+        dao.store(null, createFileInfo("Projects/Budget 2010.xls", 1, false));
+        crit = new FileInfoCriteria();
+        crit.addDomain(null);
+        crit.setRecursive(true);
+        crit.addKeyWord("budget.");
+        Collection<FileInfo> found = dao.findFiles(crit);
+        assertEquals(1, found.size());
+        assertEquals("Archive/budget.txt", found.iterator().next()
+            .getRelativeName());
+        crit = new FileInfoCriteria();
+        crit.addDomain(null);
+        crit.setRecursive(true);
+        crit.addKeyWord("invoice");
+        assertEquals(n, dao.findFiles(crit).size());
+        crit.setMaxResults(10);
+        assertEquals(Math.min(n, 10), dao.findFiles(crit).size());
+        crit.addKeyWord("xyz");
+        assertEquals(0, dao.findFiles(crit).size());
+
+        long start = System.currentTimeMillis();
+        crit = new FileInfoCriteria();
+        crit.addDomain(null);
+        crit.setRecursive(true);
+        crit.addKeyWord("report-" + (n - 1));
+        crit.setMaxResults(100);
+        assertEquals(1, dao.findFiles(crit).size());
+        System.out.println("Keyword search in " + (n * 2) + " items took "
+            + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    protected void testChanges(FileInfoDAO dao) {
+        long start = dao.getGeneration(null);
+        long otherStart = dao.getGeneration("OTHER");
+        FileInfoChanges changes = dao.findChanges(null, start);
+        assertNotNull(changes);
+        assertTrue(changes.isEmpty());
+
+        FileInfo a = createFileInfo("a.txt", 0, false);
+        FileInfo b = createFileInfo("dir/b.txt", 0, false);
+        FileInfo dir = createFileInfo("dir", 0, true);
+        dao.store(null, a, b, dir);
+        dao.store("OTHER", createFileInfo("c.txt", 0, false));
+        long afterStore = dao.getGeneration(null);
+        assertTrue(afterStore > start);
+
+        changes = dao.findChanges(null, start);
+        assertEquals(3, changes.getStored().size());
+        assertEquals(0, changes.getRemoved().size());
+        assertEquals(afterStore, changes.getGeneration());
+
+        dao.store(null, version(a, 1));
+        dao.store(null, version(a, 2));
+        dao.delete(null, b);
+        // Not existing
+        dao.delete(null, createFileInfo("x.txt", 0, false));
+        changes = dao.findChanges(null, afterStore);
+        assertEquals(1, changes.getStored().size());
+        assertEquals(2, changes.getStored().iterator().next().getVersion());
+        assertEquals(1, changes.getRemoved().size());
+        assertEquals(b, changes.getRemoved().iterator().next());
+        assertTrue(dao.findChanges(null, changes.getGeneration()).isEmpty());
+
+        // Deleted and stored again
+        dao.store(null, version(b, 1));
+        changes = dao.findChanges(null, afterStore);
+        assertEquals(2, changes.getStored().size());
+        assertEquals(0, changes.getRemoved().size());
+
+        // Other domain unaffected
+        assertEquals(1, dao.findChanges("OTHER", otherStart).getStored().size());
+
+        // Old changes not available after domain has been cleared
+        long beforeDelete = dao.getGeneration(null);
+        dao.deleteDomain(null, 10);
+        assertNull(dao.findChanges(null, beforeDelete));
+        assertTrue(dao.findChanges(null, dao.getGeneration(null)).isEmpty());
+    }
+
     protected static FileInfo createFileInfo(String name, int version,
         boolean directory)
     {
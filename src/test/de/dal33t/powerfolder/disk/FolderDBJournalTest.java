@@ -0,0 +1,164 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class FolderDBJournalTest extends TestCase {
+    private Path journalFile;
+    private FolderInfo foInfo;
+    private MemberInfo mInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        journalFile = TestHelper.getTestDir().resolve(
+            "FolderDBJournalTest" + FolderDBJournal.JOURNAL_FILENAME_SUFFIX);
+        Files.deleteIfExists(journalFile);
+        foInfo = new FolderInfo("JournalTest", IdGenerator.makeFolderId());
+        mInfo = new MemberInfo("me", IdGenerator.makeId(), null);
+    }
+
+    public void testAppendAndReplay() throws IOException {
+        FolderDBJournal journal = new FolderDBJournal(journalFile);
+        assertEquals(-1, journal.replay(4711L, new Recorder()));
+        journal.reset(4711L, null);
+
+        FileInfo a = createFileInfo("a.txt", 0);
+        FileInfo b = createFileInfo("sub/b.txt", 0);
+        journal.logStored(Arrays.asList(a, b));
+        assertTrue(journal.isAppendable(1000));
+        journal.append(null);
+        assertEquals(2, journal.countRecords());
+
+        FileInfo a1 = createFileInfo("a.txt", 1);
+        journal.logStored(Arrays.asList(a1));
+        journal.logDeleted(b);
+        Date lastScan = new Date();
+        journal.append(lastScan);
+        assertEquals(0, journal.countPending());
+        assertEquals(5, journal.countRecords());
+
+        Recorder recorder = new Recorder();
+        FolderDBJournal replayed = new FolderDBJournal(journalFile);
+        assertEquals(5, replayed.replay(4711L, recorder));
+        assertEquals(Arrays.asList(a, b, a1), recorder.stored);
+        assertEquals(1, recorder.stored.get(2).getVersion());
+        assertEquals(Arrays.asList(b), recorder.deleted);
+        assertEquals(lastScan, recorder.lastScan);
+        assertTrue(replayed.isAppendable(1000));
+
+        // Other checkpoint
+        assertEquals(-1, new FolderDBJournal(journalFile).replay(4712L,
+            new Recorder()));
+    }
+
+    public void testTornBatch() throws IOException {
+        FolderDBJournal journal = new FolderDBJournal(journalFile);
+        journal.reset(1L, null);
+        journal.logStored(Arrays.asList(createFileInfo("ok.txt", 0)));
+        journal.append(null);
+        long okLength = Files.size(journalFile);
+        journal.logStored(Arrays.asList(createFileInfo("torn.txt", 0)));
+        journal.append(null);
+
+        // Simulate crash in the middle of the second batch.
+        try (FileChannel channel = FileChannel.open(journalFile,
+            StandardOpenOption.WRITE))
+        {
+            channel.truncate(Files.size(journalFile) - 5);
+        }
+
+        Recorder recorder = new Recorder();
+        journal = new FolderDBJournal(journalFile);
+        assertEquals(1, journal.replay(1L, recorder));
+        assertEquals(1, recorder.stored.size());
+        assertEquals("ok.txt", recorder.stored.get(0).getRelativeName());
+        assertEquals(okLength, Files.size(journalFile));
+
+        // Appending continues after the last valid batch.
+        journal.logStored(Arrays.asList(createFileInfo("next.txt", 0)));
+        journal.append(null);
+        recorder = new Recorder();
+        assertEquals(2, new FolderDBJournal(journalFile).replay(1L, recorder));
+        assertEquals("next.txt", recorder.stored.get(1).getRelativeName());
+    }
+
+    public void testCheckpoint() throws IOException {
+        FolderDBJournal journal = new FolderDBJournal(journalFile);
+        journal.reset(1L, null);
+        journal.logStored(Arrays.asList(createFileInfo("a.txt", 0)));
+        journal.append(null);
+        journal.logStored(Arrays.asList(createFileInfo("b.txt", 0)));
+        assertFalse(journal.isAppendable(1));
+
+        journal.checkpointStarted();
+        assertEquals(0, journal.countPending());
+        assertFalse(journal.isAppendable(1000));
+        // Change after snapshot
+        journal.logStored(Arrays.asList(createFileInfo("c.txt", 0)));
+        journal.reset(2L, null);
+        assertTrue(journal.isAppendable(1000));
+        journal.append(null);
+
+        Recorder recorder = new Recorder();
+        assertEquals(1, new FolderDBJournal(journalFile).replay(2L, recorder));
+        assertEquals("c.txt", recorder.stored.get(0).getRelativeName());
+    }
+
+    private FileInfo createFileInfo(String name, int version) {
+        return FileInfoFactory.unmarshallExistingFile(foInfo, name, 100,
+            mInfo, new Date(), version, false);
+    }
+
+    private static class Recorder implements FolderDBJournal.ReplayVisitor {
+        private final List<FileInfo> stored = new ArrayList<FileInfo>();
+        private final List<FileInfo> deleted = new ArrayList<FileInfo>();
+        private Date lastScan;
+
+        public void stored(FileInfo fInfo) {
+            stored.add(fInfo);
+        }
+
+        public void deleted(FileInfo fInfo) {
+            deleted.add(fInfo);
+        }
+
+        public void lastScan(Date date) {
+            lastScan = date;
+        }
+    }
+}
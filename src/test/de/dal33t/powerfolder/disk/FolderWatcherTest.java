@@ -0,0 +1,172 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import de.dal33t.powerfolder.ConfigurationEntry;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.util.test.Condition;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+/**
+ * Tests the FolderWatcher with the Java WatchService.
+ */
+public class FolderWatcherTest extends ControllerTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ConfigurationEntry.FOLDER_WATCHER_BACKEND.setValue(getController(),
+            FolderWatcher.BACKEND_NIO);
+        setupTestFolder(SyncProfile.HOST_FILES);
+    }
+
+    public void testBackendSelection() {
+        FolderWatcher watcher = getFolder().getFolderWatcher();
+        assertEquals(FolderWatcher.BACKEND_NIO, watcher.getBackend());
+        assertTrue(watcher.isSupported());
+
+        ConfigurationEntry.FOLDER_WATCHER_BACKEND.setValue(getController(),
+            FolderWatcher.BACKEND_JNOTIFY);
+        getController().getFolderRepository().reconfigureFolderWatchers();
+        if (FolderWatcher.isLibLoaded()) {
+            assertEquals(FolderWatcher.BACKEND_JNOTIFY, watcher.getBackend());
+        } else {
+            assertNull(watcher.getBackend());
+            assertFalse(watcher.isSupported());
+            assertFalse(watcher.isWatching());
+        }
+    }
+
+    public void testDetectChanges() throws Exception {
+        if (!DirectoryWatchService.isAvailable()) {
+            return;
+        }
+        assertTrue(getFolder().getFolderWatcher().isWatching());
+        // Registration happens in background
+        Thread.sleep(500);
+
+        Path file = TestHelper.createRandomFile(getFolder().getLocalBase(),
+            "root.txt");
+        waitForKnown(file);
+
+        // Files created together with the directories
+        Path subDir = getFolder().getLocalBase().resolve("a/b");
+        Files.createDirectories(subDir);
+        Path early = TestHelper.createRandomFile(subDir, "early.txt");
+        waitForKnown(early);
+
+        // Files created in the registered new directory
+        Path late = TestHelper.createRandomFile(subDir, "late.txt");
+        waitForKnown(late);
+
+        Files.delete(late);
+        final FileInfo lookup = FileInfoFactory.lookupInstance(getFolder(),
+            late);
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                FileInfo fInfo = getFolder().getFile(lookup);
+                return fInfo != null && fInfo.isDeleted();
+            }
+        });
+    }
+
+    public void testOverflow() throws Exception {
+        if (!DirectoryWatchService.isAvailable()) {
+            return;
+        }
+        Path dir = getFolder().getLocalBase().resolve("dir");
+        Files.createDirectories(dir);
+        Path gone = TestHelper.createRandomFile(dir, "gone.txt");
+        scanFolder(getFolder());
+        FolderWatcher watcher = getFolder().getFolderWatcher();
+        watcher.setIngoreAll(true);
+
+        // Events missed
+        Path added = TestHelper.createRandomFile(dir, "added.txt");
+        Files.delete(gone);
+        Thread.sleep(500);
+        watcher.setIngoreAll(false);
+
+        watcher.overflow(dir);
+        waitForKnown(added);
+        final FileInfo lookup = FileInfoFactory.lookupInstance(getFolder(),
+            gone);
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                return getFolder().getFile(lookup).isDeleted();
+            }
+        });
+    }
+
+    public void testCollapseBurst() throws Exception {
+        if (!DirectoryWatchService.isAvailable()) {
+            return;
+        }
+        ConfigurationEntry.FOLDER_WATCHER_COLLAPSE_THRESHOLD.setValue(
+            getController(), 20);
+        getController().getFolderRepository().reconfigureFolderWatchers();
+        Thread.sleep(500);
+        FolderWatcher watcher = getFolder().getFolderWatcher();
+
+        Path dir = getFolder().getLocalBase().resolve("burst");
+        Files.createDirectories(dir);
+        Path[] files = new Path[100];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = TestHelper.createRandomFile(dir, "file-" + i);
+        }
+        for (Path file : files) {
+            waitForKnown(file);
+        }
+        assertEquals(1, watcher.getCollapsedDirCount());
+        assertTrue(watcher.getCollapsedEventCount() > 0);
+        assertTrue(watcher.getCollapseRatio() > 0.5);
+
+        for (Path file : files) {
+            Files.delete(file);
+        }
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                for (FileInfo fInfo : getFolder().getKnownFiles()) {
+                    if (!fInfo.isDeleted()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        assertEquals(2, watcher.getCollapsedDirCount());
+    }
+
+    private void waitForKnown(Path file) {
+        final FileInfo lookup = FileInfoFactory.lookupInstance(getFolder(),
+            file);
+        TestHelper.waitForCondition(10, new Condition() {
+            public boolean reached() {
+                FileInfo fInfo = getFolder().getFile(lookup);
+                return fInfo != null && !fInfo.isDeleted();
+            }
+        });
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+
+public class HashCacheTest extends TestCase {
+    private static final byte[] HASH_A = new byte[]{1, 2, 3};
+    private static final byte[] HASH_B = new byte[]{4, 5, 6};
+
+    private FolderInfo foInfo;
+    private MemberInfo mInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        foInfo = new FolderInfo("HashTest", IdGenerator.makeFolderId());
+        mInfo = new MemberInfo("me", IdGenerator.makeId(), null);
+    }
+
+    public void testGetPut() {
+        HashCache cache = new HashCache("MD5");
+        assertFalse(cache.isDirty());
+        cache.put("a.txt", attrs(100, 1000, "inode1"), HASH_A);
+        assertTrue(cache.isDirty());
+
+        assertTrue(Arrays.equals(HASH_A,
+            cache.get("a.txt", attrs(100, 1000, "inode1"))));
+        assertTrue(Arrays.equals(HASH_A, cache.get(createFile("a.txt", 100,
+            1000))));
+        // Changed
+        assertNull(cache.get("a.txt", attrs(101, 1000, "inode1")));
+        assertNull(cache.get("a.txt", attrs(100, 2000, "inode1")));
+        assertNull(cache.get("a.txt", attrs(100, 1000, "inode2")));
+        assertNull(cache.get(createFile("a.txt", 100, 2000)));
+        assertNull(cache.get("b.txt", attrs(100, 1000, "inode1")));
+
+        cache.remove("a.txt");
+        assertEquals(0, cache.size());
+    }
+
+    public void testCarryOver() {
+        HashCache cache = new HashCache("MD5");
+        cache.put("a.txt", attrs(100, 1000, "inode1"), HASH_A);
+
+        assertNull(cache.carryOver("new.txt", attrs(100, 1000, "inode2")));
+        assertNull(cache.carryOver("new.txt", attrs(100, 2000, "inode1")));
+        assertTrue(Arrays.equals(HASH_A,
+            cache.carryOver("sub/moved.txt", attrs(100, 1000, "inode1"))));
+        assertTrue(Arrays.equals(HASH_A,
+            cache.get("sub/moved.txt", attrs(100, 1000, "inode1"))));
+        // Old name stays until removed.
+        assertNotNull(cache.get(createFile("a.txt", 100, 1000)));
+        cache.remove("a.txt");
+        assertNotNull(cache.get(createFile("sub/moved.txt", 100, 1000)));
+    }
+
+    public void testMove() {
+        HashCache cache = new HashCache("MD5");
+        // No file keys, e.g. on Windows
+        cache.put("a.txt", attrs(100, 1000, null), HASH_A);
+        cache.put("dir/b.txt", attrs(200, 2000, null), HASH_B);
+        cache.put("dir/sub/c.txt", attrs(300, 3000, null), HASH_A);
+        cache.put("dir2/d.txt", attrs(400, 4000, null), HASH_B);
+
+        cache.move("a.txt", "renamed.txt");
+        assertNull(cache.get("a.txt", attrs(100, 1000, null)));
+        assertTrue(Arrays.equals(HASH_A,
+            cache.get("renamed.txt", attrs(100, 1000, null))));
+
+        assertEquals(2, cache.moveDirectory("dir", "moved/dir"));
+        assertNull(cache.get("dir/b.txt", attrs(200, 2000, null)));
+        assertTrue(Arrays.equals(HASH_B,
+            cache.get("moved/dir/b.txt", attrs(200, 2000, null))));
+        assertTrue(Arrays.equals(HASH_A,
+            cache.get("moved/dir/sub/c.txt", attrs(300, 3000, null))));
+        // Same prefix, other directory
+        assertNotNull(cache.get("dir2/d.txt", attrs(400, 4000, null)));
+        assertEquals(4, cache.size());
+
+        // Moved file keeps its file key
+        cache.put("e.txt", attrs(500, 5000, "inode5"), HASH_A);
+        cache.move("e.txt", "f.txt");
+        assertNull(cache.carryOver("g.txt", attrs(500, 5000, "inode6")));
+        assertNotNull(cache.carryOver("g.txt", attrs(500, 5000, "inode5")));
+    }
+
+    public void testStoreLoad() throws Exception {
+        Path file = Files.createTempFile("HashCacheTest", ".hashes");
+        try {
+            HashCache cache = new HashCache("MD5");
+            cache.put("a.txt", attrs(100, 1000, "inode1"), HASH_A);
+            cache.put("dir/b.txt", attrs(200, 2000, null), HASH_B);
+            cache.store(file);
+            assertFalse(cache.isDirty());
+
+            HashCache loaded = HashCache.load(file, "MD5");
+            assertEquals(2, loaded.size());
+            assertFalse(loaded.isDirty());
+            assertTrue(Arrays.equals(HASH_A,
+                loaded.get("a.txt", attrs(100, 1000, "inode1"))));
+            assertTrue(Arrays.equals(HASH_B,
+                loaded.get("dir/b.txt", attrs(200, 2000, "inode9"))));
+            assertNotNull(loaded.carryOver("c.txt",
+                attrs(100, 1000, "inode1")));
+
+            // Other algorithm
+            assertEquals(0, HashCache.load(file, "SHA-1").size());
+
+            Files.delete(file);
+            assertEquals(0, HashCache.load(file, "MD5").size());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    public void testMoveDetection() {
+        FileInfo from = createFile("one/file.txt", 100, 1000);
+        FileInfo near = createFile("one/file2.txt", 100, 1000);
+        FileInfo far = createFile("far/away/renamed.dat", 100, 1000);
+
+        // Without hashes the nearest wins.
+        Map<FileInfo, FileInfo> moves = new MoveDetector(
+            Collections.singletonList(from), Arrays.asList(near, far))
+            .detect().getMovedFiles();
+        assertSame(near, moves.get(from));
+
+        HashCache cache = new HashCache("MD5");
+        cache.put("one/file.txt", attrs(100, 1000, "inode1"), HASH_A);
+        cache.carryOver("far/away/renamed.dat", attrs(100, 1000, "inode1"));
+        moves = new MoveDetector(Collections.singletonList(from),
+            Arrays.asList(near, far), cache).detect().getMovedFiles();
+        assertSame(far, moves.get(from));
+
+        // Known different content is not a move.
+        cache = new HashCache("MD5");
+        cache.put("one/file.txt", attrs(100, 1000, "inode1"), HASH_A);
+        cache.put("one/file2.txt", attrs(100, 1000, "inode2"), HASH_B);
+        moves = new MoveDetector(Collections.singletonList(from),
+            Collections.singletonList(near), cache).detect().getMovedFiles();
+        assertTrue(moves.isEmpty());
+    }
+
+    private FileInfo createFile(String name, long size, long modified) {
+        return FileInfoFactory.unmarshallExistingFile(foInfo, name, size,
+            mInfo, new Date(modified), 0, false);
+    }
+
+    private static BasicFileAttributes attrs(final long size,
+        final long modified, final Object fileKey)
+    {
+        return new BasicFileAttributes() {
+            public FileTime lastModifiedTime() {
+                return FileTime.fromMillis(modified);
+            }
+
+            public FileTime lastAccessTime() {
+                return lastModifiedTime();
+            }
+
+            public FileTime creationTime() {
+                return lastModifiedTime();
+            }
+
+            public boolean isRegularFile() {
+                return true;
+            }
+
+            public boolean isDirectory() {
+                return false;
+            }
+
+            public boolean isSymbolicLink() {
+                return false;
+            }
+
+            public boolean isOther() {
+                return false;
+            }
+
+            public long size() {
+                return size;
+            }
+
+            public Object fileKey() {
+                return fileKey;
+            }
+        };
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+
+public class MoveDetectorTest extends TestCase {
+    private FolderInfo foInfo;
+    private MemberInfo mInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        foInfo = new FolderInfo("MoveTest", IdGenerator.makeFolderId());
+        mInfo = new MemberInfo("me", IdGenerator.makeId(), null);
+    }
+
+    public void testRenameAndMove() {
+        FileInfo a = createFile("a.txt", 100, 1000);
+        FileInfo b = createFile("b.txt", 200, 1000);
+        FileInfo c = createFile("c.txt", 300, 1000);
+        FileInfo renamed = createFile("renamed.txt", 100, 1000);
+        FileInfo moved = createFile("sub/b.txt", 200, 1000);
+        FileInfo other = createFile("other.txt", 300, 2000);
+
+        MoveDetector detector = new MoveDetector(Arrays.asList(a, b, c),
+            Arrays.asList(renamed, moved, other)).detect();
+        Map<FileInfo, FileInfo> moves = detector.getMovedFiles();
+        assertEquals(2, moves.size());
+        assertSame(renamed, moves.get(a));
+        assertSame(moved, moves.get(b));
+        assertTrue(detector.getMovedDirectories().isEmpty());
+    }
+
+    public void testTieBreak() {
+        FileInfo from = createFile("docs/2009/report.txt", 100, 1000);
+        FileInfo otherName = createFile("docs/2009/copy.txt", 100, 1000);
+        FileInfo far = createFile("x/y/z/report.txt", 100, 1000);
+        FileInfo near = createFile("docs/2010/report.txt", 100, 1000);
+
+        Map<FileInfo, FileInfo> moves = new MoveDetector(
+            Collections.singletonList(from),
+            Arrays.asList(otherName, far, near)).detect().getMovedFiles();
+        assertSame(near, moves.get(from));
+
+        // Every new file is only the target of one move.
+        FileInfo from2 = createFile("docs/2011/report.txt", 100, 1000);
+        moves = new MoveDetector(Arrays.asList(from, from2),
+            Arrays.asList(near, otherName)).detect().getMovedFiles();
+        assertEquals(2, moves.size());
+        assertSame(near, moves.get(from));
+        assertSame(otherName, moves.get(from2));
+
+        // Directories only match directories.
+        FileInfo dir = createDir("docs/2009", 0, 1000);
+        FileInfo file = createFile("docs/2009.txt", 0, 1000);
+        assertTrue(new MoveDetector(Collections.singletonList(dir),
+            Collections.singletonList(file)).detect().getMovedFiles()
+            .isEmpty());
+    }
+
+    public void testDirectoryMove() {
+        List<FileInfo> vanished = new ArrayList<FileInfo>();
+        List<FileInfo> found = new ArrayList<FileInfo>();
+        FileInfo fromDir = createDir("photos", 0, 5000);
+        FileInfo toDir = createDir("archive/photos-2009", 0, 5000);
+        vanished.add(fromDir);
+        found.add(createDir("archive", 0, 7000));
+        found.add(toDir);
+        for (int d = 0; d < 10; d++) {
+            vanished.add(createDir("photos/album-" + d, 0, 6000 + d));
+            found.add(createDir("archive/photos-2009/album-" + d, 0, 6000 + d));
+            for (int i = 0; i < 100; i++) {
+                long size = d * 1000 + i;
+                vanished.add(createFile("photos/album-" + d + "/img-" + i
+                    + ".jpg", size, 1000));
+                found.add(createFile("archive/photos-2009/album-" + d
+                    + "/img-" + i + ".jpg", size, 1000));
+            }
+        }
+        // Moved within the folder, not part of the directory move.
+        vanished.add(createFile("notes.txt", 4711, 1000));
+        found.add(createFile("archive/notes.txt", 4711, 1000));
+
+        MoveDetector detector = new MoveDetector(vanished, found).detect();
+        assertEquals(vanished.size(), detector.getMovedFiles().size());
+        assertEquals(1, detector.getMovedDirectories().size());
+        assertSame(toDir, detector.getMovedDirectories().get(fromDir));
+
+        // One file of the directory changed during the move
+        found.remove(found.size() - 2);
+        detector = new MoveDetector(vanished, found).detect();
+        assertTrue(detector.getMovedDirectories().isEmpty());
+    }
+
+    public void testManyMoves() {
+        int n = 200000;
+        List<FileInfo> vanished = new ArrayList<FileInfo>(n);
+        List<FileInfo> found = new ArrayList<FileInfo>(n);
+        FileInfo fromDir = createDir("old", 0, 1000);
+        FileInfo toDir = createDir("new", 0, 1000);
+        vanished.add(fromDir);
+        found.add(toDir);
+        for (int i = 0; i < n; i++) {
+            // Many files of same size and date
+            long size = i % 1000;
+            vanished.add(createFile("old/dir-" + i % 100 + "/file-" + i,
+                size, 1000));
+            found.add(createFile("new/dir-" + i % 100 + "/file-" + i, size,
+                1000));
+        }
+        long start = System.currentTimeMillis();
+        MoveDetector detector = new MoveDetector(vanished, found).detect();
+        long took = System.currentTimeMillis() - start;
+        assertEquals(n + 1, detector.getMovedFiles().size());
+        for (Map.Entry<FileInfo, FileInfo> move : detector.getMovedFiles()
+            .entrySet())
+        {
+            assertEquals(move.getKey().getRelativeName().substring(3), move
+                .getValue().getRelativeName().substring(3));
+        }
+        assertSame(toDir, detector.getMovedDirectories().get(fromDir));
+        assertTrue("Move detection too slow: " + took + "ms", took < 20000);
+    }
+
+    private FileInfo createFile(String name, long size, long modified) {
+        return FileInfoFactory.unmarshallExistingFile(foInfo, name, size,
+            mInfo, new Date(modified), 0, false);
+    }
+
+    private FileInfo createDir(String name, long size, long modified) {
+        return FileInfoFactory.unmarshallExistingFile(foInfo, name, size,
+            mInfo, new Date(modified), 0, true);
+    }
+}
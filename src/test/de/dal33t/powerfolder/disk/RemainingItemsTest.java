@@ -0,0 +1,104 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.IdGenerator;
+
+public class RemainingItemsTest extends TestCase {
+    private FolderInfo foInfo;
+    private MemberInfo mInfo;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        foInfo = new FolderInfo("RemainingTest", IdGenerator.makeFolderId());
+        mInfo = new MemberInfo("me", IdGenerator.makeId(), null);
+    }
+
+    public void testCaseSensitive() {
+        RemainingItems remaining = new RemainingItems(false);
+        FileInfo fInfo = createFileInfo("Dir/File.txt");
+        remaining.add(fInfo);
+        assertNull(remaining.take("dir/file.txt"));
+        assertSame(fInfo, remaining.take("Dir/File.txt"));
+        assertNull(remaining.take("Dir/File.txt"));
+        assertEquals(0, remaining.size());
+    }
+
+    public void testIgnoreCase() {
+        RemainingItems remaining = new RemainingItems(true);
+        FileInfo exact = createFileInfo("Dir/File.txt");
+        FileInfo variant = createFileInfo("dir/FILE.TXT");
+        FileInfo other = createFileInfo("Other.txt");
+        remaining.add(exact);
+        remaining.add(variant);
+        remaining.add(other);
+
+        // Exact match only takes the exact item
+        assertSame(exact, remaining.take("Dir/File.txt"));
+        assertEquals(2, remaining.size());
+
+        // Case variant
+        assertSame(variant, remaining.take("DIR/file.txt"));
+        assertNull(remaining.take("dir/file.txt"));
+        assertEquals(1, remaining.size());
+
+        // Removed items are not found by case variant anymore.
+        assertSame(other, remaining.remove("Other.txt"));
+        assertNull(remaining.take("other.txt"));
+        assertEquals(0, remaining.size());
+    }
+
+    public void testIgnoreCaseTakesAllVariants() {
+        RemainingItems remaining = new RemainingItems(true);
+        remaining.add(createFileInfo("a/B.txt"));
+        remaining.add(createFileInfo("A/b.txt"));
+        assertNotNull(remaining.take("a/b.txt"));
+        assertEquals(0, remaining.size());
+    }
+
+    public void testManyCaseVariants() {
+        int n = 100000;
+        RemainingItems remaining = new RemainingItems(true);
+        for (int i = 0; i < n; i++) {
+            remaining.add(createFileInfo("Dir-" + i % 100 + "/Mixed-Case-"
+                + i + ".TXT"));
+        }
+        for (int i = 0; i < n; i++) {
+            String diskName = "dir-" + i % 100 + "/mixed-case-" + i + ".txt";
+            FileInfo fInfo = remaining.take(diskName);
+            assertNotNull(diskName, fInfo);
+            assertTrue(fInfo.getRelativeName().equalsIgnoreCase(diskName));
+        }
+        assertEquals(0, remaining.size());
+    }
+
+    private FileInfo createFileInfo(String name) {
+        return FileInfoFactory.unmarshallExistingFile(foInfo, name, 100,
+            mInfo, new Date(), 0, false);
+    }
+}
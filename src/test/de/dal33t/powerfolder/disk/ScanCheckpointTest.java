@@ -0,0 +1,138 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.disk;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class ScanCheckpointTest extends ControllerTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getController().setPaused(true);
+        setupTestFolder(SyncProfile.HOST_FILES);
+    }
+
+    public void testStoreLoad() throws Exception {
+        Set<String> completed = new HashSet<String>();
+        completed.add("a");
+        completed.add("b/c");
+        ScanCheckpoint checkpoint = new ScanCheckpoint(4711, completed);
+        assertTrue(checkpoint.isCompleted("a"));
+        assertTrue(checkpoint.isCompleted("a/file.txt"));
+        assertTrue(checkpoint.isCompleted("b/c/d/file.txt"));
+        assertFalse(checkpoint.isCompleted("b"));
+        assertFalse(checkpoint.isCompleted("b/file.txt"));
+        assertFalse(checkpoint.isCompleted("ab/file.txt"));
+
+        MemberInfo me = getController().getMySelf().getInfo();
+        FileInfo fInfo = FileInfoFactory.unmarshallExistingFile(getFolder()
+            .getInfo(), "a/file.txt", 10, me, new Date(1000), 0, false);
+        checkpoint.getNewFiles().add(fInfo);
+        checkpoint.getVanished().add("b/c/gone.txt");
+
+        Path file = getFolder().getSystemSubDir().resolve(
+            ScanCheckpoint.FILENAME);
+        checkpoint.store(file);
+        ScanCheckpoint loaded = ScanCheckpoint.load(file);
+        assertEquals(4711, loaded.getFingerprint());
+        assertEquals(completed, loaded.getCompletedDirs());
+        assertEquals(Collections.singleton("b/c/gone.txt"),
+            loaded.getVanished());
+        assertTrue(loaded.getNewFiles().get(0)
+            .isVersionDateAndSizeIdentical(fInfo));
+
+        Files.delete(file);
+        assertNull(ScanCheckpoint.load(file));
+    }
+
+    /**
+     * Continues a scan that completed directory "a" before it got
+     * interrupted.
+     */
+    public void testResume() throws Exception {
+        Path base = getFolder().getLocalBase();
+        Path dirA = Files.createDirectories(base.resolve("a"));
+        Path file1 = TestHelper.createRandomFile(dirA, "1.txt");
+        Path dirB = Files.createDirectories(base.resolve("b"));
+        TestHelper.createRandomFile(dirB, "2.txt");
+
+        // Checkpoint of a scan on the empty database.
+        MemberInfo me = getController().getMySelf().getInfo();
+        ScanCheckpoint checkpoint = new ScanCheckpoint(0,
+            new HashSet<String>(Collections.singleton("a")));
+        checkpoint.getNewFiles().add(
+            FileInfoFactory.newFile(getFolder(), dirA, me, true));
+        checkpoint.getNewFiles().add(
+            FileInfoFactory.newFile(getFolder(), file1, me, false));
+        Path file = getFolder().getSystemSubDir().resolve(
+            ScanCheckpoint.FILENAME);
+        checkpoint.store(file);
+
+        // Not seen by the resumed scan.
+        TestHelper.createRandomFile(dirA, "later.txt");
+
+        FolderScanner scanner = getController().getFolderRepository()
+            .getFolderScanner();
+        ScanResult result = scanner.scanFolder(getFolder());
+        assertEquals(ScanResult.ResultState.SCANNED, result.getResultState());
+        Set<String> names = new HashSet<String>();
+        for (FileInfo fInfo : result.getNewFiles()) {
+            names.add(fInfo.getRelativeName());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("a",
+            "a/1.txt", "b", "b/2.txt")), names);
+        assertEquals(4, result.getTotalFilesCount());
+        assertTrue(Files.notExists(file));
+
+        // Next scan is a full scan again.
+        result = scanner.scanFolder(getFolder());
+        assertEquals(5, result.getNewFiles().size());
+    }
+
+    public void testDiscardOnChangedDatabase() throws Exception {
+        Path base = getFolder().getLocalBase();
+        Path dirA = Files.createDirectories(base.resolve("a"));
+        TestHelper.createRandomFile(dirA, "1.txt");
+
+        ScanCheckpoint checkpoint = new ScanCheckpoint(4711,
+            new HashSet<String>(Collections.singleton("a")));
+        Path file = getFolder().getSystemSubDir().resolve(
+            ScanCheckpoint.FILENAME);
+        checkpoint.store(file);
+
+        ScanResult result = getController().getFolderRepository()
+            .getFolderScanner().scanFolder(getFolder());
+        assertEquals(2, result.getNewFiles().size());
+        assertTrue(Files.notExists(file));
+    }
+}
@@ -56,6 +56,11 @@ public class FileArchiverTest extends TwoControllerTestCase {
         
         FileInfo fia = fa.getArchivedFilesInfos(fib).get(0);
         assertEquals(fib.getRelativeName(), fia.getRelativeName());
+
+        List<Path> newest = fa.getNewestArchivedFiles(fib, 2);
+        assertEquals(1, newest.size());
+        assertEquals(expected.getFileName(), newest.get(0).getFileName());
+        assertTrue(fa.getNewestArchivedFiles(fib, 0).isEmpty());
     }
 
     public void testBackupOnDownload() {
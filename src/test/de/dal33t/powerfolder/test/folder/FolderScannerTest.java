@@ -21,7 +21,12 @@ package de.dal33t.powerfolder.test.folder;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import de.dal33t.powerfolder.Feature;
 import de.dal33t.powerfolder.disk.FolderScanner;
@@ -122,6 +127,75 @@ public class FolderScannerTest extends ControllerTestCase {
         }
     }
 
+    /**
+     * Adds, changes, deletes and moves files and directories in one go. The
+     * expected result is the one of the sequential scanner before the crawling
+     * was done with work-stealing pools.
+     */
+    public void testScanResultOfMixedChanges() throws Exception {
+        FolderScanner folderScanner = getController().getFolderRepository()
+            .getFolderScanner();
+        Path base = getFolder().getLocalBase();
+        TestHelper.createRandomFile(base.resolve("a"), "1.txt");
+        TestHelper.createRandomFile(base.resolve("a"), "2.txt");
+        Path changed = TestHelper.createRandomFile(base.resolve("a/b"),
+            "3.txt");
+        TestHelper.createRandomFile(base.resolve("a/b"), "4.txt");
+        Path deleted = TestHelper.createRandomFile(base.resolve("c"), "5.txt");
+        TestHelper.createRandomFile(base.resolve("c/d"), "6.txt");
+        Path moved = TestHelper.createRandomFile(base, "7.txt");
+        Path renamed = TestHelper.createRandomFile(base, "8.txt");
+        TestHelper.createRandomFile(base.resolve("e"), "9.txt");
+        scanFolder(getFolder());
+        assertEquals(14, getFolder().getKnownItemCount());
+
+        TestHelper.waitMilliSeconds(3000);
+        TestHelper.createRandomFile(base.resolve("a"), "new1.txt");
+        TestHelper.createRandomFile(base.resolve("f"), "new2.txt");
+        TestHelper.changeFile(changed);
+        Files.delete(deleted);
+        Files.delete(base.resolve("e/9.txt"));
+        Files.delete(base.resolve("e"));
+        Files.move(moved, base.resolve("a/b/7.txt"));
+        Files.move(renamed, base.resolve("8-renamed.txt"));
+
+        ScanResult result = scanFolderWaitIfBusy(folderScanner);
+        assertEquals(ScanResult.ResultState.SCANNED, result.getResultState());
+        assertEquals(names("a/new1.txt", "f", "f/new2.txt", "a/b/7.txt",
+            "8-renamed.txt"), names(result.getNewFiles()));
+        assertEquals(names("a/b/3.txt"), names(result.getChangedFiles()));
+        assertEquals(names("c/5.txt", "e", "e/9.txt", "7.txt", "8.txt"),
+            names(result.getDeletedFiles()));
+        assertEquals(0, result.getRestoredFiles().size());
+        assertEquals(0, result.getProblemFiles().size());
+        assertEquals(14, result.getTotalFilesCount());
+        if (Feature.CORRECT_MOVEMENT_DETECTION.isEnabled()) {
+            Map<String, String> expected = new HashMap<String, String>();
+            expected.put("7.txt", "a/b/7.txt");
+            expected.put("8.txt", "8-renamed.txt");
+            Map<String, String> moves = new HashMap<String, String>();
+            for (Map.Entry<FileInfo, FileInfo> move : result.getMovedFiles()
+                .entrySet())
+            {
+                moves.put(move.getKey().getRelativeName(), move.getValue()
+                    .getRelativeName());
+            }
+            assertEquals(expected, moves);
+        }
+    }
+
+    private static Set<String> names(String... relativeNames) {
+        return new HashSet<String>(Arrays.asList(relativeNames));
+    }
+
+    private static Set<String> names(Collection<FileInfo> fInfos) {
+        Set<String> names = new HashSet<String>();
+        for (FileInfo fInfo : fInfos) {
+            names.add(fInfo.getRelativeName());
+        }
+        return names;
+    }
+
     private ScanResult scanFolderWaitIfBusy(final FolderScanner folderScanner) {
         ScanResult result;
         boolean scannerBusy;
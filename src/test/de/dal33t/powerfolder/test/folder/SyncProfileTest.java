@@ -184,4 +184,12 @@ public class SyncProfileTest extends TestCase {
         assertFalse("delta10", base.equals(delta10));
     }
 
+    public void testIllegalHoursBetweenFullScans() {
+        SyncProfile profile = SyncProfile
+            .getSyncProfileByFieldList("true,true,true,true,555,false,12,0,m,homer,false,x");
+        assertEquals(0, profile.getHoursBetweenFullScans());
+        assertEquals(555, profile.getConfiguration()
+            .getTimeBetweenRegularScans());
+    }
+
 }
@@ -22,11 +22,19 @@ package de.dal33t.powerfolder.test.message;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Random;
 import java.util.UUID;
 
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.FileChunkExt;
 import de.dal33t.powerfolder.util.ByteSerializer;
 import de.dal33t.powerfolder.util.Format;
+import de.dal33t.powerfolder.util.IdGenerator;
 
 import junit.framework.TestCase;
 
@@ -107,6 +115,32 @@ public class SerializationCompareTest extends TestCase {
             + Format.formatBytes(uncompressed.length));
     }
 
+    public void testFileChunkHeader() throws IOException,
+        ClassNotFoundException
+    {
+        FolderInfo foInfo = new FolderInfo("TestFolder", IdGenerator
+            .makeFolderId());
+        FileInfo fInfo = FileInfoFactory.unmarshallExistingFile(foInfo,
+            "dir/file.bin", 1000000, new MemberInfo("test", "ID", null),
+            new Date(), 3, false);
+        byte[] data = new byte[32 * 1024];
+        new Random(1).nextBytes(data);
+        FileChunkExt chunk = new FileChunkExt(fInfo, 65536, data);
+
+        byte[] header = chunk.serializeHeader();
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        bOut.write(header);
+        bOut.write(data);
+        bOut.write(FileChunkExt.TRAILER);
+        byte[] serialized = bOut.toByteArray();
+
+        FileChunkExt read = (FileChunkExt) ByteSerializer.deserializeStatic(
+            serialized, false);
+        assertEquals(fInfo, read.file);
+        assertEquals(65536, read.offset);
+        assertTrue(Arrays.equals(data, read.data));
+    }
+
     private static FileInfoSerializable createRandomFileInfo() {
         FileInfoSerializable f = new FileInfoSerializable();
         f.fileName = UUID.randomUUID().toString() + "/"
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.transfer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Random;
+
+import de.dal33t.powerfolder.disk.SyncProfile;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.message.ReplyFilePartsRecord;
+import de.dal33t.powerfolder.transfer.swarm.AbstractFileRecordProvider;
+import de.dal33t.powerfolder.transfer.swarm.CachedFileRecordProvider;
+import de.dal33t.powerfolder.util.ByteSerializer;
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.delta.FilePartsRecord;
+import de.dal33t.powerfolder.util.delta.PartInfo;
+import de.dal33t.powerfolder.util.test.ControllerTestCase;
+import de.dal33t.powerfolder.util.test.TestHelper;
+
+public class CachedFileRecordProviderTest extends ControllerTestCase {
+    private Path dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getController().setPaused(true);
+        setupTestFolder(SyncProfile.HOST_FILES);
+        dir = TestHelper.getTestDir().resolve("records");
+    }
+
+    public void testStoredRecord() throws Exception {
+        FileInfo fInfo = createFile(2 * 1024 * 1024);
+        CachedFileRecordProvider provider = new CachedFileRecordProvider(
+            getController(), dir, 1024L * 1024);
+        CountingListener computed = new CountingListener();
+        FilePartsRecord record = provider.retrieveRecord(fInfo, computed);
+        assertTrue(computed.calls > 1);
+        assertEquals(1, provider.getCount());
+        assertTrue(provider.getTotalSize() > 0);
+
+        // After restart
+        provider = new CachedFileRecordProvider(getController(), dir,
+            1024L * 1024);
+        assertEquals(1, provider.getCount());
+        CountingListener stored = new CountingListener();
+        FilePartsRecord again = provider.retrieveRecord(fInfo, stored);
+        assertEquals(1, stored.calls);
+        assertTrue(Arrays.equals(record.getFileDigest(), again
+            .getFileDigest()));
+        assertEquals(record.getInfos().length, again.getInfos().length);
+
+        // Changed file
+        Path diskFile = getFolder().getDiskFile(fInfo);
+        TestHelper.changeFile(diskFile, 2 * 1024 * 1024);
+        Files.setLastModifiedTime(diskFile, FileTime.fromMillis(fInfo
+            .getModifiedDate().getTime() + 10000));
+        scanFolder(getFolder());
+        FileInfo changed = getFolder().getFile(fInfo);
+        assertFalse(changed.isVersionDateAndSizeIdentical(fInfo));
+        CountingListener recomputed = new CountingListener();
+        FilePartsRecord changedRecord = provider.retrieveRecord(changed,
+            recomputed);
+        assertTrue(recomputed.calls > 1);
+        assertFalse(Arrays.equals(record.getFileDigest(), changedRecord
+            .getFileDigest()));
+    }
+
+    public void testLeastRecentlyUsedRemoved() throws Exception {
+        FileInfo first = createFile(2 * 1024 * 1024);
+        FileInfo second = createFile(2 * 1024 * 1024);
+        CachedFileRecordProvider provider = new CachedFileRecordProvider(
+            getController(), dir, 1024L * 1024);
+        provider.retrieveRecord(first, null);
+        long recordSize = provider.getTotalSize();
+        provider = new CachedFileRecordProvider(getController(), dir,
+            recordSize + recordSize / 2);
+        provider.retrieveRecord(second, null);
+        assertEquals(1, provider.getCount());
+
+        // First one got removed
+        CountingListener computed = new CountingListener();
+        provider.retrieveRecord(first, computed);
+        assertTrue(computed.calls > 1);
+        assertEquals(1, provider.getCount());
+    }
+
+    public void testSmallFilesNotStored() throws Exception {
+        FileInfo fInfo = createFile(1000);
+        CachedFileRecordProvider provider = new CachedFileRecordProvider(
+            getController(), dir, 1024L * 1024);
+        assertNotNull(provider.retrieveRecord(fInfo, null));
+        assertEquals(0, provider.getCount());
+    }
+
+    public void testContentDefinedRecordOfHugeFileFitsMessage()
+        throws Exception
+    {
+        FileInfo fInfo = createFile(1000);
+        long size = 50L * 1024 * 1024 * 1024;
+        int partSize = AbstractFileRecordProvider
+            .getContentDefinedPartSize(size);
+        assertTrue(partSize > AbstractFileRecordProvider
+            .CONTENT_DEFINED_PART_SIZE);
+        // All parts of the minimum size
+        int nParts = (int) (size / (partSize / 4));
+        PartInfo[] infos = new PartInfo[nParts];
+        int[] lengths = new int[nParts];
+        Random random = new Random(1);
+        for (int i = 0; i < nParts; i++) {
+            byte[] digest = new byte[32];
+            random.nextBytes(digest);
+            infos[i] = new PartInfo(i, 0, digest);
+            lengths[i] = partSize / 4;
+        }
+        FilePartsRecord record = new FilePartsRecord(size, infos, partSize,
+            lengths, new byte[16]);
+        byte[] message = ByteSerializer.serializeStatic(
+            new ReplyFilePartsRecord(fInfo, record), false);
+        assertTrue("Message size " + message.length,
+            message.length < ByteSerializer.MAX_BUFFER_SIZE);
+    }
+
+    private FileInfo createFile(long size) {
+        Path file = TestHelper.createRandomFile(getFolder().getLocalBase(),
+            size);
+        scanFolder(getFolder());
+        FileInfo fInfo = getFolder().getFile(
+            FileInfoFactory.lookupInstance(getFolder(), file));
+        assertNotNull(fInfo);
+        return fInfo;
+    }
+
+    private static class CountingListener implements ProgressListener {
+        private int calls;
+
+        public void progressReached(double percentageReached) {
+            calls++;
+        }
+    }
+}
@@ -22,6 +22,7 @@ package de.dal33t.powerfolder.test.transfer;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.file.DirectoryStream.Filter;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -41,6 +42,7 @@ import de.dal33t.powerfolder.event.TransferManagerListener;
 import de.dal33t.powerfolder.light.FileInfo;
 import de.dal33t.powerfolder.light.FileInfoFactory;
 import de.dal33t.powerfolder.transfer.DownloadManager;
+import de.dal33t.powerfolder.transfer.UploadEngine;
 import de.dal33t.powerfolder.util.DateUtil;
 import de.dal33t.powerfolder.util.Format;
 import de.dal33t.powerfolder.util.PathUtils;
@@ -701,6 +703,58 @@ public class FileTransferTest extends TwoControllerTestCase {
         TestHelper.assertIncompleteFilesGone(this);
     }
 
+    /**
+     * Many concurrent uploads are served by a fixed number of threads.
+     */
+    public void testManyUploadsFixedThreads() {
+        final MyTransferManagerListener bartsListener = new MyTransferManagerListener();
+        getContollerBart().getTransferManager().addListener(bartsListener);
+        final UploadEngine engine = getContollerBart().getTransferManager()
+            .getUploadEngine();
+
+        final int nFiles = 300;
+        for (int i = 0; i < nFiles; i++) {
+            TestHelper.createRandomFile(getFolderAtBart().getLocalBase(),
+                50000);
+        }
+        scanFolder(getFolderAtBart());
+        final int[] peakUploads = new int[1];
+        final int[] peakThreads = new int[1];
+        TestHelper.waitForCondition(200, new ConditionWithMessage() {
+            public boolean reached() {
+                peakUploads[0] = Math.max(peakUploads[0], engine
+                    .countUploads());
+                peakThreads[0] = Math.max(peakThreads[0],
+                    countThreads("Upload-"));
+                return bartsListener.uploadCompleted >= nFiles;
+            }
+
+            public String message() {
+                return "bart ul comp: " + bartsListener.uploadCompleted
+                    + " should be " + nFiles;
+            }
+        });
+        assertEquals(0, bartsListener.uploadBroken);
+        assertTrue("Concurrent uploads: " + peakUploads[0]
+            + ", workers of both controllers: " + 2
+            * engine.getWorkerCount(),
+            peakUploads[0] > 2 * engine.getWorkerCount());
+        assertTrue("Upload threads: " + peakThreads[0]
+            + ", workers of both controllers: " + 2
+            * engine.getWorkerCount(),
+            peakThreads[0] <= 2 * engine.getWorkerCount());
+    }
+
+    private static int countThreads(String namePrefix) {
+        int n = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(namePrefix)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
     public void testMultipleFilesCopyWithFolderWatcher() {
         // Register listeners
         if (!FolderWatcher.isLibLoaded()) {
@@ -1831,6 +1885,126 @@ public class FileTransferTest extends TwoControllerTestCase {
         TestHelper.assertIncompleteFilesGone(this);
     }
 
+    public void testDeltaFromArchivedVersion() throws IOException {
+        ConfigurationEntry.USE_DELTA_ON_LAN.setValue(getContollerBart(), true);
+        ConfigurationEntry.USE_DELTA_ON_LAN.setValue(getContollerLisa(), true);
+        final MyTransferManagerListener lisaListener = new MyTransferManagerListener();
+        getContollerLisa().getTransferManager().addListener(lisaListener);
+
+        Path fbart = TestHelper.createRandomFile(getFolderAtBart()
+            .getLocalBase(), 2 * 1024 * 1024);
+        Files.setLastModifiedTime(fbart,
+            FileTime.fromMillis(System.currentTimeMillis() - 10000));
+        scanFolder(getFolderAtBart());
+        TestHelper.waitForCondition(20, new Condition() {
+            public boolean reached() {
+                return lisaListener.downloadCompleted >= 1
+                    && getFolderAtLisa().getKnownItemCount() == 1;
+            }
+        });
+        disconnectBartAndLisa();
+
+        // Only an archived version remains at lisa
+        FileInfo linfo = getFolderAtLisa().getKnownFiles().iterator().next();
+        Path flisa = linfo
+            .getDiskFile(getContollerLisa().getFolderRepository());
+        getFolderAtLisa().getFileArchiver().archive(linfo, flisa, false);
+        assertFalse(Files.exists(flisa));
+        assertEquals(1, getFolderAtLisa().getFileArchiver()
+            .getNewestArchivedFiles(linfo, 2).size());
+
+        // Change a few bytes in bart's file
+        try (RandomAccessFile raf = new RandomAccessFile(fbart.toFile(), "rw")) {
+            raf.seek(Files.size(fbart) / 2);
+            for (int i = 0; i < 1000; i++) {
+                raf.write((int) (Math.random() * 256));
+            }
+        }
+        scanFolder(getFolderAtBart());
+        assertEquals(1, getFolderAtBart().getKnownFiles().iterator().next()
+            .getVersion());
+        long oldByteCount = getFolderAtLisa().getStatistic()
+            .getDownloadCounter().getBytesTransferred();
+
+        connectBartAndLisa();
+        getContollerLisa().getFolderRepository().getFileRequestor()
+            .triggerFileRequesting(getFolderAtLisa().getInfo());
+        TestHelper.waitForCondition(40, new ConditionWithMessage() {
+            public boolean reached() {
+                return lisaListener.downloadCompleted >= 2;
+            }
+
+            public String message() {
+                return "lisa: completed dl= " + lisaListener.downloadCompleted
+                    + ", brkn dl= " + lisaListener.downloadBroken
+                    + ", abrt dl= " + lisaListener.downloadAborted;
+            }
+        });
+        assertTrue(TestHelper.compareFiles(fbart, flisa));
+        long transferred = getFolderAtLisa().getStatistic()
+            .getDownloadCounter().getBytesTransferred()
+            - oldByteCount;
+        assertTrue("Transferred " + transferred + " bytes",
+            transferred < Files.size(fbart) / 2);
+
+        TestHelper.assertIncompleteFilesGone(this);
+    }
+
+    public void testDeltaFromOtherFile() throws IOException {
+        ConfigurationEntry.USE_DELTA_ON_LAN.setValue(getContollerBart(), true);
+        ConfigurationEntry.USE_DELTA_ON_LAN.setValue(getContollerLisa(), true);
+        final MyTransferManagerListener lisaListener = new MyTransferManagerListener();
+        getContollerLisa().getTransferManager().addListener(lisaListener);
+
+        Path fbart = TestHelper.createRandomFile(getFolderAtBart()
+            .getLocalBase(), 2 * 1024 * 1024);
+        scanFolder(getFolderAtBart());
+        TestHelper.waitForCondition(20, new Condition() {
+            public boolean reached() {
+                return lisaListener.downloadCompleted >= 1;
+            }
+        });
+        // Blocks of the downloaded file get indexed in the background
+        TestHelper.waitForCondition(20, new Condition() {
+            public boolean reached() {
+                return getFolderAtLisa().getBlockIndex().getFileCount() == 1;
+            }
+        });
+
+        // A copy with a few bytes changed
+        Path fcopy = getFolderAtBart().getLocalBase().resolve("copy.bin");
+        Files.copy(fbart, fcopy);
+        try (RandomAccessFile raf = new RandomAccessFile(fcopy.toFile(), "rw")) {
+            raf.seek(Files.size(fcopy) / 2);
+            for (int i = 0; i < 1000; i++) {
+                raf.write((int) (Math.random() * 256));
+            }
+        }
+        long oldByteCount = getFolderAtLisa().getStatistic()
+            .getDownloadCounter().getBytesTransferred();
+        scanFolder(getFolderAtBart());
+        TestHelper.waitForCondition(40, new ConditionWithMessage() {
+            public boolean reached() {
+                return lisaListener.downloadCompleted >= 2;
+            }
+
+            public String message() {
+                return "lisa: completed dl= " + lisaListener.downloadCompleted
+                    + ", brkn dl= " + lisaListener.downloadBroken
+                    + ", abrt dl= " + lisaListener.downloadAborted;
+            }
+        });
+        Path flisa = getFolderAtLisa().getLocalBase().resolve("copy.bin");
+        assertTrue(TestHelper.compareFiles(fcopy, flisa));
+        long transferred = getFolderAtLisa().getStatistic()
+            .getDownloadCounter().getBytesTransferred()
+            - oldByteCount;
+        assertTrue("Transferred " + transferred + " bytes",
+            transferred < Files.size(fcopy) / 2);
+
+        TestHelper.assertIncompleteFilesGone(this);
+    }
+
     /**
      * Tests load/store of pending downloads.
      * <p>
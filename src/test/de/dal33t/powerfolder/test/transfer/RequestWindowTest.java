@@ -0,0 +1,121 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.transfer;
+
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.light.FileInfo;
+import de.dal33t.powerfolder.light.FileInfoFactory;
+import de.dal33t.powerfolder.light.FolderInfo;
+import de.dal33t.powerfolder.light.MemberInfo;
+import de.dal33t.powerfolder.message.RequestPart;
+import de.dal33t.powerfolder.transfer.RequestWindow;
+import de.dal33t.powerfolder.util.Range;
+
+/**
+ * Runs a {@link RequestWindow} against a simulated source with a fixed round
+ * trip time and rate.
+ */
+public class RequestWindowTest extends TestCase {
+    private static final int CHUNK_SIZE = 32 * 1024;
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private FileInfo fInfo;
+    private long offset;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        fInfo = FileInfoFactory.unmarshallExistingFile(new FolderInfo("Test",
+            "ID"), "file.bin", Long.MAX_VALUE / 2, new MemberInfo("test", "ID",
+            null), new Date(), 1, false);
+        offset = 0;
+    }
+
+    public void testInitialSize() {
+        RequestWindow window = new RequestWindow(15, 60, CHUNK_SIZE);
+        assertEquals(15, window.getSize());
+        assertEquals(0, window.getRate(), 0);
+        assertEquals(-1, window.getMinRtt());
+        assertEquals(60, new RequestWindow(100, 60, CHUNK_SIZE).getSize());
+    }
+
+    public void testHighLatency() {
+        // 200ms, 5 MB/s: 1 MB in flight, 32 chunks
+        RequestWindow window = new RequestWindow(15, 100, CHUNK_SIZE);
+        double rate = 5 * 1024 * 1024;
+        double achieved = simulate(window, 200 * MS, rate, 30 * SECOND);
+        assertTrue(window.toString(), window.getSize() >= 32);
+        assertTrue(window.toString(), window.getSize() <= 100);
+        // A fixed window of 15 achieves less than half
+        assertTrue("Achieved " + achieved, achieved > 0.85 * rate);
+        assertEquals(200, window.getMinRtt() / MS, 10);
+    }
+
+    public void testSlowSource() {
+        // 50ms, 20 KB/s: Less than a chunk in flight
+        RequestWindow window = new RequestWindow(15, 60, CHUNK_SIZE);
+        double rate = 20 * 1024;
+        double achieved = simulate(window, 50 * MS, rate, 120 * SECOND);
+        assertTrue(window.toString(), window.getSize() <= 3);
+        assertTrue("Achieved " + achieved, achieved > 0.9 * rate);
+    }
+
+    public void testCapped() {
+        RequestWindow window = new RequestWindow(15, 20, CHUNK_SIZE);
+        simulate(window, 500 * MS, 10 * 1024 * 1024, 10 * SECOND);
+        assertEquals(20, window.getSize());
+    }
+
+    /**
+     * @return the achieved rate in bytes per second
+     */
+    private double simulate(RequestWindow window, long rtt, double rate,
+        long duration)
+    {
+        long chunkTime = (long) (CHUNK_SIZE * SECOND / rate);
+        LinkedList<RequestPart> requests = new LinkedList<RequestPart>();
+        LinkedList<Long> arrivals = new LinkedList<Long>();
+        long sourceFree = 0;
+        long received = 0;
+        long now = 0;
+        while (now < duration) {
+            while (requests.size() < window.getSize()) {
+                RequestPart rp = new RequestPart(fInfo, Range.getRangeByLength(
+                    offset, CHUNK_SIZE), 0);
+                offset += CHUNK_SIZE;
+                window.requested(rp, now);
+                long start = Math.max(now + rtt / 2, sourceFree);
+                sourceFree = start + chunkTime;
+                requests.add(rp);
+                arrivals.add(sourceFree + rtt / 2);
+            }
+            now = arrivals.removeFirst();
+            window.answered(requests.removeFirst(), now);
+            window.received(CHUNK_SIZE, now);
+            received += CHUNK_SIZE;
+        }
+        return received * (double) SECOND / now;
+    }
+}
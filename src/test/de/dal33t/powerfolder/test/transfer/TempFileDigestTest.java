@@ -0,0 +1,178 @@
+/*
+ * Copyright 2004 - 2009 Christian Sprajc. All rights reserved.
+ *
+ * This file is part of PowerFolder.
+ *
+ * PowerFolder is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation.
+ *
+ * PowerFolder is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with PowerFolder. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * $Id$
+ */
+package de.dal33t.powerfolder.test.transfer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import de.dal33t.powerfolder.transfer.TempFileDigest;
+import de.dal33t.powerfolder.util.ProgressListener;
+import de.dal33t.powerfolder.util.Range;
+import de.dal33t.powerfolder.util.delta.FilePartsState;
+import de.dal33t.powerfolder.util.delta.FilePartsState.PartState;
+
+/**
+ * Writes a temp file in chunks like a download does and compares the
+ * {@link TempFileDigest} with the MD5 of the data.
+ */
+public class TempFileDigestTest extends TestCase {
+    private static final int SIZE = 2 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 32 * 1024;
+    private static final ProgressListener NO_PROGRESS = new ProgressListener()
+    {
+        public void progressReached(double percentageReached) {
+        }
+    };
+
+    private byte[] data;
+    private Path file;
+    private RandomAccessFile raf;
+    private FilePartsState partsState;
+    private TempFileDigest digest;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        data = new byte[SIZE];
+        new Random(1).nextBytes(data);
+        file = Files.createTempFile("TempFileDigestTest", ".tmp");
+        raf = new RandomAccessFile(file.toFile(), "rw");
+        raf.setLength(SIZE);
+        partsState = new FilePartsState(SIZE);
+        digest = new TempFileDigest(SIZE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        raf.close();
+        Files.deleteIfExists(file);
+        super.tearDown();
+    }
+
+    public void testInOrder() throws Exception {
+        for (int offset = 0; offset < SIZE; offset += CHUNK_SIZE) {
+            receive(offset, chunk(offset));
+            assertEquals(offset + CHUNK_SIZE, digest.getPosition());
+        }
+        assertDigest(data);
+    }
+
+    public void testOutOfOrder() throws Exception {
+        // Second half first
+        for (int offset = SIZE / 2; offset < SIZE; offset += CHUNK_SIZE) {
+            receive(offset, chunk(offset));
+            assertEquals(0, digest.getPosition());
+        }
+        for (int offset = 0; offset < SIZE / 2; offset += CHUNK_SIZE) {
+            receive(offset, chunk(offset));
+        }
+        // The second half gets read back in steps with each chunk received
+        assertTrue(digest.getPosition() > SIZE / 2);
+        assertDigest(data);
+    }
+
+    public void testCopiedData() throws Exception {
+        // Copied from a local file, no chunk received for it
+        int copied = 3 * CHUNK_SIZE;
+        write(CHUNK_SIZE, Arrays.copyOfRange(data, CHUNK_SIZE, CHUNK_SIZE
+            + copied));
+        receive(0, chunk(0));
+        assertEquals(CHUNK_SIZE + copied, digest.getPosition());
+        int start = CHUNK_SIZE + copied;
+        for (int offset = start; offset < SIZE; offset += CHUNK_SIZE) {
+            receive(offset, chunk(offset));
+        }
+        assertEquals(SIZE, digest.getPosition());
+        assertDigest(data);
+    }
+
+    public void testRewriteBelowPosition() throws Exception {
+        for (int offset = 0; offset < SIZE / 2; offset += CHUNK_SIZE) {
+            receive(offset, chunk(offset));
+        }
+        // Received again with other data
+        byte[] rewritten = data.clone();
+        rewritten[10] ^= 1;
+        receive(0, Arrays.copyOfRange(rewritten, 0, CHUNK_SIZE));
+        assertEquals(-1, digest.getPosition());
+        for (int offset = SIZE / 2; offset < SIZE; offset += CHUNK_SIZE) {
+            receive(offset, chunk(offset));
+        }
+        assertEquals(-1, digest.getPosition());
+        // Whole file read on completion
+        assertDigest(rewritten);
+    }
+
+    public void testCorruptedChunk() throws Exception {
+        for (int offset = 0; offset < SIZE; offset += CHUNK_SIZE) {
+            byte[] chunk = chunk(offset);
+            if (offset == SIZE / 2) {
+                chunk[100] ^= 1;
+            }
+            receive(offset, chunk);
+        }
+        assertEquals(SIZE, digest.getPosition());
+        assertFalse(Arrays.equals(md5(data), digest.complete(file,
+            NO_PROGRESS)));
+    }
+
+    public void testReadBackFailure() throws Exception {
+        write(CHUNK_SIZE, Arrays.copyOfRange(data, CHUNK_SIZE, SIZE));
+        RandomAccessFile closed = new RandomAccessFile(file.toFile(), "r");
+        closed.close();
+        write(0, chunk(0));
+        digest.update(0, chunk(0), partsState, closed);
+        assertEquals(-1, digest.getPosition());
+        assertDigest(data);
+    }
+
+    // Helper *****************************************************************
+
+    private byte[] chunk(int offset) {
+        return Arrays.copyOfRange(data, offset, offset + CHUNK_SIZE);
+    }
+
+    private void receive(long offset, byte[] chunk) throws IOException {
+        write(offset, chunk);
+        digest.update(offset, chunk, partsState, raf);
+    }
+
+    private void write(long offset, byte[] chunk) throws IOException {
+        raf.seek(offset);
+        raf.write(chunk);
+        partsState.setPartState(Range.getRangeByLength(offset, chunk.length),
+            PartState.AVAILABLE);
+    }
+
+    private void assertDigest(byte[] expected) throws Exception {
+        assertTrue(Arrays.equals(md5(expected), digest.complete(file,
+            NO_PROGRESS)));
+    }
+
+    private static byte[] md5(byte[] data) throws Exception {
+        return MessageDigest.getInstance("MD5").digest(data);
+    }
+}
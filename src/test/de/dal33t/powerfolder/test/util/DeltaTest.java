@@ -30,15 +30,26 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.Adler32;
 
 import junit.framework.TestCase;
 import de.dal33t.powerfolder.util.Range;
 import de.dal33t.powerfolder.util.RingBuffer;
+import de.dal33t.powerfolder.util.delta.ContentDefinedMatcher;
+import de.dal33t.powerfolder.util.delta.ContentDefinedRecordBuilder;
 import de.dal33t.powerfolder.util.delta.FilePartsRecord;
 import de.dal33t.powerfolder.util.delta.FilePartsRecordBuilder;
 import de.dal33t.powerfolder.util.delta.FilePartsState;
 import de.dal33t.powerfolder.util.delta.MatchInfo;
+import de.dal33t.powerfolder.util.delta.ParallelFilePartsRecordBuilder;
 import de.dal33t.powerfolder.util.delta.PartInfo;
 import de.dal33t.powerfolder.util.delta.PartInfoMatcher;
 import de.dal33t.powerfolder.util.delta.RollingAdler32;
@@ -261,6 +272,39 @@ public class DeltaTest extends TestCase {
         assertEquals((data.length + 127) / 128, infos.length);
     }
 
+    public void testShortTailAfterUnmatchedData() throws Exception {
+        Random prng = new Random(1);
+        int partSize = 128;
+        byte[] remote = new byte[10 * partSize + 17];
+        prng.nextBytes(remote);
+        FilePartsRecordBuilder b = new FilePartsRecordBuilder(new Adler32(),
+            MessageDigest.getInstance("SHA-256"), MessageDigest
+                .getInstance("MD5"), partSize);
+        b.update(remote);
+        FilePartsRecord record = b.getRecord();
+        PartInfo last = record.getInfos()[record.getInfos().length - 1];
+
+        // Unmatched data, then the 17 bytes of the last part
+        byte[] local = new byte[5 * partSize + 17];
+        prng.nextBytes(local);
+        System.arraycopy(remote, remote.length - 17, local, local.length - 17,
+            17);
+        MatchInfo[] infos = performMatch(new PartInfoMatcher(
+            new ByteArrayInputStream(local), new RollingAdler32(partSize),
+            MessageDigest.getInstance("SHA-256"), record.getInfos()));
+        assertEquals(1, infos.length);
+        assertEquals(last, infos[0].getMatchedPart());
+        assertEquals(5 * partSize, infos[0].getMatchedPosition());
+
+        // Not at the end of a file of the same length
+        local = Arrays.copyOf(local, local.length + 1);
+        local[local.length - 1] = 1;
+        infos = performMatch(new PartInfoMatcher(new ByteArrayInputStream(
+            local), new RollingAdler32(partSize), MessageDigest
+            .getInstance("SHA-256"), record.getInfos()));
+        assertEquals(0, infos.length);
+    }
+
     private MatchInfo[] performMatch(PartInfoMatcher partInfoMatcher)
         throws IOException
     {
@@ -398,6 +442,134 @@ public class DeltaTest extends TestCase {
         }
     }
 
+    public void testParallelBuilder() throws Exception {
+        Random prng = new Random(1);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            // Part size, data length
+            int[][] tests = {{4096, 0}, {4096, 1}, {4096, 4095},
+                {4096, 4096}, {4096, 1024 * 1024},
+                {4096, 3 * 1024 * 1024 + 123}, {3000, 2 * 1024 * 1024 + 1},
+                {1536 * 1024, 4 * 1024 * 1024 + 7}};
+            for (int[] test : tests) {
+                int partSize = test[0];
+                byte[] data = new byte[test[1]];
+                prng.nextBytes(data);
+                FilePartsRecordBuilder b = new FilePartsRecordBuilder(
+                    new Adler32(), MessageDigest.getInstance("SHA-256"),
+                    MessageDigest.getInstance("MD5"), partSize);
+                b.update(data);
+                FilePartsRecord expected = b.getRecord();
+                ParallelFilePartsRecordBuilder pb;
+                pb = new ParallelFilePartsRecordBuilder(executor, 3, "SHA-256",
+                    "MD5", partSize);
+                FilePartsRecord record = pb.build(new ByteArrayInputStream(
+                    data), data.length, null);
+                assertEquals("Part size " + partSize + ", length "
+                    + data.length, expected, record);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testParallelBuilderExecutorShutdown() throws Exception {
+        final ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors
+            .newFixedThreadPool(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    // Shut down
+                }
+            }
+        });
+        final byte[] data = new byte[8 * 1024 * 1024];
+        ExecutorService builder = Executors.newSingleThreadExecutor();
+        try {
+            Future<FilePartsRecord> build = builder
+                .submit(new Callable<FilePartsRecord>() {
+                    public FilePartsRecord call() throws Exception {
+                        return new ParallelFilePartsRecordBuilder(executor,
+                            1, "SHA-256", "MD5", 4096).build(
+                            new ByteArrayInputStream(data), data.length, null);
+                    }
+                });
+            // Both buffers in tasks, which are queued behind the blocker
+            while (executor.getQueue().size() < 2) {
+                Thread.sleep(10);
+            }
+            executor.shutdownNow();
+            try {
+                build.get(10, TimeUnit.SECONDS);
+                fail("Build succeeded without its tasks");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            builder.shutdownNow();
+        }
+    }
+
+    public void testContentDefinedParts() throws Exception {
+        Random prng = new Random(1);
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        prng.nextBytes(data);
+        ContentDefinedRecordBuilder b = new ContentDefinedRecordBuilder(
+            MessageDigest.getInstance("SHA-256"), MessageDigest
+                .getInstance("MD5"), 8192);
+        b.update(data);
+        FilePartsRecord record = b.getRecord();
+        assertTrue(record.isContentDefined());
+        assertEquals(8192, record.getPartLength());
+        assertEquals(data.length, record.getFileLength());
+        PartInfo[] infos = record.getInfos();
+        assertTrue("Parts: " + infos.length, infos.length > data.length
+            / 8192 / 2
+            && infos.length < data.length / 8192 * 2);
+        assertEquals(data.length, record.getPartRange(infos.length - 1)
+            .getEnd() + 1);
+
+        // Cuts don't depend on how the data is passed
+        int pos = 0;
+        while (pos < data.length) {
+            int len = Math.min(data.length - pos, prng.nextInt(5000));
+            b.update(data, pos, len);
+            pos += len;
+        }
+        assertEquals(record, b.getRecord());
+
+        // Insert some bytes in the middle
+        int insertAt = data.length / 2;
+        byte[] inserted = new byte[100];
+        prng.nextBytes(inserted);
+        byte[] modified = new byte[data.length + inserted.length];
+        System.arraycopy(data, 0, modified, 0, insertAt);
+        System.arraycopy(inserted, 0, modified, insertAt, inserted.length);
+        System.arraycopy(data, insertAt, modified, insertAt + inserted.length,
+            data.length - insertAt);
+
+        ContentDefinedMatcher matcher = new ContentDefinedMatcher(
+            new ByteArrayInputStream(modified), record.getPartLength(),
+            MessageDigest.getInstance("SHA-256"), infos);
+        int matched = 0;
+        MatchInfo match;
+        while ((match = matcher.nextMatch()) != null) {
+            Range range = record.getPartRange(match.getMatchedPart()
+                .getIndex());
+            for (int i = 0; i < range.getLength(); i++) {
+                assertEquals(data[(int) (range.getStart() + i)],
+                    modified[(int) (match.getMatchedPosition() + i)]);
+            }
+            matched++;
+        }
+        // Only the part containing the insertion and maybe a neighbour differ
+        assertTrue("Matched " + matched + " of " + infos.length,
+            matched >= infos.length - 2);
+    }
+
     /**
      * Note: This test will always pass, it's only there to note some
      * performance values